@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.net.Uri;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares {@link UriMatcher} with {@link LinearUriMatcher}, which scans the children of each
+ * node in order like UriMatcher used to, on a pattern set the size of a large provider's.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class UriMatcherPerfTest {
+    private static final String AUTHORITY = "media";
+    private static final int TABLES = 100;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private UriMatcher mMatcher;
+    private LinearUriMatcher mLinearMatcher;
+    private Uri mFirstUri;
+    private Uri mLastUri;
+    private Uri mMissUri;
+
+    @Before
+    public void setUp() {
+        mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+        mLinearMatcher = new LinearUriMatcher(UriMatcher.NO_MATCH);
+        int code = 0;
+        for (int i = 0; i < TABLES; i++) {
+            for (String suffix : new String[] { "", "/#", "/#/items", "/filter/*" }) {
+                final String path = "external/table" + i + suffix;
+                mMatcher.addURI(AUTHORITY, path, code);
+                mLinearMatcher.addURI(AUTHORITY, path, code);
+                code++;
+            }
+        }
+        mFirstUri = Uri.parse("content://media/external/table0/42");
+        mLastUri = Uri.parse("content://media/external/table" + (TABLES - 1) + "/42/items");
+        mMissUri = Uri.parse("content://media/external/unknown/42");
+        // Path segments are parsed lazily and cached; keep that out of the measurements.
+        mFirstUri.getPathSegments();
+        mLastUri.getPathSegments();
+        mMissUri.getPathSegments();
+    }
+
+    @Test
+    public void timeMatchFirst() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mMatcher.match(mFirstUri);
+        }
+    }
+
+    @Test
+    public void timeMatchLast() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mMatcher.match(mLastUri);
+        }
+    }
+
+    @Test
+    public void timeMatchMiss() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mMatcher.match(mMissUri);
+        }
+    }
+
+    @Test
+    public void timeLinearMatchFirst() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mLinearMatcher.match(mFirstUri);
+        }
+    }
+
+    @Test
+    public void timeLinearMatchLast() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mLinearMatcher.match(mLastUri);
+        }
+    }
+
+    @Test
+    public void timeLinearMatchMiss() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mLinearMatcher.match(mMissUri);
+        }
+    }
+
+    /**
+     * Reference matcher that checks the children of each node one by one, in the order they
+     * were added.
+     */
+    private static class LinearUriMatcher {
+        private static final int EXACT = 0;
+        private static final int NUMBER = 1;
+        private static final int TEXT = 2;
+
+        private final ArrayList<LinearUriMatcher> mChildren = new ArrayList<>();
+        private int mCode;
+        private int mWhich;
+        private String mText;
+
+        LinearUriMatcher(int code) {
+            mCode = code;
+        }
+
+        void addURI(String authority, String path, int code) {
+            final String[] tokens = path.split("/");
+            LinearUriMatcher node = this;
+            for (int i = -1; i < tokens.length; i++) {
+                final String token = i < 0 ? authority : tokens[i];
+                LinearUriMatcher next = null;
+                for (LinearUriMatcher child : node.mChildren) {
+                    if (token.equals(child.mText)) {
+                        next = child;
+                        break;
+                    }
+                }
+                if (next == null) {
+                    next = new LinearUriMatcher(UriMatcher.NO_MATCH);
+                    next.mWhich = "#".equals(token) ? NUMBER : "*".equals(token) ? TEXT : EXACT;
+                    next.mText = token;
+                    node.mChildren.add(next);
+                }
+                node = next;
+            }
+            node.mCode = code;
+        }
+
+        int match(Uri uri) {
+            final List<String> pathSegments = uri.getPathSegments();
+            LinearUriMatcher node = this;
+            for (int i = -1; i < pathSegments.size(); i++) {
+                final String u = i < 0 ? uri.getAuthority() : pathSegments.get(i);
+                final ArrayList<LinearUriMatcher> list = node.mChildren;
+                node = null;
+                for (int j = 0; j < list.size() && node == null; j++) {
+                    final LinearUriMatcher n = list.get(j);
+                    if (n.mWhich == TEXT || (n.mWhich == EXACT && n.mText.equals(u))
+                            || (n.mWhich == NUMBER && isNumber(u))) {
+                        node = n;
+                    }
+                }
+                if (node == null) {
+                    return UriMatcher.NO_MATCH;
+                }
+            }
+            return node.mCode;
+        }
+
+        private static boolean isNumber(String u) {
+            for (int k = 0; k < u.length(); k++) {
+                final char c = u.charAt(k);
+                if (c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
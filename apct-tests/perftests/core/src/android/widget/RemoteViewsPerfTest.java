@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.widget;
+
+import android.app.Notification;
+import android.content.Context;
+import android.os.Parcel;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures applying the content views built by {@link Notification.Builder}, the way the
+ * notification shade applies each notification update: unparceled, then either applied to a
+ * new view or reapplied to the view of the previous update.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class RemoteViewsPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Context mContext;
+    private FrameLayout mParent;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mParent = new FrameLayout(mContext);
+    }
+
+    @Test
+    public void timeApply() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final RemoteViews views = buildContentView(50);
+        while (state.keepRunning()) {
+            views.apply(mContext, mParent);
+        }
+    }
+
+    @Test
+    public void timeReapplyUnchanged() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final RemoteViews views = buildContentView(50);
+        final View view = views.apply(mContext, mParent);
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            final RemoteViews update = unparcel(views);
+            state.resumeTiming();
+            update.reapply(mContext, view);
+        }
+    }
+
+    @Test
+    public void timeReapplyProgress() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final RemoteViews[] updates = new RemoteViews[100];
+        for (int i = 0; i < updates.length; i++) {
+            updates[i] = buildContentView(i);
+        }
+        final View view = updates[0].apply(mContext, mParent);
+        int i = 0;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            final RemoteViews update = unparcel(updates[i++ % updates.length]);
+            state.resumeTiming();
+            update.reapply(mContext, view);
+        }
+    }
+
+    private RemoteViews buildContentView(int progress) {
+        return new Notification.Builder(mContext)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle("Downloading update.zip")
+                .setContentText(progress + "% of 120 MB")
+                .setSubText("Downloads")
+                .setProgress(100, progress, false)
+                .setWhen(0)
+                .setShowWhen(true)
+                .createContentView();
+    }
+
+    private static RemoteViews unparcel(RemoteViews views) {
+        final Parcel p = Parcel.obtain();
+        try {
+            views.writeToParcel(p, 0);
+            p.setDataPosition(0);
+            return RemoteViews.CREATOR.createFromParcel(p);
+        } finally {
+            p.recycle();
+        }
+    }
+}
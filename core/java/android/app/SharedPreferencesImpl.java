@@ -18,8 +18,10 @@ package android.app;
 
 import android.annotation.Nullable;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.FileUtils;
 import android.os.Looper;
+import android.os.SystemProperties;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructStat;
@@ -28,6 +30,7 @@ import android.util.Log;
 import com.google.android.collect.Maps;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ExponentiallyBucketedHistogram;
 import com.android.internal.util.XmlUtils;
 
@@ -41,6 +44,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -60,6 +64,13 @@ final class SharedPreferencesImpl implements SharedPreferences {
     /** If a fsync takes more than {@value #MAX_FSYNC_DURATION_MILLIS} ms, warn */
     private static final long MAX_FSYNC_DURATION_MILLIS = 256;
 
+    /**
+     * Opts new preferences files into the journaled backend, see
+     * {@link SharedPreferencesJournal}. Files that already have a journal keep using it
+     * whatever the value, so that turning the property off does not lose data.
+     */
+    private static final String PROP_JOURNAL = "persist.sys.sharedprefs_journal";
+
     // Lock ordering rules:
     //  - acquire SharedPreferencesImpl.mLock before EditorImpl.mLock
     //  - acquire mWritingToDiskLock before EditorImpl.mLock
@@ -67,6 +78,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final File mFile;
     private final File mBackupFile;
     private final int mMode;
+    /**
+     * Non-null if commits are appended to a journal instead of rewriting the XML file. Only
+     * used with mWritingToDiskLock held.
+     */
+    @Nullable
+    private final SharedPreferencesJournal mJournal;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
 
@@ -102,10 +119,37 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final ExponentiallyBucketedHistogram mSyncTimes = new ExponentiallyBucketedHistogram(16);
     private int mNumSync = 0;
 
+    /** Whether the journal holds enough superseded records to be worth compacting */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean mJournalCompactionNeeded;
+
+    @GuardedBy("mWritingToDiskLock")
+    private boolean mJournalCompactionScheduled;
+
+    /** Whether a failed append left the journal behind memory, so it must be rewritten */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean mJournalRewriteNeeded;
+
+    /**
+     * Commits not yet written to the journal, in the order they were committed to memory.
+     * Writes are not run in that order, so each one appends from the head of this queue.
+     */
+    @GuardedBy("mLock")
+    private final ArrayDeque<MemoryCommitResult> mJournalQueue = new ArrayDeque<>();
+
     SharedPreferencesImpl(File file, int mode) {
+        this(file, mode, SystemProperties.getBoolean(PROP_JOURNAL, false)
+                || SharedPreferencesJournal.makeJournalFile(file).exists());
+    }
+
+    @VisibleForTesting
+    SharedPreferencesImpl(File file, int mode, boolean journaled) {
         mFile = file;
         mBackupFile = makeBackupFile(file);
         mMode = mode;
+        mJournal = journaled
+                ? new SharedPreferencesJournal(SharedPreferencesJournal.makeJournalFile(file))
+                : null;
         mLoaded = false;
         mMap = null;
         startLoadFromDisk();
@@ -133,27 +177,16 @@ final class SharedPreferencesImpl implements SharedPreferences {
             }
         }
 
-        // Debugging
-        if (mFile.exists() && !mFile.canRead()) {
-            Log.w(TAG, "Attempt to read preferences file " + mFile + " without permission");
+        if (mJournal != null) {
+            loadFromJournal();
+            return;
         }
 
         Map map = null;
         StructStat stat = null;
         try {
             stat = Os.stat(mFile.getPath());
-            if (mFile.canRead()) {
-                BufferedInputStream str = null;
-                try {
-                    str = new BufferedInputStream(
-                            new FileInputStream(mFile), 16*1024);
-                    map = XmlUtils.readMapXml(str);
-                } catch (Exception e) {
-                    Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
-                } finally {
-                    IoUtils.closeQuietly(str);
-                }
-            }
+            map = readMapFromXml();
         } catch (ErrnoException e) {
             /* ignore */
         }
@@ -171,6 +204,99 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
     }
 
+    private Map readMapFromXml() {
+        // Debugging
+        if (mFile.exists() && !mFile.canRead()) {
+            Log.w(TAG, "Attempt to read preferences file " + mFile + " without permission");
+        }
+
+        Map map = null;
+        if (mFile.canRead()) {
+            BufferedInputStream str = null;
+            try {
+                str = new BufferedInputStream(
+                        new FileInputStream(mFile), 16*1024);
+                map = XmlUtils.readMapXml(str);
+            } catch (Exception e) {
+                Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
+            } finally {
+                IoUtils.closeQuietly(str);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Loads the preferences by replaying the journal. The first time a file is loaded with the
+     * journal enabled, its XML contents are migrated into a new journal and the XML file is
+     * deleted.
+     */
+    private void loadFromJournal() {
+        Map<String, Object> map = new HashMap<>();
+        StructStat stat = null;
+        synchronized (mWritingToDiskLock) {
+            boolean journalRead = false;
+            try {
+                journalRead = mJournal.read(map);
+            } catch (IOException e) {
+                // Start over rather than appending to a journal we can't read.
+                Log.w(TAG, "Cannot read " + mJournal.getFile(), e);
+                map.clear();
+            }
+            if (!journalRead) {
+                final Map xmlMap = readMapFromXml();
+                if (xmlMap != null) {
+                    //noinspection unchecked
+                    map.putAll(xmlMap);
+                }
+                try {
+                    createJournalFileLocked(map);
+                    mFile.delete();
+                    mBackupFile.delete();
+                } catch (IOException e) {
+                    // The first commit fails to append and writes the whole map instead.
+                    Log.e(TAG, "Couldn't create " + mJournal.getFile(), e);
+                }
+            }
+            try {
+                stat = Os.stat(mJournal.getFile().getPath());
+            } catch (ErrnoException e) {
+                /* ignore */
+            }
+        }
+
+        synchronized (mLock) {
+            mLoaded = true;
+            mMap = map;
+            if (stat != null) {
+                mStatTimestamp = stat.st_mtime;
+                mStatSize = stat.st_size;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    @GuardedBy("mWritingToDiskLock")
+    private void createJournalFileLocked(Map<String, Object> map) throws IOException {
+        final File dir = mJournal.getFile().getParentFile();
+        if (!dir.exists()) {
+            if (!dir.mkdir()) {
+                throw new IOException("Couldn't create directory for " + mJournal.getFile());
+            }
+            FileUtils.setPermissions(
+                dir.getPath(),
+                FileUtils.S_IRWXU|FileUtils.S_IRWXG|FileUtils.S_IXOTH,
+                -1, -1);
+        }
+        rewriteJournalLocked(map);
+    }
+
+    @GuardedBy("mWritingToDiskLock")
+    private void rewriteJournalLocked(Map<String, Object> map) throws IOException {
+        mJournal.rewrite(map);
+        ContextImpl.setFilePermissionsFromMode(mJournal.getFile().getPath(), mMode, 0);
+    }
+
     static File makeBackupFile(File prefsFile) {
         return new File(prefsFile.getPath() + ".bak");
     }
@@ -203,7 +329,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
              * violation, but we explicitly want this one.
              */
             BlockGuard.getThreadPolicy().onReadFromDisk();
-            stat = Os.stat(mFile.getPath());
+            stat = Os.stat(getDiskFile().getPath());
         } catch (ErrnoException e) {
             return true;
         }
@@ -213,6 +339,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
     }
 
+    /** Returns the file the preferences are persisted to. */
+    private File getDiskFile() {
+        return (mJournal != null) ? mJournal.getFile() : mFile;
+    }
+
     public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
         synchronized(mLock) {
             mListeners.put(listener, CONTENT);
@@ -322,20 +453,31 @@ final class SharedPreferencesImpl implements SharedPreferences {
         final long memoryStateGeneration;
         @Nullable final List<String> keysModified;
         @Nullable final Set<OnSharedPreferenceChangeListener> listeners;
-        final Map<String, Object> mapToWriteToDisk;
+        @Nullable final Map<String, Object> mapToWriteToDisk;
+        // Journaled backend only: whether the commit cleared the map, and the keys it changed,
+        // with a null value for removed keys.
+        final boolean journalClear;
+        @Nullable final Map<String, Object> journalChanges;
         final CountDownLatch writtenToDiskLatch = new CountDownLatch(1);
 
         @GuardedBy("mWritingToDiskLock")
         volatile boolean writeToDiskResult = false;
         boolean wasWritten = false;
 
+        // Journaled backend only: whether a write has already handled this commit.
+        @GuardedBy("mWritingToDiskLock")
+        boolean journalDone = false;
+
         private MemoryCommitResult(long memoryStateGeneration, @Nullable List<String> keysModified,
                 @Nullable Set<OnSharedPreferenceChangeListener> listeners,
-                Map<String, Object> mapToWriteToDisk) {
+                @Nullable Map<String, Object> mapToWriteToDisk, boolean journalClear,
+                @Nullable Map<String, Object> journalChanges) {
             this.memoryStateGeneration = memoryStateGeneration;
             this.keysModified = keysModified;
             this.listeners = listeners;
             this.mapToWriteToDisk = mapToWriteToDisk;
+            this.journalClear = journalClear;
+            this.journalChanges = journalChanges;
         }
 
         void setDiskWriteResult(boolean wasWritten, boolean result) {
@@ -445,23 +587,32 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         // Returns true if any changes were made
         private MemoryCommitResult commitToMemory() {
+            final MemoryCommitResult mcr;
             long memoryStateGeneration;
             List<String> keysModified = null;
             Set<OnSharedPreferenceChangeListener> listeners = null;
-            Map<String, Object> mapToWriteToDisk;
+            Map<String, Object> mapToWriteToDisk = null;
+            boolean journalClear = false;
+            Map<String, Object> journalChanges = null;
 
             synchronized (SharedPreferencesImpl.this.mLock) {
-                // We optimistically don't make a deep copy until
-                // a memory commit comes in when we're already
-                // writing to disk.
-                if (mDiskWritesInFlight > 0) {
-                    // We can't modify our mMap as a currently
-                    // in-flight write owns it.  Clone it before
-                    // modifying it.
-                    // noinspection unchecked
-                    mMap = new HashMap<String, Object>(mMap);
+                if (mJournal != null) {
+                    // The journal only needs the changed keys, so the map is never shared
+                    // with a disk write.
+                    journalChanges = new HashMap<>();
+                } else {
+                    // We optimistically don't make a deep copy until
+                    // a memory commit comes in when we're already
+                    // writing to disk.
+                    if (mDiskWritesInFlight > 0) {
+                        // We can't modify our mMap as a currently
+                        // in-flight write owns it.  Clone it before
+                        // modifying it.
+                        // noinspection unchecked
+                        mMap = new HashMap<String, Object>(mMap);
+                    }
+                    mapToWriteToDisk = mMap;
                 }
-                mapToWriteToDisk = mMap;
                 mDiskWritesInFlight++;
 
                 boolean hasListeners = mListeners.size() > 0;
@@ -477,6 +628,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (!mMap.isEmpty()) {
                             changesMade = true;
                             mMap.clear();
+                            journalClear = true;
                         }
                         mClear = false;
                     }
@@ -506,6 +658,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (hasListeners) {
                             keysModified.add(k);
                         }
+                        if (journalChanges != null) {
+                            journalChanges.put(k, mMap.get(k));
+                        }
                     }
 
                     mModified.clear();
@@ -516,9 +671,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
                     memoryStateGeneration = mCurrentMemoryStateGeneration;
                 }
+
+                mcr = new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
+                        mapToWriteToDisk, journalClear, journalChanges);
+                if (mJournal != null) {
+                    mJournalQueue.add(mcr);
+                }
             }
-            return new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
-                    mapToWriteToDisk);
+            return mcr;
         }
 
         public boolean commit() {
@@ -600,6 +760,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     synchronized (mLock) {
                         mDiskWritesInFlight--;
                     }
+                    if (mJournal != null) {
+                        maybeScheduleJournalCompaction();
+                    }
                     if (postWriteRunnable != null) {
                         postWriteRunnable.run();
                     }
@@ -647,6 +810,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
     // Note: must hold mWritingToDiskLock
     private void writeToFile(MemoryCommitResult mcr, boolean isFromSyncCommit) {
+        if (mJournal != null) {
+            writeToJournal(mcr);
+            return;
+        }
+
         long startTime = 0;
         long existsTime = 0;
         long backupExistsTime = 0;
@@ -800,4 +968,153 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
         mcr.setDiskWriteResult(false, false);
     }
+
+    /**
+     * Appends the changes of a commit to the journal, after those of any earlier commit still
+     * waiting to be written. Unlike {@link #writeToFile}, every commit is written, as each
+     * record only holds the keys the commit changed.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private void writeToJournal(MemoryCommitResult mcr) {
+        if (mcr.journalDone) {
+            // Written along with an earlier commit.
+            return;
+        }
+        if (mJournalRewriteNeeded) {
+            rewriteJournalFromMemoryLocked(null);
+            return;
+        }
+
+        MemoryCommitResult next;
+        do {
+            synchronized (mLock) {
+                next = mJournalQueue.poll();
+            }
+            if (!appendToJournalLocked(next)) {
+                // Appending later changes on top of a lost one would make replay skip it, so
+                // replace the journal with everything committed so far instead.
+                rewriteJournalFromMemoryLocked(next);
+                return;
+            }
+        } while (next != mcr);
+    }
+
+    /**
+     * Appends a single commit to the journal.
+     *
+     * @return false if the append failed, in which case the commit's result is not set.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean appendToJournalLocked(MemoryCommitResult mcr) {
+        if (!mcr.journalClear && mcr.journalChanges.isEmpty()) {
+            mcr.journalDone = true;
+            mcr.setDiskWriteResult(false, true);
+            return true;
+        }
+
+        final long startTime = System.currentTimeMillis();
+        try {
+            mJournal.append(mcr.journalClear, mcr.journalChanges);
+        } catch (IOException e) {
+            Log.w(TAG, "appendToJournal: Got exception:", e);
+            return false;
+        }
+        final long syncDuration = System.currentTimeMillis() - startTime;
+
+        try {
+            final StructStat stat = Os.stat(mJournal.getFile().getPath());
+            synchronized (mLock) {
+                mStatTimestamp = stat.st_mtime;
+                mStatSize = stat.st_size;
+                if (mJournal.needsCompaction(mMap.size())) {
+                    mJournalCompactionNeeded = true;
+                }
+            }
+        } catch (ErrnoException e) {
+            // Do nothing
+        }
+
+        mDiskStateGeneration = mcr.memoryStateGeneration;
+        mcr.journalDone = true;
+        mcr.setDiskWriteResult(true, true);
+
+        mSyncTimes.add(Long.valueOf(syncDuration).intValue());
+        mNumSync++;
+        if (DEBUG || mNumSync % 1024 == 0 || syncDuration > MAX_FSYNC_DURATION_MILLIS) {
+            mSyncTimes.log(TAG, "Time required to append to " + mJournal.getFile() + ": ");
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the journal with the current contents of memory. This writes every commit still
+     * waiting in {@link #mJournalQueue}, as well as {@code polled} if it has already been taken
+     * off the queue.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private void rewriteJournalFromMemoryLocked(@Nullable MemoryCommitResult polled) {
+        final ArrayList<MemoryCommitResult> written = new ArrayList<>();
+        if (polled != null) {
+            written.add(polled);
+        }
+        final Map<String, Object> map;
+        synchronized (mLock) {
+            map = new HashMap<>(mMap);
+            written.addAll(mJournalQueue);
+            mJournalQueue.clear();
+        }
+
+        boolean success = false;
+        try {
+            // Also recreates the journal if migration could not create it.
+            createJournalFileLocked(map);
+            success = true;
+            mJournalRewriteNeeded = false;
+            mJournalCompactionNeeded = false;
+            final StructStat stat = Os.stat(mJournal.getFile().getPath());
+            synchronized (mLock) {
+                mStatTimestamp = stat.st_mtime;
+                mStatSize = stat.st_size;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't rewrite " + mJournal.getFile(), e);
+            // Memory still holds the changes; the next write tries again.
+            mJournalRewriteNeeded = true;
+        } catch (ErrnoException e) {
+            // Do nothing
+        }
+
+        for (int i = 0; i < written.size(); i++) {
+            final MemoryCommitResult mcr = written.get(i);
+            if (success) {
+                mDiskStateGeneration = mcr.memoryStateGeneration;
+            }
+            mcr.journalDone = true;
+            mcr.setDiskWriteResult(success, success);
+        }
+    }
+
+    /**
+     * Compacts the journal in the background if needed. Compaction is kept off
+     * {@link QueuedWork}, so {@link QueuedWork#waitToFinish} never waits for it.
+     */
+    private void maybeScheduleJournalCompaction() {
+        synchronized (mWritingToDiskLock) {
+            if ((!mJournalCompactionNeeded && !mJournalRewriteNeeded)
+                    || mJournalCompactionScheduled) {
+                return;
+            }
+            mJournalCompactionScheduled = true;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(this::compactJournal);
+    }
+
+    private void compactJournal() {
+        synchronized (mWritingToDiskLock) {
+            mJournalCompactionScheduled = false;
+            if (mJournalCompactionNeeded || mJournalRewriteNeeded) {
+                rewriteJournalFromMemoryLocked(null);
+            }
+        }
+    }
 }
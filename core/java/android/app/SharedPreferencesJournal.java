@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.os.FileUtils;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal used by {@link SharedPreferencesImpl} instead of its XML file.
+ *
+ * Each commit is appended as a single checksummed record holding the keys it changed, so a
+ * commit only costs a small append and an fdatasync rather than a rewrite of the whole file.
+ * Loading replays the records into a map, stopping at the first truncated or corrupt record,
+ * which is what a crash in the middle of an append leaves behind. {@link #rewrite} compacts the
+ * journal to a single record holding the current contents.
+ *
+ * <p>This class is not thread-safe; callers serialize access with their disk write lock.
+ */
+final class SharedPreferencesJournal {
+    private static final String TAG = "SharedPreferencesJournal";
+
+    private static final int MAGIC = 0x53504a31; // SPJ1
+
+    private static final int HEADER_SIZE = 4;
+
+    // Record header: payload length and CRC32 of the payload.
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CLEAR = 3;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    /** Number of superseded operations tolerated before the journal asks to be compacted. */
+    private static final int MIN_OBSOLETE_OPS_TO_COMPACT = 256;
+
+    private final File mFile;
+
+    private FileOutputStream mOut;
+
+    // Valid length of the journal, and number of key operations it holds.
+    private long mLength;
+    private int mOpCount;
+
+    SharedPreferencesJournal(File file) {
+        mFile = file;
+    }
+
+    static File makeJournalFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".journal");
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    boolean exists() {
+        return mFile.exists();
+    }
+
+    long length() {
+        return mLength;
+    }
+
+    /**
+     * Replays the journal into {@code map}. A truncated or corrupt tail is dropped from the
+     * file, so that later appends follow the last valid record.
+     *
+     * @return false if there is no journal.
+     */
+    boolean read(Map<String, Object> map) throws IOException {
+        closeOutput();
+        if (!mFile.exists()) {
+            mLength = 0;
+            mOpCount = 0;
+            return false;
+        }
+        final long fileLength = mFile.length();
+        long length = 0;
+        int opCount = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 16*1024));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Bad journal header in " + mFile);
+            }
+            length = HEADER_SIZE;
+            final CRC32 crc = new CRC32();
+            while (length + RECORD_HEADER_SIZE <= fileLength) {
+                final int size = in.readInt();
+                final int checksum = in.readInt();
+                if (size < 0 || length + RECORD_HEADER_SIZE + size > fileLength) {
+                    break;
+                }
+                final byte[] payload = new byte[size];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                opCount += applyRecord(payload, map);
+                length += RECORD_HEADER_SIZE + size;
+            }
+        } catch (EOFException e) {
+            // Only possible for a partially written header; treated like any other bad tail.
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        if (length < HEADER_SIZE) {
+            throw new IOException("Truncated journal " + mFile);
+        }
+        if (length < fileLength) {
+            Log.w(TAG, "Dropping " + (fileLength - length) + " bytes of invalid records from "
+                    + mFile);
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                file.setLength(length);
+            }
+        }
+        mLength = length;
+        mOpCount = opCount;
+        return true;
+    }
+
+    /**
+     * Durably appends one commit as a single record. On failure the journal is left as it was
+     * before the call.
+     *
+     * @param clear whether the commit cleared all keys before applying {@code changes}.
+     * @param changes the keys changed by the commit, with a null value for removed keys.
+     */
+    void append(boolean clear, Map<String, Object> changes) throws IOException {
+        if (mOut == null) {
+            if (!mFile.exists()) {
+                throw new IOException("Journal " + mFile + " has not been created");
+            }
+            mOut = new FileOutputStream(mFile, true);
+        }
+        final byte[] record = encodeRecord(clear, changes);
+        try {
+            mOut.write(record);
+            Os.fdatasync(mOut.getFD());
+        } catch (IOException | ErrnoException e) {
+            closeOutput();
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                file.setLength(mLength);
+            } catch (IOException e2) {
+                Log.w(TAG, "Couldn't roll back " + mFile, e2);
+            }
+            throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+        }
+        mLength += record.length;
+        mOpCount += changes.size() + (clear ? 1 : 0);
+    }
+
+    /**
+     * Atomically replaces the journal with a single record holding {@code map}.
+     */
+    void rewrite(Map<String, Object> map) throws IOException {
+        closeOutput();
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        final byte[] record = encodeRecord(false, map);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            final DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.write(record);
+            header.flush();
+            FileUtils.sync(out);
+            out.close();
+            out = null;
+            Os.rename(tmp.getPath(), mFile.getPath());
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        } finally {
+            if (out != null) {
+                IoUtils.closeQuietly(out);
+                tmp.delete();
+            }
+        }
+        mLength = HEADER_SIZE + record.length;
+        mOpCount = map.size();
+    }
+
+    /**
+     * Whether enough of the journal is made of superseded operations that it should be
+     * compacted.
+     *
+     * @param liveKeys number of keys currently stored.
+     */
+    boolean needsCompaction(int liveKeys) {
+        return mOpCount - liveKeys > Math.max(MIN_OBSOLETE_OPS_TO_COMPACT, liveKeys);
+    }
+
+    void delete() {
+        closeOutput();
+        mFile.delete();
+        mLength = 0;
+        mOpCount = 0;
+    }
+
+    private void closeOutput() {
+        IoUtils.closeQuietly(mOut);
+        mOut = null;
+    }
+
+    private static byte[] encodeRecord(boolean clear, Map<String, Object> changes)
+            throws IOException {
+        final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        final DataOutputStream payload = new DataOutputStream(payloadBytes);
+        if (clear) {
+            payload.writeByte(OP_CLEAR);
+        }
+        for (Map.Entry<String, Object> e : changes.entrySet()) {
+            final Object v = e.getValue();
+            if (v == null) {
+                payload.writeByte(OP_REMOVE);
+                writeString(payload, e.getKey());
+            } else {
+                payload.writeByte(OP_PUT);
+                writeString(payload, e.getKey());
+                writeValue(payload, v);
+            }
+        }
+        payload.flush();
+        final byte[] bytes = payloadBytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        final ByteArrayOutputStream recordBytes =
+                new ByteArrayOutputStream(RECORD_HEADER_SIZE + bytes.length);
+        final DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeInt(bytes.length);
+        record.writeInt((int) crc.getValue());
+        record.write(bytes);
+        record.flush();
+        return recordBytes.toByteArray();
+    }
+
+    /**
+     * Applies the operations of a record payload to {@code map}.
+     *
+     * @return the number of operations applied.
+     */
+    private static int applyRecord(byte[] payload, Map<String, Object> map) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int ops = 0;
+        while (in.available() > 0) {
+            final byte op = in.readByte();
+            switch (op) {
+                case OP_PUT:
+                    final String key = readString(in);
+                    map.put(key, readValue(in));
+                    break;
+                case OP_REMOVE:
+                    map.remove(readString(in));
+                    break;
+                case OP_CLEAR:
+                    map.clear();
+                    break;
+                default:
+                    throw new IOException("Unknown journal operation " + op);
+            }
+            ops++;
+        }
+        return ops;
+    }
+
+    private static void writeValue(DataOutputStream out, Object v) throws IOException {
+        if (v instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) v);
+        } else if (v instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) v);
+        } else if (v instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) v);
+        } else if (v instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) v);
+        } else if (v instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof Set) {
+            final Set<?> set = (Set<?>) v;
+            out.writeByte(TYPE_STRING_SET);
+            out.writeInt(set.size());
+            for (Object s : set) {
+                writeString(out, (String) s);
+            }
+        } else {
+            throw new IOException("Unsupported value type " + v.getClass());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_STRING_SET:
+                final int size = in.readInt();
+                final Set<String> set = new HashSet<>(size);
+                for (int i = 0; i < size; i++) {
+                    set.add(readString(in));
+                }
+                return set;
+            default:
+                throw new IOException("Unknown journal value type " + type);
+        }
+    }
+
+    // Unlike writeUTF(), not limited to 64k.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -21,7 +21,16 @@ import android.content.Context;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import com.android.internal.util.XmlUtils;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlPullParserException;
+
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * A helper class that can be used in conjunction with
@@ -70,6 +79,10 @@ public class SharedPreferencesBackupHelper extends FileBackupHelperBase implemen
     private static final String TAG = "SharedPreferencesBackupHelper";
     private static final boolean DEBUG = false;
 
+    // Suffix of the journal that replaces the XML file of journaled preferences, see
+    // android.app.SharedPreferencesJournal.
+    private static final String JOURNAL_SUFFIX = ".journal";
+
     private Context mContext;
     private String[] mPrefGroups;
 
@@ -103,12 +116,28 @@ public class SharedPreferencesBackupHelper extends FileBackupHelperBase implemen
         String[] prefGroups = mPrefGroups;
         final int N = prefGroups.length;
         String[] files = new String[N];
-        for (int i=0; i<N; i++) {
-            files[i] = context.getSharedPrefsFile(prefGroups[i]).getAbsolutePath();
-        }
+        ArrayList<File> snapshots = new ArrayList<>();
+        try {
+            for (int i=0; i<N; i++) {
+                File prefsFile = context.getSharedPrefsFile(prefGroups[i]);
+                if (getJournalFile(prefsFile).exists()) {
+                    // Journaled preferences have no XML file. Back up an XML snapshot instead,
+                    // so the data set is the same whichever way the preferences are stored.
+                    File snapshot = writeXmlSnapshot(context, prefGroups[i]);
+                    snapshots.add(snapshot);
+                    files[i] = snapshot.getAbsolutePath();
+                } else {
+                    files[i] = prefsFile.getAbsolutePath();
+                }
+            }
 
-        // go
-        performBackup_checked(oldState, data, newState, files, prefGroups);
+            // go
+            performBackup_checked(oldState, data, newState, files, prefGroups);
+        } finally {
+            for (int i = 0; i < snapshots.size(); i++) {
+                snapshots.get(i).delete();
+            }
+        }
     }
 
     /**
@@ -124,6 +153,34 @@ public class SharedPreferencesBackupHelper extends FileBackupHelperBase implemen
         if (isKeyInList(key, mPrefGroups)) {
             File f = context.getSharedPrefsFile(key).getAbsoluteFile();
             writeFile(f, data);
+            // A journal would take precedence over the restored XML. Without it, the XML is
+            // migrated into a new journal the next time the preferences are loaded.
+            getJournalFile(f).delete();
+        }
+    }
+
+    private static File getJournalFile(File prefsFile) {
+        return new File(prefsFile.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Writes the current contents of the named preferences to a temporary file in the XML
+     * format used for non-journaled preferences.
+     */
+    private static File writeXmlSnapshot(Context context, String prefGroup) {
+        File snapshot = new File(context.getCacheDir(), prefGroup + ".xml.backup");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(snapshot);
+            XmlUtils.writeMapXml(
+                    context.getSharedPreferences(prefGroup, Context.MODE_PRIVATE).getAll(), out);
+        } catch (IOException | XmlPullParserException e) {
+            snapshot.delete();
+            // Backing up a missing file would delete the existing copy, so fail the backup.
+            throw new IllegalStateException("Couldn't write snapshot of " + prefGroup, e);
+        } finally {
+            IoUtils.closeQuietly(out);
         }
+        return snapshot;
     }
 }
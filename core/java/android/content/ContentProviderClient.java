@@ -30,6 +30,7 @@ import android.os.ICancellationSignal;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
@@ -473,6 +474,93 @@ public class ContentProviderClient implements AutoCloseable {
         }
     }
 
+    /**
+     * Receives the progress of
+     * {@link ContentProviderClient#applyBatch(ArrayList, int, BatchProgressListener)}.
+     *
+     * @hide
+     */
+    public interface BatchProgressListener {
+        /**
+         * Called after a chunk of operations has been applied by the provider.
+         *
+         * @param start the index of the first operation of the chunk in the batch
+         * @param count the number of operations in the chunk
+         * @param elapsedMillis the time taken to apply the chunk, including the call to
+         *     the provider
+         */
+        void onChunkApplied(int start, int count, long elapsedMillis);
+    }
+
+    /**
+     * Applies a large batch of operations as a sequence of smaller batches, each sent to
+     * the provider in its own call, so that neither a single call nor a single provider
+     * transaction has to hold the whole batch.
+     * <p>
+     * Chunks hold about {@code chunkSize} operations, and are extended by up to as many
+     * again to end right before an operation that allows yielding, so that operations
+     * the caller grouped between yield points are applied together.  Back references
+     * may point to results of earlier chunks: they are resolved before the chunk that
+     * holds them is sent.
+     * <p>
+     * Unlike {@link #applyBatch(ArrayList)}, the batch is not applied atomically even by
+     * providers that apply batches in a transaction: if a chunk fails, the chunks before
+     * it remain applied.
+     *
+     * @param operations the operations to apply
+     * @param chunkSize the number of operations to send in each call
+     * @param listener notified after each chunk, or null
+     * @return the results of all operations
+     * @hide
+     */
+    public @NonNull ContentProviderResult[] applyBatch(
+            @NonNull ArrayList<ContentProviderOperation> operations, int chunkSize,
+            @Nullable BatchProgressListener listener)
+                    throws RemoteException, OperationApplicationException {
+        Preconditions.checkNotNull(operations, "operations");
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+
+        final int numOperations = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+        int start = 0;
+        while (start < numOperations) {
+            final int end = findChunkEnd(operations, start, chunkSize);
+            // A new list for each chunk, as local providers get the list itself.
+            final ArrayList<ContentProviderOperation> chunk = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                chunk.add(operations.get(i).withBackReferencesRebased(results, start));
+            }
+
+            final long startTime = SystemClock.elapsedRealtime();
+            final ContentProviderResult[] chunkResults = applyBatch(chunk);
+            final long elapsedMillis = SystemClock.elapsedRealtime() - startTime;
+            if (chunkResults.length != chunk.size()) {
+                throw new OperationApplicationException("Provider returned "
+                        + chunkResults.length + " results for " + chunk.size()
+                        + " operations");
+            }
+            System.arraycopy(chunkResults, 0, results, start, chunkResults.length);
+            if (listener != null) {
+                listener.onChunkApplied(start, end - start, elapsedMillis);
+            }
+            start = end;
+        }
+        return results;
+    }
+
+    private static int findChunkEnd(ArrayList<ContentProviderOperation> operations,
+            int start, int chunkSize) {
+        final int numOperations = operations.size();
+        final int maxEnd = (int) Math.min((long) start + 2 * chunkSize, numOperations);
+        int end = Math.min(start + chunkSize, maxEnd);
+        while (end < maxEnd && !operations.get(end).isYieldAllowed()) {
+            end++;
+        }
+        return end;
+    }
+
     /** See {@link ContentProvider#call(String, String, Bundle)} */
     public @Nullable Bundle call(@NonNull String method, @Nullable String arg,
             @Nullable Bundle extras) throws RemoteException {
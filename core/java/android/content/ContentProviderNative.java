@@ -108,6 +108,11 @@ abstract public class ContentProviderNative extends Binder implements IContentPr
                                     getProviderName());
                             cursor = null;
 
+                            if (queryArgs != null && queryArgs.getBoolean(
+                                    ContentResolver.QUERY_ARG_STREAMING)) {
+                                adaptor.setStreamingEnabled(true);
+                            }
+
                             BulkCursorDescriptor d = adaptor.getBulkCursorDescriptor();
                             adaptor = null;
 
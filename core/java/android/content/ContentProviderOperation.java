@@ -110,6 +110,89 @@ public class ContentProviderOperation implements Parcelable {
         mYieldAllowed = cpo.mYieldAllowed;
     }
 
+    private ContentProviderOperation(ContentProviderOperation cpo, ContentValues values,
+            String[] selectionArgs, ContentValues valuesBackReferences,
+            Map<Integer, Integer> selectionArgsBackReferences) {
+        mType = cpo.mType;
+        mUri = cpo.mUri;
+        mValues = values;
+        mSelection = cpo.mSelection;
+        mSelectionArgs = selectionArgs;
+        mExpectedCount = cpo.mExpectedCount;
+        mSelectionArgsBackReferences = selectionArgsBackReferences;
+        mValuesBackReferences = valuesBackReferences;
+        mYieldAllowed = cpo.mYieldAllowed;
+    }
+
+    /**
+     * Returns this operation as it should be sent in a batch made of the operations of a
+     * larger batch starting at index {@code offset}.  Back references to results before
+     * {@code offset} are replaced by their values, taken from {@code previousResults}, and
+     * the other back references are shifted down by {@code offset}.
+     *
+     * @param previousResults the results of the larger batch, at least up to {@code offset}
+     * @param offset the index in the larger batch of the first operation of the new batch
+     * @hide
+     */
+    public ContentProviderOperation withBackReferencesRebased(
+            ContentProviderResult[] previousResults, int offset) {
+        if (offset == 0
+                || (mValuesBackReferences == null && mSelectionArgsBackReferences == null)) {
+            return this;
+        }
+
+        ContentValues values = mValues;
+        ContentValues valuesBackReferences = null;
+        if (mValuesBackReferences != null) {
+            for (Map.Entry<String, Object> entry : mValuesBackReferences.valueSet()) {
+                final String key = entry.getKey();
+                final Integer backRefIndex = mValuesBackReferences.getAsInteger(key);
+                if (backRefIndex == null) {
+                    Log.e(TAG, this.toString());
+                    throw new IllegalArgumentException("values backref " + key
+                            + " is not an integer");
+                }
+                if (backRefIndex < offset) {
+                    if (values == mValues) {
+                        values = mValues != null ? new ContentValues(mValues)
+                                : new ContentValues();
+                    }
+                    values.put(key, backRefToValue(previousResults, offset, backRefIndex));
+                } else {
+                    if (valuesBackReferences == null) {
+                        valuesBackReferences = new ContentValues();
+                    }
+                    valuesBackReferences.put(key, backRefIndex - offset);
+                }
+            }
+        }
+
+        String[] selectionArgs = mSelectionArgs;
+        Map<Integer, Integer> selectionArgsBackReferences = null;
+        if (mSelectionArgsBackReferences != null) {
+            for (Map.Entry<Integer, Integer> selectionArgBackRef
+                    : mSelectionArgsBackReferences.entrySet()) {
+                final Integer selectionArgIndex = selectionArgBackRef.getKey();
+                final int backRefIndex = selectionArgBackRef.getValue();
+                if (backRefIndex < offset) {
+                    if (selectionArgs == mSelectionArgs) {
+                        selectionArgs = mSelectionArgs.clone();
+                    }
+                    selectionArgs[selectionArgIndex] = String.valueOf(
+                            backRefToValue(previousResults, offset, backRefIndex));
+                } else {
+                    if (selectionArgsBackReferences == null) {
+                        selectionArgsBackReferences = new HashMap<Integer, Integer>();
+                    }
+                    selectionArgsBackReferences.put(selectionArgIndex, backRefIndex - offset);
+                }
+            }
+        }
+
+        return new ContentProviderOperation(this, values, selectionArgs,
+                valuesBackReferences, selectionArgsBackReferences);
+    }
+
     /** @hide */
     public ContentProviderOperation getWithoutUserIdInUri() {
         if (ContentProvider.uriHasUserId(mUri)) {
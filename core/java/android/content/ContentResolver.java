@@ -367,6 +367,16 @@ public abstract class ContentResolver {
      */
     public static final String QUERY_ARG_LIMIT = "android:query-arg-limit";
 
+    /**
+     * Boolean hint that the caller reads the returned {@link Cursor} once, in order.
+     * When the cursor crosses a process boundary and is backed by a SQLite query, the
+     * provider then streams rows into successive windows instead of running the query
+     * again for each window.
+     *
+     * @hide
+     */
+    public static final String QUERY_ARG_STREAMING = "android:query-arg-streaming";
+
     /**
      * Added to {@link Cursor} extras {@link Bundle} to indicate total row count of
      * recordset when paging is supported. Providers must include this when
@@ -1581,6 +1591,31 @@ public abstract class ContentResolver {
         }
     }
 
+    /**
+     * Like {@link #applyBatch(String, ArrayList)}, but sends the operations to the provider
+     * in chunks of about {@code chunkSize} operations, reporting progress after each.
+     *
+     * @see ContentProviderClient#applyBatch(ArrayList, int,
+     *     ContentProviderClient.BatchProgressListener)
+     * @hide
+     */
+    public @NonNull ContentProviderResult[] applyBatch(@NonNull String authority,
+            @NonNull ArrayList<ContentProviderOperation> operations, int chunkSize,
+            @Nullable ContentProviderClient.BatchProgressListener listener)
+                    throws RemoteException, OperationApplicationException {
+        Preconditions.checkNotNull(authority, "authority");
+        Preconditions.checkNotNull(operations, "operations");
+        ContentProviderClient provider = acquireContentProviderClient(authority);
+        if (provider == null) {
+            throw new IllegalArgumentException("Unknown authority " + authority);
+        }
+        try {
+            return provider.applyBatch(operations, chunkSize, listener);
+        } finally {
+            provider.release();
+        }
+    }
+
     /**
      * Inserts multiple rows into a table at the given URL.
      *
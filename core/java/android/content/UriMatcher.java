@@ -17,8 +17,8 @@
 package android.content;
 
 import android.net.Uri;
+import android.util.ArrayMap;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -129,17 +129,11 @@ public class UriMatcher
     public UriMatcher(int code)
     {
         mCode = code;
-        mWhich = -1;
-        mChildren = new ArrayList<UriMatcher>();
-        mText = null;
     }
 
     private UriMatcher()
     {
         mCode = NO_MATCH;
-        mWhich = -1;
-        mChildren = new ArrayList<UriMatcher>();
-        mText = null;
     }
 
     /**
@@ -177,35 +171,41 @@ public class UriMatcher
         UriMatcher node = this;
         for (int i = -1; i < numTokens; i++) {
             String token = i < 0 ? authority : tokens[i];
-            ArrayList<UriMatcher> children = node.mChildren;
-            int numChildren = children.size();
             UriMatcher child;
-            int j;
-            for (j = 0; j < numChildren; j++) {
-                child = children.get(j);
-                if (token.equals(child.mText)) {
-                    node = child;
-                    break;
+            if (token.equals("#")) {
+                child = node.mNumberChild;
+                if (child == null) {
+                    child = node.addChild();
+                    node.mNumberChild = child;
                 }
-            }
-            if (j == numChildren) {
-                // Child not found, create it
-                child = new UriMatcher();
-                if (token.equals("#")) {
-                    child.mWhich = NUMBER;
-                } else if (token.equals("*")) {
-                    child.mWhich = TEXT;
-                } else {
-                    child.mWhich = EXACT;
+            } else if (token.equals("*")) {
+                child = node.mTextChild;
+                if (child == null) {
+                    child = node.addChild();
+                    node.mTextChild = child;
+                }
+            } else {
+                if (node.mExactChildren == null) {
+                    node.mExactChildren = new ArrayMap<String, UriMatcher>();
+                }
+                child = node.mExactChildren.get(token);
+                if (child == null) {
+                    child = node.addChild();
+                    node.mExactChildren.put(token, child);
                 }
-                child.mText = token;
-                node.mChildren.add(child);
-                node = child;
             }
+            node = child;
         }
         node.mCode = code;
     }
 
+    private UriMatcher addChild()
+    {
+        UriMatcher child = new UriMatcher();
+        child.mOrder = mChildCount++;
+        return child;
+    }
+
     /**
      * Try to match against the path in a url.
      *
@@ -227,39 +227,7 @@ public class UriMatcher
 
         for (int i=-1; i<li; i++) {
             String u = i < 0 ? uri.getAuthority() : pathSegments.get(i);
-            ArrayList<UriMatcher> list = node.mChildren;
-            if (list == null) {
-                break;
-            }
-            node = null;
-            int lj = list.size();
-            for (int j=0; j<lj; j++) {
-                UriMatcher n = list.get(j);
-          which_switch:
-                switch (n.mWhich) {
-                    case EXACT:
-                        if (n.mText.equals(u)) {
-                            node = n;
-                        }
-                        break;
-                    case NUMBER:
-                        int lk = u.length();
-                        for (int k=0; k<lk; k++) {
-                            char c = u.charAt(k);
-                            if (c < '0' || c > '9') {
-                                break which_switch;
-                            }
-                        }
-                        node = n;
-                        break;
-                    case TEXT:
-                        node = n;
-                        break;
-                }
-                if (node != null) {
-                    break;
-                }
-            }
+            node = node.matchChild(u);
             if (node == null) {
                 return NO_MATCH;
             }
@@ -268,12 +236,47 @@ public class UriMatcher
         return node.mCode;
     }
 
-    private static final int EXACT = 0;
-    private static final int NUMBER = 1;
-    private static final int TEXT = 2;
+    /**
+     * Returns the child matching a path segment.  When several children match, the one
+     * that was added first wins, as wildcards and exact text are not ranked otherwise.
+     */
+    private UriMatcher matchChild(String u)
+    {
+        UriMatcher node = mTextChild;
+        final UriMatcher number = mNumberChild;
+        if (number != null && (node == null || number.mOrder < node.mOrder)
+                && isNumber(u)) {
+            node = number;
+        }
+        if (mExactChildren != null) {
+            final UriMatcher exact = mExactChildren.get(u);
+            if (exact != null && (node == null || exact.mOrder < node.mOrder)) {
+                node = exact;
+            }
+        }
+        return node;
+    }
+
+    private static boolean isNumber(String u)
+    {
+        int lk = u.length();
+        for (int k=0; k<lk; k++) {
+            char c = u.charAt(k);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
 
     private int mCode;
-    private int mWhich;
-    private String mText;
-    private ArrayList<UriMatcher> mChildren;
+
+    // Children of this node: exact text children are hashed by their text, and there is at
+    // most one child for each kind of wildcard.
+    private ArrayMap<String, UriMatcher> mExactChildren;
+    private UriMatcher mNumberChild;
+    private UriMatcher mTextChild;
+    // Number of children added to this node, and the rank of this node among its siblings.
+    private int mChildCount;
+    private int mOrder;
 }
@@ -16,6 +16,7 @@
 
 package android.database;
 
+import android.database.sqlite.SQLiteCursor;
 import android.net.Uri;
 import android.os.*;
 
@@ -122,6 +123,27 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
         }
     }
 
+    /**
+     * Sets whether the rows of the adapted cursor are streamed into successive windows,
+     * for callers that read the cursor once, in order.  Only cursors backed by a
+     * {@link SQLiteCursor} support streaming; this has no effect on other cursors.
+     *
+     * @see SQLiteCursor#setStreamingEnabled
+     */
+    public void setStreamingEnabled(boolean enabled) {
+        synchronized (mLock) {
+            throwIfCursorIsClosed();
+
+            Cursor cursor = mCursor;
+            while (cursor instanceof CursorWrapper) {
+                cursor = ((CursorWrapper) cursor).getWrappedCursor();
+            }
+            if (cursor instanceof SQLiteCursor) {
+                ((SQLiteCursor) cursor).setStreamingEnabled(enabled);
+            }
+        }
+    }
+
     @Override
     public void binderDied() {
         synchronized (mLock) {
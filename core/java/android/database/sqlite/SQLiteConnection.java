@@ -117,6 +117,13 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     // we can ensure that we detach the signal at the right time.
     private int mCancellationSignalAttachCount;
 
+    // The statement of the streaming query in progress on this connection, or null if none.
+    // The statement is kept stepped between calls to executeForStreamingCursorWindow.
+    private PreparedStatement mStreamingStatement;
+    private int mStreamingPosition;
+    private boolean mStreamingHasPendingRow;
+    private boolean mStreamingDone;
+
     private static native long nativeOpen(String path, int openFlags, String label,
             boolean enableTrace, boolean enableProfile);
     private static native void nativeClose(long connectionPtr);
@@ -153,10 +160,17 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private static native long nativeExecuteForCursorWindow(
             long connectionPtr, long statementPtr, long windowPtr,
             int startPos, int requiredPos, boolean countAllRows);
+    private static native long nativeExecuteForStreamingCursorWindow(
+            long connectionPtr, long statementPtr, long windowPtr,
+            int startPos, int skipRows, boolean hasPendingRow);
     private static native int nativeGetDbLookaside(long connectionPtr);
     private static native void nativeCancel(long connectionPtr);
     private static native void nativeResetCancel(long connectionPtr, boolean cancelable);
 
+    // Flags returned by nativeExecuteForStreamingCursorWindow above the number of added rows.
+    private static final long STREAMING_PENDING_ROW = 1L << 32;
+    private static final long STREAMING_DONE = 1L << 33;
+
     private SQLiteConnection(SQLiteConnectionPool pool,
             SQLiteDatabaseConfiguration configuration,
             int connectionId, boolean primaryConnection) {
@@ -236,6 +250,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         if (mConnectionPtr != 0) {
             final int cookie = mRecentOperations.beginOperation("close", null, null);
             try {
+                endStreamingQuery();
                 mPreparedStatementCache.evictAll();
                 nativeClose(mConnectionPtr);
                 mConnectionPtr = 0;
@@ -873,6 +888,160 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         }
     }
 
+    /**
+     * Begins a streaming query on this connection.
+     * <p>
+     * Unlike {@link #executeForCursorWindow}, which runs the query again from its first
+     * row each time a window is filled, a streaming query keeps its statement open and
+     * stepped between calls to {@link #executeForStreamingCursorWindow}, so that reading
+     * all of its rows one window at a time costs a single pass over the results.  The
+     * statement keeps a read transaction open until {@link #endStreamingQuery} is called,
+     * so the caller should hold this connection exclusively and only for as long as it
+     * is reading the results.
+     * </p>
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments to bind, or null if none.
+     *
+     * @throws SQLiteException if an error occurs, such as a syntax error
+     * or invalid number of bind arguments.
+     * @throws IllegalStateException if a streaming query is already in progress.
+     */
+    public void beginStreamingQuery(String sql, Object[] bindArgs) {
+        if (sql == null) {
+            throw new IllegalArgumentException("sql must not be null.");
+        }
+        if (mStreamingStatement != null) {
+            throw new IllegalStateException("A streaming query is already in progress.");
+        }
+
+        final int cookie = mRecentOperations.beginOperation("beginStreamingQuery",
+                sql, bindArgs);
+        try {
+            final PreparedStatement statement = acquirePreparedStatement(sql);
+            try {
+                throwIfStatementForbidden(statement);
+                bindArguments(statement, bindArgs);
+            } catch (RuntimeException ex) {
+                releasePreparedStatement(statement);
+                throw ex;
+            }
+            mStreamingStatement = statement;
+            mStreamingPosition = 0;
+            mStreamingHasPendingRow = false;
+            mStreamingDone = false;
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    /**
+     * Fills a cursor window with the next rows of the streaming query in progress,
+     * continuing from where the previous call stopped.
+     *
+     * @param window The cursor window to clear and fill.
+     * @param startPos The position of the first row to put in the window.  Rows
+     * between the current position of the query and this one are skipped.  Must be
+     * greater than or equal to {@link #getStreamingQueryPosition}.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return The number of rows put in the window, which is zero once all rows
+     * have been read.
+     *
+     * @throws SQLiteException if an error occurs.
+     * @throws OperationCanceledException if the operation was canceled.
+     * @throws IllegalStateException if no streaming query is in progress.
+     */
+    public int executeForStreamingCursorWindow(CursorWindow window, int startPos,
+            CancellationSignal cancellationSignal) {
+        if (window == null) {
+            throw new IllegalArgumentException("window must not be null.");
+        }
+        final PreparedStatement statement = mStreamingStatement;
+        if (statement == null) {
+            throw new IllegalStateException("No streaming query is in progress.");
+        }
+        if (startPos < mStreamingPosition) {
+            throw new IllegalArgumentException("startPos " + startPos
+                    + " is before the current position " + mStreamingPosition);
+        }
+
+        window.acquireReference();
+        try {
+            final int skipRows = startPos - mStreamingPosition;
+            int filledRows = -1;
+            final int cookie = mRecentOperations.beginOperation("executeForStreamingCursorWindow",
+                    statement.mSql, null);
+            try {
+                applyBlockGuardPolicy(statement);
+                attachCancellationSignal(cancellationSignal);
+                try {
+                    final long result = nativeExecuteForStreamingCursorWindow(
+                            mConnectionPtr, statement.mStatementPtr, window.mWindowPtr,
+                            startPos, skipRows, mStreamingHasPendingRow);
+                    filledRows = (int)result;
+                    mStreamingHasPendingRow = (result & STREAMING_PENDING_ROW) != 0;
+                    mStreamingDone = (result & STREAMING_DONE) != 0;
+                    mStreamingPosition = startPos + filledRows;
+                    window.setStartPosition(startPos);
+                    return filledRows;
+                } finally {
+                    detachCancellationSignal(cancellationSignal);
+                }
+            } catch (RuntimeException ex) {
+                // The statement cannot be continued after an error.
+                mStreamingDone = true;
+                mRecentOperations.failOperation(cookie, ex);
+                throw ex;
+            } finally {
+                if (mRecentOperations.endOperationDeferLog(cookie)) {
+                    mRecentOperations.logOperation(cookie, "window='" + window
+                            + "', startPos=" + startPos
+                            + ", skippedRows=" + skipRows
+                            + ", filledRows=" + filledRows);
+                }
+            }
+        } finally {
+            window.releaseReference();
+        }
+    }
+
+    /**
+     * Returns the position of the next row the streaming query in progress will return.
+     */
+    public int getStreamingQueryPosition() {
+        return mStreamingPosition;
+    }
+
+    /**
+     * Returns true if the streaming query in progress has returned all of its rows
+     * or has failed, and will not return any more.
+     */
+    public boolean isStreamingQueryDone() {
+        return mStreamingDone;
+    }
+
+    /**
+     * Returns true if a streaming query is in progress on this connection.
+     */
+    public boolean hasStreamingQuery() {
+        return mStreamingStatement != null;
+    }
+
+    /**
+     * Ends the streaming query in progress, if any, resetting its statement.
+     * Must be called before the connection is released back to its pool.
+     */
+    public void endStreamingQuery() {
+        final PreparedStatement statement = mStreamingStatement;
+        if (statement != null) {
+            mStreamingStatement = null;
+            releasePreparedStatement(statement);
+        }
+    }
+
     private PreparedStatement acquirePreparedStatement(String sql) {
         PreparedStatement statement = mPreparedStatementCache.get(sql);
         boolean skipCache = false;
@@ -26,6 +26,9 @@ import android.util.Log;
 import android.util.PrefixPrinter;
 import android.util.Printer;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ExponentiallyBucketedHistogram;
+
 import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Map;
@@ -76,6 +79,14 @@ public final class SQLiteConnectionPool implements Closeable {
     // and logging a message about the connection pool being busy.
     private static final long CONNECTION_POOL_BUSY_MILLIS = 30 * 1000; // 30 seconds
 
+    // Interval in milliseconds at which the size of a WAL connection pool is adapted
+    // to the concurrency observed during the interval.
+    private static final long ADAPT_POOL_SIZE_INTERVAL_MILLIS = 10 * 1000; // 10 seconds
+
+    // How far a WAL connection pool may grow beyond its configured size, as a multiple of it,
+    // while readers keep having to wait for a connection.
+    private static final int MAX_POOL_SIZE_GROWTH_FACTOR = 2;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final Object mLock = new Object();
@@ -85,6 +96,36 @@ public final class SQLiteConnectionPool implements Closeable {
     private boolean mIsOpen;
     private int mNextConnectionId;
 
+    // Current limit on the number of open connections.  Starts at mMaxConnectionPoolSize and
+    // is adapted between it and MAX_POOL_SIZE_GROWTH_FACTOR times it in WAL mode.
+    private int mConnectionPoolSizeLimit;
+
+    // Incremented on each reconfiguration, so that connections opened outside of the lock
+    // can tell whether they were opened with a stale configuration.
+    private int mConfigurationGeneration;
+
+    // Non-primary connections being opened outside of the lock, counted against the limit.
+    private int mOpeningNonPrimaryConnectionCount;
+
+    // Run without the lock right before a connection is opened in a reserved slot, so that
+    // tests can act on the pool while it is opening.
+    private volatile Runnable mBeforeOpenReservedConnectionForTesting;
+
+    // Concurrency observed since mAdaptWindowStartTime, used to adapt the pool size.
+    private long mAdaptWindowStartTime;
+    private int mAdaptWindowPeakConnections;
+    private int mAdaptWindowNonPrimaryWaits;
+
+    // Statistics for dumpsys dbinfo.
+    private int mPoolSizeIncreaseCount;
+    private int mPoolSizeDecreaseCount;
+    private int mIdleConnectionsClosedCount;
+    private int mConnectionsOpenedOutsideLockCount;
+    private final ExponentiallyBucketedHistogram mPrimaryWaitTimes =
+            new ExponentiallyBucketedHistogram(16);
+    private final ExponentiallyBucketedHistogram mNonPrimaryWaitTimes =
+            new ExponentiallyBucketedHistogram(16);
+
     private ConnectionWaiter mConnectionWaiterPool;
     private ConnectionWaiter mConnectionWaiterQueue;
 
@@ -264,7 +305,7 @@ public final class SQLiteConnectionPool implements Closeable {
             if (walModeChanged) {
                 // WAL mode can only be changed if there are no acquired connections
                 // because we need to close all but the primary connection first.
-                if (!mAcquiredConnections.isEmpty()) {
+                if (!mAcquiredConnections.isEmpty() || mOpeningNonPrimaryConnectionCount != 0) {
                     throw new IllegalStateException("Write Ahead Logging (WAL) mode cannot "
                             + "be enabled or disabled while there are transactions in "
                             + "progress.  Finish all transactions and release all active "
@@ -291,6 +332,8 @@ public final class SQLiteConnectionPool implements Closeable {
                 }
             }
 
+            mConfigurationGeneration += 1;
+
             if (mConfiguration.openFlags != configuration.openFlags) {
                 // If we are changing open flags and WAL mode at the same time, then
                 // we have no choice but to close the primary connection beforehand
@@ -348,6 +391,45 @@ public final class SQLiteConnectionPool implements Closeable {
         return waitForConnection(sql, connectionFlags, cancellationSignal);
     }
 
+    /**
+     * Acquires a non-primary connection if one is available or can be opened right away,
+     * without waiting.
+     * <p>
+     * This is meant for callers that hold a connection for a long time, such as a cursor
+     * streaming its results.  It never falls back to the primary connection and never
+     * takes the last non-primary connection the pool could hand out, so that such callers
+     * cannot starve writers or other readers.  The connection must be released with
+     * {@link #releaseConnection} as usual.
+     * </p>
+     *
+     * @param sql If not null, try to find a connection that already has
+     * the specified SQL statement in its prepared statement cache.
+     * @param connectionFlags The connection request flags.
+     * @return The connection that was acquired, or null if none is available.
+     *
+     * @throws IllegalStateException if the pool has been closed.
+     * @throws SQLiteException if a database error occurs.
+     */
+    public SQLiteConnection tryAcquireNonPrimaryConnection(String sql, int connectionFlags) {
+        synchronized (mLock) {
+            throwIfClosedLocked();
+
+            final int availableCount = mAvailableNonPrimaryConnections.size();
+            final int spareConnections = availableCount + Math.max(0,
+                    mConnectionPoolSizeLimit - getOpenConnectionCountLocked() - availableCount);
+            if (spareConnections < 2) {
+                return null;
+            }
+            final long now = SystemClock.uptimeMillis();
+            final SQLiteConnection connection = tryAcquireNonPrimaryConnectionLocked(
+                    sql, connectionFlags); // might throw
+            if (connection != null) {
+                noteConnectionAcquiredLocked(connection, now);
+            }
+            return connection;
+        }
+    }
+
     /**
      * Releases a connection back to the pool.
      * <p>
@@ -369,6 +451,8 @@ public final class SQLiteConnectionPool implements Closeable {
                         + "from this pool or has already been released.");
             }
 
+            adaptConnectionPoolSizeLocked(SystemClock.uptimeMillis());
+
             if (!mIsOpen) {
                 closeConnectionAndLogExceptionsLocked(connection);
             } else if (connection.isPrimaryConnection()) {
@@ -377,7 +461,7 @@ public final class SQLiteConnectionPool implements Closeable {
                     mAvailablePrimaryConnection = connection;
                 }
                 wakeConnectionWaitersLocked();
-            } else if (mAvailableNonPrimaryConnections.size() >= mMaxConnectionPoolSize - 1) {
+            } else if (mAvailableNonPrimaryConnections.size() >= mConnectionPoolSizeLimit - 1) {
                 closeConnectionAndLogExceptionsLocked(connection);
             } else {
                 if (recycleConnectionLocked(connection, status)) {
@@ -515,7 +599,7 @@ public final class SQLiteConnectionPool implements Closeable {
     // Can't throw.
     private void closeExcessConnectionsAndLogExceptionsLocked() {
         int availableCount = mAvailableNonPrimaryConnections.size();
-        while (availableCount-- > mMaxConnectionPoolSize - 1) {
+        while (availableCount-- > mConnectionPoolSizeLimit - 1) {
             SQLiteConnection connection =
                     mAvailableNonPrimaryConnections.remove(availableCount);
             closeConnectionAndLogExceptionsLocked(connection);
@@ -592,54 +676,72 @@ public final class SQLiteConnectionPool implements Closeable {
             CancellationSignal cancellationSignal) {
         final boolean wantPrimaryConnection =
                 (connectionFlags & CONNECTION_FLAG_PRIMARY_CONNECTION_AFFINITY) != 0;
+        final long acquireStartTime = SystemClock.uptimeMillis();
+
+        // New non-primary connections are opened outside of the lock on the first attempt,
+        // so that opening one does not stall threads acquiring or releasing other connections.
+        boolean openOutsideLock = !wantPrimaryConnection;
+        ConnectionWaiter enqueuedWaiter = null;
+        while (enqueuedWaiter == null) {
+            SQLiteDatabaseConfiguration openConfiguration = null;
+            int openConnectionId = 0;
+            int openGeneration = 0;
+            synchronized (mLock) {
+                throwIfClosedLocked();
 
-        final ConnectionWaiter waiter;
-        final int nonce;
-        synchronized (mLock) {
-            throwIfClosedLocked();
+                // Abort if canceled.
+                if (cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
 
-            // Abort if canceled.
-            if (cancellationSignal != null) {
-                cancellationSignal.throwIfCanceled();
-            }
+                adaptConnectionPoolSizeLocked(acquireStartTime);
+
+                // Try to acquire a connection.
+                SQLiteConnection connection = null;
+                if (!wantPrimaryConnection) {
+                    connection = tryAcquireNonPrimaryConnectionLocked(
+                            sql, connectionFlags, !openOutsideLock); // might throw
+                    if (connection == null && openOutsideLock
+                            && canOpenNonPrimaryConnectionLocked()) {
+                        // Reserve a slot for the connection we are about to open.
+                        mOpeningNonPrimaryConnectionCount += 1;
+                        openConfiguration = new SQLiteDatabaseConfiguration(mConfiguration);
+                        openConnectionId = mNextConnectionId++;
+                        openGeneration = mConfigurationGeneration;
+                    }
+                }
+                if (openConfiguration == null) {
+                    if (connection == null) {
+                        connection = tryAcquirePrimaryConnectionLocked(
+                                connectionFlags); // might throw
+                    }
+                    if (connection != null) {
+                        noteConnectionAcquiredLocked(connection, acquireStartTime);
+                        return connection;
+                    }
 
-            // Try to acquire a connection.
-            SQLiteConnection connection = null;
-            if (!wantPrimaryConnection) {
-                connection = tryAcquireNonPrimaryConnectionLocked(
-                        sql, connectionFlags); // might throw
-            }
-            if (connection == null) {
-                connection = tryAcquirePrimaryConnectionLocked(connectionFlags); // might throw
-            }
-            if (connection != null) {
-                return connection;
+                    // No connections available.  Enqueue a waiter in priority order.
+                    enqueuedWaiter = enqueueConnectionWaiterLocked(acquireStartTime,
+                            wantPrimaryConnection, sql, connectionFlags);
+                }
             }
 
-            // No connections available.  Enqueue a waiter in priority order.
-            final int priority = getPriority(connectionFlags);
-            final long startTime = SystemClock.uptimeMillis();
-            waiter = obtainConnectionWaiterLocked(Thread.currentThread(), startTime,
-                    priority, wantPrimaryConnection, sql, connectionFlags);
-            ConnectionWaiter predecessor = null;
-            ConnectionWaiter successor = mConnectionWaiterQueue;
-            while (successor != null) {
-                if (priority > successor.mPriority) {
-                    waiter.mNext = successor;
-                    break;
+            if (openConfiguration != null) {
+                final SQLiteConnection connection = openReservedNonPrimaryConnection(
+                        openConfiguration, openConnectionId, openGeneration,
+                        connectionFlags, acquireStartTime); // might throw
+                if (connection != null) {
+                    return connection;
                 }
-                predecessor = successor;
-                successor = successor.mNext;
+                // The pool was reconfigured while opening the connection.  Try again, this
+                // time opening connections with the lock held.
+                openOutsideLock = false;
             }
-            if (predecessor != null) {
-                predecessor.mNext = waiter;
-            } else {
-                mConnectionWaiterQueue = waiter;
-            }
-
-            nonce = waiter.mNonce;
         }
 
+        final ConnectionWaiter waiter = enqueuedWaiter;
+        final int nonce = waiter.mNonce;
+
         // Set up the cancellation listener.
         if (cancellationSignal != null) {
             cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
@@ -681,6 +783,7 @@ public final class SQLiteConnectionPool implements Closeable {
                     if (connection != null || ex != null) {
                         recycleConnectionWaiterLocked(waiter);
                         if (connection != null) {
+                            noteConnectionAcquiredLocked(connection, acquireStartTime);
                             return connection;
                         }
                         throw ex; // rethrow!
@@ -704,6 +807,131 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    // Can't throw.
+    private ConnectionWaiter enqueueConnectionWaiterLocked(long startTime,
+            boolean wantPrimaryConnection, String sql, int connectionFlags) {
+        final int priority = getPriority(connectionFlags);
+        final ConnectionWaiter waiter = obtainConnectionWaiterLocked(Thread.currentThread(),
+                startTime, priority, wantPrimaryConnection, sql, connectionFlags);
+        ConnectionWaiter predecessor = null;
+        ConnectionWaiter successor = mConnectionWaiterQueue;
+        while (successor != null) {
+            if (priority > successor.mPriority) {
+                waiter.mNext = successor;
+                break;
+            }
+            predecessor = successor;
+            successor = successor.mNext;
+        }
+        if (predecessor != null) {
+            predecessor.mNext = waiter;
+        } else {
+            mConnectionWaiterQueue = waiter;
+        }
+
+        if (!wantPrimaryConnection) {
+            mAdaptWindowNonPrimaryWaits += 1;
+        }
+        return waiter;
+    }
+
+    /**
+     * Opens a non-primary connection for which a slot was reserved in
+     * {@link #mOpeningNonPrimaryConnectionCount}, without holding the lock.
+     *
+     * @return The acquired connection, or null if the pool was reconfigured or closed in the
+     * meantime, in which case the connection has been discarded.
+     */
+    // Might throw.
+    private SQLiteConnection openReservedNonPrimaryConnection(
+            SQLiteDatabaseConfiguration configuration, int connectionId, int generation,
+            int connectionFlags, long acquireStartTime) {
+        final SQLiteConnection connection;
+        try {
+            final Runnable beforeOpen = mBeforeOpenReservedConnectionForTesting;
+            if (beforeOpen != null) {
+                beforeOpen.run(); // might throw
+            }
+            connection = SQLiteConnection.open(this, configuration,
+                    connectionId, false /*primaryConnection*/); // might throw
+        } catch (RuntimeException ex) {
+            synchronized (mLock) {
+                mOpeningNonPrimaryConnectionCount -= 1;
+                wakeConnectionWaitersLocked();
+            }
+            throw ex; // rethrow!
+        }
+
+        synchronized (mLock) {
+            mOpeningNonPrimaryConnectionCount -= 1;
+            if (!mIsOpen || generation != mConfigurationGeneration) {
+                closeConnectionAndLogExceptionsLocked(connection);
+                wakeConnectionWaitersLocked();
+                throwIfClosedLocked();
+                return null;
+            }
+            finishAcquireConnectionLocked(connection, connectionFlags); // might throw
+            mConnectionsOpenedOutsideLockCount += 1;
+            noteConnectionAcquiredLocked(connection, acquireStartTime);
+            return connection;
+        }
+    }
+
+    @VisibleForTesting
+    void setBeforeOpenReservedConnectionForTesting(Runnable beforeOpen) {
+        mBeforeOpenReservedConnectionForTesting = beforeOpen;
+    }
+
+    // Can't throw.
+    private void noteConnectionAcquiredLocked(SQLiteConnection connection,
+            long acquireStartTime) {
+        final int waitMillis = (int) (SystemClock.uptimeMillis() - acquireStartTime);
+        if (connection.isPrimaryConnection()) {
+            mPrimaryWaitTimes.add(waitMillis);
+        } else {
+            mNonPrimaryWaitTimes.add(waitMillis);
+        }
+    }
+
+    /**
+     * Adapts the size of a WAL connection pool to the concurrency observed since the last
+     * adaptation.  The limit grows by one connection while readers had to wait, and shrinks
+     * back towards the configured size once they no longer do.  Idle non-primary connections
+     * beyond what was used concurrently are closed, as each holds its own page cache.
+     */
+    // Can't throw.
+    private void adaptConnectionPoolSizeLocked(long now) {
+        if ((mConfiguration.openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) == 0
+                || now - mAdaptWindowStartTime < ADAPT_POOL_SIZE_INTERVAL_MILLIS) {
+            return;
+        }
+
+        if (mAdaptWindowNonPrimaryWaits > 0) {
+            if (mConnectionPoolSizeLimit
+                    < mMaxConnectionPoolSize * MAX_POOL_SIZE_GROWTH_FACTOR) {
+                mConnectionPoolSizeLimit += 1;
+                mPoolSizeIncreaseCount += 1;
+            }
+        } else if (mConnectionPoolSizeLimit > mMaxConnectionPoolSize
+                && mAdaptWindowPeakConnections < mConnectionPoolSizeLimit) {
+            mConnectionPoolSizeLimit -= 1;
+            mPoolSizeDecreaseCount += 1;
+        }
+
+        // Available connections are taken from the end of the list, so the least recently
+        // used ones are at the start.
+        final int idleTarget = Math.min(Math.max(1, mAdaptWindowPeakConnections),
+                mConnectionPoolSizeLimit - 1);
+        while (mAvailableNonPrimaryConnections.size() > idleTarget) {
+            closeConnectionAndLogExceptionsLocked(mAvailableNonPrimaryConnections.remove(0));
+            mIdleConnectionsClosedCount += 1;
+        }
+
+        mAdaptWindowStartTime = now;
+        mAdaptWindowPeakConnections = mAcquiredConnections.size();
+        mAdaptWindowNonPrimaryWaits = 0;
+    }
+
     // Can't throw.
     private void cancelConnectionWaiterLocked(ConnectionWaiter waiter) {
         if (waiter.mAssignedConnection != null || waiter.mException != null) {
@@ -866,6 +1094,13 @@ public final class SQLiteConnectionPool implements Closeable {
     // Might throw.
     private SQLiteConnection tryAcquireNonPrimaryConnectionLocked(
             String sql, int connectionFlags) {
+        return tryAcquireNonPrimaryConnectionLocked(sql, connectionFlags,
+                true /*mayOpenConnection*/);
+    }
+
+    // Might throw.
+    private SQLiteConnection tryAcquireNonPrimaryConnectionLocked(
+            String sql, int connectionFlags, boolean mayOpenConnection) {
         // Try to acquire the next connection in the queue.
         SQLiteConnection connection;
         final int availableCount = mAvailableNonPrimaryConnections.size();
@@ -889,11 +1124,7 @@ public final class SQLiteConnectionPool implements Closeable {
         }
 
         // Expand the pool if needed.
-        int openConnections = mAcquiredConnections.size();
-        if (mAvailablePrimaryConnection != null) {
-            openConnections += 1;
-        }
-        if (openConnections >= mMaxConnectionPoolSize) {
+        if (!mayOpenConnection || !canOpenNonPrimaryConnectionLocked()) {
             return null;
         }
         connection = openConnectionLocked(mConfiguration,
@@ -902,6 +1133,20 @@ public final class SQLiteConnectionPool implements Closeable {
         return connection;
     }
 
+    // Can't throw.
+    private boolean canOpenNonPrimaryConnectionLocked() {
+        return getOpenConnectionCountLocked() < mConnectionPoolSizeLimit;
+    }
+
+    // Can't throw.
+    private int getOpenConnectionCountLocked() {
+        int openConnections = mAcquiredConnections.size() + mOpeningNonPrimaryConnectionCount;
+        if (mAvailablePrimaryConnection != null) {
+            openConnections += 1;
+        }
+        return openConnections;
+    }
+
     // Might throw.
     private void finishAcquireConnectionLocked(SQLiteConnection connection, int connectionFlags) {
         try {
@@ -909,6 +1154,8 @@ public final class SQLiteConnectionPool implements Closeable {
             connection.setOnlyAllowReadOnlyOperations(readOnly);
 
             mAcquiredConnections.put(connection, AcquiredConnectionStatus.NORMAL);
+            mAdaptWindowPeakConnections = Math.max(mAdaptWindowPeakConnections,
+                    mAcquiredConnections.size());
         } catch (RuntimeException ex) {
             Log.e(TAG, "Failed to prepare acquired connection for session, closing it: "
                     + connection +", connectionFlags=" + connectionFlags);
@@ -955,6 +1202,7 @@ public final class SQLiteConnectionPool implements Closeable {
             // using WAL are the same thing in the API.
             mMaxConnectionPoolSize = 1;
         }
+        mConnectionPoolSizeLimit = mMaxConnectionPoolSize;
     }
 
     private void throwIfClosedLocked() {
@@ -1004,6 +1252,15 @@ public final class SQLiteConnectionPool implements Closeable {
             printer.println("Connection pool for " + mConfiguration.path + ":");
             printer.println("  Open: " + mIsOpen);
             printer.println("  Max connections: " + mMaxConnectionPoolSize);
+            printer.println("  Connection limit: " + mConnectionPoolSizeLimit
+                    + " (increased " + mPoolSizeIncreaseCount
+                    + " times, decreased " + mPoolSizeDecreaseCount + " times)");
+            printer.println("  Idle connections closed: " + mIdleConnectionsClosedCount);
+            printer.println("  Connections opened outside lock: "
+                    + mConnectionsOpenedOutsideLockCount);
+            printer.println(mPrimaryWaitTimes.toString("  Primary connection wait times (ms): "));
+            printer.println(mNonPrimaryWaitTimes.toString(
+                    "  Non-primary connection wait times (ms): "));
 
             printer.println("  Available primary connection:");
             if (mAvailablePrimaryConnection != null) {
@@ -22,6 +22,8 @@ import android.database.DatabaseUtils;
 import android.os.StrictMode;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -54,6 +56,12 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     /** The number of rows that can fit in the cursor window, 0 if unknown */
     private int mCursorWindowCapacity;
 
+    /** True if windows after the first one may be filled from a streaming query */
+    private boolean mStreamingEnabled;
+
+    /** Number of windows filled from a streaming query */
+    private int mStreamedWindowCount;
+
     /** A mapping of column names to column indices, to speed up lookups */
     private Map<String, Integer> mColumnNameMap;
 
@@ -148,7 +156,11 @@ public class SQLiteCursor extends AbstractWindowedCursor {
             } else {
                 int startPos = DatabaseUtils.cursorPickFillWindowStartPosition(requiredPos,
                         mCursorWindowCapacity);
-                mQuery.fillWindow(mWindow, startPos, requiredPos, false);
+                if (mStreamingEnabled && fillStreamingWindow(startPos, requiredPos)) {
+                    mStreamedWindowCount++;
+                } else {
+                    mQuery.fillWindow(mWindow, startPos, requiredPos, false);
+                }
             }
         } catch (RuntimeException ex) {
             // Close the cursor window if the query failed and therefore will
@@ -160,6 +172,70 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         }
     }
 
+    /**
+     * Fills the window from the streaming query, starting it if needed.
+     *
+     * @return False if the window must be filled by running the query again instead,
+     * because the required row was already streamed past, no connection could be
+     * spared for streaming, or streaming stopped after being idle for too long.
+     */
+    private boolean fillStreamingWindow(int startPos, int requiredPos) {
+        if (!mQuery.isStreaming()) {
+            // Only start streaming when moving forward past the first window.
+            if (requiredPos < mCursorWindowCapacity || !mQuery.beginStreaming()) {
+                return false;
+            }
+        }
+        if (!mQuery.fillStreamingWindow(mWindow, startPos, requiredPos)) {
+            return false;
+        }
+        if (requiredPos >= mWindow.getStartPosition() + mWindow.getNumRows()
+                && mQuery.isStreaming()) {
+            // The required row is too big to share a window with the rows before it.
+            mQuery.endStreaming();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets whether windows after the first one are filled by streaming the results of
+     * the query, rather than by running it again from its first row for each window.
+     * <p>
+     * Streaming makes reading all rows of a large result set in order a single pass
+     * over the results, at the cost of holding a database connection, and the read
+     * transaction of the query, until all rows have been read or the cursor is
+     * deactivated or closed.  A connection left idle for a few seconds is released, and
+     * the next window is then filled by running the query again.  It only applies to
+     * databases with write-ahead logging enabled, outside of transactions, while the
+     * connection pool can spare a connection; windows are filled by running the query
+     * again otherwise, or when moving back to rows before the current window.
+     * </p>
+     *
+     * @hide
+     */
+    public void setStreamingEnabled(boolean enabled) {
+        mStreamingEnabled = enabled;
+        if (!enabled) {
+            mQuery.endStreaming();
+        }
+    }
+
+    @VisibleForTesting
+    int getStreamedWindowCount() {
+        return mStreamedWindowCount;
+    }
+
+    @VisibleForTesting
+    boolean isStreaming() {
+        return mQuery.isStreaming();
+    }
+
+    @VisibleForTesting
+    void setStreamingIdleTimeoutForTesting(long timeoutMillis) {
+        mQuery.setStreamingIdleTimeoutForTesting(timeoutMillis);
+    }
+
     @Override
     public int getColumnIndex(String columnName) {
         // Create mColumnNameMap on demand
@@ -197,6 +273,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     @Override
     public void deactivate() {
         super.deactivate();
+        mQuery.endStreaming();
         mDriver.cursorDeactivated();
     }
 
@@ -225,6 +302,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
             }
             mPos = -1;
             mCount = NO_COUNT;
+            mQuery.endStreaming();
 
             mDriver.cursorRequeried(this);
         }
@@ -242,6 +320,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     public void setWindow(CursorWindow window) {
         super.setWindow(window);
         mCount = NO_COUNT;
+        mQuery.endStreaming();
     }
 
     /**
@@ -370,6 +370,19 @@ public final class SQLiteDatabase extends SQLiteClosable {
         return new SQLiteSession(pool);
     }
 
+    /**
+     * Gets the connection pool of the database, for callers that hold a connection
+     * outside of a session.
+     *
+     * @throws IllegalStateException if the database is not open.
+     */
+    SQLiteConnectionPool getConnectionPool() {
+        synchronized (mLock) {
+            throwIfNotOpenLocked();
+            return mConnectionPoolLocked;
+        }
+    }
+
     /**
      * Gets default connection flags that are appropriate for this thread, taking into
      * account whether the thread is acting on behalf of the UI.
@@ -18,21 +18,65 @@ package android.database.sqlite;
 
 import android.database.CursorWindow;
 import android.os.CancellationSignal;
+import android.os.Handler;
 import android.os.OperationCanceledException;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
+
 /**
  * Represents a query that reads the resulting rows into a {@link SQLiteQuery}.
  * This class is used by {@link SQLiteCursor} and isn't useful itself.
  * <p>
- * This class is not thread-safe.
+ * This class is not thread-safe, except that the connection of a streaming query
+ * may be released from another thread once it has been idle for too long.
  * </p>
  */
 public final class SQLiteQuery extends SQLiteProgram {
     private static final String TAG = "SQLiteQuery";
 
+    /**
+     * How long a streaming query may hold its connection, and the read transaction that
+     * comes with it, without a window being filled.  Past that, the connection is released
+     * so that a reader that stalls does not hold back WAL checkpoints; the next window is
+     * then filled by running the query again from the first row it needs.
+     */
+    private static final long STREAMING_IDLE_TIMEOUT_MILLIS = 5000;
+
     private final CancellationSignal mCancellationSignal;
 
+    // Guards the streaming state, which the idle timeout may end from another thread.
+    private final Object mStreamingLock = new Object();
+
+    // The pool and connection held while the query streams its results, or null if it
+    // is not streaming.
+    @GuardedBy("mStreamingLock")
+    private SQLiteConnectionPool mStreamingPool;
+    @GuardedBy("mStreamingLock")
+    private SQLiteConnection mStreamingConnection;
+
+    // True while a window is being filled from mStreamingConnection, which happens
+    // without holding mStreamingLock.
+    @GuardedBy("mStreamingLock")
+    private boolean mStreamingBusy;
+
+    @GuardedBy("mStreamingLock")
+    private long mStreamingIdleTimeoutMillis = STREAMING_IDLE_TIMEOUT_MILLIS;
+
+    private final Runnable mStreamingIdleTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mStreamingLock) {
+                if (mStreamingConnection != null && !mStreamingBusy) {
+                    Log.w(TAG, "Releasing the connection of idle streaming query: " + getSql());
+                    endStreamingLocked();
+                }
+            }
+        }
+    };
+
     SQLiteQuery(SQLiteDatabase db, String query, CancellationSignal cancellationSignal) {
         super(db, query, null, cancellationSignal);
 
@@ -77,6 +121,162 @@ public final class SQLiteQuery extends SQLiteProgram {
         }
     }
 
+    /**
+     * Starts streaming the results of the query on a connection of its own, so that
+     * {@link #fillStreamingWindow} can fill successive windows without running the
+     * query again from its first row each time.
+     *
+     * @return True if the query is streaming, false if no connection could be spared
+     * for it, in which case windows must be filled with {@link #fillWindow}.
+     *
+     * @throws SQLiteException if an error occurs.
+     */
+    boolean beginStreaming() {
+        synchronized (mStreamingLock) {
+            if (mStreamingConnection != null) {
+                return true;
+            }
+            final SQLiteDatabase db = getDatabase();
+            if (!db.isOpen() || db.inTransaction()) {
+                // A query in a transaction must see its uncommitted changes, so it has to run
+                // on the connection of the transaction.
+                return false;
+            }
+
+            final SQLiteConnectionPool pool = db.getConnectionPool();
+            final SQLiteConnection connection = pool.tryAcquireNonPrimaryConnection(getSql(),
+                    getConnectionFlags() | SQLiteConnectionPool.CONNECTION_FLAG_READ_ONLY);
+            if (connection == null) {
+                return false;
+            }
+            try {
+                connection.beginStreamingQuery(getSql(), getBindArgs());
+            } catch (RuntimeException ex) {
+                pool.releaseConnection(connection);
+                throw ex;
+            }
+            mStreamingPool = pool;
+            mStreamingConnection = connection;
+            getStreamingHandler().postDelayed(mStreamingIdleTimeout,
+                    mStreamingIdleTimeoutMillis);
+            return true;
+        }
+    }
+
+    /**
+     * Returns true if the query is streaming and has more rows to return.
+     */
+    boolean isStreaming() {
+        synchronized (mStreamingLock) {
+            return mStreamingConnection != null && !mStreamingConnection.isStreamingQueryDone();
+        }
+    }
+
+    /**
+     * Reads the next rows of the streaming query into a window.  Streaming ends, and
+     * its connection is released, once all rows have been read or on error.
+     *
+     * @param window The window to fill into.
+     * @param startPos The position of the first row to put in the window.  Rows the
+     * query has already streamed past are not put in the window.
+     * @param requiredPos The position of a row that must be put in the window.
+     * @return False if the window was not filled because the query is no longer
+     * streaming, for instance after being idle for too long, or has already streamed
+     * past {@code requiredPos}, in which case it must be filled with {@link #fillWindow}.
+     *
+     * @throws SQLiteException if an error occurs.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    boolean fillStreamingWindow(CursorWindow window, int startPos, int requiredPos) {
+        final SQLiteConnection connection;
+        synchronized (mStreamingLock) {
+            connection = mStreamingConnection;
+            if (connection == null || requiredPos < connection.getStreamingQueryPosition()) {
+                return false;
+            }
+            mStreamingBusy = true;
+            getStreamingHandler().removeCallbacks(mStreamingIdleTimeout);
+        }
+
+        acquireReference();
+        try {
+            window.acquireReference();
+            try {
+                connection.executeForStreamingCursorWindow(window,
+                        Math.max(startPos, connection.getStreamingQueryPosition()),
+                        mCancellationSignal);
+                return true;
+            } catch (SQLiteDatabaseCorruptException ex) {
+                endStreaming();
+                onCorruption();
+                throw ex;
+            } catch (SQLiteException ex) {
+                endStreaming();
+                Log.e(TAG, "exception: " + ex.getMessage() + "; query: " + getSql());
+                throw ex;
+            } catch (RuntimeException ex) {
+                endStreaming();
+                throw ex;
+            } finally {
+                window.releaseReference();
+            }
+        } finally {
+            synchronized (mStreamingLock) {
+                mStreamingBusy = false;
+                if (mStreamingConnection == connection) {
+                    if (connection.isStreamingQueryDone()) {
+                        endStreamingLocked();
+                    } else {
+                        getStreamingHandler().postDelayed(mStreamingIdleTimeout,
+                                mStreamingIdleTimeoutMillis);
+                    }
+                }
+            }
+            releaseReference();
+        }
+    }
+
+    @VisibleForTesting
+    void setStreamingIdleTimeoutForTesting(long timeoutMillis) {
+        synchronized (mStreamingLock) {
+            mStreamingIdleTimeoutMillis = timeoutMillis;
+        }
+    }
+
+    /**
+     * Stops streaming the results of the query, if it was, and releases its connection.
+     */
+    void endStreaming() {
+        synchronized (mStreamingLock) {
+            endStreamingLocked();
+        }
+    }
+
+    @GuardedBy("mStreamingLock")
+    private void endStreamingLocked() {
+        final SQLiteConnection connection = mStreamingConnection;
+        if (connection != null) {
+            mStreamingConnection = null;
+            getStreamingHandler().removeCallbacks(mStreamingIdleTimeout);
+            try {
+                connection.endStreamingQuery();
+            } finally {
+                mStreamingPool.releaseConnection(connection);
+                mStreamingPool = null;
+            }
+        }
+    }
+
+    private static Handler getStreamingHandler() {
+        return BackgroundThread.getHandler();
+    }
+
+    @Override
+    protected void onAllReferencesReleased() {
+        endStreaming();
+        super.onAllReferencesReleased();
+    }
+
     @Override
     public String toString() {
         return "SQLiteQuery: " + getSql();
@@ -87,6 +87,12 @@ public class NetworkStats implements Parcelable {
     /** Denotes a request for stats at the interface and UID level. */
     public static final int STATS_PER_UID = 1;
 
+    /**
+     * Below this many rows, a linear scan in {@link #findIndex} is cheaper than maintaining
+     * {@link #mIndexTable}.
+     */
+    private static final int INDEX_MIN_SIZE = 16;
+
     // TODO: move fields to "mVariable" notation
 
     /**
@@ -108,6 +114,19 @@ public class NetworkStats implements Parcelable {
     private long[] txPackets;
     private long[] operations;
 
+    // Hash index over the (iface, uid, set, tag, metered, roaming) key of rows
+    // [0, mIndexedSize), used by findIndex() once the table grows beyond INDEX_MIN_SIZE. Rows
+    // are only appended and their keys never change, so the index is extended as rows are
+    // added and only rebuilt when it needs to grow. It is kept up to date by the mutators
+    // rather than by lookups, so concurrent lookups on an unchanging object stay read-only.
+    // Interfaces are interned to small integer ids so probing compares ints rather than
+    // strings. None of this is parceled.
+    private int[] mIndexTable;
+    private int mIndexedSize;
+    private int[] mIndexIfaceIds;
+    private String[] mIndexIfaces;
+    private int mIndexIfaceCount;
+
     public static class Entry {
         public String iface;
         public int uid;
@@ -261,6 +280,9 @@ public class NetworkStats implements Parcelable {
         txBytes = parcel.createLongArray();
         txPackets = parcel.createLongArray();
         operations = parcel.createLongArray();
+        if (size >= INDEX_MIN_SIZE) {
+            updateIndex();
+        }
     }
 
     @Override
@@ -347,6 +369,9 @@ public class NetworkStats implements Parcelable {
         txPackets[size] = entry.txPackets;
         operations[size] = entry.operations;
         size++;
+        if (size >= INDEX_MIN_SIZE) {
+            updateIndex();
+        }
 
         return this;
     }
@@ -390,6 +415,15 @@ public class NetworkStats implements Parcelable {
         return size;
     }
 
+    /**
+     * Remove all rows, keeping the allocated capacity so this object can be
+     * refilled without reallocating.
+     */
+    public void clear() {
+        size = 0;
+        invalidateIndex();
+    }
+
     @VisibleForTesting
     public int internalSize() {
         return capacity;
@@ -445,6 +479,9 @@ public class NetworkStats implements Parcelable {
      * Find first stats index that matches the requested parameters.
      */
     public int findIndex(String iface, int uid, int set, int tag, int metered, int roaming) {
+        if (size >= INDEX_MIN_SIZE) {
+            return findIndexIndexed(iface, uid, set, tag, metered, roaming);
+        }
         for (int i = 0; i < size; i++) {
             if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
                     && metered == this.metered[i] && roaming == this.roaming[i]
@@ -462,6 +499,9 @@ public class NetworkStats implements Parcelable {
     @VisibleForTesting
     public int findIndexHinted(String iface, int uid, int set, int tag, int metered, int roaming,
             int hintIndex) {
+        if (size >= INDEX_MIN_SIZE) {
+            return findIndexIndexed(iface, uid, set, tag, metered, roaming);
+        }
         for (int offset = 0; offset < size; offset++) {
             final int halfOffset = offset / 2;
 
@@ -482,6 +522,106 @@ public class NetworkStats implements Parcelable {
         return -1;
     }
 
+    private int findIndexIndexed(String iface, int uid, int set, int tag, int metered,
+            int roaming) {
+        final int ifaceId = findIfaceId(iface);
+        if (ifaceId == -1) {
+            return -1;
+        }
+        final int mask = mIndexTable.length - 1;
+        int slot = hashKey(ifaceId, uid, set, tag, metered, roaming) & mask;
+        while (true) {
+            final int i = mIndexTable[slot] - 1;
+            if (i == -1) {
+                return -1;
+            }
+            if (ifaceId == mIndexIfaceIds[i] && uid == this.uid[i] && set == this.set[i]
+                    && tag == this.tag[i] && metered == this.metered[i]
+                    && roaming == this.roaming[i]) {
+                return i;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Bring {@link #mIndexTable} up to date with any rows appended since it was last updated,
+     * rebuilding it if it would become more than half full.
+     */
+    private void updateIndex() {
+        if (mIndexTable == null || mIndexTable.length < size * 2) {
+            mIndexTable = new int[Integer.highestOneBit(size * 4)];
+            mIndexedSize = 0;
+        }
+        if (mIndexIfaceIds == null || mIndexIfaceIds.length < size) {
+            mIndexIfaceIds = mIndexIfaceIds == null
+                    ? new int[capacity] : Arrays.copyOf(mIndexIfaceIds, capacity);
+        }
+
+        final int mask = mIndexTable.length - 1;
+        for (int i = mIndexedSize; i < size; i++) {
+            final int ifaceId = internIface(iface[i]);
+            mIndexIfaceIds[i] = ifaceId;
+
+            int slot = hashKey(ifaceId, uid[i], set[i], tag[i], metered[i], roaming[i]) & mask;
+            while (true) {
+                final int j = mIndexTable[slot] - 1;
+                if (j == -1) {
+                    mIndexTable[slot] = i + 1;
+                    break;
+                }
+                // Keep the first row for duplicate keys, matching the linear scan.
+                if (ifaceId == mIndexIfaceIds[j] && uid[i] == uid[j] && set[i] == set[j]
+                        && tag[i] == tag[j] && metered[i] == metered[j]
+                        && roaming[i] == roaming[j]) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        mIndexedSize = size;
+    }
+
+    private void invalidateIndex() {
+        mIndexTable = null;
+        mIndexedSize = 0;
+        mIndexIfaceCount = 0;
+    }
+
+    private int findIfaceId(String iface) {
+        for (int i = 0; i < mIndexIfaceCount; i++) {
+            if (Objects.equals(iface, mIndexIfaces[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int internIface(String iface) {
+        final int id = findIfaceId(iface);
+        if (id != -1) {
+            return id;
+        }
+        if (mIndexIfaces == null) {
+            mIndexIfaces = new String[4];
+        } else if (mIndexIfaceCount == mIndexIfaces.length) {
+            mIndexIfaces = Arrays.copyOf(mIndexIfaces, mIndexIfaceCount * 2);
+        }
+        mIndexIfaces[mIndexIfaceCount] = iface;
+        return mIndexIfaceCount++;
+    }
+
+    private static int hashKey(int ifaceId, int uid, int set, int tag, int metered,
+            int roaming) {
+        int h = ifaceId;
+        h = 31 * h + uid;
+        h = 31 * h + set;
+        h = 31 * h + tag;
+        h = 31 * h + metered;
+        h = 31 * h + roaming;
+        return h ^ (h >>> 16);
+    }
+
     /**
      * Splice in {@link #operations} from the given {@link NetworkStats} based
      * on matching {@link #uid} and {@link #tag} rows. Ignores {@link #iface},
@@ -665,7 +805,7 @@ public class NetworkStats implements Parcelable {
         final NetworkStats result;
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
-            result.size = 0;
+            result.clear();
             result.elapsedRealtime = deltaRealtime;
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
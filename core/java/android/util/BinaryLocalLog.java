@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import com.android.internal.util.Preconditions;
+import com.android.internal.util.RingBufferIndices;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.IllegalFormatException;
+
+/**
+ * A fixed-size debug log in the spirit of {@link LocalLog} that stores events in binary form.
+ *
+ * <p>Callers register a format once via {@link #registerFormat(String)} and then log events
+ * with the returned tag and up to {@link #MAX_ARGS} primitive arguments. Each event is written
+ * into a preallocated {@link ByteBuffer} slot, so logging does not allocate; formatting into
+ * text only happens when the log is dumped.
+ *
+ * <p>Formats use {@link String#format} syntax and receive their arguments as {@code Long}
+ * values, e.g. {@code "uid=%d netId=%d"}.
+ *
+ * @hide
+ */
+public final class BinaryLocalLog {
+    /** Maximum number of primitive arguments that can be attached to a single event. */
+    public static final int MAX_ARGS = 4;
+
+    // Slot layout: tag (int), argument count (int), wall time (long), arguments (long each).
+    private static final int OFFSET_TAG = 0;
+    private static final int OFFSET_ARGC = 4;
+    private static final int OFFSET_TIME = 8;
+    private static final int OFFSET_ARGS = 16;
+    private static final int SLOT_SIZE = OFFSET_ARGS + MAX_ARGS * 8;
+
+    private final int mMaxEntries;
+    private final ByteBuffer mBuffer;
+    private final RingBufferIndices mIndices;
+    private final ArrayList<String> mFormats = new ArrayList<>();
+
+    public BinaryLocalLog(int maxEntries) {
+        mMaxEntries = Math.max(0, maxEntries);
+        mBuffer = ByteBuffer.allocate(mMaxEntries * SLOT_SIZE);
+        mIndices = new RingBufferIndices(mMaxEntries);
+    }
+
+    /**
+     * Registers a format string and returns the tag to pass to the {@code log} methods.
+     * Formats are expected to be registered once, typically at construction of the owner.
+     */
+    public synchronized int registerFormat(String format) {
+        Preconditions.checkNotNull(format);
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    public void log(int tag) {
+        append(tag, 0, 0, 0, 0, 0);
+    }
+
+    public void log(int tag, long arg0) {
+        append(tag, 1, arg0, 0, 0, 0);
+    }
+
+    public void log(int tag, long arg0, long arg1) {
+        append(tag, 2, arg0, arg1, 0, 0);
+    }
+
+    public void log(int tag, long arg0, long arg1, long arg2) {
+        append(tag, 3, arg0, arg1, arg2, 0);
+    }
+
+    public void log(int tag, long arg0, long arg1, long arg2, long arg3) {
+        append(tag, 4, arg0, arg1, arg2, arg3);
+    }
+
+    private synchronized void append(int tag, int argc, long arg0, long arg1, long arg2,
+            long arg3) {
+        if (mMaxEntries <= 0) {
+            return;
+        }
+        if (tag < 0 || tag >= mFormats.size()) {
+            throw new IllegalArgumentException("Unknown tag " + tag);
+        }
+        final int base = mIndices.add() * SLOT_SIZE;
+        mBuffer.putInt(base + OFFSET_TAG, tag);
+        mBuffer.putInt(base + OFFSET_ARGC, argc);
+        mBuffer.putLong(base + OFFSET_TIME, System.currentTimeMillis());
+        mBuffer.putLong(base + OFFSET_ARGS, arg0);
+        mBuffer.putLong(base + OFFSET_ARGS + 8, arg1);
+        mBuffer.putLong(base + OFFSET_ARGS + 16, arg2);
+        mBuffer.putLong(base + OFFSET_ARGS + 24, arg3);
+    }
+
+    /** Returns the number of events currently retained. */
+    public synchronized int size() {
+        return mIndices.size();
+    }
+
+    public synchronized void clear() {
+        mIndices.clear();
+    }
+
+    public synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        final Calendar c = Calendar.getInstance();
+        final int size = mIndices.size();
+        for (int i = 0; i < size; i++) {
+            pw.println(formatEntry(mIndices.indexOf(i), c));
+        }
+    }
+
+    public synchronized void reverseDump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        final Calendar c = Calendar.getInstance();
+        for (int i = mIndices.size() - 1; i >= 0; i--) {
+            pw.println(formatEntry(mIndices.indexOf(i), c));
+        }
+    }
+
+    private String formatEntry(int index, Calendar c) {
+        final int base = index * SLOT_SIZE;
+        final int tag = mBuffer.getInt(base + OFFSET_TAG);
+        final int argc = mBuffer.getInt(base + OFFSET_ARGC);
+        final Object[] args = new Object[argc];
+        for (int i = 0; i < argc; i++) {
+            args[i] = mBuffer.getLong(base + OFFSET_ARGS + i * 8);
+        }
+        c.setTimeInMillis(mBuffer.getLong(base + OFFSET_TIME));
+        String message;
+        try {
+            message = String.format(mFormats.get(tag), args);
+        } catch (IllegalFormatException e) {
+            // The format doesn't match what was logged, don't fail the whole dump over it.
+            message = "tag=" + tag + " args=" + Arrays.toString(args);
+        }
+        return String.format("%tm-%td %tH:%tM:%tS.%tL - ", c, c, c, c, c, c) + message;
+    }
+
+    public static class ReadOnlyBinaryLocalLog {
+        private final BinaryLocalLog mLog;
+        ReadOnlyBinaryLocalLog(BinaryLocalLog log) {
+            mLog = log;
+        }
+        public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mLog.dump(fd, pw, args);
+        }
+        public void reverseDump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mLog.reverseDump(fd, pw, args);
+        }
+    }
+
+    public ReadOnlyBinaryLocalLog readOnlyLocalLog() {
+        return new ReadOnlyBinaryLocalLog(this);
+    }
+}
@@ -31,6 +31,7 @@ import android.os.Message;
 import android.os.Parcelable;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.style.AccessibilityClickableSpan;
 import android.text.style.ClickableSpan;
 import android.util.LongSparseArray;
@@ -41,9 +42,12 @@ import android.view.accessibility.AccessibilityNodeProvider;
 import android.view.accessibility.IAccessibilityInteractionConnectionCallback;
 
 import com.android.internal.R;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.SomeArgs;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -85,6 +89,13 @@ final class AccessibilityInteractionController {
 
     private AddNodeInfosForViewId mAddNodeInfosForViewId;
 
+    // Statistics per query type, indexed by PrivateHandler message type. Only updated on the UI
+    // thread, and read racily when dumping.
+    private final int[] mQueryCounts = new int[PrivateHandler.MSG_COUNT];
+    private final long[] mQueryTotalMs = new long[PrivateHandler.MSG_COUNT];
+    private final long[] mQueryMaxMs = new long[PrivateHandler.MSG_COUNT];
+    private final long[] mQueryTotalWaitMs = new long[PrivateHandler.MSG_COUNT];
+
     public AccessibilityInteractionController(ViewRootImpl viewRootImpl) {
         Looper looper =  viewRootImpl.mHandler.getLooper();
         mMyLooperThreadId = looper.getThread().getId();
@@ -94,6 +105,41 @@ final class AccessibilityInteractionController {
         mPrefetcher = new AccessibilityNodePrefetcher();
     }
 
+    private void noteQueryHandled(int type, long when, long start) {
+        final long now = SystemClock.uptimeMillis();
+        final long durationMs = now - start;
+        mQueryCounts[type]++;
+        mQueryTotalMs[type] += durationMs;
+        mQueryMaxMs[type] = Math.max(mQueryMaxMs[type], durationMs);
+        // Messages handled on the interrogating thread are never sent, and have no time.
+        if (when > 0) {
+            mQueryTotalWaitMs[type] += start - when;
+        }
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        final String innerPrefix = prefix + "  ";
+        writer.print(prefix); writer.println("AccessibilityInteractionController:");
+        final PrefetchBatchSizer sizer = mPrefetcher.mBatchSizer;
+        writer.print(innerPrefix); writer.print("batchSize="); writer.print(sizer.getBatchSize());
+                writer.print(" grown="); writer.print(sizer.mBatchGrowCount);
+                writer.print(" shrunk="); writer.print(sizer.mBatchShrinkCount);
+                writer.print(" prefetched="); writer.println(sizer.mPrefetchedNodeCount);
+        for (int type = 0; type < PrivateHandler.MSG_COUNT; type++) {
+            final int count = mQueryCounts[type];
+            if (count == 0) {
+                continue;
+            }
+            final Message message = Message.obtain(mHandler, type);
+            writer.print(innerPrefix); writer.print(mHandler.getMessageName(message));
+            message.recycle();
+            writer.print(": count="); writer.print(count);
+            writer.print(" avgMs="); writer.print(mQueryTotalMs[type] / count);
+            writer.print(" maxMs="); writer.print(mQueryMaxMs[type]);
+            writer.print(" avgWaitMs="); writer.println(mQueryTotalWaitMs[type] / count);
+        }
+    }
+
     private void scheduleMessage(Message message, int interrogatingPid, long interrogatingTid) {
         // If the interrogation is performed by the same thread as the main UI
         // thread in this process, set the message as a static reference so
@@ -771,6 +817,88 @@ final class AccessibilityInteractionController {
         return false;
     }
 
+    /**
+     * Adapts the number of nodes prefetched per query to how the previous batch was used: it
+     * shrinks when the service asks again for a node it was just sent, and grows when the
+     * service walks past a batch that was cut short by the limit.
+     */
+    @VisibleForTesting
+    static final class PrefetchBatchSizer {
+        static final int DEFAULT_BATCH_SIZE = 50;
+        static final int MIN_BATCH_SIZE = 25;
+        static final int MAX_BATCH_SIZE = 200;
+
+        /** Maximum number of nodes returned for a query, adapted to how they are used. */
+        private int mBatchSize = DEFAULT_BATCH_SIZE;
+
+        // Source ids of the nodes prefetched with the last query, sorted, and whether the batch
+        // size limited how many were prefetched.
+        private long[] mLastPrefetchedIds = new long[DEFAULT_BATCH_SIZE];
+        private int mLastPrefetchedCount;
+        private boolean mLastBatchFull;
+
+        int mBatchGrowCount;
+        int mBatchShrinkCount;
+        long mPrefetchedNodeCount;
+
+        int getBatchSize() {
+            return mBatchSize;
+        }
+
+        /**
+         * Called with the nodes returned for a query, from {@code start} on: the requested node
+         * followed by the prefetched ones.
+         */
+        void onPrefetched(List<AccessibilityNodeInfo> infos, int start) {
+            // Whether the batch was cut short is relative to the size it was prefetched with.
+            final boolean batchFull = infos.size() >= mBatchSize;
+            adaptBatchSize(infos.get(start).getSourceNodeId());
+            recordBatch(infos, start, batchFull);
+        }
+
+        /**
+         * Adapts the batch size to the node the service is asking for, given the nodes prefetched
+         * for its previous query.
+         */
+        private void adaptBatchSize(long requestedNodeId) {
+            if (mLastPrefetchedCount == 0) {
+                return;
+            }
+            if (Arrays.binarySearch(mLastPrefetchedIds, 0, mLastPrefetchedCount,
+                    requestedNodeId) >= 0) {
+                // The node was sent with the last batch but the service is asking for it again,
+                // which happens when its cache was cleared because the content changed: the
+                // prefetched nodes went unused.
+                if (mBatchSize > MIN_BATCH_SIZE) {
+                    mBatchSize = Math.max(MIN_BATCH_SIZE, mBatchSize / 2);
+                    mBatchShrinkCount++;
+                }
+            } else if (mLastBatchFull) {
+                // The service walked past what fitted in the last batch, e.g. through a long list.
+                if (mBatchSize < MAX_BATCH_SIZE) {
+                    mBatchSize = Math.min(MAX_BATCH_SIZE, mBatchSize * 2);
+                    mBatchGrowCount++;
+                }
+            }
+        }
+
+        private void recordBatch(List<AccessibilityNodeInfo> infos, int start,
+                boolean batchFull) {
+            // The first node is the one that was asked for, the others were prefetched.
+            final int count = infos.size() - start - 1;
+            if (mLastPrefetchedIds.length < count) {
+                mLastPrefetchedIds = new long[Math.max(count, MAX_BATCH_SIZE)];
+            }
+            for (int i = 0; i < count; i++) {
+                mLastPrefetchedIds[i] = infos.get(start + 1 + i).getSourceNodeId();
+            }
+            Arrays.sort(mLastPrefetchedIds, 0, count);
+            mLastPrefetchedCount = count;
+            mLastBatchFull = batchFull;
+            mPrefetchedNodeCount += count;
+        }
+    }
+
     /**
      * This class encapsulates a prefetching strategy for the accessibility APIs for
      * querying window content. It is responsible to prefetch a batch of
@@ -778,12 +906,30 @@ final class AccessibilityInteractionController {
      */
     private class AccessibilityNodePrefetcher {
 
-        private static final int MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE = 50;
+        private static final int PREFETCH_FLAGS = AccessibilityNodeInfo.FLAG_PREFETCH_PREDECESSORS
+                | AccessibilityNodeInfo.FLAG_PREFETCH_SIBLINGS
+                | AccessibilityNodeInfo.FLAG_PREFETCH_DESCENDANTS;
 
         private final ArrayList<View> mTempViewList = new ArrayList<View>();
 
+        final PrefetchBatchSizer mBatchSizer = new PrefetchBatchSizer();
+
+        /** Maximum number of nodes returned for the query being prefetched. */
+        private int mBatchSize;
+
         public void prefetchAccessibilityNodeInfos(View view, int virtualViewId, int fetchFlags,
                 List<AccessibilityNodeInfo> outInfos, Bundle arguments) {
+            final int initialSize = outInfos.size();
+            mBatchSize = mBatchSizer.getBatchSize();
+            prefetchAccessibilityNodeInfosInternal(view, virtualViewId, fetchFlags, outInfos,
+                    arguments);
+            if ((fetchFlags & PREFETCH_FLAGS) != 0 && outInfos.size() > initialSize) {
+                mBatchSizer.onPrefetched(outInfos, initialSize);
+            }
+        }
+
+        private void prefetchAccessibilityNodeInfosInternal(View view, int virtualViewId,
+                int fetchFlags, List<AccessibilityNodeInfo> outInfos, Bundle arguments) {
             AccessibilityNodeProvider provider = view.getAccessibilityNodeProvider();
             // Determine if we'll be populating extra data
             final String extraDataRequested = (arguments == null) ? null
@@ -911,7 +1057,7 @@ final class AccessibilityInteractionController {
                 List<AccessibilityNodeInfo> outInfos) {
             ViewParent parent = view.getParentForAccessibility();
             while (parent instanceof View
-                    && outInfos.size() < MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                    && outInfos.size() < mBatchSize) {
                 View parentView = (View) parent;
                 AccessibilityNodeInfo info = parentView.createAccessibilityNodeInfo();
                 if (info != null) {
@@ -932,7 +1078,7 @@ final class AccessibilityInteractionController {
                     parentGroup.addChildrenForAccessibility(children);
                     final int childCount = children.size();
                     for (int i = 0; i < childCount; i++) {
-                        if (outInfos.size() >= MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                        if (outInfos.size() >= mBatchSize) {
                             return;
                         }
                         View child = children.get(i);
@@ -971,7 +1117,7 @@ final class AccessibilityInteractionController {
                 root.addChildrenForAccessibility(children);
                 final int childCount = children.size();
                 for (int i = 0; i < childCount; i++) {
-                    if (outInfos.size() >= MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                    if (outInfos.size() >= mBatchSize) {
                         return;
                     }
                     View child = children.get(i);
@@ -996,7 +1142,7 @@ final class AccessibilityInteractionController {
             } finally {
                 children.clear();
             }
-            if (outInfos.size() < MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+            if (outInfos.size() < mBatchSize) {
                 for (Map.Entry<View, AccessibilityNodeInfo> entry : addedChildren.entrySet()) {
                     View addedChild = entry.getKey();
                     AccessibilityNodeInfo virtualRoot = entry.getValue();
@@ -1018,7 +1164,7 @@ final class AccessibilityInteractionController {
             long parentNodeId = root.getParentNodeId();
             int accessibilityViewId = AccessibilityNodeInfo.getAccessibilityViewId(parentNodeId);
             while (accessibilityViewId != AccessibilityNodeInfo.UNDEFINED_ITEM_ID) {
-                if (outInfos.size() >= MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                if (outInfos.size() >= mBatchSize) {
                     return;
                 }
                 final int virtualDescendantId =
@@ -1063,7 +1209,7 @@ final class AccessibilityInteractionController {
                 if (parent != null) {
                     final int childCount = parent.getChildCount();
                     for (int i = 0; i < childCount; i++) {
-                        if (outInfos.size() >= MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                        if (outInfos.size() >= mBatchSize) {
                             return;
                         }
                         final long childNodeId = parent.getChildId(i);
@@ -1088,7 +1234,7 @@ final class AccessibilityInteractionController {
             final int initialOutInfosSize = outInfos.size();
             final int childCount = root.getChildCount();
             for (int i = 0; i < childCount; i++) {
-                if (outInfos.size() >= MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                if (outInfos.size() >= mBatchSize) {
                     return;
                 }
                 final long childNodeId = root.getChildId(i);
@@ -1098,7 +1244,7 @@ final class AccessibilityInteractionController {
                     outInfos.add(child);
                 }
             }
-            if (outInfos.size() < MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+            if (outInfos.size() < mBatchSize) {
                 final int addedChildCount = outInfos.size() - initialOutInfosSize;
                 for (int i = 0; i < addedChildCount; i++) {
                     AccessibilityNodeInfo child = outInfos.get(initialOutInfosSize + i);
@@ -1115,6 +1261,7 @@ final class AccessibilityInteractionController {
         private static final int MSG_FIND_ACCESSIBILITY_NODE_INFO_BY_TEXT = 4;
         private static final int MSG_FIND_FOCUS = 5;
         private static final int MSG_FOCUS_SEARCH = 6;
+        private static final int MSG_COUNT = MSG_FOCUS_SEARCH + 1;
 
         public PrivateHandler(Looper looper) {
             super(looper);
@@ -1144,6 +1291,8 @@ final class AccessibilityInteractionController {
         @Override
         public void handleMessage(Message message) {
             final int type = message.what;
+            final long when = message.getWhen();
+            final long start = SystemClock.uptimeMillis();
             switch (type) {
                 case MSG_FIND_ACCESSIBILITY_NODE_INFO_BY_ACCESSIBILITY_ID: {
                     findAccessibilityNodeInfoByAccessibilityIdUiThread(message);
@@ -1166,6 +1315,7 @@ final class AccessibilityInteractionController {
                 default:
                     throw new IllegalArgumentException("Unknown message type: " + type);
             }
+            noteQueryHandled(type, when, start);
         }
     }
 
@@ -6225,6 +6225,10 @@ public final class ViewRootImpl implements ViewParent,
         }
         mFirstInputStage.dump(innerPrefix, writer);
 
+        if (mAccessibilityInteractionController != null) {
+            mAccessibilityInteractionController.dump(innerPrefix, writer);
+        }
+
         mChoreographer.dump(prefix, writer);
 
         writer.print(prefix); writer.println("View Hierarchy:");
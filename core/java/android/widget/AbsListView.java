@@ -19,6 +19,7 @@ package android.widget;
 import android.annotation.ColorInt;
 import android.annotation.DrawableRes;
 import android.annotation.NonNull;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Configuration;
@@ -43,6 +44,7 @@ import android.util.Log;
 import android.util.LongSparseArray;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.util.StateSet;
 import android.view.ActionMode;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -82,6 +84,8 @@ import android.view.inputmethod.InputMethodManager;
 import android.widget.RemoteViews.OnClickHandler;
 
 import com.android.internal.R;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -2362,6 +2366,7 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
             }
 
             outMetadata[0] = true;
+            mRecycler.mReusedViewCount++;
 
             // Finish the temporary detach started in addScrapView().
             transientView.dispatchFinishTemporaryDetach();
@@ -2370,6 +2375,11 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
 
         final View scrapView = mRecycler.getScrapView(position);
         final View child = mAdapter.getView(position, scrapView, this);
+        if (child == scrapView) {
+            mRecycler.mReusedViewCount++;
+        } else {
+            mRecycler.mCreatedViewCount++;
+        }
         if (scrapView != null) {
             if (child != scrapView) {
                 // Failed to re-bind the data, return scrap to the heap.
@@ -2939,6 +2949,8 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
             mOldItemCount = mItemCount;
             mItemCount = mAdapter.getCount();
         }
+
+        mRecycler.registerForTrimMemory();
     }
 
     @Override
@@ -2952,6 +2964,7 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
 
         // Detach any view left in the scrap heap
         mRecycler.clear();
+        mRecycler.unregisterForTrimMemory();
 
         final ViewTreeObserver treeObserver = getViewTreeObserver();
         treeObserver.removeOnTouchModeChangeListener(this);
@@ -6408,6 +6421,57 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
         mRecycler.mRecyclerListener = listener;
     }
 
+    /**
+     * Sets the maximum number of views of the given type kept in the recycler. By default, as
+     * many views as the list had children at its last layout are kept for each type. When the
+     * limit is exceeded, the views that were set aside first are discarded.
+     *
+     * @param viewType The view type, as returned by {@link Adapter#getItemViewType(int)}.
+     * @param max The maximum number of views to keep, or -1 to restore the default.
+     *
+     * @hide
+     */
+    public void setMaxScrapViews(int viewType, int max) {
+        mRecycler.setMaxScrapViews(viewType, max);
+    }
+
+    /**
+     * Returns the number of views obtained from the adapter that were not recycled, either
+     * because the recycler had no view of the right type or because the adapter did not reuse
+     * the view it was given.
+     *
+     * @hide
+     */
+    public int getCreatedViewCount() {
+        return mRecycler.mCreatedViewCount;
+    }
+
+    /**
+     * Returns the number of views obtained from the adapter that were recycled.
+     *
+     * @hide
+     */
+    public int getReusedViewCount() {
+        return mRecycler.mReusedViewCount;
+    }
+
+    /**
+     * Returns the number of views of the given type kept in the recycler.
+     */
+    @VisibleForTesting
+    int getScrapViewCount(int viewType) {
+        return mRecycler.getScrapViewCount(viewType);
+    }
+
+    /**
+     * Trims the recycler as {@link ComponentCallbacks2#onTrimMemory(int)} would, without
+     * waiting for the trim to run on the list's thread.
+     */
+    @VisibleForTesting
+    void trimScrapViews(int level) {
+        mRecycler.trimScrapViews(level);
+    }
+
     class AdapterDataSetObserver extends AdapterView<ListAdapter>.AdapterDataSetObserver {
         @Override
         public void onChanged() {
@@ -6611,7 +6675,7 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
      * @see android.widget.AbsListView#setRecyclerListener(android.widget.AbsListView.RecyclerListener)
      * @see android.widget.AbsListView.RecyclerListener
      */
-    class RecycleBin {
+    class RecycleBin implements ComponentCallbacks2 {
         private RecyclerListener mRecyclerListener;
 
         /**
@@ -6641,6 +6705,32 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
         private SparseArray<View> mTransientStateViews;
         private LongSparseArray<View> mTransientStateViewsById;
 
+        /**
+         * Maximum number of scrap views kept per view type, for the types that don't use the
+         * default of mActiveViews.length.
+         */
+        private SparseIntArray mMaxScrapViews;
+
+        /** The context the trim memory callbacks are registered with, if any. */
+        private Context mTrimMemoryContext;
+
+        private final Runnable mTrimScrapRunnable = new Runnable() {
+            @Override
+            public void run() {
+                final int level;
+                synchronized (this) {
+                    level = mPendingTrimLevel;
+                    mPendingTrimLevel = 0;
+                }
+                trimScrapViews(level);
+            }
+        };
+        @GuardedBy("mTrimScrapRunnable")
+        private int mPendingTrimLevel;
+
+        int mCreatedViewCount;
+        int mReusedViewCount;
+
         public void setViewTypeCount(int viewTypeCount) {
             if (viewTypeCount < 1) {
                 throw new IllegalArgumentException("Can't have a viewTypeCount < 1");
@@ -6878,10 +6968,13 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
                 }
             } else {
                 clearScrapForRebind(scrap);
-                if (mViewTypeCount == 1) {
-                    mCurrentScrap.add(scrap);
-                } else {
-                    mScrapViews[viewType].add(scrap);
+                final ArrayList<View> scrapPile =
+                        mViewTypeCount == 1 ? mCurrentScrap : mScrapViews[viewType];
+                scrapPile.add(scrap);
+                if (mMaxScrapViews != null) {
+                    // The default limit is only applied at the end of layout, by which point
+                    // views scrapped while measuring have been reused.
+                    trimScrapPile(scrapPile, mMaxScrapViews.get(viewType, Integer.MAX_VALUE));
                 }
 
                 if (mRecyclerListener != null) {
@@ -6994,20 +7087,15 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
 
         /**
          * Makes sure that the size of mScrapViews does not exceed the size of
-         * mActiveViews, which can happen if an adapter does not recycle its
-         * views. Removes cached transient state views that no longer have
-         * transient state.
+         * mActiveViews, or the limit set for the view type, which can happen if
+         * an adapter does not recycle its views. Removes cached transient state
+         * views that no longer have transient state.
          */
         private void pruneScrapViews() {
-            final int maxViews = mActiveViews.length;
             final int viewTypeCount = mViewTypeCount;
             final ArrayList<View>[] scrapViews = mScrapViews;
             for (int i = 0; i < viewTypeCount; ++i) {
-                final ArrayList<View> scrapPile = scrapViews[i];
-                int size = scrapPile.size();
-                while (size > maxViews) {
-                    scrapPile.remove(--size);
-                }
+                trimScrapPile(scrapViews[i], getMaxScrapViews(i));
             }
 
             final SparseArray<View> transViewsByPos = mTransientStateViews;
@@ -7087,6 +7175,10 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
         private View retrieveFromScrap(ArrayList<View> scrapViews, int position) {
             final int size = scrapViews.size();
             if (size > 0) {
+                // Looked up once rather than for each scrap view, the adapter may have to move
+                // a cursor to get it.
+                final long id = mAdapterHasStableIds ? mAdapter.getItemId(position) : 0;
+
                 // See if we still have a view for this position or ID.
                 // Traverse backwards to find the most recently used scrap view
                 for (int i = size - 1; i >= 0; i--) {
@@ -7095,7 +7187,6 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
                             (AbsListView.LayoutParams) view.getLayoutParams();
 
                     if (mAdapterHasStableIds) {
-                        final long id = mAdapter.getItemId(position);
                         if (id == params.itemId) {
                             return scrapViews.remove(i);
                         }
@@ -7113,6 +7204,108 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
             }
         }
 
+        void setMaxScrapViews(int viewType, int max) {
+            if (max < 0) {
+                if (mMaxScrapViews != null) {
+                    mMaxScrapViews.delete(viewType);
+                }
+                return;
+            }
+            if (mMaxScrapViews == null) {
+                mMaxScrapViews = new SparseIntArray();
+            }
+            mMaxScrapViews.put(viewType, max);
+            if (viewType >= 0 && viewType < mViewTypeCount) {
+                trimScrapPile(mScrapViews[viewType], max);
+            }
+        }
+
+        int getScrapViewCount(int viewType) {
+            if (mScrapViews == null || viewType < 0 || viewType >= mViewTypeCount) {
+                return 0;
+            }
+            return mScrapViews[viewType].size();
+        }
+
+        private int getMaxScrapViews(int viewType) {
+            final int defaultMax = mActiveViews.length;
+            return mMaxScrapViews != null ? mMaxScrapViews.get(viewType, defaultMax) : defaultMax;
+        }
+
+        /**
+         * Discards the views that were set aside first until no more than {@code max} are left.
+         */
+        private void trimScrapPile(ArrayList<View> scrapPile, int max) {
+            final int extra = scrapPile.size() - max;
+            if (extra <= 0) {
+                return;
+            }
+            for (int i = 0; i < extra; i++) {
+                final View view = scrapPile.get(i);
+                if (view.isTemporarilyDetached()) {
+                    removeDetachedView(view, false);
+                }
+            }
+            scrapPile.subList(0, extra).clear();
+        }
+
+        /**
+         * Drops half of each scrap pile when memory is getting low, and all of them once the
+         * list is no longer visible or memory is critically low.
+         */
+        void trimScrapViews(int level) {
+            if (mScrapViews == null) {
+                return;
+            }
+            final boolean dropAll = level >= TRIM_MEMORY_RUNNING_CRITICAL;
+            final int viewTypeCount = mViewTypeCount;
+            for (int i = 0; i < viewTypeCount; ++i) {
+                final ArrayList<View> scrapPile = mScrapViews[i];
+                trimScrapPile(scrapPile, dropAll ? 0 : scrapPile.size() / 2);
+            }
+        }
+
+        void registerForTrimMemory() {
+            final Context context = mContext.getApplicationContext();
+            if (context != null && mTrimMemoryContext == null) {
+                context.registerComponentCallbacks(this);
+                mTrimMemoryContext = context;
+            }
+        }
+
+        void unregisterForTrimMemory() {
+            if (mTrimMemoryContext != null) {
+                mTrimMemoryContext.unregisterComponentCallbacks(this);
+                mTrimMemoryContext = null;
+            }
+            removeCallbacks(mTrimScrapRunnable);
+            synchronized (mTrimScrapRunnable) {
+                mPendingTrimLevel = 0;
+            }
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            if (level < TRIM_MEMORY_RUNNING_LOW) {
+                return;
+            }
+            // Called on the main thread, which is not necessarily the one running the list.
+            // Trim between two layouts on the list's own thread instead.
+            synchronized (mTrimScrapRunnable) {
+                mPendingTrimLevel = Math.max(mPendingTrimLevel, level);
+            }
+            post(mTrimScrapRunnable);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
         private void clearScrap(final ArrayList<View> scrap) {
             final int scrapCount = scrap.size();
             for (int j = 0; j < scrapCount; j++) {
@@ -7205,6 +7398,8 @@ public abstract class AbsListView extends AdapterView<ListAdapter> implements Te
         encoder.addProperty("list:smoothScrollbarEnabled", isSmoothScrollbarEnabled());
         encoder.addProperty("list:stackFromBottom", isStackFromBottom());
         encoder.addProperty("list:textFilterEnabled", isTextFilterEnabled());
+        encoder.addProperty("list:createdViewCount", getCreatedViewCount());
+        encoder.addProperty("list:reusedViewCount", getReusedViewCount());
 
         View selectedView = getSelectedView();
         if (selectedView != null) {
@@ -50,6 +50,8 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.Process;
 import android.os.StrictMode;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.ArrayMap;
@@ -99,6 +101,14 @@ public class RemoteViews implements Parcelable, Filter {
      */
     private static final int MAX_NESTED_VIEWS = 10;
 
+    /**
+     * Whether applying the actions of a RemoteViews is logged when it takes longer than
+     * {@link #SLOW_APPLY_THRESHOLD_MS}, since it usually happens on the UI thread of the host.
+     * The time spent is always visible in the RemoteViews#apply trace section.
+     */
+    private static final boolean DEBUG_SLOW_APPLY = false;
+    private static final long SLOW_APPLY_THRESHOLD_MS = 16;
+
     /**
      * Application that hosts the remote views.
      *
@@ -171,6 +181,25 @@ public class RemoteViews implements Parcelable, Filter {
         }
     };
 
+    private static final ThreadLocal<ApplyStats> sApplyStatsTls = new ThreadLocal<ApplyStats>() {
+        @Override
+        protected ApplyStats initialValue() {
+            return new ApplyStats();
+        }
+    };
+
+    /**
+     * Cost of the actions being applied on the current thread. Nested RemoteViews are counted as
+     * part of the outermost apply.
+     */
+    private static final class ApplyStats {
+        int depth;
+        long startNanos;
+        int actions;
+        int typedSetters;
+        int unchanged;
+    }
+
     /**
      * @hide
      */
@@ -918,6 +947,139 @@ public class RemoteViews implements Parcelable, Filter {
         return method;
     }
 
+    // Setters called directly instead of through Method.invoke(). Each is only used once the
+    // method has been resolved, and checked for @RemotableViewMethod, through getMethod().
+    private static final int TYPED_SETTER_NONE = 0;
+    private static final int TYPED_SETTER_TEXT = 1;
+    private static final int TYPED_SETTER_TEXT_COLOR = 2;
+    private static final int TYPED_SETTER_CONTENT_DESCRIPTION = 3;
+    private static final int TYPED_SETTER_VISIBILITY = 4;
+    private static final int TYPED_SETTER_ENABLED = 5;
+    private static final int TYPED_SETTER_BACKGROUND_COLOR = 6;
+    private static final int TYPED_SETTER_IMAGE_RESOURCE = 7;
+    private static final int TYPED_SETTER_PROGRESS = 8;
+    private static final int TYPED_SETTER_MAX = 9;
+    private static final int TYPED_SETTER_INDETERMINATE = 10;
+
+    /**
+     * A method resolved through {@link #getMethod} for one view class, and the typed setter that
+     * can be called in its place.
+     */
+    private static final class ResolvedMethod {
+        final Class<? extends View> viewClass;
+        final Method method;
+        final int typedSetter;
+
+        ResolvedMethod(Class<? extends View> viewClass, Method method, int typedSetter) {
+            this.viewClass = viewClass;
+            this.method = method;
+            this.typedSetter = typedSetter;
+        }
+    }
+
+    /**
+     * Returns the TYPED_SETTER_* constant for a method, or {@link #TYPED_SETTER_NONE} if it
+     * has to be called through reflection.
+     */
+    private static int getTypedSetter(Class<? extends View> klass, String methodName,
+            Class<?> paramType) {
+        if (paramType == CharSequence.class) {
+            switch (methodName) {
+                case "setText":
+                    return TextView.class.isAssignableFrom(klass)
+                            ? TYPED_SETTER_TEXT : TYPED_SETTER_NONE;
+                case "setContentDescription":
+                    return TYPED_SETTER_CONTENT_DESCRIPTION;
+            }
+        } else if (paramType == int.class) {
+            switch (methodName) {
+                case "setTextColor":
+                    return TextView.class.isAssignableFrom(klass)
+                            ? TYPED_SETTER_TEXT_COLOR : TYPED_SETTER_NONE;
+                case "setVisibility":
+                    return TYPED_SETTER_VISIBILITY;
+                case "setBackgroundColor":
+                    return TYPED_SETTER_BACKGROUND_COLOR;
+                case "setImageResource":
+                    return ImageView.class.isAssignableFrom(klass)
+                            ? TYPED_SETTER_IMAGE_RESOURCE : TYPED_SETTER_NONE;
+                case "setProgress":
+                    return ProgressBar.class.isAssignableFrom(klass)
+                            ? TYPED_SETTER_PROGRESS : TYPED_SETTER_NONE;
+                case "setMax":
+                    return ProgressBar.class.isAssignableFrom(klass)
+                            ? TYPED_SETTER_MAX : TYPED_SETTER_NONE;
+            }
+        } else if (paramType == boolean.class) {
+            switch (methodName) {
+                case "setEnabled":
+                    return TYPED_SETTER_ENABLED;
+                case "setIndeterminate":
+                    return ProgressBar.class.isAssignableFrom(klass)
+                            ? TYPED_SETTER_INDETERMINATE : TYPED_SETTER_NONE;
+            }
+        }
+        return TYPED_SETTER_NONE;
+    }
+
+    /**
+     * Calls a typed setter on {@code view}. Text and text color updates are skipped when the
+     * view already shows {@code value}; the other setters do little work when nothing changes.
+     *
+     * @return false if the call was skipped.
+     */
+    private static boolean invokeTypedSetter(View view, int typedSetter, Object value) {
+        switch (typedSetter) {
+            case TYPED_SETTER_TEXT: {
+                final TextView textView = (TextView) view;
+                final CharSequence text = textView.getText();
+                // Only plain strings can be compared, spans would be ignored by equals().
+                if (value instanceof String && text instanceof String && text.equals(value)) {
+                    return false;
+                }
+                textView.setText((CharSequence) value);
+                return true;
+            }
+            case TYPED_SETTER_TEXT_COLOR: {
+                final TextView textView = (TextView) view;
+                final ColorStateList colors = textView.getTextColors();
+                if (colors != null && !colors.isStateful()
+                        && colors.getDefaultColor() == (Integer) value) {
+                    return false;
+                }
+                textView.setTextColor((Integer) value);
+                return true;
+            }
+            case TYPED_SETTER_CONTENT_DESCRIPTION:
+                view.setContentDescription((CharSequence) value);
+                return true;
+            case TYPED_SETTER_VISIBILITY:
+                view.setVisibility((Integer) value);
+                return true;
+            case TYPED_SETTER_ENABLED:
+                view.setEnabled((Boolean) value);
+                return true;
+            case TYPED_SETTER_BACKGROUND_COLOR:
+                view.setBackgroundColor((Integer) value);
+                return true;
+            case TYPED_SETTER_IMAGE_RESOURCE:
+                // Always reloaded, the resource configuration may have changed.
+                ((ImageView) view).setImageResource((Integer) value);
+                return true;
+            case TYPED_SETTER_PROGRESS:
+                ((ProgressBar) view).setProgress((Integer) value);
+                return true;
+            case TYPED_SETTER_MAX:
+                ((ProgressBar) view).setMax((Integer) value);
+                return true;
+            case TYPED_SETTER_INDETERMINATE:
+                ((ProgressBar) view).setIndeterminate((Boolean) value);
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown setter " + typedSetter);
+        }
+    }
+
     /**
      * @return the async implementation of the provided method.
      */
@@ -1247,6 +1409,10 @@ public class RemoteViews implements Parcelable, Filter {
         int type;
         Object value;
 
+        // Method resolved for the class of the view this action was last applied to. Actions may
+        // be initialized on a background thread, so this is only ever replaced as a whole.
+        private ResolvedMethod mResolvedMethod;
+
         ReflectionAction(int viewId, String methodName, int type, Object value) {
             this.viewId = viewId;
             this.methodName = methodName;
@@ -1461,7 +1627,16 @@ public class RemoteViews implements Parcelable, Filter {
             }
 
             try {
-                getMethod(view, this.methodName, param).invoke(view, wrapArg(this.value));
+                final ResolvedMethod resolved = resolveMethod(view, param);
+                if (resolved.typedSetter == TYPED_SETTER_NONE) {
+                    resolved.method.invoke(view, wrapArg(this.value));
+                } else {
+                    final ApplyStats stats = sApplyStatsTls.get();
+                    stats.typedSetters++;
+                    if (!invokeTypedSetter(view, resolved.typedSetter, this.value)) {
+                        stats.unchanged++;
+                    }
+                }
             } catch (ActionException e) {
                 throw e;
             } catch (Exception ex) {
@@ -1480,7 +1655,7 @@ public class RemoteViews implements Parcelable, Filter {
             }
 
             try {
-                Method method = getMethod(view, this.methodName, param);
+                Method method = resolveMethod(view, param).method;
                 Method asyncMethod = getAsyncMethod(method);
 
                 if (asyncMethod != null) {
@@ -1507,6 +1682,17 @@ public class RemoteViews implements Parcelable, Filter {
             return this;
         }
 
+        private ResolvedMethod resolveMethod(View view, Class<?> param) {
+            final Class<? extends View> klass = view.getClass();
+            ResolvedMethod resolved = mResolvedMethod;
+            if (resolved == null || resolved.viewClass != klass) {
+                resolved = new ResolvedMethod(klass, getMethod(view, this.methodName, param),
+                        getTypedSetter(klass, this.methodName, param));
+                mResolvedMethod = resolved;
+            }
+            return resolved;
+        }
+
         public int mergeBehavior() {
             // smoothScrollBy is cumulative, everything else overwites.
             if (methodName.equals("smoothScrollBy")) {
@@ -3405,8 +3591,13 @@ public class RemoteViews implements Parcelable, Filter {
                     if (mActions != null) {
                         OnClickHandler handler = mHandler == null
                                 ? DEFAULT_ON_CLICK_HANDLER : mHandler;
-                        for (Action a : mActions) {
-                            a.apply(viewTree.mRoot, mParent, handler);
+                        final ApplyStats stats = beginApply();
+                        try {
+                            for (Action a : mActions) {
+                                a.apply(viewTree.mRoot, mParent, handler);
+                            }
+                        } finally {
+                            endApply(stats, mActions.length);
                         }
                     }
                 } catch (Exception e) {
@@ -3505,9 +3696,45 @@ public class RemoteViews implements Parcelable, Filter {
         if (mActions != null) {
             handler = handler == null ? DEFAULT_ON_CLICK_HANDLER : handler;
             final int count = mActions.size();
-            for (int i = 0; i < count; i++) {
-                Action a = mActions.get(i);
-                a.apply(v, parent, handler);
+            final ApplyStats stats = beginApply();
+            try {
+                for (int i = 0; i < count; i++) {
+                    Action a = mActions.get(i);
+                    a.apply(v, parent, handler);
+                }
+            } finally {
+                endApply(stats, count);
+            }
+        }
+    }
+
+    private static ApplyStats beginApply() {
+        final ApplyStats stats = sApplyStatsTls.get();
+        if (stats.depth++ == 0) {
+            Trace.traceBegin(Trace.TRACE_TAG_VIEW, "RemoteViews#apply");
+            if (DEBUG_SLOW_APPLY) {
+                stats.startNanos = SystemClock.elapsedRealtimeNanos();
+            }
+            stats.actions = 0;
+            stats.typedSetters = 0;
+            stats.unchanged = 0;
+        }
+        return stats;
+    }
+
+    private static void endApply(ApplyStats stats, int actionCount) {
+        stats.actions += actionCount;
+        if (--stats.depth > 0) {
+            return;
+        }
+        Trace.traceEnd(Trace.TRACE_TAG_VIEW);
+        if (DEBUG_SLOW_APPLY) {
+            final long elapsedMs =
+                    (SystemClock.elapsedRealtimeNanos() - stats.startNanos) / 1000000;
+            if (elapsedMs >= SLOW_APPLY_THRESHOLD_MS) {
+                Log.d(LOG_TAG, "Slow apply: " + elapsedMs + "ms for " + stats.actions
+                        + " actions, " + stats.typedSetters + " typed setters, "
+                        + stats.unchanged + " unchanged");
             }
         }
     }
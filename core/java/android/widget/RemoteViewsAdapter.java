@@ -38,13 +38,19 @@ import android.view.View.MeasureSpec;
 import android.view.ViewGroup;
 import android.widget.RemoteViews.OnClickHandler;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.widget.IRemoteViewsAdapterConnection;
 import com.android.internal.widget.IRemoteViewsFactory;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 
 /**
@@ -59,6 +65,8 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
 
     // The max number of items in the cache
     private static final int sDefaultCacheSize = 40;
+    // The max number of preloaded positions fetched from the factory in a single call.
+    private static final int sMaxBatchSize = 4;
     // The delay (in millis) to wait until attempting to unbind from a service after a request.
     // This ensures that we don't stay continually bound to the service and that it can be destroyed
     // if we need the memory elsewhere in the system.
@@ -82,6 +90,15 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
     private final FixedSizeRemoteViewsCache mCache;
     private int mVisibleWindowLowerBound;
     private int mVisibleWindowUpperBound;
+    // The direction the visible window last moved in: 1 towards higher positions, -1 towards
+    // lower ones, 0 if it hasn't moved yet.
+    private int mScrollDirection;
+
+    // Positions handed out by the cache for loading. Only used on the worker thread.
+    private final int[] mPositionsToLoad = new int[sMaxBatchSize];
+    // Set once a batched fetch fails, for instance because the views were too large to be sent
+    // in a single transaction. Only used on the worker thread.
+    private boolean mBatchFetchDisabled;
 
     // A flag to determine whether we should notify data set changed after we connect
     private boolean mNotifyDataSetChangedAfterOnServiceConnected = false;
@@ -96,9 +113,10 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
     private Handler mMainQueue;
 
     // We cache the FixedSizeRemoteViewsCaches across orientation. These are the related data
-    // structures;
-    private static final HashMap<RemoteViewsCacheKey, FixedSizeRemoteViewsCache>
-            sCachedRemoteViewsCaches = new HashMap<>();
+    // structures; caches are kept in the order they were saved, so that the oldest ones are
+    // dropped first when they hold more than sMaxRetainedMemoryInBytes.
+    private static final LinkedHashMap<RemoteViewsCacheKey, FixedSizeRemoteViewsCache>
+            sCachedRemoteViewsCaches = new LinkedHashMap<>();
     private static final HashMap<RemoteViewsCacheKey, Runnable>
             sRemoteViewsCacheRemoveRunnables = new HashMap<>();
 
@@ -110,6 +128,10 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
     // duration, the cache is dropped.
     private static final int REMOTE_VIEWS_CACHE_DURATION = 5000;
 
+    // The max memory used by the caches kept across orientation, as estimated by
+    // RemoteViews.estimateMemoryUsage(). The most recently saved cache is always kept.
+    private static final int sMaxRetainedMemoryInBytes = 4 * 1024 * 1024;
+
     // Used to indicate to the AdapterView that it can use this Adapter immediately after
     // construction (happens when we have a cached FixedSizeRemoteViewsCache).
     private boolean mDataReady = false;
@@ -508,10 +530,8 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
         }
     }
 
-    /**
-     *
-     */
-    private static class FixedSizeRemoteViewsCache {
+    @VisibleForTesting
+    static class FixedSizeRemoteViewsCache {
         private static final String TAG = "FixedSizeRemoteViewsCache";
 
         // The meta data related to all the RemoteViews, ie. count, is stable, etc.
@@ -543,9 +563,15 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
         private int mLastRequestedIndex;
 
 
-        // The lower and upper bounds of the preloaded range
+        // The lower and upper bounds of the preloaded range, the position it was built around,
+        // and the scroll direction it was built for.
         private int mPreloadLowerBound;
         private int mPreloadUpperBound;
+        private int mPreloadCenter;
+        private int mPreloadDirection;
+
+        // The sum of estimateMemoryUsage() over mIndexRemoteViews.
+        private int mMemoryUsage;
 
         // The bounds of this fixed cache, we will try and fill as many items into the cache up to
         // the maxCount number of items, or the maxSize memory usage.
@@ -562,18 +588,23 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
             mMaxCountSlack = Math.round(sMaxCountSlackPercent * (mMaxCount / 2));
             mPreloadLowerBound = 0;
             mPreloadUpperBound = -1;
+            mPreloadCenter = -1;
+            mPreloadDirection = 0;
             mLastRequestedIndex = -1;
         }
 
         public void insert(int position, RemoteViews v, long itemId, int[] visibleWindow) {
+            // Drop the views being replaced, if any
+            removeRemoteViewsAt(position);
+
             // Trim the cache if we go beyond the count
             if (mIndexRemoteViews.size() >= mMaxCount) {
-                mIndexRemoteViews.remove(getFarthestPositionFrom(position, visibleWindow));
+                removeRemoteViewsAt(getFarthestPositionFrom(position, visibleWindow));
             }
 
             // Trim the cache if we go beyond the available memory size constraints
             int pruneFromPosition = (mLastRequestedIndex > -1) ? mLastRequestedIndex : position;
-            while (getRemoteViewsBitmapMemoryUsage() >= sMaxMemoryLimitInBytes) {
+            while (mMemoryUsage >= sMaxMemoryLimitInBytes) {
                 // Note: This is currently the most naive mechanism for deciding what to prune when
                 // we hit the memory limit.  In the future, we may want to calculate which index to
                 // remove based on both its position as well as it's current memory usage, as well
@@ -587,7 +618,7 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
                     break;
                 }
 
-                mIndexRemoteViews.remove(trimIndex);
+                removeRemoteViewsAt(trimIndex);
             }
 
             // Update the metadata cache
@@ -598,6 +629,29 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
                 mIndexMetaData.put(position, new RemoteViewsIndexMetaData(v, itemId));
             }
             mIndexRemoteViews.put(position, v);
+            mMemoryUsage += v.estimateMemoryUsage();
+        }
+
+        private void removeRemoteViewsAt(int position) {
+            final int index = mIndexRemoteViews.indexOfKey(position);
+            if (index >= 0) {
+                final RemoteViews v = mIndexRemoteViews.valueAt(index);
+                if (v != null) {
+                    mMemoryUsage -= v.estimateMemoryUsage();
+                }
+                mIndexRemoteViews.removeAt(index);
+            }
+        }
+
+        public int getMemoryUsage() {
+            return mMemoryUsage;
+        }
+
+        @VisibleForTesting
+        void setCountForTesting(int count) {
+            synchronized (mMetaData) {
+                mMetaData.count = count;
+            }
         }
 
         public RemoteViewsMetaData getMetaData() {
@@ -621,18 +675,6 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
             }
         }
 
-        private int getRemoteViewsBitmapMemoryUsage() {
-            // Calculate the memory usage of all the RemoteViews bitmaps being cached
-            int mem = 0;
-            for (int i = mIndexRemoteViews.size() - 1; i >= 0; i--) {
-                final RemoteViews v = mIndexRemoteViews.valueAt(i);
-                if (v != null) {
-                    mem += v.estimateMemoryUsage();
-                }
-            }
-            return mem;
-        }
-
         private int getFarthestPositionFrom(int pos, int[] visibleWindow) {
             // Find the index farthest away and remove that
             int maxDist = 0;
@@ -667,11 +709,16 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
                 mIndicesToLoad.put(position, true);
             }
         }
-        public boolean queuePositionsToBePreloadedFromRequestedPosition(int position) {
+        /**
+         * Queues the positions around {@code position} to be preloaded, with three quarters of
+         * them ahead of {@code scrollDirection} when the list is scrolling.
+         */
+        public boolean queuePositionsToBePreloadedFromRequestedPosition(int position,
+                int scrollDirection) {
             // Check if we need to preload any items
-            if (mPreloadLowerBound <= position && position <= mPreloadUpperBound) {
-                int center = (mPreloadUpperBound + mPreloadLowerBound) / 2;
-                if (Math.abs(position - center) < mMaxCountSlack) {
+            if (mPreloadLowerBound <= position && position <= mPreloadUpperBound
+                    && scrollDirection == mPreloadDirection) {
+                if (Math.abs(position - mPreloadCenter) < mMaxCountSlack) {
                     return false;
                 }
             }
@@ -689,9 +736,17 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
                 }
 
                 // Add all the preload indices
-                int halfMaxCount = mMaxCount / 2;
-                mPreloadLowerBound = position - halfMaxCount;
-                mPreloadUpperBound = position + halfMaxCount;
+                final int behind = scrollDirection == 0 ? mMaxCount / 2 : mMaxCount / 4;
+                final int ahead = mMaxCount - behind;
+                if (scrollDirection < 0) {
+                    mPreloadLowerBound = position - ahead;
+                    mPreloadUpperBound = position + behind;
+                } else {
+                    mPreloadLowerBound = position - behind;
+                    mPreloadUpperBound = position + ahead;
+                }
+                mPreloadCenter = position;
+                mPreloadDirection = scrollDirection;
                 int effectiveLowerBound = Math.max(0, mPreloadLowerBound);
                 int effectiveUpperBound = Math.min(mPreloadUpperBound, count - 1);
                 for (int i = effectiveLowerBound; i <= effectiveUpperBound; ++i) {
@@ -703,24 +758,61 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
             }
             return true;
         }
-        /** Returns the next index to load */
-        public int getNextIndexToLoad() {
+        /**
+         * Removes up to {@code maxCount} of the next indices to load from the queue and stores
+         * them in {@code positions}, in ascending order. A requested index is always returned on
+         * its own; preloaded indices are returned in runs of consecutive positions, starting with
+         * the one closest to the preload center in the scroll direction.
+         *
+         * @return the number of indices stored, 0 if there is nothing to load.
+         */
+        public int getNextIndicesToLoad(int[] positions, int maxCount) {
             // We try and prioritize items that have been requested directly, instead
             // of items that are loaded as a result of the caching mechanism
             synchronized (mIndicesToLoad) {
                 // Prioritize requested indices to be loaded first
                 int index = mIndicesToLoad.indexOfValue(true);
-                if (index < 0) {
-                    // Otherwise, preload other indices as necessary
-                    index = mIndicesToLoad.indexOfValue(false);
+                if (index >= 0) {
+                    positions[0] = mIndicesToLoad.keyAt(index);
+                    mIndicesToLoad.removeAt(index);
+                    return 1;
+                }
+
+                // Otherwise, preload other indices as necessary, looking ahead of the scroll
+                // direction first.
+                int bestCost = Integer.MAX_VALUE;
+                for (int i = mIndicesToLoad.size() - 1; i >= 0; i--) {
+                    final int distance = mIndicesToLoad.keyAt(i) - mPreloadCenter;
+                    int cost = Math.abs(distance);
+                    if (distance * mPreloadDirection < 0) {
+                        cost *= 2;
+                    }
+                    if (cost <= bestCost) {
+                        bestCost = cost;
+                        index = i;
+                    }
                 }
                 if (index < 0) {
-                    return -1;
-                } else {
-                    int key = mIndicesToLoad.keyAt(index);
+                    return 0;
+                }
+
+                final int first = mIndicesToLoad.keyAt(index);
+                final int step = mPreloadDirection < 0 ? -1 : 1;
+                mIndicesToLoad.removeAt(index);
+                int count = 1;
+                while (count < maxCount) {
+                    index = mIndicesToLoad.indexOfKey(first + step * count);
+                    if (index < 0) {
+                        break;
+                    }
                     mIndicesToLoad.removeAt(index);
-                    return key;
+                    count++;
                 }
+                final int lowest = step > 0 ? first : first - count + 1;
+                for (int i = 0; i < count; i++) {
+                    positions[i] = lowest + i;
+                }
+                return count;
             }
         }
 
@@ -738,8 +830,11 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
 
             mPreloadLowerBound = 0;
             mPreloadUpperBound = -1;
+            mPreloadCenter = -1;
+            mPreloadDirection = 0;
             mLastRequestedIndex = -1;
             mIndexRemoteViews.clear();
+            mMemoryUsage = 0;
             mIndexMetaData.clear();
             synchronized (mIndicesToLoad) {
                 mIndicesToLoad.clear();
@@ -866,7 +961,10 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
                 numRemoteViewsCached = mCache.mIndexRemoteViews.size();
             }
             if (metaDataCount > 0 && numRemoteViewsCached > 0) {
+                // Re-insert the cache so that it is the last one to be dropped
+                sCachedRemoteViewsCaches.remove(key);
                 sCachedRemoteViewsCaches.put(key, mCache);
+                trimRetainedCachesLocked();
             }
 
             Runnable r = new Runnable() {
@@ -887,19 +985,69 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
         }
     }
 
+    /**
+     * Drops the oldest caches kept across orientation until they fit in
+     * sMaxRetainedMemoryInBytes.
+     */
+    private static void trimRetainedCachesLocked() {
+        final List<RemoteViewsCacheKey> dropped =
+                trimRetainedCaches(sCachedRemoteViewsCaches, sMaxRetainedMemoryInBytes);
+        for (int i = 0; i < dropped.size(); i++) {
+            final Runnable r = sRemoteViewsCacheRemoveRunnables.remove(dropped.get(i));
+            if (r != null) {
+                sCacheRemovalQueue.removeCallbacks(r);
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest of {@code caches} until their memory usage is at most
+     * {@code maxMemoryInBytes}. The newest cache is never dropped.
+     *
+     * @return the keys of the dropped caches.
+     */
+    @VisibleForTesting
+    static <K> List<K> trimRetainedCaches(
+            LinkedHashMap<K, FixedSizeRemoteViewsCache> caches, int maxMemoryInBytes) {
+        int memoryUsage = 0;
+        for (FixedSizeRemoteViewsCache cache : caches.values()) {
+            synchronized (cache) {
+                memoryUsage += cache.getMemoryUsage();
+            }
+        }
+        final ArrayList<K> dropped = new ArrayList<>();
+        final Iterator<Map.Entry<K, FixedSizeRemoteViewsCache>> it =
+                caches.entrySet().iterator();
+        while (memoryUsage > maxMemoryInBytes && caches.size() > 1) {
+            final Map.Entry<K, FixedSizeRemoteViewsCache> entry = it.next();
+            synchronized (entry.getValue()) {
+                memoryUsage -= entry.getValue().getMemoryUsage();
+            }
+            it.remove();
+            dropped.add(entry.getKey());
+        }
+        return dropped;
+    }
+
     private void loadNextIndexInBackground() {
         mWorkerQueue.post(new Runnable() {
             @Override
             public void run() {
                 if (mServiceConnection.isConnected()) {
-                    // Get the next index to load
-                    int position = -1;
+                    // Get the next indices to load
+                    final int[] positions = mPositionsToLoad;
+                    final int count;
                     synchronized (mCache) {
-                        position = mCache.getNextIndexToLoad();
+                        count = mCache.getNextIndicesToLoad(positions,
+                                mBatchFetchDisabled ? 1 : positions.length);
                     }
-                    if (position > -1) {
-                        // Load the item, and notify any existing RemoteViewsFrameLayouts
-                        updateRemoteViews(position, true);
+                    if (count > 0) {
+                        // Load the items, and notify any existing RemoteViewsFrameLayouts
+                        if (count == 1) {
+                            updateRemoteViews(positions[0], true);
+                        } else {
+                            updateRemoteViews(positions[0], count, true);
+                        }
 
                         // Queue up for the next one to load
                         loadNextIndexInBackground();
@@ -993,7 +1141,67 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
                     "returned from RemoteViewsFactory.");
             return;
         }
+        cacheRemoteViews(position, remoteViews, itemId, notifyWhenLoaded);
+    }
 
+    /**
+     * Loads {@code count} consecutive positions starting at {@code position} in a single call to
+     * the factory. If the call fails, batching is turned off and the positions are loaded one by
+     * one.
+     */
+    private void updateRemoteViews(int position, int count, boolean notifyWhenLoaded) {
+        IRemoteViewsFactory factory = mServiceConnection.getRemoteViewsFactory();
+
+        final RemoteViews[] views = new RemoteViews[count];
+        final long[] itemIds = new long[count];
+        if (!getViewsAt(factory, position, views, itemIds)) {
+            mBatchFetchDisabled = true;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (views[i] == null) {
+                Log.e(TAG, "Error in updateRemoteViews(" + (position + i) + "): "
+                        + " null RemoteViews returned from RemoteViewsFactory.");
+                continue;
+            }
+            cacheRemoteViews(position + i, views[i], itemIds[i], notifyWhenLoaded);
+        }
+    }
+
+    /**
+     * Fetches the views and item ids of {@code views.length} consecutive positions starting at
+     * {@code position} in a single call to {@code factory}. If that call fails, for instance
+     * because the views are too large for a single transaction, the positions are fetched one by
+     * one instead, leaving a null view for any position that could not be fetched.
+     *
+     * @return false if the single call failed.
+     */
+    @VisibleForTesting
+    static boolean getViewsAt(IRemoteViewsFactory factory, int position,
+            RemoteViews[] views, long[] itemIds) {
+        try {
+            factory.getViewsAt(position, views, itemIds);
+            return true;
+        } catch (RemoteException | RuntimeException e) {
+            Log.w(TAG, "Error in getViewsAt(" + position + ", " + views.length + "), loading "
+                    + "positions individually: " + e.getMessage());
+        }
+
+        for (int i = 0; i < views.length; i++) {
+            try {
+                views[i] = factory.getViewAt(position + i);
+                itemIds[i] = factory.getItemId(position + i);
+            } catch (RemoteException | RuntimeException e) {
+                Log.e(TAG, "Error in updateRemoteViews(" + (position + i) + "): "
+                        + e.getMessage());
+                views[i] = null;
+            }
+        }
+        return false;
+    }
+
+    private void cacheRemoteViews(final int position, RemoteViews remoteViews, long itemId,
+            boolean notifyWhenLoaded) {
         int layoutId = remoteViews.getLayoutId();
         RemoteViewsMetaData metaData = mCache.getMetaData();
         boolean viewTypeInRange;
@@ -1078,6 +1286,9 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
      * which  wouldn't otherwise be possible.
      */
     public void setVisibleRangeHint(int lowerBound, int upperBound) {
+        if (lowerBound != mVisibleWindowLowerBound) {
+            mScrollDirection = lowerBound > mVisibleWindowLowerBound ? 1 : -1;
+        }
         mVisibleWindowLowerBound = lowerBound;
         mVisibleWindowUpperBound = upperBound;
     }
@@ -1101,7 +1312,8 @@ public class RemoteViewsAdapter extends BaseAdapter implements Handler.Callback
                 requestBindService();
             } else {
                 // Queue up other indices to be preloaded based on this position
-                hasNewItems = mCache.queuePositionsToBePreloadedFromRequestedPosition(position);
+                hasNewItems = mCache.queuePositionsToBePreloadedFromRequestedPosition(position,
+                        mScrollDirection);
             }
 
             final RemoteViewsFrameLayout layout;
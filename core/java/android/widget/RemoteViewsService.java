@@ -201,6 +201,13 @@ public abstract class RemoteViewsService extends Service {
             }
             return id;
         }
+        public synchronized void getViewsAt(int position, RemoteViews[] views, long[] itemIds) {
+            final int count = Math.min(views.length, itemIds.length);
+            for (int i = 0; i < count; i++) {
+                views[i] = getViewAt(position + i);
+                itemIds[i] = getItemId(position + i);
+            }
+        }
         public synchronized boolean hasStableIds() {
             boolean hasStableIds = false;
             try {
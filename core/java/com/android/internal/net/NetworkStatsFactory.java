@@ -20,7 +20,6 @@ import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.TAG_ALL;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
-import static com.android.server.NetworkManagementSocketTagger.kernelToTag;
 
 import android.net.NetworkStats;
 import android.os.StrictMode;
@@ -38,6 +37,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.util.ArrayList;
 import java.util.Objects;
 
 /**
@@ -247,6 +247,8 @@ public class NetworkStatsFactory {
             final NetworkStats stats;
             if (lastStats != null) {
                 stats = lastStats;
+                // The native parser overwrites rows in place; drop any derived state first.
+                stats.clear();
                 stats.setElapsedRealtime(SystemClock.elapsedRealtime());
             } else {
                 stats = new NetworkStats(SystemClock.elapsedRealtime(), -1);
@@ -262,7 +264,8 @@ public class NetworkStatsFactory {
             }
             return stats;
         } else {
-            return javaReadNetworkStatsDetail(mStatsXtUid, limitUid, limitIfaces, limitTag);
+            return javaReadNetworkStatsDetail(mStatsXtUid, limitUid, limitIfaces, limitTag,
+                    lastStats);
         }
     }
 
@@ -274,10 +277,31 @@ public class NetworkStatsFactory {
     public static NetworkStats javaReadNetworkStatsDetail(File detailPath, int limitUid,
             String[] limitIfaces, int limitTag)
             throws IOException {
+        return javaReadNetworkStatsDetail(detailPath, limitUid, limitIfaces, limitTag, null);
+    }
+
+    /**
+     * Parse {@link NetworkStats} with UID-level details, reusing the rows of
+     * <var>recycle</var> when supplied. Interface names are shared between rows
+     * rather than allocated per row, and rows are filtered as soon as the
+     * limiting field has been read.
+     */
+    @VisibleForTesting
+    public static NetworkStats javaReadNetworkStatsDetail(File detailPath, int limitUid,
+            String[] limitIfaces, int limitTag, NetworkStats recycle)
+            throws IOException {
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
 
-        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 24);
+        final NetworkStats stats;
+        if (recycle != null) {
+            stats = recycle;
+            stats.clear();
+            stats.setElapsedRealtime(SystemClock.elapsedRealtime());
+        } else {
+            stats = new NetworkStats(SystemClock.elapsedRealtime(), 24);
+        }
         final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final ArrayList<String> ifaces = new ArrayList<>();
 
         int idx = 1;
         int lastIdx = 1;
@@ -296,21 +320,29 @@ public class NetworkStatsFactory {
                 }
                 lastIdx = idx;
 
-                entry.iface = reader.nextString();
-                entry.tag = kernelToTag(reader.nextString());
+                entry.iface = reader.nextString(ifaces);
+                if (limitIfaces != null && !ArrayUtils.contains(limitIfaces, entry.iface)) {
+                    reader.finishLine();
+                    continue;
+                }
+                // Kernel tag is the upper 32 bits of the socket tag.
+                entry.tag = (int) (reader.nextHexLong() >>> 32);
+                if (limitTag != TAG_ALL && limitTag != entry.tag) {
+                    reader.finishLine();
+                    continue;
+                }
                 entry.uid = reader.nextInt();
+                if (limitUid != UID_ALL && limitUid != entry.uid) {
+                    reader.finishLine();
+                    continue;
+                }
                 entry.set = reader.nextInt();
                 entry.rxBytes = reader.nextLong();
                 entry.rxPackets = reader.nextLong();
                 entry.txBytes = reader.nextLong();
                 entry.txPackets = reader.nextLong();
 
-                if ((limitIfaces == null || ArrayUtils.contains(limitIfaces, entry.iface))
-                        && (limitUid == UID_ALL || limitUid == entry.uid)
-                        && (limitTag == TAG_ALL || limitTag == entry.tag)) {
-                    stats.addValues(entry);
-                }
-
+                stats.addValues(entry);
                 reader.finishLine();
             }
         } catch (NullPointerException|NumberFormatException e) {
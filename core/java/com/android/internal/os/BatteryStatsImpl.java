@@ -51,6 +51,7 @@ import android.telephony.SignalStrength;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.IntArray;
 import android.util.Log;
 import android.util.LogWriter;
 import android.util.LongSparseArray;
@@ -139,7 +140,9 @@ public class BatteryStatsImpl extends BatteryStats {
 
     protected Clocks mClocks;
 
+    // Summary in the format written before it was split into segments; only read.
     private final JournaledFile mFile;
+    private final BatteryStatsSegmentStore mSummaryStore;
     public final AtomicFile mCheckinFile;
     public final AtomicFile mDailyFile;
 
@@ -313,6 +316,31 @@ public class BatteryStatsImpl extends BatteryStats {
     int mNumHistoryTagChars = 0;
     int mHistoryBufferLastPos = -1;
     boolean mHistoryOverflow = false;
+
+    /**
+     * Largest number of full history buffers kept, on disk, once the history no longer fits in
+     * mHistoryBuffer. Older ones are dropped.
+     */
+    static final int MAX_HISTORY_CHUNKS = 32;
+
+    // Summary segment ids of the history buffers rotated out of mHistoryBuffer, oldest first.
+    final IntArray mHistoryChunkIds = new IntArray();
+    int mNextHistoryChunkId = FIRST_HISTORY_CHUNK_SEGMENT_ID;
+    // Chunks that may not have been committed to disk yet, and chunks to delete from it.
+    final SparseArray<byte[]> mUncommittedHistoryChunks = new SparseArray<>();
+    final IntArray mRemovedHistoryChunkIds = new IntArray();
+
+    // Read-only copy of mSummaryStore as of its last commit, from which chunks that are no
+    // longer in memory are read without mWriteLock.
+    volatile BatteryStatsSegmentStore mCommittedSummaryStore;
+    // Chunks to be read ahead of the next iteration, see newHistoryChunkLoaderLocked().
+    HistoryChunkLoader mHistoryChunkLoader;
+
+    // Chunks being iterated over by getNextHistoryLocked() before mHistoryBuffer.
+    int[] mReadHistoryChunkIds;
+    int mReadHistoryChunkIndex;
+    SparseArray<byte[]> mLoadedHistoryChunks;
+    Parcel mReadHistoryChunk;
     int mActiveHistoryStates = 0xffffffff;
     int mActiveHistoryStates2 = 0xffffffff;
     long mLastHistoryElapsedRealtime = 0;
@@ -626,6 +654,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks) {
         init(clocks);
         mFile = null;
+        mSummaryStore = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -3217,6 +3246,16 @@ public class BatteryStatsImpl extends BatteryStats {
             mHistoryLastWritten.setTo(mHistoryLastLastWritten);
         }
 
+        if (mHistoryBuffer.dataSize() >= MAX_HISTORY_BUFFER && rotateHistoryBufferLocked()) {
+            // Start the new buffer with the complete current state, so that it can be read
+            // without the ones before it.
+            cur.currentTime = System.currentTimeMillis();
+            addHistoryBufferLocked(elapsedRealtimeMs, uptimeMs, HistoryItem.CMD_CURRENT_TIME, cur);
+            cur.currentTime = 0;
+            addHistoryBufferLocked(elapsedRealtimeMs, uptimeMs, HistoryItem.CMD_UPDATE, cur);
+            return;
+        }
+
         boolean recordResetDueToOverflow = false;
         final int dataSize = mHistoryBuffer.dataSize();
         if (dataSize >= MAX_MAX_HISTORY_BUFFER*3) {
@@ -3289,6 +3328,33 @@ public class BatteryStatsImpl extends BatteryStats {
         addHistoryBufferLocked(elapsedRealtimeMs, uptimeMs, HistoryItem.CMD_UPDATE, cur);
     }
 
+    /**
+     * Moves the contents of mHistoryBuffer to a new history chunk, which is written to disk
+     * with the next summary, dropping the oldest chunk if there are too many.
+     *
+     * @return false if this instance has no summary file to keep chunks in.
+     */
+    private boolean rotateHistoryBufferLocked() {
+        if (mSummaryStore == null) {
+            return false;
+        }
+        final int id = mNextHistoryChunkId++;
+        mHistoryChunkIds.add(id);
+        mUncommittedHistoryChunks.put(id, mHistoryBuffer.marshall());
+        while (mHistoryChunkIds.size() > MAX_HISTORY_CHUNKS) {
+            final int oldest = mHistoryChunkIds.get(0);
+            mHistoryChunkIds.remove(0);
+            mUncommittedHistoryChunks.remove(oldest);
+            mRemovedHistoryChunkIds.add(oldest);
+        }
+        if (DEBUG_HISTORY) Slog.i(TAG, "Rotated history buffer of " + mHistoryBuffer.dataSize()
+                + " bytes to chunk " + id);
+        mHistoryBuffer.setDataSize(0);
+        mHistoryBuffer.setDataPosition(0);
+        mHistoryBufferLastPos = -1;
+        return true;
+    }
+
     private void addHistoryBufferLocked(long elapsedRealtimeMs, long uptimeMs, byte cmd,
             HistoryItem cur) {
         if (mIteratingHistory) {
@@ -3456,6 +3522,10 @@ public class BatteryStatsImpl extends BatteryStats {
         mHistoryOverflow = false;
         mActiveHistoryStates = 0xffffffff;
         mActiveHistoryStates2 = 0xffffffff;
+
+        mRemovedHistoryChunkIds.addAll(mHistoryChunkIds);
+        mHistoryChunkIds.clear();
+        mUncommittedHistoryChunks.clear();
     }
 
     public void updateTimeBasesLocked(boolean unplugged, boolean screenOff, long uptime,
@@ -3608,9 +3678,11 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteSyncStartLocked(String name, int uid) {
+        noteSyncStartLocked(name, uid, mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteSyncStartLocked(String name, int uid, long elapsedRealtime, long uptime) {
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         getUidStatsLocked(uid).noteStartSyncLocked(name, elapsedRealtime);
         if (!mActiveEvents.updateState(HistoryItem.EVENT_SYNC_START, name, uid, 0)) {
             return;
@@ -3619,9 +3691,11 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteSyncFinishLocked(String name, int uid) {
+        noteSyncFinishLocked(name, uid, mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteSyncFinishLocked(String name, int uid, long elapsedRealtime, long uptime) {
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         getUidStatsLocked(uid).noteStopSyncLocked(name, elapsedRealtime);
         if (!mActiveEvents.updateState(HistoryItem.EVENT_SYNC_FINISH, name, uid, 0)) {
             return;
@@ -3630,9 +3704,11 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteJobStartLocked(String name, int uid) {
+        noteJobStartLocked(name, uid, mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteJobStartLocked(String name, int uid, long elapsedRealtime, long uptime) {
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         getUidStatsLocked(uid).noteStartJobLocked(name, elapsedRealtime);
         if (!mActiveEvents.updateState(HistoryItem.EVENT_JOB_START, name, uid, 0)) {
             return;
@@ -3641,9 +3717,11 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void noteJobFinishLocked(String name, int uid) {
+        noteJobFinishLocked(name, uid, mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteJobFinishLocked(String name, int uid, long elapsedRealtime, long uptime) {
         uid = mapUid(uid);
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
         getUidStatsLocked(uid).noteStopJobLocked(name, elapsedRealtime);
         if (!mActiveEvents.updateState(HistoryItem.EVENT_JOB_FINISH, name, uid, 0)) {
             return;
@@ -8606,8 +8684,10 @@ public class BatteryStatsImpl extends BatteryStats {
         if (systemDir != null) {
             mFile = new JournaledFile(new File(systemDir, "batterystats.bin"),
                     new File(systemDir, "batterystats.bin.tmp"));
+            mSummaryStore = new BatteryStatsSegmentStore(new File(systemDir, "batterystats"));
         } else {
             mFile = null;
+            mSummaryStore = null;
         }
         mCheckinFile = new AtomicFile(new File(systemDir, "batterystats-checkin.bin"));
         mDailyFile = new AtomicFile(new File(systemDir, "batterystats-daily.xml"));
@@ -8697,6 +8777,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks, Parcel p) {
         init(clocks);
         mFile = null;
+        mSummaryStore = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -9124,10 +9205,16 @@ public class BatteryStatsImpl extends BatteryStats {
     public boolean startIteratingHistoryLocked() {
         if (DEBUG_HISTORY) Slog.i(TAG, "ITERATING: buff size=" + mHistoryBuffer.dataSize()
                 + " pos=" + mHistoryBuffer.dataPosition());
-        if (mHistoryBuffer.dataSize() <= 0) {
+        if (mHistoryBuffer.dataSize() <= 0 && mHistoryChunkIds.size() == 0) {
             return false;
         }
         mHistoryBuffer.setDataPosition(0);
+        mReadHistoryChunkIds = mHistoryChunkIds.toArray();
+        mReadHistoryChunkIndex = 0;
+        if (mHistoryChunkLoader != null) {
+            mLoadedHistoryChunks = mHistoryChunkLoader.mChunks;
+            mHistoryChunkLoader = null;
+        }
         mReadOverflow = false;
         mIteratingHistory = true;
         mReadHistoryStrings = new String[mHistoryTagPool.size()];
@@ -9167,18 +9254,20 @@ public class BatteryStatsImpl extends BatteryStats {
 
     @Override
     public boolean getNextHistoryLocked(HistoryItem out) {
-        final int pos = mHistoryBuffer.dataPosition();
+        final Parcel buffer = getHistoryReadBufferLocked();
+        final int pos = buffer.dataPosition();
         if (pos == 0) {
+            // Each chunk, like mHistoryBuffer, starts with a complete item.
             out.clear();
         }
-        boolean end = pos >= mHistoryBuffer.dataSize();
+        boolean end = pos >= buffer.dataSize();
         if (end) {
             return false;
         }
 
         final long lastRealtime = out.time;
         final long lastWalltime = out.currentTime;
-        readHistoryDelta(mHistoryBuffer, out);
+        readHistoryDelta(buffer, out);
         if (out.cmd != HistoryItem.CMD_CURRENT_TIME
                 && out.cmd != HistoryItem.CMD_RESET && lastWalltime != 0) {
             out.currentTime = lastWalltime + (out.time - lastRealtime);
@@ -9191,6 +9280,114 @@ public class BatteryStatsImpl extends BatteryStats {
         mIteratingHistory = false;
         mHistoryBuffer.setDataPosition(mHistoryBuffer.dataSize());
         mReadHistoryStrings = null;
+        mReadHistoryChunkIds = null;
+        mLoadedHistoryChunks = null;
+        if (mReadHistoryChunk != null) {
+            mReadHistoryChunk.recycle();
+            mReadHistoryChunk = null;
+        }
+    }
+
+    /**
+     * Reads the history chunks that are only on disk ahead of the next
+     * {@link #startIteratingHistoryLocked}, so that the stats lock is not held while they are
+     * read. {@link HistoryChunkLoader#load} is called after releasing the lock, which is then
+     * taken again to iterate over the history.
+     */
+    public HistoryChunkLoader newHistoryChunkLoaderLocked() {
+        final int N = mHistoryChunkIds.size();
+        final SparseArray<byte[]> chunks = new SparseArray<>(N);
+        final IntArray committedIds = new IntArray();
+        for (int i = 0; i < N; i++) {
+            final int id = mHistoryChunkIds.get(i);
+            final byte[] data = mUncommittedHistoryChunks.get(id);
+            if (data != null) {
+                // It may be removed from memory once committed, before the iteration.
+                chunks.put(id, data);
+            } else {
+                committedIds.add(id);
+            }
+        }
+        mHistoryChunkLoader = new HistoryChunkLoader(chunks, committedIds.toArray(),
+                mCommittedSummaryStore);
+        return mHistoryChunkLoader;
+    }
+
+    /** History chunks read ahead of an iteration, see {@link #newHistoryChunkLoaderLocked}. */
+    public static final class HistoryChunkLoader {
+        // Chunks still in memory when the loader was created, to which load() adds the others.
+        private final SparseArray<byte[]> mData;
+        private final int[] mCommittedIds;
+        private final BatteryStatsSegmentStore mStore;
+        // Set to mData once every chunk has been read.
+        volatile SparseArray<byte[]> mChunks;
+
+        HistoryChunkLoader(SparseArray<byte[]> data, int[] committedIds,
+                BatteryStatsSegmentStore store) {
+            mData = data;
+            mCommittedIds = committedIds;
+            mStore = store;
+        }
+
+        /** Reads the chunks from disk. Must be called without the stats lock held. */
+        public void load() {
+            for (int id : mCommittedIds) {
+                final byte[] data = mStore != null ? mStore.readSegment(id) : null;
+                if (data != null) {
+                    mData.put(id, data);
+                }
+            }
+            mChunks = mData;
+        }
+    }
+
+    /**
+     * Returns the parcel the next history item is read from: the chunks, one at a time and
+     * oldest first, then mHistoryBuffer.
+     */
+    private Parcel getHistoryReadBufferLocked() {
+        while (true) {
+            if (mReadHistoryChunk != null) {
+                if (mReadHistoryChunk.dataPosition() < mReadHistoryChunk.dataSize()) {
+                    return mReadHistoryChunk;
+                }
+                mReadHistoryChunk.recycle();
+                mReadHistoryChunk = null;
+            }
+            if (mReadHistoryChunkIds == null
+                    || mReadHistoryChunkIndex >= mReadHistoryChunkIds.length) {
+                return mHistoryBuffer;
+            }
+            mReadHistoryChunk = readHistoryChunkLocked(
+                    mReadHistoryChunkIds[mReadHistoryChunkIndex++]);
+        }
+    }
+
+    /**
+     * Loads a history chunk from memory if it may not have been committed yet or was read
+     * ahead by a {@link HistoryChunkLoader}, or else from disk. Returns null if the chunk
+     * can't be read.
+     */
+    private Parcel readHistoryChunkLocked(int id) {
+        byte[] data = mUncommittedHistoryChunks.get(id);
+        if (data == null && mLoadedHistoryChunks != null) {
+            data = mLoadedHistoryChunks.get(id);
+        }
+        if (data == null) {
+            // Only chunks committed since they were read ahead, if that was done, get here.
+            final BatteryStatsSegmentStore store = mCommittedSummaryStore;
+            if (store != null) {
+                data = store.readSegment(id);
+            }
+            if (data == null) {
+                Slog.w(TAG, "Skipping unreadable history chunk " + id);
+                return null;
+            }
+        }
+        final Parcel chunk = Parcel.obtain();
+        chunk.unmarshall(data, 0, data.length);
+        chunk.setDataPosition(0);
+        return chunk;
     }
 
     @Override
@@ -9266,6 +9463,7 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     private void resetAllStatsLocked() {
+        mDirtyUidSummarySegments = ALL_UID_SUMMARY_SEGMENTS;
         final long uptimeMillis = mClocks.uptimeMillis();
         final long elapsedRealtimeMillis = mClocks.elapsedRealtime();
         mStartCount = 0;
@@ -11010,6 +11208,8 @@ public class BatteryStatsImpl extends BatteryStats {
      * Retrieve the statistics object for a particular uid, creating if needed.
      */
     public Uid getUidStatsLocked(int uid) {
+        // Callers get the Uid to update it.
+        mDirtyUidSummarySegments |= 1 << getUidSummarySegment(uid);
         Uid u = mUidStats.get(uid);
         if (u == null) {
             u = new Uid(this, uid);
@@ -11025,6 +11225,7 @@ public class BatteryStatsImpl extends BatteryStats {
         mKernelUidCpuTimeReader.removeUid(uid);
         mKernelUidCpuFreqTimeReader.removeUid(uid);
         mUidStats.remove(uid);
+        mDirtyUidSummarySegments |= 1 << getUidSummarySegment(uid);
     }
 
     /**
@@ -11063,7 +11264,79 @@ public class BatteryStatsImpl extends BatteryStats {
         mShuttingDown = true;
     }
 
-    Parcel mPendingWrite = null;
+    /**
+     * Number of segments the per-uid part of the summary is split into on disk. Each periodic
+     * write only rewrites the segments holding uids that were updated since the last one.
+     */
+    private static final int NUM_UID_SUMMARY_SEGMENTS = 32;
+    private static final int ALL_UID_SUMMARY_SEGMENTS = -1;
+
+    // Id of the segment holding the rest of the summary; uid segment i has id i + 1.
+    private static final int GLOBAL_SUMMARY_SEGMENT_ID = 0;
+
+    // History chunks are stored as segments with increasing ids starting from this one.
+    private static final int FIRST_HISTORY_CHUNK_SEGMENT_ID = 0x10000;
+
+    /**
+     * How often every uid segment is rewritten, which bounds how stale segments of uids that
+     * were updated without going through getUidStatsLocked() can get.
+     */
+    private static final long SUMMARY_CHECKPOINT_INTERVAL = 30 * 60 * 1000;
+
+    // Bit i is set if uid summary segment i changed since it was last written.
+    int mDirtyUidSummarySegments = ALL_UID_SUMMARY_SEGMENTS;
+    long mLastSummaryCheckpointTime;
+    boolean mLegacySummaryDeleted;
+
+    /**
+     * Segments of the summary waiting to be committed to disk; uid segments that did not
+     * change are null.
+     */
+    static final class SummaryWrite {
+        Parcel global;
+        final Parcel[] uidSegments = new Parcel[NUM_UID_SUMMARY_SEGMENTS];
+        // History chunks to write, and null for the ones to delete.
+        SparseArray<byte[]> historyChunks;
+
+        /**
+         * Takes the segments of an older write that this one does not replace. History chunks
+         * are left alone: the newer write already has every chunk not committed since.
+         */
+        void mergeOlder(SummaryWrite older) {
+            for (int i = 0; i < NUM_UID_SUMMARY_SEGMENTS; i++) {
+                if (uidSegments[i] == null) {
+                    uidSegments[i] = older.uidSegments[i];
+                    older.uidSegments[i] = null;
+                }
+            }
+            older.recycle();
+        }
+
+        int getUidSegmentMask() {
+            int mask = 0;
+            for (int i = 0; i < NUM_UID_SUMMARY_SEGMENTS; i++) {
+                if (uidSegments[i] != null) {
+                    mask |= 1 << i;
+                }
+            }
+            return mask;
+        }
+
+        void recycle() {
+            if (global != null) {
+                global.recycle();
+                global = null;
+            }
+            for (int i = 0; i < NUM_UID_SUMMARY_SEGMENTS; i++) {
+                if (uidSegments[i] != null) {
+                    uidSegments[i].recycle();
+                    uidSegments[i] = null;
+                }
+            }
+        }
+    }
+
+    SummaryWrite mPendingWrite = null;
     final ReentrantLock mWriteLock = new ReentrantLock();
 
     public void writeAsyncLocked() {
@@ -11084,14 +11357,34 @@ public class BatteryStatsImpl extends BatteryStats {
             return;
         }
 
-        Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
+        pullPendingStateUpdatesLocked();
+        final long NOW_SYS = mClocks.uptimeMillis() * 1000;
+        final long NOWREAL_SYS = mClocks.elapsedRealtime() * 1000;
+
+        int dirtySegments = mDirtyUidSummarySegments;
+        if (sync || NOWREAL_SYS / 1000 - mLastSummaryCheckpointTime
+                >= SUMMARY_CHECKPOINT_INTERVAL) {
+            dirtySegments = ALL_UID_SUMMARY_SEGMENTS;
+            mLastSummaryCheckpointTime = NOWREAL_SYS / 1000;
+        }
+        mDirtyUidSummarySegments = 0;
+
+        final SummaryWrite write = new SummaryWrite();
+        write.global = Parcel.obtain();
+        writeGlobalSummaryToParcelLocked(write.global, true, NOW_SYS, NOWREAL_SYS);
+        writeUidSummarySegmentsLocked(write.uidSegments, dirtySegments, NOW_SYS, NOWREAL_SYS);
+        // The chunks have to be committed along with the history tag pool they refer to, and
+        // the buffer that no longer contains them.
+        write.historyChunks = mUncommittedHistoryChunks.clone();
+        for (int i = 0; i < mRemovedHistoryChunkIds.size(); i++) {
+            write.historyChunks.put(mRemovedHistoryChunkIds.get(i), null);
+        }
         mLastWriteTime = mClocks.elapsedRealtime();
 
         if (mPendingWrite != null) {
-            mPendingWrite.recycle();
+            write.mergeOlder(mPendingWrite);
         }
-        mPendingWrite = out;
+        mPendingWrite = write;
 
         if (sync) {
             commitPendingDataToDisk();
@@ -11104,8 +11397,43 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    /**
+     * Writes the summary of the uids in each segment of {@code dirtySegments}, as read by
+     * {@link #readUidSummarySegmentLocked}.
+     */
+    private void writeUidSummarySegmentsLocked(Parcel[] segments, int dirtySegments,
+            long NOW_SYS, long NOWREAL_SYS) {
+        final int NU = mUidStats.size();
+        final int[] counts = new int[NUM_UID_SUMMARY_SEGMENTS];
+        for (int iu = 0; iu < NU; iu++) {
+            final int segment = getUidSummarySegment(mUidStats.keyAt(iu));
+            counts[segment]++;
+            if (mUidStats.valueAt(iu).mProcessState != ActivityManager.PROCESS_STATE_NONEXISTENT) {
+                // Its background time bases and process state timers keep running.
+                dirtySegments |= 1 << segment;
+            }
+        }
+        for (int i = 0; i < NUM_UID_SUMMARY_SEGMENTS; i++) {
+            if ((dirtySegments & (1 << i)) != 0) {
+                segments[i] = Parcel.obtain();
+                segments[i].writeInt(counts[i]);
+            }
+        }
+        for (int iu = 0; iu < NU; iu++) {
+            final Parcel out = segments[getUidSummarySegment(mUidStats.keyAt(iu))];
+            if (out != null) {
+                out.writeInt(mUidStats.keyAt(iu));
+                writeUidSummaryToParcelLocked(out, mUidStats.valueAt(iu), NOW_SYS, NOWREAL_SYS);
+            }
+        }
+    }
+
+    private static int getUidSummarySegment(int uid) {
+        return uid & (NUM_UID_SUMMARY_SEGMENTS - 1);
+    }
+
     public void commitPendingDataToDisk() {
-        final Parcel next;
+        final SummaryWrite next;
         synchronized (this) {
             next = mPendingWrite;
             mPendingWrite = null;
@@ -11114,21 +11442,53 @@ public class BatteryStatsImpl extends BatteryStats {
             }
         }
 
+        boolean written = false;
         mWriteLock.lock();
         try {
-            FileOutputStream stream = new FileOutputStream(mFile.chooseForWrite());
-            stream.write(next.marshall());
-            stream.flush();
-            FileUtils.sync(stream);
-            stream.close();
-            mFile.commit();
+            final SparseArray<byte[]> segments = new SparseArray<>();
+            segments.put(GLOBAL_SUMMARY_SEGMENT_ID, next.global.marshall());
+            for (int i = 0; i < NUM_UID_SUMMARY_SEGMENTS; i++) {
+                if (next.uidSegments[i] != null) {
+                    segments.put(i + 1, next.uidSegments[i].marshall());
+                }
+            }
+            for (int i = 0; i < next.historyChunks.size(); i++) {
+                segments.put(next.historyChunks.keyAt(i), next.historyChunks.valueAt(i));
+            }
+            mSummaryStore.write(VERSION, segments);
+            mCommittedSummaryStore = mSummaryStore.snapshot();
+            if (!mLegacySummaryDeleted) {
+                mFile.chooseForRead().delete();
+                mLegacySummaryDeleted = true;
+            }
+            written = true;
         } catch (IOException e) {
             Slog.w("BatteryStats", "Error writing battery statistics", e);
-            mFile.rollback();
         } finally {
-            next.recycle();
             mWriteLock.unlock();
         }
+
+        // Not done while holding mWriteLock, which writeSyncLocked() takes with this held.
+        synchronized (this) {
+            if (written) {
+                for (int i = 0; i < next.historyChunks.size(); i++) {
+                    final int id = next.historyChunks.keyAt(i);
+                    final byte[] data = next.historyChunks.valueAt(i);
+                    if (data == null) {
+                        final int index = mRemovedHistoryChunkIds.indexOf(id);
+                        if (index >= 0) {
+                            mRemovedHistoryChunkIds.remove(index);
+                        }
+                    } else if (mUncommittedHistoryChunks.get(id) == data) {
+                        mUncommittedHistoryChunks.remove(id);
+                    }
+                }
+            } else {
+                // These segments still have to reach the disk.
+                mDirtyUidSummarySegments |= next.getUidSegmentMask();
+            }
+        }
+        next.recycle();
     }
 
     public void readLocked() {
@@ -11144,19 +11504,23 @@ public class BatteryStatsImpl extends BatteryStats {
         mUidStats.clear();
 
         try {
-            File file = mFile.chooseForRead();
-            if (!file.exists()) {
-                return;
-            }
-            FileInputStream stream = new FileInputStream(file);
+            if (mSummaryStore.exists()) {
+                readSummarySegmentsLocked();
+            } else {
+                File file = mFile.chooseForRead();
+                if (!file.exists()) {
+                    return;
+                }
+                FileInputStream stream = new FileInputStream(file);
 
-            byte[] raw = BatteryStatsHelper.readFully(stream);
-            Parcel in = Parcel.obtain();
-            in.unmarshall(raw, 0, raw.length);
-            in.setDataPosition(0);
-            stream.close();
+                byte[] raw = BatteryStatsHelper.readFully(stream);
+                Parcel in = Parcel.obtain();
+                in.unmarshall(raw, 0, raw.length);
+                in.setDataPosition(0);
+                stream.close();
 
-            readSummaryFromParcel(in);
+                readSummaryFromParcel(in);
+            }
         } catch(Exception e) {
             Slog.e("BatteryStats", "Error reading battery statistics", e);
             resetAllStatsLocked();
@@ -11178,6 +11542,70 @@ public class BatteryStatsImpl extends BatteryStats {
         recordDailyStatsIfNeededLocked(false);
     }
 
+    /**
+     * Reads the summary segments written by {@link #commitPendingDataToDisk}. A uid segment
+     * that is missing or corrupt only loses the uids it held, and is rewritten by the next
+     * write.
+     */
+    private void readSummarySegmentsLocked() throws IOException {
+        final int[] ids = mSummaryStore.open(VERSION);
+        mCommittedSummaryStore = mSummaryStore.snapshot();
+        if (ids == null) {
+            Slog.w("BatteryStats", "readSummarySegments: unknown version; erasing old stats");
+            return;
+        }
+        final byte[] global = mSummaryStore.readSegment(GLOBAL_SUMMARY_SEGMENT_ID);
+        if (global == null) {
+            throw new ParcelFormatException("Missing or corrupt global summary segment");
+        }
+        Parcel in = Parcel.obtain();
+        try {
+            in.unmarshall(global, 0, global.length);
+            in.setDataPosition(0);
+            if (!readGlobalSummaryFromParcelLocked(in)) {
+                return;
+            }
+        } finally {
+            in.recycle();
+        }
+        for (int id : ids) {
+            if (id >= FIRST_HISTORY_CHUNK_SEGMENT_ID) {
+                // Older history, only read when iterating over it; its tags are in the history
+                // tag pool that was just read.
+                mHistoryChunkIds.add(id);
+                mNextHistoryChunkId = id + 1;
+            }
+        }
+
+        mDirtyUidSummarySegments = 0;
+        for (int i = 0; i < NUM_UID_SUMMARY_SEGMENTS; i++) {
+            if (Arrays.binarySearch(ids, i + 1) < 0) {
+                continue;
+            }
+            final byte[] data = mSummaryStore.readSegment(i + 1);
+            in = Parcel.obtain();
+            try {
+                if (data == null) {
+                    throw new ParcelFormatException("Missing or corrupt segment");
+                }
+                in.unmarshall(data, 0, data.length);
+                in.setDataPosition(0);
+                readUidSummarySegmentLocked(in);
+            } catch (RuntimeException e) {
+                Slog.w("BatteryStats", "Dropping uid summary segment " + i, e);
+                for (int iu = mUidStats.size() - 1; iu >= 0; iu--) {
+                    if (getUidSummarySegment(mUidStats.keyAt(iu)) == i) {
+                        mUidStats.removeAt(iu);
+                    }
+                }
+                mDirtyUidSummarySegments |= 1 << i;
+            } finally {
+                in.recycle();
+            }
+        }
+        mLastSummaryCheckpointTime = mClocks.elapsedRealtime();
+    }
+
     public int describeContents() {
         return 0;
     }
@@ -11314,11 +11742,22 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void readSummaryFromParcel(Parcel in) throws ParcelFormatException {
+        if (readGlobalSummaryFromParcelLocked(in)) {
+            readUidSummarySegmentLocked(in);
+        }
+    }
+
+    /**
+     * Reads the part of the summary written by {@link #writeGlobalSummaryToParcelLocked}.
+     *
+     * @return false if the summary has an unknown version and nothing was read.
+     */
+    private boolean readGlobalSummaryFromParcelLocked(Parcel in) throws ParcelFormatException {
         final int version = in.readInt();
         if (version != VERSION) {
             Slog.w("BatteryStats", "readFromParcel: version got " + version
                 + ", expected " + VERSION + "; erasing old stats");
-            return;
+            return false;
         }
 
         readHistory(in, true);
@@ -11461,7 +11900,13 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         mCpuFreqs = in.createLongArray();
+        return true;
+    }
 
+    /**
+     * Reads a count of uids followed by the summary of each of them.
+     */
+    private void readUidSummarySegmentLocked(Parcel in) throws ParcelFormatException {
         final int NU = in.readInt();
         if (NU > 10000) {
             throw new ParcelFormatException("File corrupt: too many uids " + NU);
@@ -11470,232 +11915,235 @@ public class BatteryStatsImpl extends BatteryStats {
             int uid = in.readInt();
             Uid u = new Uid(this, uid);
             mUidStats.put(uid, u);
+            readUidSummaryFromParcelLocked(in, u);
+        }
+    }
 
-            u.mOnBatteryBackgroundTimeBase.readSummaryFromParcel(in);
-            u.mOnBatteryScreenOffBackgroundTimeBase.readSummaryFromParcel(in);
+    private void readUidSummaryFromParcelLocked(Parcel in, Uid u) throws ParcelFormatException {
+        u.mOnBatteryBackgroundTimeBase.readSummaryFromParcel(in);
+        u.mOnBatteryScreenOffBackgroundTimeBase.readSummaryFromParcel(in);
 
-            u.mWifiRunning = false;
-            if (in.readInt() != 0) {
-                u.mWifiRunningTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mFullWifiLockOut = false;
-            if (in.readInt() != 0) {
-                u.mFullWifiLockTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mWifiScanStarted = false;
-            if (in.readInt() != 0) {
-                u.mWifiScanTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mWifiBatchedScanBinStarted = Uid.NO_BATCHED_SCAN_STARTED;
-            for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
-                if (in.readInt() != 0) {
-                    u.makeWifiBatchedScanBin(i, null);
-                    u.mWifiBatchedScanTimer[i].readSummaryFromParcelLocked(in);
-                }
-            }
-            u.mWifiMulticastEnabled = false;
-            if (in.readInt() != 0) {
-                u.mWifiMulticastTimer.readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createAudioTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createVideoTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createFlashlightTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createCameraTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createForegroundActivityTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createAggregatedPartialWakelockTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createBluetoothScanTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createBluetoothUnoptimizedScanTimerLocked().readSummaryFromParcelLocked(in);
-            }
+        u.mWifiRunning = false;
+        if (in.readInt() != 0) {
+            u.mWifiRunningTimer.readSummaryFromParcelLocked(in);
+        }
+        u.mFullWifiLockOut = false;
+        if (in.readInt() != 0) {
+            u.mFullWifiLockTimer.readSummaryFromParcelLocked(in);
+        }
+        u.mWifiScanStarted = false;
+        if (in.readInt() != 0) {
+            u.mWifiScanTimer.readSummaryFromParcelLocked(in);
+        }
+        u.mWifiBatchedScanBinStarted = Uid.NO_BATCHED_SCAN_STARTED;
+        for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
             if (in.readInt() != 0) {
-                u.createBluetoothScanResultCounterLocked().readSummaryFromParcelLocked(in);
+                u.makeWifiBatchedScanBin(i, null);
+                u.mWifiBatchedScanTimer[i].readSummaryFromParcelLocked(in);
             }
+        }
+        u.mWifiMulticastEnabled = false;
+        if (in.readInt() != 0) {
+            u.mWifiMulticastTimer.readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createAudioTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createVideoTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createFlashlightTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createCameraTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createForegroundActivityTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createAggregatedPartialWakelockTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothScanTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothUnoptimizedScanTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothScanResultCounterLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothScanResultBgCounterLocked().readSummaryFromParcelLocked(in);
+        }
+        u.mProcessState = ActivityManager.PROCESS_STATE_NONEXISTENT;
+        for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
             if (in.readInt() != 0) {
-                u.createBluetoothScanResultBgCounterLocked().readSummaryFromParcelLocked(in);
+                u.makeProcessState(i, null);
+                u.mProcessStateTimer[i].readSummaryFromParcelLocked(in);
             }
-            u.mProcessState = ActivityManager.PROCESS_STATE_NONEXISTENT;
-            for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
-                if (in.readInt() != 0) {
-                    u.makeProcessState(i, null);
-                    u.mProcessStateTimer[i].readSummaryFromParcelLocked(in);
-                }
+        }
+        if (in.readInt() != 0) {
+            u.createVibratorOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+
+        if (in.readInt() != 0) {
+            if (u.mUserActivityCounters == null) {
+                u.initUserActivityLocked();
             }
-            if (in.readInt() != 0) {
-                u.createVibratorOnTimerLocked().readSummaryFromParcelLocked(in);
+            for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
+                u.mUserActivityCounters[i].readSummaryFromParcelLocked(in);
             }
+        }
 
-            if (in.readInt() != 0) {
-                if (u.mUserActivityCounters == null) {
-                    u.initUserActivityLocked();
-                }
-                for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
-                    u.mUserActivityCounters[i].readSummaryFromParcelLocked(in);
-                }
+        if (in.readInt() != 0) {
+            if (u.mNetworkByteActivityCounters == null) {
+                u.initNetworkActivityLocked();
             }
-
-            if (in.readInt() != 0) {
-                if (u.mNetworkByteActivityCounters == null) {
-                    u.initNetworkActivityLocked();
-                }
-                for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].readSummaryFromParcelLocked(in);
-                    u.mNetworkPacketActivityCounters[i].readSummaryFromParcelLocked(in);
-                }
-                u.mMobileRadioActiveTime.readSummaryFromParcelLocked(in);
-                u.mMobileRadioActiveCount.readSummaryFromParcelLocked(in);
+            for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
+                u.mNetworkByteActivityCounters[i].readSummaryFromParcelLocked(in);
+                u.mNetworkPacketActivityCounters[i].readSummaryFromParcelLocked(in);
             }
+            u.mMobileRadioActiveTime.readSummaryFromParcelLocked(in);
+            u.mMobileRadioActiveCount.readSummaryFromParcelLocked(in);
+        }
 
-            u.mUserCpuTime.readSummaryFromParcelLocked(in);
-            u.mSystemCpuTime.readSummaryFromParcelLocked(in);
+        u.mUserCpuTime.readSummaryFromParcelLocked(in);
+        u.mSystemCpuTime.readSummaryFromParcelLocked(in);
 
-            if (in.readInt() != 0) {
-                final int numClusters = in.readInt();
-                if (mPowerProfile != null && mPowerProfile.getNumCpuClusters() != numClusters) {
-                    throw new ParcelFormatException("Incompatible cpu cluster arrangement");
-                }
+        if (in.readInt() != 0) {
+            final int numClusters = in.readInt();
+            if (mPowerProfile != null && mPowerProfile.getNumCpuClusters() != numClusters) {
+                throw new ParcelFormatException("Incompatible cpu cluster arrangement");
+            }
 
-                u.mCpuClusterSpeed = new LongSamplingCounter[numClusters][];
-                for (int cluster = 0; cluster < numClusters; cluster++) {
-                    if (in.readInt() != 0) {
-                        final int NSB = in.readInt();
-                        if (mPowerProfile != null &&
-                                mPowerProfile.getNumSpeedStepsInCpuCluster(cluster) != NSB) {
-                            throw new ParcelFormatException("File corrupt: too many speed bins " +
-                                    NSB);
-                        }
+            u.mCpuClusterSpeed = new LongSamplingCounter[numClusters][];
+            for (int cluster = 0; cluster < numClusters; cluster++) {
+                if (in.readInt() != 0) {
+                    final int NSB = in.readInt();
+                    if (mPowerProfile != null &&
+                            mPowerProfile.getNumSpeedStepsInCpuCluster(cluster) != NSB) {
+                        throw new ParcelFormatException("File corrupt: too many speed bins " +
+                                NSB);
+                    }
 
-                        u.mCpuClusterSpeed[cluster] = new LongSamplingCounter[NSB];
-                        for (int speed = 0; speed < NSB; speed++) {
-                            if (in.readInt() != 0) {
-                                u.mCpuClusterSpeed[cluster][speed] = new LongSamplingCounter(
-                                        mOnBatteryTimeBase);
-                                u.mCpuClusterSpeed[cluster][speed].readSummaryFromParcelLocked(in);
-                            }
+                    u.mCpuClusterSpeed[cluster] = new LongSamplingCounter[NSB];
+                    for (int speed = 0; speed < NSB; speed++) {
+                        if (in.readInt() != 0) {
+                            u.mCpuClusterSpeed[cluster][speed] = new LongSamplingCounter(
+                                    mOnBatteryTimeBase);
+                            u.mCpuClusterSpeed[cluster][speed].readSummaryFromParcelLocked(in);
                         }
-                    } else {
-                        u.mCpuClusterSpeed[cluster] = null;
                     }
+                } else {
+                    u.mCpuClusterSpeed[cluster] = null;
                 }
-            } else {
-                u.mCpuClusterSpeed = null;
             }
+        } else {
+            u.mCpuClusterSpeed = null;
+        }
 
-            u.mCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
-                    in, mOnBatteryTimeBase);
-            u.mScreenOffCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
-                    in, mOnBatteryScreenOffTimeBase);
+        u.mCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
+                in, mOnBatteryTimeBase);
+        u.mScreenOffCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
+                in, mOnBatteryScreenOffTimeBase);
 
-            if (in.readInt() != 0) {
-                u.mMobileRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
-                u.mMobileRadioApWakeupCount.readSummaryFromParcelLocked(in);
-            } else {
-                u.mMobileRadioApWakeupCount = null;
-            }
+        if (in.readInt() != 0) {
+            u.mMobileRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
+            u.mMobileRadioApWakeupCount.readSummaryFromParcelLocked(in);
+        } else {
+            u.mMobileRadioApWakeupCount = null;
+        }
 
-            if (in.readInt() != 0) {
-                u.mWifiRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
-                u.mWifiRadioApWakeupCount.readSummaryFromParcelLocked(in);
-            } else {
-                u.mWifiRadioApWakeupCount = null;
-            }
+        if (in.readInt() != 0) {
+            u.mWifiRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
+            u.mWifiRadioApWakeupCount.readSummaryFromParcelLocked(in);
+        } else {
+            u.mWifiRadioApWakeupCount = null;
+        }
 
-            int NW = in.readInt();
-            if (NW > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many wake locks " + NW);
-            }
-            for (int iw = 0; iw < NW; iw++) {
-                String wlName = in.readString();
-                u.readWakeSummaryFromParcelLocked(wlName, in);
-            }
+        int NW = in.readInt();
+        if (NW > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many wake locks " + NW);
+        }
+        for (int iw = 0; iw < NW; iw++) {
+            String wlName = in.readString();
+            u.readWakeSummaryFromParcelLocked(wlName, in);
+        }
 
-            int NS = in.readInt();
-            if (NS > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many syncs " + NS);
-            }
-            for (int is = 0; is < NS; is++) {
-                String name = in.readString();
-                u.readSyncSummaryFromParcelLocked(name, in);
-            }
+        int NS = in.readInt();
+        if (NS > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many syncs " + NS);
+        }
+        for (int is = 0; is < NS; is++) {
+            String name = in.readString();
+            u.readSyncSummaryFromParcelLocked(name, in);
+        }
 
-            int NJ = in.readInt();
-            if (NJ > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many job timers " + NJ);
-            }
-            for (int ij = 0; ij < NJ; ij++) {
-                String name = in.readString();
-                u.readJobSummaryFromParcelLocked(name, in);
-            }
+        int NJ = in.readInt();
+        if (NJ > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many job timers " + NJ);
+        }
+        for (int ij = 0; ij < NJ; ij++) {
+            String name = in.readString();
+            u.readJobSummaryFromParcelLocked(name, in);
+        }
 
-            int NP = in.readInt();
-            if (NP > 1000) {
-                throw new ParcelFormatException("File corrupt: too many sensors " + NP);
-            }
-            for (int is = 0; is < NP; is++) {
-                int seNumber = in.readInt();
-                if (in.readInt() != 0) {
-                    u.getSensorTimerLocked(seNumber, true).readSummaryFromParcelLocked(in);
-                }
+        int NP = in.readInt();
+        if (NP > 1000) {
+            throw new ParcelFormatException("File corrupt: too many sensors " + NP);
+        }
+        for (int is = 0; is < NP; is++) {
+            int seNumber = in.readInt();
+            if (in.readInt() != 0) {
+                u.getSensorTimerLocked(seNumber, true).readSummaryFromParcelLocked(in);
             }
+        }
 
-            NP = in.readInt();
-            if (NP > 1000) {
-                throw new ParcelFormatException("File corrupt: too many processes " + NP);
+        NP = in.readInt();
+        if (NP > 1000) {
+            throw new ParcelFormatException("File corrupt: too many processes " + NP);
+        }
+        for (int ip = 0; ip < NP; ip++) {
+            String procName = in.readString();
+            Uid.Proc p = u.getProcessStatsLocked(procName);
+            p.mUserTime = p.mLoadedUserTime = in.readLong();
+            p.mSystemTime = p.mLoadedSystemTime = in.readLong();
+            p.mForegroundTime = p.mLoadedForegroundTime = in.readLong();
+            p.mStarts = p.mLoadedStarts = in.readInt();
+            p.mNumCrashes = p.mLoadedNumCrashes = in.readInt();
+            p.mNumAnrs = p.mLoadedNumAnrs = in.readInt();
+            p.readExcessivePowerFromParcelLocked(in);
+        }
+
+        NP = in.readInt();
+        if (NP > 10000) {
+            throw new ParcelFormatException("File corrupt: too many packages " + NP);
+        }
+        for (int ip = 0; ip < NP; ip++) {
+            String pkgName = in.readString();
+            Uid.Pkg p = u.getPackageStatsLocked(pkgName);
+            final int NWA = in.readInt();
+            if (NWA > 1000) {
+                throw new ParcelFormatException("File corrupt: too many wakeup alarms " + NWA);
             }
-            for (int ip = 0; ip < NP; ip++) {
-                String procName = in.readString();
-                Uid.Proc p = u.getProcessStatsLocked(procName);
-                p.mUserTime = p.mLoadedUserTime = in.readLong();
-                p.mSystemTime = p.mLoadedSystemTime = in.readLong();
-                p.mForegroundTime = p.mLoadedForegroundTime = in.readLong();
-                p.mStarts = p.mLoadedStarts = in.readInt();
-                p.mNumCrashes = p.mLoadedNumCrashes = in.readInt();
-                p.mNumAnrs = p.mLoadedNumAnrs = in.readInt();
-                p.readExcessivePowerFromParcelLocked(in);
+            p.mWakeupAlarms.clear();
+            for (int iwa=0; iwa<NWA; iwa++) {
+                String tag = in.readString();
+                Counter c = new Counter(mOnBatteryTimeBase);
+                c.readSummaryFromParcelLocked(in);
+                p.mWakeupAlarms.put(tag, c);
             }
-
-            NP = in.readInt();
-            if (NP > 10000) {
-                throw new ParcelFormatException("File corrupt: too many packages " + NP);
+            NS = in.readInt();
+            if (NS > 1000) {
+                throw new ParcelFormatException("File corrupt: too many services " + NS);
             }
-            for (int ip = 0; ip < NP; ip++) {
-                String pkgName = in.readString();
-                Uid.Pkg p = u.getPackageStatsLocked(pkgName);
-                final int NWA = in.readInt();
-                if (NWA > 1000) {
-                    throw new ParcelFormatException("File corrupt: too many wakeup alarms " + NWA);
-                }
-                p.mWakeupAlarms.clear();
-                for (int iwa=0; iwa<NWA; iwa++) {
-                    String tag = in.readString();
-                    Counter c = new Counter(mOnBatteryTimeBase);
-                    c.readSummaryFromParcelLocked(in);
-                    p.mWakeupAlarms.put(tag, c);
-                }
-                NS = in.readInt();
-                if (NS > 1000) {
-                    throw new ParcelFormatException("File corrupt: too many services " + NS);
-                }
-                for (int is = 0; is < NS; is++) {
-                    String servName = in.readString();
-                    Uid.Pkg.Serv s = u.getServiceStatsLocked(pkgName, servName);
-                    s.mStartTime = s.mLoadedStartTime = in.readLong();
-                    s.mStarts = s.mLoadedStarts = in.readInt();
-                    s.mLaunches = s.mLoadedLaunches = in.readInt();
-                }
+            for (int is = 0; is < NS; is++) {
+                String servName = in.readString();
+                Uid.Pkg.Serv s = u.getServiceStatsLocked(pkgName, servName);
+                s.mStartTime = s.mLoadedStartTime = in.readLong();
+                s.mStarts = s.mLoadedStarts = in.readInt();
+                s.mLaunches = s.mLoadedLaunches = in.readInt();
             }
         }
     }
@@ -11709,13 +12157,28 @@ public class BatteryStatsImpl extends BatteryStats {
     public void writeSummaryToParcel(Parcel out, boolean inclHistory) {
         pullPendingStateUpdatesLocked();
 
+        final long NOW_SYS = mClocks.uptimeMillis() * 1000;
+        final long NOWREAL_SYS = mClocks.elapsedRealtime() * 1000;
+
+        writeGlobalSummaryToParcelLocked(out, inclHistory, NOW_SYS, NOWREAL_SYS);
+
+        final int NU = mUidStats.size();
+        out.writeInt(NU);
+        for (int iu = 0; iu < NU; iu++) {
+            out.writeInt(mUidStats.keyAt(iu));
+            writeUidSummaryToParcelLocked(out, mUidStats.valueAt(iu), NOW_SYS, NOWREAL_SYS);
+        }
+    }
+
+    /**
+     * Writes the part of the summary that is not specific to a uid.
+     */
+    private void writeGlobalSummaryToParcelLocked(Parcel out, boolean inclHistory, long NOW_SYS,
+            long NOWREAL_SYS) {
         // Pull the clock time.  This may update the time and make a new history entry
         // if we had originally pulled a time before the RTC was set.
         long startClockTime = getStartClockTime();
 
-        final long NOW_SYS = mClocks.uptimeMillis() * 1000;
-        final long NOWREAL_SYS = mClocks.elapsedRealtime() * 1000;
-
         out.writeInt(VERSION);
 
         writeHistory(out, inclHistory, true);
@@ -11850,286 +12313,282 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         out.writeLongArray(mCpuFreqs);
+    }
 
-        final int NU = mUidStats.size();
-        out.writeInt(NU);
-        for (int iu = 0; iu < NU; iu++) {
-            out.writeInt(mUidStats.keyAt(iu));
-            Uid u = mUidStats.valueAt(iu);
-
-            u.mOnBatteryBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
-            u.mOnBatteryScreenOffBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
+    private void writeUidSummaryToParcelLocked(Parcel out, Uid u, long NOW_SYS,
+            long NOWREAL_SYS) {
+        u.mOnBatteryBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
+        u.mOnBatteryScreenOffBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
 
-            if (u.mWifiRunningTimer != null) {
+        if (u.mWifiRunningTimer != null) {
+            out.writeInt(1);
+            u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFullWifiLockTimer != null) {
+            out.writeInt(1);
+            u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mWifiScanTimer != null) {
+            out.writeInt(1);
+            u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
+            if (u.mWifiBatchedScanTimer[i] != null) {
                 out.writeInt(1);
-                u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mFullWifiLockTimer != null) {
+        }
+        if (u.mWifiMulticastTimer != null) {
+            out.writeInt(1);
+            u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mAudioTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mVideoTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFlashlightTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mCameraTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mForegroundActivityTimer != null) {
+            out.writeInt(1);
+            u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mAggregatedPartialWakelockTimer != null) {
+            out.writeInt(1);
+            u.mAggregatedPartialWakelockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanTimer != null) {
+            out.writeInt(1);
+            u.mBluetoothScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothUnoptimizedScanTimer != null) {
+            out.writeInt(1);
+            u.mBluetoothUnoptimizedScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanResultCounter != null) {
+            out.writeInt(1);
+            u.mBluetoothScanResultCounter.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanResultBgCounter != null) {
+            out.writeInt(1);
+            u.mBluetoothScanResultBgCounter.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
+            if (u.mProcessStateTimer[i] != null) {
                 out.writeInt(1);
-                u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mWifiScanTimer != null) {
-                out.writeInt(1);
-                u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        }
+        if (u.mVibratorOnTimer != null) {
+            out.writeInt(1);
+            u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mUserActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
+                u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
+            }
+        }
+
+        if (u.mNetworkByteActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
+                u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
+                u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
             }
-            for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
-                if (u.mWifiBatchedScanTimer[i] != null) {
+            u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
+            u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
+        }
+
+        u.mUserCpuTime.writeSummaryFromParcelLocked(out);
+        u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
+
+        if (u.mCpuClusterSpeed != null) {
+            out.writeInt(1);
+            out.writeInt(u.mCpuClusterSpeed.length);
+            for (LongSamplingCounter[] cpuSpeeds : u.mCpuClusterSpeed) {
+                if (cpuSpeeds != null) {
                     out.writeInt(1);
-                    u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                    out.writeInt(cpuSpeeds.length);
+                    for (LongSamplingCounter c : cpuSpeeds) {
+                        if (c != null) {
+                            out.writeInt(1);
+                            c.writeSummaryFromParcelLocked(out);
+                        } else {
+                            out.writeInt(0);
+                        }
+                    }
                 } else {
                     out.writeInt(0);
                 }
             }
-            if (u.mWifiMulticastTimer != null) {
-                out.writeInt(1);
-                u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mAudioTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mVideoTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mFlashlightTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mCameraTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mForegroundActivityTimer != null) {
-                out.writeInt(1);
-                u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mAggregatedPartialWakelockTimer != null) {
-                out.writeInt(1);
-                u.mAggregatedPartialWakelockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mBluetoothScanTimer != null) {
-                out.writeInt(1);
-                u.mBluetoothScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mBluetoothUnoptimizedScanTimer != null) {
+        } else {
+            out.writeInt(0);
+        }
+
+        LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mCpuFreqTimeMs);
+        LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mScreenOffCpuFreqTimeMs);
+
+        if (u.mMobileRadioApWakeupCount != null) {
+            out.writeInt(1);
+            u.mMobileRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mWifiRadioApWakeupCount != null) {
+            out.writeInt(1);
+            u.mWifiRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+
+        final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
+        int NW = wakeStats.size();
+        out.writeInt(NW);
+        for (int iw=0; iw<NW; iw++) {
+            out.writeString(wakeStats.keyAt(iw));
+            Uid.Wakelock wl = wakeStats.valueAt(iw);
+            if (wl.mTimerFull != null) {
                 out.writeInt(1);
-                u.mBluetoothUnoptimizedScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mBluetoothScanResultCounter != null) {
+            if (wl.mTimerPartial != null) {
                 out.writeInt(1);
-                u.mBluetoothScanResultCounter.writeSummaryFromParcelLocked(out);
+                wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mBluetoothScanResultBgCounter != null) {
+            if (wl.mTimerWindow != null) {
                 out.writeInt(1);
-                u.mBluetoothScanResultBgCounter.writeSummaryFromParcelLocked(out);
+                wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
-                if (u.mProcessStateTimer[i] != null) {
-                    out.writeInt(1);
-                    u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-            if (u.mVibratorOnTimer != null) {
+            if (wl.mTimerDraw != null) {
                 out.writeInt(1);
-                u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-
-            if (u.mUserActivityCounters == null) {
-                out.writeInt(0);
-            } else {
-                out.writeInt(1);
-                for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
-                    u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-            }
-
-            if (u.mNetworkByteActivityCounters == null) {
-                out.writeInt(0);
-            } else {
-                out.writeInt(1);
-                for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
-                    u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-                u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
-                u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
-            }
-
-            u.mUserCpuTime.writeSummaryFromParcelLocked(out);
-            u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
-
-            if (u.mCpuClusterSpeed != null) {
-                out.writeInt(1);
-                out.writeInt(u.mCpuClusterSpeed.length);
-                for (LongSamplingCounter[] cpuSpeeds : u.mCpuClusterSpeed) {
-                    if (cpuSpeeds != null) {
-                        out.writeInt(1);
-                        out.writeInt(cpuSpeeds.length);
-                        for (LongSamplingCounter c : cpuSpeeds) {
-                            if (c != null) {
-                                out.writeInt(1);
-                                c.writeSummaryFromParcelLocked(out);
-                            } else {
-                                out.writeInt(0);
-                            }
-                        }
-                    } else {
-                        out.writeInt(0);
-                    }
-                }
+                wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mCpuFreqTimeMs);
-            LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mScreenOffCpuFreqTimeMs);
+        final ArrayMap<String, DualTimer> syncStats = u.mSyncStats.getMap();
+        int NS = syncStats.size();
+        out.writeInt(NS);
+        for (int is=0; is<NS; is++) {
+            out.writeString(syncStats.keyAt(is));
+            syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            if (u.mMobileRadioApWakeupCount != null) {
-                out.writeInt(1);
-                u.mMobileRadioApWakeupCount.writeSummaryFromParcelLocked(out);
-            } else {
-                out.writeInt(0);
-            }
+        final ArrayMap<String, DualTimer> jobStats = u.mJobStats.getMap();
+        int NJ = jobStats.size();
+        out.writeInt(NJ);
+        for (int ij=0; ij<NJ; ij++) {
+            out.writeString(jobStats.keyAt(ij));
+            jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            if (u.mWifiRadioApWakeupCount != null) {
+        int NSE = u.mSensorStats.size();
+        out.writeInt(NSE);
+        for (int ise=0; ise<NSE; ise++) {
+            out.writeInt(u.mSensorStats.keyAt(ise));
+            Uid.Sensor se = u.mSensorStats.valueAt(ise);
+            if (se.mTimer != null) {
                 out.writeInt(1);
-                u.mWifiRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+                se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
-            int NW = wakeStats.size();
-            out.writeInt(NW);
-            for (int iw=0; iw<NW; iw++) {
-                out.writeString(wakeStats.keyAt(iw));
-                Uid.Wakelock wl = wakeStats.valueAt(iw);
-                if (wl.mTimerFull != null) {
-                    out.writeInt(1);
-                    wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerPartial != null) {
-                    out.writeInt(1);
-                    wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerWindow != null) {
-                    out.writeInt(1);
-                    wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerDraw != null) {
-                    out.writeInt(1);
-                    wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-
-            final ArrayMap<String, DualTimer> syncStats = u.mSyncStats.getMap();
-            int NS = syncStats.size();
-            out.writeInt(NS);
-            for (int is=0; is<NS; is++) {
-                out.writeString(syncStats.keyAt(is));
-                syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            }
-
-            final ArrayMap<String, DualTimer> jobStats = u.mJobStats.getMap();
-            int NJ = jobStats.size();
-            out.writeInt(NJ);
-            for (int ij=0; ij<NJ; ij++) {
-                out.writeString(jobStats.keyAt(ij));
-                jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            }
+        int NP = u.mProcessStats.size();
+        out.writeInt(NP);
+        for (int ip=0; ip<NP; ip++) {
+            out.writeString(u.mProcessStats.keyAt(ip));
+            Uid.Proc ps = u.mProcessStats.valueAt(ip);
+            out.writeLong(ps.mUserTime);
+            out.writeLong(ps.mSystemTime);
+            out.writeLong(ps.mForegroundTime);
+            out.writeInt(ps.mStarts);
+            out.writeInt(ps.mNumCrashes);
+            out.writeInt(ps.mNumAnrs);
+            ps.writeExcessivePowerToParcelLocked(out);
+        }
 
-            int NSE = u.mSensorStats.size();
-            out.writeInt(NSE);
-            for (int ise=0; ise<NSE; ise++) {
-                out.writeInt(u.mSensorStats.keyAt(ise));
-                Uid.Sensor se = u.mSensorStats.valueAt(ise);
-                if (se.mTimer != null) {
-                    out.writeInt(1);
-                    se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
+        NP = u.mPackageStats.size();
+        out.writeInt(NP);
+        if (NP > 0) {
+            for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
+                : u.mPackageStats.entrySet()) {
+                out.writeString(ent.getKey());
+                Uid.Pkg ps = ent.getValue();
+                final int NWA = ps.mWakeupAlarms.size();
+                out.writeInt(NWA);
+                for (int iwa=0; iwa<NWA; iwa++) {
+                    out.writeString(ps.mWakeupAlarms.keyAt(iwa));
+                    ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
                 }
-            }
-
-            int NP = u.mProcessStats.size();
-            out.writeInt(NP);
-            for (int ip=0; ip<NP; ip++) {
-                out.writeString(u.mProcessStats.keyAt(ip));
-                Uid.Proc ps = u.mProcessStats.valueAt(ip);
-                out.writeLong(ps.mUserTime);
-                out.writeLong(ps.mSystemTime);
-                out.writeLong(ps.mForegroundTime);
-                out.writeInt(ps.mStarts);
-                out.writeInt(ps.mNumCrashes);
-                out.writeInt(ps.mNumAnrs);
-                ps.writeExcessivePowerToParcelLocked(out);
-            }
-
-            NP = u.mPackageStats.size();
-            out.writeInt(NP);
-            if (NP > 0) {
-                for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
-                    : u.mPackageStats.entrySet()) {
-                    out.writeString(ent.getKey());
-                    Uid.Pkg ps = ent.getValue();
-                    final int NWA = ps.mWakeupAlarms.size();
-                    out.writeInt(NWA);
-                    for (int iwa=0; iwa<NWA; iwa++) {
-                        out.writeString(ps.mWakeupAlarms.keyAt(iwa));
-                        ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
-                    }
-                    NS = ps.mServiceStats.size();
-                    out.writeInt(NS);
-                    for (int is=0; is<NS; is++) {
-                        out.writeString(ps.mServiceStats.keyAt(is));
-                        BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
-                        long time = ss.getStartTimeToNowLocked(
-                                mOnBatteryTimeBase.getUptime(NOW_SYS));
-                        out.writeLong(time);
-                        out.writeInt(ss.mStarts);
-                        out.writeInt(ss.mLaunches);
-                    }
+                NS = ps.mServiceStats.size();
+                out.writeInt(NS);
+                for (int is=0; is<NS; is++) {
+                    out.writeString(ps.mServiceStats.keyAt(is));
+                    BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
+                    long time = ss.getStartTimeToNowLocked(
+                            mOnBatteryTimeBase.getUptime(NOW_SYS));
+                    out.writeLong(time);
+                    out.writeInt(ss.mStarts);
+                    out.writeInt(ss.mLaunches);
                 }
             }
         }
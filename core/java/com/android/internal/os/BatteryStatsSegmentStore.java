@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.FileUtils;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import libcore.io.IoUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the battery stats summary as a set of independently written segments.
+ *
+ * Each segment is an opaque blob identified by an integer and kept in its own file. A
+ * manifest, replaced atomically, lists the file, length and CRC32 of every current segment.
+ * {@link #write} only writes the segments that changed: they go to new files named after the
+ * write's generation, and the old files are deleted once the new manifest is committed, so a
+ * crash at any point leaves the previous set of segments readable.
+ *
+ * <p>This class is not thread-safe; callers serialize reads and writes. {@link #snapshot}
+ * returns a read-only copy that can read the segments concurrently with writes.
+ */
+public final class BatteryStatsSegmentStore {
+    private static final String TAG = "BatteryStatsSegments";
+
+    private static final int MAGIC = 0x42535331; // BSS1
+
+    private static final String MANIFEST_NAME = "manifest";
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final int MAX_SEGMENTS = 1024;
+
+    private final File mDir;
+    private final AtomicFile mManifestFile;
+    private final boolean mReadOnly;
+
+    // Contents of the current manifest; mGeneration is -1 before it has been read.
+    private int mVersion;
+    private long mGeneration = -1;
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+
+    private static final class Entry {
+        long generation;
+        int length;
+        int crc;
+    }
+
+    public BatteryStatsSegmentStore(File dir) {
+        this(dir, false);
+    }
+
+    private BatteryStatsSegmentStore(File dir, boolean readOnly) {
+        mDir = dir;
+        mManifestFile = new AtomicFile(new File(dir, MANIFEST_NAME));
+        mReadOnly = readOnly;
+    }
+
+    /**
+     * Returns a read-only copy of the manifest as last read or written. It can read the
+     * segments it lists without synchronizing with this store, until a later {@link #write}
+     * replaces or removes them; {@link #readSegment} then returns null.
+     */
+    public BatteryStatsSegmentStore snapshot() {
+        final BatteryStatsSegmentStore snapshot = new BatteryStatsSegmentStore(mDir, true);
+        snapshot.mVersion = mVersion;
+        snapshot.mGeneration = mGeneration;
+        // Entries are never modified once in the manifest.
+        for (int i = 0; i < mEntries.size(); i++) {
+            snapshot.mEntries.put(mEntries.keyAt(i), mEntries.valueAt(i));
+        }
+        return snapshot;
+    }
+
+    public boolean exists() {
+        return mManifestFile.exists();
+    }
+
+    /**
+     * Reads the manifest.
+     *
+     * @param version the version the segments must have been written with.
+     * @return the ids of the stored segments in ascending order, or null if there is no
+     *     manifest or it was written with a different version.
+     */
+    public int[] open(int version) throws IOException {
+        checkNotSnapshot();
+        if (!readManifest()) {
+            return null;
+        }
+        if (mVersion != version) {
+            Slog.w(TAG, "Segments have version " + mVersion + ", expected " + version);
+            return null;
+        }
+        final int[] ids = new int[mEntries.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mEntries.keyAt(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Reads a segment listed in the manifest.
+     *
+     * @return the contents of the segment, or null if it is unknown, missing or fails its
+     *     checksum.
+     */
+    public byte[] readSegment(int id) {
+        final Entry entry = mEntries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        final File file = getSegmentFile(id, entry.generation);
+        try {
+            final byte[] data = readFully(file, entry.length);
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != entry.crc) {
+                Slog.w(TAG, "Bad checksum for " + file);
+                return null;
+            }
+            return data;
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Durably replaces the given segments, keeping the current contents of the others.
+     *
+     * @param version the version to record in the manifest. Changing it drops every segment
+     *     that is not part of this write.
+     * @param segments the new contents of each changed segment by id, or null for segments
+     *     to remove.
+     */
+    public void write(int version, SparseArray<byte[]> segments) throws IOException {
+        checkNotSnapshot();
+        if (mGeneration < 0) {
+            try {
+                readManifest();
+            } catch (IOException e) {
+                Slog.w(TAG, "Discarding unreadable manifest", e);
+            }
+        }
+        if (version != mVersion) {
+            mEntries.clear();
+            mVersion = version;
+        }
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create " + mDir);
+        }
+
+        final long generation = mGeneration + 1;
+        final SparseArray<Entry> entries = mEntries.clone();
+        final CRC32 crc = new CRC32();
+        for (int i = 0; i < segments.size(); i++) {
+            final byte[] data = segments.valueAt(i);
+            if (data == null) {
+                entries.remove(segments.keyAt(i));
+                continue;
+            }
+            final Entry entry = new Entry();
+            entry.generation = generation;
+            entry.length = data.length;
+            crc.reset();
+            crc.update(data);
+            entry.crc = (int) crc.getValue();
+
+            final FileOutputStream out =
+                    new FileOutputStream(getSegmentFile(segments.keyAt(i), generation));
+            try {
+                out.write(data);
+                FileUtils.sync(out);
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+            entries.put(segments.keyAt(i), entry);
+        }
+        if (entries.size() > MAX_SEGMENTS) {
+            throw new IOException("Too many segments: " + entries.size());
+        }
+
+        FileOutputStream stream = null;
+        try {
+            stream = mManifestFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(version);
+            out.writeLong(generation);
+            out.writeInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                final Entry entry = entries.valueAt(i);
+                out.writeInt(entries.keyAt(i));
+                out.writeLong(entry.generation);
+                out.writeInt(entry.length);
+                out.writeInt(entry.crc);
+            }
+            out.flush();
+            mManifestFile.finishWrite(stream);
+        } catch (IOException e) {
+            mManifestFile.failWrite(stream);
+            // The segments written above are not referenced by any manifest.
+            deleteUnusedSegments(mEntries);
+            throw e;
+        }
+
+        mGeneration = generation;
+        mEntries.clear();
+        for (int i = 0; i < entries.size(); i++) {
+            mEntries.put(entries.keyAt(i), entries.valueAt(i));
+        }
+        deleteUnusedSegments(mEntries);
+    }
+
+    /** Deletes the manifest and every segment. */
+    public void delete() {
+        checkNotSnapshot();
+        mManifestFile.delete();
+        mEntries.clear();
+        deleteUnusedSegments(mEntries);
+        mGeneration = -1;
+    }
+
+    private void checkNotSnapshot() {
+        if (mReadOnly) {
+            throw new IllegalStateException("Read-only snapshot of " + mDir);
+        }
+    }
+
+    private boolean readManifest() throws IOException {
+        mEntries.clear();
+        mGeneration = 0;
+        mVersion = 0;
+        final FileInputStream stream;
+        try {
+            stream = mManifestFile.openRead();
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(stream);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Bad manifest header in " + mManifestFile.getBaseFile());
+            }
+            final int version = in.readInt();
+            final long generation = in.readLong();
+            final int count = in.readInt();
+            if (count < 0 || count > MAX_SEGMENTS) {
+                throw new IOException("Bad segment count " + count);
+            }
+            final SparseArray<Entry> entries = new SparseArray<>(count);
+            for (int i = 0; i < count; i++) {
+                final int id = in.readInt();
+                final Entry entry = new Entry();
+                entry.generation = in.readLong();
+                entry.length = in.readInt();
+                entry.crc = in.readInt();
+                if (entry.length < 0 || entry.generation > generation) {
+                    throw new IOException("Bad manifest entry for segment " + id);
+                }
+                entries.put(id, entry);
+            }
+            mVersion = version;
+            mGeneration = generation;
+            for (int i = 0; i < entries.size(); i++) {
+                mEntries.put(entries.keyAt(i), entries.valueAt(i));
+            }
+            return true;
+        } finally {
+            IoUtils.closeQuietly(stream);
+        }
+    }
+
+    private void deleteUnusedSegments(SparseArray<Entry> entries) {
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX)) {
+                continue;
+            }
+            boolean used = false;
+            for (int i = 0; i < entries.size() && !used; i++) {
+                used = name.equals(getSegmentName(entries.keyAt(i), entries.valueAt(i).generation));
+            }
+            if (!used) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getSegmentFile(int id, long generation) {
+        return new File(mDir, getSegmentName(id, generation));
+    }
+
+    private static String getSegmentName(int id, long generation) {
+        return SEGMENT_PREFIX + id + "-" + generation;
+    }
+
+    private static byte[] readFully(File file, int length) throws IOException {
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            final byte[] data = new byte[length];
+            in.readFully(data);
+            if (in.read() != -1) {
+                throw new IOException("Unexpected data after " + length + " bytes");
+            }
+            return data;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+}
@@ -21,6 +21,7 @@ import static android.system.OsConstants.S_IRWXO;
 
 import android.content.res.Resources;
 import android.content.res.TypedArray;
+import android.graphics.Typeface;
 import android.icu.impl.CacheValue;
 import android.icu.text.DecimalFormatSymbols;
 import android.icu.util.ULocale;
@@ -195,6 +196,7 @@ public class ZygoteInit {
 
     private static void preloadTextResources() {
         Hyphenator.init();
+        Typeface.preloadSystemFonts();
         TextView.preloadFontCache();
     }
 
@@ -71,6 +71,16 @@ public class ExponentiallyBucketedHistogram {
      * @param prefix A custom prefix that is printed in front of the histogram
      */
     public void log(@NonNull String tag, @Nullable CharSequence prefix) {
+        Log.d(tag, toString(prefix));
+    }
+
+    /**
+     * Format the histogram as a string.
+     *
+     * @param prefix A custom prefix that is printed in front of the histogram
+     */
+    @NonNull
+    public String toString(@Nullable CharSequence prefix) {
         StringBuilder builder = new StringBuilder(prefix);
         builder.append('[');
 
@@ -92,6 +102,6 @@ public class ExponentiallyBucketedHistogram {
         }
         builder.append("]");
 
-        Log.d(tag, builder.toString());
+        return builder.toString();
     }
 }
@@ -27,6 +27,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -59,6 +60,9 @@ public class FileRotator {
     private static final String SUFFIX_BACKUP = ".backup";
     private static final String SUFFIX_NO_BACKUP = ".no_backup";
 
+    /** Active file last appended to successfully, known to end with intact data. */
+    private String mValidatedActiveName;
+
     // TODO: provide method to append to active file
 
     /**
@@ -85,6 +89,23 @@ public class FileRotator {
         public boolean shouldWrite();
     }
 
+    /**
+     * External class that reads data directly from a file, such as by
+     * memory-mapping it, rather than through a stream.
+     */
+    public interface DirectReader {
+        public void read(File file) throws IOException;
+    }
+
+    /**
+     * External class that finds how much of an existing file holds intact
+     * data, so that anything left after it by an interrupted append can be
+     * cut off before appending more.
+     */
+    public interface Validator {
+        public long getValidLength(File file) throws IOException;
+    }
+
     /**
      * Create a file rotator.
      *
@@ -184,6 +205,48 @@ public class FileRotator {
         rewriteSingle(rewriter, activeName);
     }
 
+    /**
+     * Append to the currently active file without rewriting any existing data.
+     * No backup is kept, so the written format must allow readers to detect
+     * and ignore a truncated trailing write. The first time a file is appended
+     * to, and after a failed append, the given {@link Validator} is asked how
+     * much of it is intact, and anything after that is truncated first.
+     */
+    public void appendActive(Writer writer, Validator validator, long currentTimeMillis)
+            throws IOException {
+        final String activeName = getActiveName(currentTimeMillis);
+        if (LOGD) Slog.d(TAG, "appending " + activeName);
+
+        final File file = new File(mBasePath, activeName);
+        if (!activeName.equals(mValidatedActiveName) && file.exists()) {
+            final long validLength = validator.getValidLength(file);
+            if (validLength < file.length()) {
+                Slog.w(TAG, "truncating " + activeName + " from " + file.length() + " to "
+                        + validLength + " bytes");
+                final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                    raf.getFD().sync();
+                } finally {
+                    IoUtils.closeQuietly(raf);
+                }
+            }
+        }
+
+        mValidatedActiveName = null;
+        final FileOutputStream fos = new FileOutputStream(file, true);
+        final BufferedOutputStream bos = new BufferedOutputStream(fos);
+        try {
+            writer.write(bos);
+            bos.flush();
+            if (FileUtils.sync(fos)) {
+                mValidatedActiveName = activeName;
+            }
+        } finally {
+            IoUtils.closeQuietly(bos);
+        }
+    }
+
     @Deprecated
     public void combineActive(final Reader reader, final Writer writer, long currentTimeMillis)
             throws IOException {
@@ -298,6 +361,24 @@ public class FileRotator {
         }
     }
 
+    /**
+     * Hand any rotated files that overlap the requested time range directly
+     * to the given {@link DirectReader}.
+     */
+    public void readMatchingFiles(DirectReader reader, long matchStartMillis, long matchEndMillis)
+            throws IOException {
+        final FileInfo info = new FileInfo(mPrefix);
+        for (String name : mBasePath.list()) {
+            if (!info.parse(name)) continue;
+
+            // read file when it overlaps
+            if (info.startMillis <= matchEndMillis && matchStartMillis <= info.endMillis) {
+                if (LOGD) Slog.d(TAG, "reading matching " + name);
+                reader.read(new File(mBasePath, name));
+            }
+        }
+    }
+
     /**
      * Return the currently active file, which may not exist yet.
      */
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.ProtocolException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 
 /**
  * Reader that specializes in parsing {@code /proc/} files quickly. Walks
@@ -155,6 +156,75 @@ public class ProcFileReader implements Closeable {
         }
     }
 
+    /**
+     * Parse and return next token as {@link String}, reusing an instance from
+     * the given pool when one has the same contents. Tokens not already in the
+     * pool are added to it, so a pool reused across reads only allocates for
+     * tokens it hasn't seen before.
+     */
+    public String nextString(ArrayList<String> pool) throws IOException {
+        final int tokenIndex = nextTokenIndex();
+        if (tokenIndex == -1) {
+            throw new ProtocolException("Missing required string");
+        }
+
+        final int poolSize = pool.size();
+        for (int i = 0; i < poolSize; i++) {
+            final String candidate = pool.get(i);
+            if (tokenEquals(candidate, tokenIndex)) {
+                consumeBuf(tokenIndex + 1);
+                return candidate;
+            }
+        }
+        final String s = parseAndConsumeString(tokenIndex);
+        pool.add(s);
+        return s;
+    }
+
+    private boolean tokenEquals(String s, int tokenIndex) {
+        if (s.length() != tokenIndex) {
+            return false;
+        }
+        for (int i = 0; i < tokenIndex; i++) {
+            if (s.charAt(i) != mBuffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse and return next token as base-16 encoded {@code long}, with an
+     * optional {@code 0x} prefix. Values are treated as unsigned 64-bit, so
+     * the full range of kernel-reported hex values can be parsed.
+     */
+    public long nextHexLong() throws IOException {
+        final int tokenIndex = nextTokenIndex();
+        if (tokenIndex == -1) {
+            throw new ProtocolException("Missing required hex long");
+        }
+
+        int start = 0;
+        if (tokenIndex > 2 && mBuffer[0] == '0' && (mBuffer[1] == 'x' || mBuffer[1] == 'X')) {
+            start = 2;
+        }
+        if (tokenIndex - start > 16 || tokenIndex == start) {
+            throw invalidLong(tokenIndex);
+        }
+
+        long result = 0;
+        for (int i = start; i < tokenIndex; i++) {
+            final int digit = Character.digit(mBuffer[i], 16);
+            if (digit < 0) {
+                throw invalidLong(tokenIndex);
+            }
+            result = (result << 4) | digit;
+        }
+
+        consumeBuf(tokenIndex + 1);
+        return result;
+    }
+
     /**
      * Parse and return next token as base-10 encoded {@code long}.
      */
@@ -758,6 +758,98 @@ static jlong nativeExecuteForCursorWindow(JNIEnv* env, jclass clazz,
     return result;
 }
 
+// Flags returned by nativeExecuteForStreamingCursorWindow above the number of added rows.
+static const jlong STREAMING_PENDING_ROW = jlong(1) << 32;
+static const jlong STREAMING_DONE = jlong(1) << 33;
+
+static jlong nativeExecuteForStreamingCursorWindow(JNIEnv* env, jclass clazz,
+        jlong connectionPtr, jlong statementPtr, jlong windowPtr,
+        jint startPos, jint skipRows, jboolean hasPendingRow) {
+    SQLiteConnection* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+
+    status_t status = window->clear();
+    if (status) {
+        String8 msg;
+        msg.appendFormat("Failed to clear the cursor window, status=%d", status);
+        throw_sqlite3_exception(env, connection->db, msg.string());
+        return 0;
+    }
+
+    int numColumns = sqlite3_column_count(statement);
+    status = window->setNumColumns(numColumns);
+    if (status) {
+        String8 msg;
+        msg.appendFormat("Failed to set the cursor window column count to %d, status=%d",
+                numColumns, status);
+        throw_sqlite3_exception(env, connection->db, msg.string());
+        return 0;
+    }
+
+    // Unlike nativeExecuteForCursorWindow, the statement is not reset when the window is
+    // full: the row that did not fit is left pending so that the next call continues with it
+    // instead of running the query again from the first row.
+    int retryCount = 0;
+    int addedRows = 0;
+    bool pendingRow = hasPendingRow;
+    bool done = false;
+    while (true) {
+        if (!pendingRow) {
+            int err = sqlite3_step(statement);
+            if (err == SQLITE_ROW) {
+                retryCount = 0;
+                pendingRow = true;
+            } else if (err == SQLITE_DONE) {
+                LOG_WINDOW("Processed all rows");
+                done = true;
+                break;
+            } else if (err == SQLITE_LOCKED || err == SQLITE_BUSY) {
+                LOG_WINDOW("Database locked, retrying");
+                if (retryCount > 50) {
+                    ALOGE("Bailing on database busy retry");
+                    throw_sqlite3_exception(env, connection->db, "retrycount exceeded");
+                    return 0;
+                }
+                // Sleep to give the thread holding the lock a chance to finish
+                usleep(1000);
+                retryCount++;
+                continue;
+            } else {
+                throw_sqlite3_exception(env, connection->db);
+                return 0;
+            }
+        }
+
+        if (skipRows > 0) {
+            skipRows -= 1;
+            pendingRow = false;
+            continue;
+        }
+
+        CopyRowResult cpr = copyRow(env, window, statement, numColumns, startPos, addedRows);
+        if (cpr == CPR_OK) {
+            addedRows += 1;
+            pendingRow = false;
+        } else if (cpr == CPR_FULL) {
+            break;
+        } else {
+            return 0;
+        }
+    }
+
+    LOG_WINDOW("Leaving statement %p after adding %d rows to the window in %d bytes",
+            statement, addedRows, window->size() - window->freeSpace());
+    jlong result = jlong(addedRows);
+    if (pendingRow) {
+        result |= STREAMING_PENDING_ROW;
+    }
+    if (done) {
+        result |= STREAMING_DONE;
+    }
+    return result;
+}
+
 static jint nativeGetDbLookaside(JNIEnv* env, jobject clazz, jlong connectionPtr) {
     SQLiteConnection* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
 
@@ -835,6 +927,8 @@ static const JNINativeMethod sMethods[] =
             (void*)nativeExecuteForLastInsertedRowId },
     { "nativeExecuteForCursorWindow", "(JJJIIZ)J",
             (void*)nativeExecuteForCursorWindow },
+    { "nativeExecuteForStreamingCursorWindow", "(JJJIIZ)J",
+            (void*)nativeExecuteForStreamingCursorWindow },
     { "nativeGetDbLookaside", "(J)I",
             (void*)nativeGetDbLookaside },
     { "nativeCancel", "(J)V",
@@ -96,6 +96,16 @@ static jlongArray get_long_array(JNIEnv* env, jobject obj, jfieldID field, int s
     return env->NewLongArray(size);
 }
 
+// Upper bound on interface strings shared within one parse, to bound local references.
+static const size_t kMaxSharedIfaces = 64;
+
+static void release_local_refs(JNIEnv* env, const Vector<jstring>& refs)
+{
+    for (size_t i = 0; i < refs.size(); i++) {
+        env->DeleteLocalRef(refs[i]);
+    }
+}
+
 static int readNetworkStatsDetail(JNIEnv* env, jclass clazz, jobject stats,
         jstring path, jint limitUid, jobjectArray limitIfacesObj, jint limitTag) {
     ScopedUtfChars path8(env, path);
@@ -262,9 +272,36 @@ static int readNetworkStatsDetail(JNIEnv* env, jclass clazz, jobject stats,
             gNetworkStatsClassInfo.operations, size, grow));
     if (operations.get() == NULL) return -1;
 
+    // Only a handful of distinct interfaces appear across all rows, so share
+    // one Java string per interface instead of allocating one per row.
+    Vector<String8> ifaceNames;
+    Vector<jstring> ifaceStrings;
     for (int i = 0; i < size; i++) {
-        ScopedLocalRef<jstring> ifaceString(env, env->NewStringUTF(lines[i].iface));
-        env->SetObjectArrayElement(iface.get(), i, ifaceString.get());
+        jstring ifaceString = NULL;
+        for (size_t j = 0; j < ifaceNames.size(); j++) {
+            if (ifaceNames[j] == lines[i].iface) {
+                ifaceString = ifaceStrings[j];
+                break;
+            }
+        }
+        if (ifaceString == NULL) {
+            ifaceString = env->NewStringUTF(lines[i].iface);
+            if (ifaceString == NULL) {
+                release_local_refs(env, ifaceStrings);
+                return -1;
+            }
+            if (ifaceNames.size() < kMaxSharedIfaces) {
+                ifaceNames.add(String8(lines[i].iface));
+                ifaceStrings.add(ifaceString);
+            } else {
+                env->SetObjectArrayElement(iface.get(), i, ifaceString);
+                env->DeleteLocalRef(ifaceString);
+                ifaceString = NULL;
+            }
+        }
+        if (ifaceString != NULL) {
+            env->SetObjectArrayElement(iface.get(), i, ifaceString);
+        }
 
         uid[i] = lines[i].uid;
         set[i] = lines[i].set;
@@ -276,6 +313,8 @@ static int readNetworkStatsDetail(JNIEnv* env, jclass clazz, jobject stats,
         txPackets[i] = lines[i].txPackets;
     }
 
+    release_local_refs(env, ifaceStrings);
+
     env->SetIntField(stats, gNetworkStatsClassInfo.size, size);
     if (grow) {
         env->SetIntField(stats, gNetworkStatsClassInfo.capacity, size);
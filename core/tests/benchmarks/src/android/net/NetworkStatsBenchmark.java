@@ -60,6 +60,53 @@ public class NetworkStatsBenchmark {
         mNetworkStats.addValues(recycle);
     }
 
+    /**
+     * Builds a uid/tag snapshot shaped like a typical {@code xt_qtaguid} read: a few
+     * interfaces, both counter sets, and a handful of tags per uid.
+     */
+    private NetworkStats buildSnapshot(long bytesPerRow) {
+        final String[] ifaces = { "wlan0", "rmnet_data0", "tun0" };
+        final NetworkStats stats = new NetworkStats(0, mSize);
+        final NetworkStats.Entry recycle = new NetworkStats.Entry();
+        for (int i = 0; i < mSize; i++) {
+            recycle.iface = ifaces[i % ifaces.length];
+            recycle.uid = 10000 + i / 8;
+            recycle.set = (i / ifaces.length) % 2;
+            recycle.tag = (i % 4 == 0) ? NetworkStats.TAG_NONE : i % 4;
+            recycle.rxBytes = bytesPerRow;
+            recycle.rxPackets = bytesPerRow / 1000;
+            recycle.txBytes = bytesPerRow;
+            recycle.txPackets = bytesPerRow / 1000;
+            recycle.operations = 0;
+            stats.addValues(recycle);
+        }
+        return stats;
+    }
+
+    public void timeSubtract(int reps) {
+        final NetworkStats before = buildSnapshot(60000);
+        final NetworkStats after = buildSnapshot(90000);
+        NetworkStats recycle = null;
+        for (int i = 0; i < reps; i++) {
+            recycle = NetworkStats.subtract(after, before, null, null, recycle);
+        }
+    }
+
+    public void timeGroupedByUid(int reps) {
+        final NetworkStats snapshot = buildSnapshot(60000);
+        for (int i = 0; i < reps; i++) {
+            snapshot.groupedByUid();
+        }
+    }
+
+    public void timeSpliceOperationsFrom(int reps) {
+        final NetworkStats snapshot = buildSnapshot(60000);
+        final NetworkStats operations = buildSnapshot(0);
+        for (int i = 0; i < reps; i++) {
+            snapshot.spliceOperationsFrom(operations);
+        }
+    }
+
     public void timeMigrateTun(int reps) {
         for (int i = 0; i < reps; i++) {
             NetworkStats stats = mNetworkStats.clone();
@@ -20,21 +20,50 @@ import android.net.NetworkStats;
 import android.os.SystemClock;
 import com.google.caliper.AfterExperiment;
 import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 
 public class NetworkStatsFactoryBenchmark {
     private File mStats;
+    private File mStagedStats;
 
-    // TODO: consider staging stats file with different number of rows
+    @Param({"100", "1000", "5000"})
+    private int mRows;
 
     @BeforeExperiment
-    protected void setUp() {
+    protected void setUp() throws IOException {
         mStats = new File("/proc/net/xt_qtaguid/stats");
+        mStagedStats = File.createTempFile("xt_qtaguid_stats", null);
+        stageStats(mStagedStats, mRows);
     }
 
     @AfterExperiment
     protected void tearDown() {
         mStats = null;
+        mStagedStats.delete();
+        mStagedStats = null;
+    }
+
+    /**
+     * Writes a synthetic {@code xt_qtaguid/stats} file with the given number of
+     * rows, spread over a few interfaces, uids, tags and both counter sets.
+     */
+    private static void stageStats(File file, int rows) throws IOException {
+        final String[] ifaces = { "wlan0", "rmnet_data0", "v4-wlan0" };
+        try (FileWriter out = new FileWriter(file)) {
+            out.write("idx iface acct_tag_hex uid_tag_int cnt_set rx_bytes rx_packets tx_bytes"
+                    + " tx_packets rx_tcp_bytes rx_tcp_packets rx_udp_bytes rx_udp_packets"
+                    + " rx_other_bytes rx_other_packets tx_tcp_bytes tx_tcp_packets tx_udp_bytes"
+                    + " tx_udp_packets tx_other_bytes tx_other_packets\n");
+            for (int i = 0; i < rows; i++) {
+                final long tag = (i % 4 == 0) ? 0 : (long) (i % 4) << 32;
+                out.write((i + 2) + " " + ifaces[i % ifaces.length] + " 0x"
+                        + Long.toHexString(tag) + " " + (10000 + i / 8) + " " + (i / 3) % 2
+                        + " 562386 573 49228 549 0 0 0 0 562386 573 0 0 0 0 49228 549\n");
+            }
+        }
     }
 
     public void timeReadNetworkStatsDetailJava(int reps) throws Exception {
@@ -46,6 +75,39 @@ public class NetworkStatsFactoryBenchmark {
         }
     }
 
+    public void timeReadStagedStatsDetailJava(int reps) throws Exception {
+        for (int i = 0; i < reps; i++) {
+            NetworkStatsFactory.javaReadNetworkStatsDetail(mStagedStats, NetworkStats.UID_ALL,
+                    null, NetworkStats.TAG_ALL);
+        }
+    }
+
+    public void timeReadStagedStatsDetailJavaRecycled(int reps) throws Exception {
+        final NetworkStats recycle = new NetworkStats(SystemClock.elapsedRealtime(), mRows);
+        for (int i = 0; i < reps; i++) {
+            NetworkStatsFactory.javaReadNetworkStatsDetail(mStagedStats, NetworkStats.UID_ALL,
+                    null, NetworkStats.TAG_ALL, recycle);
+        }
+    }
+
+    public void timeReadStagedStatsDetailJavaFiltered(int reps) throws Exception {
+        final NetworkStats recycle = new NetworkStats(SystemClock.elapsedRealtime(), mRows);
+        for (int i = 0; i < reps; i++) {
+            NetworkStatsFactory.javaReadNetworkStatsDetail(mStagedStats, 10000,
+                    null, NetworkStats.TAG_ALL, recycle);
+        }
+    }
+
+    public void timeReadStagedStatsDetailNative(int reps) {
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 0);
+        for (int i = 0; i < reps; i++) {
+            stats.clear();
+            NetworkStatsFactory.nativeReadNetworkStatsDetail(
+                    stats, mStagedStats.getAbsolutePath(), NetworkStats.UID_ALL, null,
+                    NetworkStats.TAG_ALL);
+        }
+    }
+
     public void timeReadNetworkStatsDetailNative(int reps) {
         for (int i = 0; i < reps; i++) {
             final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 0);
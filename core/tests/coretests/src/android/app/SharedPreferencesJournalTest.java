@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArraySet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SharedPreferencesJournalTest {
+    private File mDir;
+    private File mPrefsFile;
+    private File mJournalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "SharedPreferencesJournalTest");
+        FileUtils.deleteContentsAndDir(mDir);
+        assertTrue(mDir.mkdirs());
+        mPrefsFile = new File(mDir, "prefs.xml");
+        mJournalFile = SharedPreferencesJournal.makeJournalFile(mPrefsFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDir.setWritable(true);
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        final Map<String, Object> expected = new HashMap<>();
+        expected.put("string", "value");
+        expected.put("removed", 1);
+        final SharedPreferencesJournal journal = new SharedPreferencesJournal(mJournalFile);
+        journal.rewrite(expected);
+
+        final Map<String, Object> changes = new HashMap<>();
+        changes.put("int", 42);
+        changes.put("long", 1L << 40);
+        changes.put("float", 1.5f);
+        changes.put("boolean", true);
+        final ArraySet<String> set = new ArraySet<>();
+        set.add("a");
+        set.add("b");
+        changes.put("set", set);
+        changes.put("removed", null);
+        journal.append(false, changes);
+        expected.putAll(changes);
+        expected.remove("removed");
+        assertEquals(expected, readJournal());
+
+        changes.clear();
+        changes.put("string", "after clear");
+        journal.append(true, changes);
+        final Map<String, Object> cleared = new HashMap<>(changes);
+
+        changes.clear();
+        changes.put("int", 7);
+        journal.append(false, changes);
+        cleared.putAll(changes);
+
+        assertEquals(cleared, readJournal());
+        assertEquals(mJournalFile.length(), journal.length());
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws Exception {
+        final SharedPreferencesJournal journal = new SharedPreferencesJournal(mJournalFile);
+        journal.rewrite(new HashMap<>());
+        final Map<String, Object> expected = new HashMap<>();
+        expected.put("key", "value");
+        journal.append(false, expected);
+        final long validLength = mJournalFile.length();
+
+        // A record whose checksum doesn't match, followed by a partial record header.
+        try (FileOutputStream out = new FileOutputStream(mJournalFile, true)) {
+            out.write(new byte[] { 0, 0, 0, 1, 0, 0, 0, 0, 1 });
+            out.write(new byte[] { 0, 0, 0, 100, 0 });
+        }
+
+        final SharedPreferencesJournal reread = new SharedPreferencesJournal(mJournalFile);
+        final Map<String, Object> map = new HashMap<>();
+        assertTrue(reread.read(map));
+        assertEquals(expected, map);
+        assertEquals(validLength, mJournalFile.length());
+
+        // New records follow the last valid one.
+        final Map<String, Object> changes = new HashMap<>();
+        changes.put("other", 1);
+        reread.append(false, changes);
+        expected.putAll(changes);
+        assertEquals(expected, readJournal());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        final SharedPreferencesJournal journal = new SharedPreferencesJournal(mJournalFile);
+        journal.rewrite(new HashMap<>());
+        final Map<String, Object> changes = new HashMap<>();
+        for (int i = 0; i < 1000 && !journal.needsCompaction(1); i++) {
+            changes.put("counter", i);
+            journal.append(false, changes);
+        }
+        assertTrue(journal.needsCompaction(1));
+
+        final long length = journal.length();
+        journal.rewrite(changes);
+        assertFalse(journal.needsCompaction(1));
+        assertTrue(journal.length() < length);
+        assertEquals(mJournalFile.length(), journal.length());
+        assertEquals(changes, readJournal());
+    }
+
+    @Test
+    public void testMigrationFromXml() throws Exception {
+        final SharedPreferences xmlPrefs =
+                new SharedPreferencesImpl(mPrefsFile, Context.MODE_PRIVATE, false);
+        assertTrue(xmlPrefs.edit().putString("string", "value").putInt("int", 42).commit());
+        assertTrue(mPrefsFile.exists());
+        assertFalse(mJournalFile.exists());
+
+        final SharedPreferences prefs =
+                new SharedPreferencesImpl(mPrefsFile, Context.MODE_PRIVATE, true);
+        assertEquals(xmlPrefs.getAll(), prefs.getAll());
+        assertFalse(mPrefsFile.exists());
+        assertTrue(mJournalFile.exists());
+        assertEquals(xmlPrefs.getAll(), readJournal());
+    }
+
+    @Test
+    public void testCommitsAreAppendedInOrder() throws Exception {
+        final SharedPreferences prefs =
+                new SharedPreferencesImpl(mPrefsFile, Context.MODE_PRIVATE, true);
+        for (int i = 0; i < 100; i++) {
+            prefs.edit().putInt("key", i).apply();
+        }
+        assertTrue(prefs.edit().putInt("key", 100).commit());
+        QueuedWork.waitToFinish();
+
+        assertEquals(100, readJournal().get("key"));
+    }
+
+    @Test
+    public void testFailedAppendRewritesJournal() throws Exception {
+        final SharedPreferences prefs =
+                new SharedPreferencesImpl(mPrefsFile, Context.MODE_PRIVATE, true);
+        assertTrue(prefs.getAll().isEmpty());
+
+        // Neither appending to the journal nor replacing it is possible.
+        assertTrue(mJournalFile.setWritable(false));
+        assertTrue(mDir.setWritable(false));
+        assertFalse(prefs.edit().putString("lost", "value").commit());
+        assertEquals("value", prefs.getString("lost", null));
+
+        // The next commit writes the change that failed along with its own.
+        assertTrue(mDir.setWritable(true));
+        assertTrue(mJournalFile.setWritable(true));
+        assertTrue(prefs.edit().putString("next", "value").commit());
+
+        final Map<String, Object> expected = new HashMap<>();
+        expected.put("lost", "value");
+        expected.put("next", "value");
+        assertEquals(expected, readJournal());
+    }
+
+    private Map<String, Object> readJournal() throws Exception {
+        final Map<String, Object> map = new HashMap<>();
+        assertTrue(new SharedPreferencesJournal(mJournalFile).read(map));
+        return map;
+    }
+}
@@ -278,6 +278,42 @@ public class ContentProviderOperationTest extends TestCase {
         assertEquals("a,103,101,b,102", TextUtils.join(",", s2));
     }
 
+    public void testBackRefsRebased() {
+        ContentProviderResult[] previousResults = new ContentProviderResult[4];
+        previousResults[0] = new ContentProviderResult(100);
+        previousResults[1] = new ContentProviderResult(101);
+        previousResults[2] = new ContentProviderResult(102);
+        previousResults[3] = new ContentProviderResult(103);
+
+        ContentProviderOperation op1 = ContentProviderOperation.newUpdate(sTestUri1)
+                .withValue("a", "in1")
+                .withValueBackReference("a1", 0)
+                .withValueBackReference("a2", 2)
+                .withSelection("unused", new String[]{"a", null, null})
+                .withSelectionBackReference(1, 1)
+                .withSelectionBackReference(2, 3)
+                .build();
+
+        // Results 0 and 1 come from an earlier chunk; 2 and 3 are in the same chunk as op1,
+        // which now starts at index 2.
+        ContentProviderOperation rebased = op1.withBackReferencesRebased(previousResults, 2);
+        ContentProviderResult[] chunkResults = new ContentProviderResult[] {
+                previousResults[2], previousResults[3] };
+
+        ContentValues expectedValues = new ContentValues();
+        expectedValues.put("a", "in1");
+        expectedValues.put("a1", (long) 100);
+        expectedValues.put("a2", (long) 102);
+        assertEquals(expectedValues, rebased.resolveValueBackReferences(chunkResults, 2));
+        assertEquals("a,101,103", TextUtils.join(",",
+                rebased.resolveSelectionArgsBackReferences(chunkResults, 2)));
+
+        // The original operation is unchanged.
+        assertEquals("a,101,103", TextUtils.join(",",
+                op1.resolveSelectionArgsBackReferences(previousResults, 4)));
+        assertSame(op1, op1.withBackReferencesRebased(previousResults, 0));
+    }
+
     public void testParcelingOperation() throws NoSuchFieldException, IllegalAccessException,
             NoSuchMethodException, InvocationTargetException, InstantiationException {
         Parcel parcel = Parcel.obtain();
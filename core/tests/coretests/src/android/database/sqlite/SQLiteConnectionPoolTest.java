@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import static android.database.sqlite.SQLiteConnectionPool.CONNECTION_FLAG_PRIMARY_CONNECTION_AFFINITY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests the non-primary connections that {@link SQLiteConnectionPool} opens outside of its lock.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SQLiteConnectionPoolTest {
+    private static final String SQL = "SELECT 1";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private File mDatabaseFile;
+    private SQLiteDatabaseConfiguration mConfiguration;
+    private SQLiteConnectionPool mPool;
+    private final List<SQLiteConnection> mAcquired = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        final File dir = InstrumentationRegistry.getTargetContext().getDir(
+                getClass().getName(), Context.MODE_PRIVATE);
+        mDatabaseFile = new File(dir, "connection_pool_test.db");
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        mConfiguration = new SQLiteDatabaseConfiguration(mDatabaseFile.getPath(),
+                SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        mPool = SQLiteConnectionPool.open(mConfiguration);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.setBeforeOpenReservedConnectionForTesting(null);
+        for (SQLiteConnection connection : mAcquired) {
+            mPool.releaseConnection(connection);
+        }
+        mPool.close();
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+    }
+
+    @Test
+    public void testReconfigureWhileOpening_discardsConnectionAndRetries() {
+        final AtomicInteger opens = new AtomicInteger();
+        mPool.setBeforeOpenReservedConnectionForTesting(() -> {
+            if (opens.getAndIncrement() == 0) {
+                final SQLiteDatabaseConfiguration configuration =
+                        new SQLiteDatabaseConfiguration(mConfiguration);
+                configuration.foreignKeyConstraintsEnabled = true;
+                mPool.reconfigure(configuration);
+            }
+        });
+
+        final SQLiteConnection connection = acquire(0);
+        assertFalse(connection.isPrimaryConnection());
+        // The retry opened its connection with the lock held.
+        assertEquals(1, opens.get());
+    }
+
+    @Test
+    public void testOpenFailure_releasesSlotAndWakesWaiters() throws Exception {
+        // Fill the pool so that the connection being opened takes the last slot.
+        acquire(CONNECTION_FLAG_PRIMARY_CONNECTION_AFFINITY);
+        for (int i = 2; i < SQLiteGlobal.getWALConnectionPoolSize(); i++) {
+            acquire(0);
+        }
+
+        final AtomicReference<SQLiteConnection> waiterConnection = new AtomicReference<>();
+        final Thread waiter = new Thread(() -> waiterConnection.set(
+                mPool.acquireConnection(SQL, 0, null)));
+        final AtomicBoolean failOpen = new AtomicBoolean(true);
+        mPool.setBeforeOpenReservedConnectionForTesting(() -> {
+            if (failOpen.getAndSet(false)) {
+                waiter.start();
+                waitUntilParked(waiter);
+                throw new SQLiteException("open failed");
+            }
+        });
+
+        try {
+            acquire(0);
+            fail("Expected the open to fail");
+        } catch (SQLiteException expected) {
+        }
+
+        // The waiter is woken up and opens a connection in the released slot.
+        waiter.join(TIMEOUT_MILLIS);
+        assertFalse(waiter.isAlive());
+        assertNotNull(waiterConnection.get());
+        mAcquired.add(waiterConnection.get());
+    }
+
+    @Test
+    public void testWalModeChangeWhileOpening_isRefused() {
+        final SQLiteDatabaseConfiguration nonWalConfiguration =
+                new SQLiteDatabaseConfiguration(mConfiguration);
+        nonWalConfiguration.openFlags &= ~SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING;
+        final AtomicBoolean refused = new AtomicBoolean();
+        mPool.setBeforeOpenReservedConnectionForTesting(() -> {
+            try {
+                mPool.reconfigure(nonWalConfiguration);
+            } catch (IllegalStateException expected) {
+                refused.set(true);
+            }
+        });
+
+        final SQLiteConnection connection = acquire(0);
+        assertTrue(refused.get());
+        assertFalse(connection.isPrimaryConnection());
+
+        // Once the connection is released, the mode can be changed.
+        mPool.setBeforeOpenReservedConnectionForTesting(null);
+        mAcquired.remove(connection);
+        mPool.releaseConnection(connection);
+        mPool.reconfigure(nonWalConfiguration);
+    }
+
+    private SQLiteConnection acquire(int connectionFlags) {
+        final SQLiteConnection connection = mPool.acquireConnection(SQL, connectionFlags, null);
+        assertNotNull(connection);
+        mAcquired.add(connection);
+        return connection;
+    }
+
+    private static void waitUntilParked(Thread thread) {
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue("Thread did not wait for a connection",
+                    SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(10);
+        }
+    }
+}
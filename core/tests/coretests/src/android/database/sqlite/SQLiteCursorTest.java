@@ -19,6 +19,7 @@ package android.database.sqlite;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.LargeTest;
 
@@ -149,4 +150,102 @@ public class SQLiteCursorTest extends AndroidTestCase {
         }
         c.close();
     }
+
+    @LargeTest
+    public void testFillWindowStreaming() {
+        assertTrue(mDatabase.enableWriteAheadLogging());
+        final String testTable = "testS";
+        int N = 5000;
+        createStreamingTable(testTable, N);
+
+        SQLiteCursor c = (SQLiteCursor) mDatabase.rawQuery(
+                "select col1, desc from " + testTable + " order by col1", null);
+        c.setStreamingEnabled(true);
+        assertEquals(N, c.getCount());
+        int expected = 0;
+        while (c.moveToNext()) {
+            assertEquals(expected++, c.getInt(0));
+        }
+        assertEquals(N, expected);
+        // The windows after the first one were streamed.
+        assertTrue(c.getStreamedWindowCount() > 0);
+
+        // Moving back to a row that was streamed past starts a new stream from that row.
+        assertTrue(c.moveToPosition(N / 4));
+        assertEquals(N / 4, c.getInt(0));
+        assertTrue(c.moveToPosition(N / 2));
+        assertEquals(N / 2, c.getInt(0));
+        for (int p = N / 2 + 1; p < N; p++) {
+            assertTrue(c.moveToNext());
+            assertEquals(p, c.getInt(0));
+        }
+
+        // Writes are not blocked by the connection held by the stream.
+        assertTrue(c.moveToPosition(N / 2));
+        mDatabase.delete(testTable, "col1 >= ?", new String[] { String.valueOf(N / 2) });
+        assertTrue(c.requery());
+        assertEquals(N / 2, c.getCount());
+        expected = 0;
+        while (c.moveToNext()) {
+            assertEquals(expected++, c.getInt(0));
+        }
+        assertEquals(N / 2, expected);
+        c.close();
+    }
+
+    @LargeTest
+    public void testStreamingIdleTimeoutReleasesConnection() throws Exception {
+        assertTrue(mDatabase.enableWriteAheadLogging());
+        final String testTable = "testIdle";
+        int N = 20000;
+        createStreamingTable(testTable, N);
+
+        SQLiteCursor c = (SQLiteCursor) mDatabase.rawQuery(
+                "select col1, desc from " + testTable + " order by col1", null);
+        c.setStreamingEnabled(true);
+        c.setStreamingIdleTimeoutForTesting(1000);
+        assertEquals(N, c.getCount());
+        int expected = 0;
+        while (c.getStreamedWindowCount() == 0) {
+            assertTrue(c.moveToNext());
+            assertEquals(expected++, c.getInt(0));
+        }
+        assertTrue(c.isStreaming());
+
+        // The connection of the stream is released once it has been idle for too long.
+        final long deadline = SystemClock.uptimeMillis() + 5000;
+        while (c.isStreaming()) {
+            assertTrue(SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(50);
+        }
+        // Changing the journal mode fails while a connection is acquired.
+        mDatabase.disableWriteAheadLogging();
+
+        // The following windows are filled by running the query again.
+        while (c.moveToNext()) {
+            assertEquals(expected++, c.getInt(0));
+        }
+        assertEquals(N, expected);
+        assertEquals(1, c.getStreamedWindowCount());
+        c.close();
+    }
+
+    private void createStreamingTable(String table, int rowCount) {
+        mDatabase.execSQL("CREATE TABLE " + table + " (col1 int, desc text not null);");
+
+        // Rows large enough for the results to span many windows.
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            buff.append(i % 10 + "");
+        }
+        ContentValues values = new ContentValues();
+        values.put("desc", buff.toString());
+        mDatabase.beginTransaction();
+        for (int j = 0; j < rowCount; j++) {
+            values.put("col1", j);
+            mDatabase.insert(table, null, values);
+        }
+        mDatabase.setTransactionSuccessful();
+        mDatabase.endTransaction();
+    }
 }
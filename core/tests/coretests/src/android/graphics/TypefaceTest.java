@@ -67,6 +67,31 @@ public class TypefaceTest extends TestCase {
         assertTrue("style", mFaces[6].getStyle() == Typeface.NORMAL);
     }
 
+    @SmallTest
+    public void testSystemFamiliesCreatedOnce() throws Exception {
+        // Named families are created on first use; later lookups return the same typeface.
+        final Typeface casual = Typeface.create("casual", Typeface.NORMAL);
+        assertNotNull(casual);
+        assertSame(casual, Typeface.create("casual", Typeface.NORMAL));
+        // Aliases resolve to their family, with the alias weight applied.
+        final Typeface medium = Typeface.create("sans-serif-medium", Typeface.NORMAL);
+        assertNotNull(medium);
+        assertSame(medium, Typeface.create("sans-serif-medium", Typeface.NORMAL));
+        // Unknown names fall back to the default typeface.
+        assertSame(Typeface.DEFAULT, Typeface.create("no-such-family", Typeface.NORMAL));
+    }
+
+    @SmallTest
+    public void testPreloadSystemFonts() throws Exception {
+        // The zygote creates every family and alias, so that the processes it starts share them.
+        Typeface.preloadSystemFonts();
+        for (String name : new String[] { "casual", "cursive", "sans-serif-medium" }) {
+            assertTrue(name, Typeface.sSystemFontMap.containsKey(name));
+        }
+        assertSame(Typeface.sSystemFontMap.get("cursive"),
+                Typeface.create("cursive", Typeface.NORMAL));
+    }
+
     @MediumTest
     public void testUniformY() throws Exception {
         Paint p = new Paint();
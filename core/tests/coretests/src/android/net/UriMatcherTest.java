@@ -103,6 +103,39 @@ public class UriMatcherTest extends TestCase {
         checkAll(matcher);
     }
 
+    @SmallTest
+    public void testFirstAddedChildWins() {
+        // Among children matching the same segment, the one added first is used, whether
+        // it is exact text or a wildcard.
+        UriMatcher matcher = new UriMatcher(ROOT);
+        matcher.addURI("people", "#", PEOPLE_ID);
+        matcher.addURI("people", "1", PEOPLE_PHONES);
+        matcher.addURI("people", "*", PEOPLE_ADDRESSES);
+        matcher.addURI("people", "me", PEOPLE_CONTACTMETH);
+        matcher.addURI("calls", "*/filter", CALLERID_TEXT);
+        matcher.addURI("calls", "#/filter", CALLS_ID);
+        check("content://people/1", PEOPLE_ID, matcher);
+        check("content://people/me", PEOPLE_ADDRESSES, matcher);
+        check("content://people/other", PEOPLE_ADDRESSES, matcher);
+        check("content://calls/1/filter", CALLERID_TEXT, matcher);
+        // There is no backtracking once a segment matched a child.
+        check("content://calls/1/other", UriMatcher.NO_MATCH, matcher);
+    }
+
+    @SmallTest
+    public void testManyExactChildren() {
+        UriMatcher matcher = new UriMatcher(ROOT);
+        for (int i = 0; i < 500; i++) {
+            matcher.addURI("auth", "table" + i + "/#", i);
+        }
+        matcher.addURI("auth", "*/#", 1000);
+        for (int i = 0; i < 500; i += 7) {
+            check("content://auth/table" + i + "/12", i, matcher);
+        }
+        check("content://auth/other/12", 1000, matcher);
+        check("content://auth/table1/x", UriMatcher.NO_MATCH, matcher);
+    }
+
     private void checkAll(UriMatcher matcher) {
         check("content://asdf", UriMatcher.NO_MATCH, matcher);
         check("content://people", PEOPLE, matcher);
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class BinaryLocalLogTest extends TestCase {
+
+    public void testFormatsAtDumpTime() {
+        BinaryLocalLog log = new BinaryLocalLog(10);
+        int noArgs = log.registerFormat("started");
+        int twoArgs = log.registerFormat("uid=%d netId=%d");
+
+        log.log(noArgs);
+        log.log(twoArgs, 10001, 100);
+
+        String[] lines = dump(log).split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith(" - started"));
+        assertTrue(lines[1].endsWith(" - uid=10001 netId=100"));
+
+        String[] reversed = reverseDump(log).split("\n");
+        assertTrue(reversed[0].endsWith(" - uid=10001 netId=100"));
+        assertTrue(reversed[1].endsWith(" - started"));
+    }
+
+    public void testDropsOldestWhenFull() {
+        BinaryLocalLog log = new BinaryLocalLog(3);
+        int tag = log.registerFormat("event %d");
+        for (int i = 0; i < 10; i++) {
+            log.log(tag, i);
+        }
+
+        assertEquals(3, log.size());
+        String[] lines = dump(log).split("\n");
+        assertTrue(lines[0].endsWith("event 7"));
+        assertTrue(lines[1].endsWith("event 8"));
+        assertTrue(lines[2].endsWith("event 9"));
+    }
+
+    public void testZeroCapacity() {
+        BinaryLocalLog log = new BinaryLocalLog(0);
+        int tag = log.registerFormat("event %d");
+        log.log(tag, 1);
+        assertEquals(0, log.size());
+        assertEquals("", dump(log));
+    }
+
+    public void testUnknownTag() {
+        BinaryLocalLog log = new BinaryLocalLog(3);
+        try {
+            log.log(5);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testMismatchedFormat() {
+        BinaryLocalLog log = new BinaryLocalLog(3);
+        int tag = log.registerFormat("uid=%d netId=%d");
+        log.log(tag, 10001);
+
+        assertTrue(dump(log).trim().endsWith(" - tag=0 args=[10001]"));
+    }
+
+    static String dump(BinaryLocalLog log) {
+        StringWriter buffer = new StringWriter();
+        PrintWriter writer = new PrintWriter(buffer);
+        log.dump(null, writer, new String[0]);
+        writer.flush();
+        return buffer.toString();
+    }
+
+    static String reverseDump(BinaryLocalLog log) {
+        StringWriter buffer = new StringWriter();
+        PrintWriter writer = new PrintWriter(buffer);
+        log.reverseDump(null, writer, new String[0]);
+        writer.flush();
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import static android.view.AccessibilityInteractionController.PrefetchBatchSizer.DEFAULT_BATCH_SIZE;
+import static android.view.AccessibilityInteractionController.PrefetchBatchSizer.MAX_BATCH_SIZE;
+import static android.view.AccessibilityInteractionController.PrefetchBatchSizer.MIN_BATCH_SIZE;
+import static org.junit.Assert.assertEquals;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.AccessibilityInteractionController.PrefetchBatchSizer;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityNodeProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests how the accessibility prefetch batch size adapts to the use of the prefetched nodes.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AccessibilityPrefetchBatchSizerTest {
+    private PrefetchBatchSizer mSizer;
+
+    @Before
+    public void setup() {
+        mSizer = new PrefetchBatchSizer();
+    }
+
+    @Test
+    public void testStartsAtDefaultSize() {
+        assertEquals(DEFAULT_BATCH_SIZE, mSizer.getBatchSize());
+        // There is no previous batch to adapt to.
+        prefetch(0, DEFAULT_BATCH_SIZE);
+        assertEquals(DEFAULT_BATCH_SIZE, mSizer.getBatchSize());
+    }
+
+    @Test
+    public void testGrowsUpToMaxWhenServiceWalksPastFullBatches() {
+        int next = 0;
+        int expected = DEFAULT_BATCH_SIZE;
+        for (int i = 0; i < 5; i++) {
+            next += prefetch(next, mSizer.getBatchSize());
+            if (i > 0) {
+                expected = Math.min(MAX_BATCH_SIZE, expected * 2);
+            }
+            assertEquals(expected, mSizer.getBatchSize());
+        }
+        assertEquals(MAX_BATCH_SIZE, mSizer.getBatchSize());
+        assertEquals(2, mSizer.mBatchGrowCount);
+        assertEquals(0, mSizer.mBatchShrinkCount);
+    }
+
+    @Test
+    public void testShrinksDownToMinWhenPrefetchedNodeIsRequestedAgain() {
+        // Grow to the maximum first.
+        int next = 0;
+        for (int i = 0; i < 3; i++) {
+            next += prefetch(next, mSizer.getBatchSize());
+        }
+        assertEquals(MAX_BATCH_SIZE, mSizer.getBatchSize());
+
+        int expected = MAX_BATCH_SIZE;
+        for (int i = 0; i < 5; i++) {
+            // The last node prefetched with the last batch is asked for again.
+            final int requested = next - 1;
+            next = requested + prefetch(requested, mSizer.getBatchSize());
+            expected = Math.max(MIN_BATCH_SIZE, expected / 2);
+            assertEquals(expected, mSizer.getBatchSize());
+        }
+        assertEquals(MIN_BATCH_SIZE, mSizer.getBatchSize());
+        assertEquals(3, mSizer.mBatchShrinkCount);
+    }
+
+    @Test
+    public void testKeepsSizeWhenBatchWasNotFull() {
+        prefetch(0, DEFAULT_BATCH_SIZE / 2);
+        prefetch(DEFAULT_BATCH_SIZE, DEFAULT_BATCH_SIZE / 2);
+        assertEquals(DEFAULT_BATCH_SIZE, mSizer.getBatchSize());
+        assertEquals(0, mSizer.mBatchGrowCount);
+        assertEquals(0, mSizer.mBatchShrinkCount);
+    }
+
+    @Test
+    public void testCountsPrefetchedNodes() {
+        prefetch(0, 10);
+        prefetch(100, 20);
+        // The requested nodes are not counted.
+        assertEquals(9 + 19, mSizer.mPrefetchedNodeCount);
+    }
+
+    /**
+     * Reports a query for the node {@code first} that returned {@code count} nodes with
+     * consecutive ids, returns {@code count}.
+     */
+    private int prefetch(int first, int count) {
+        final List<AccessibilityNodeInfo> infos = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final AccessibilityNodeInfo info = AccessibilityNodeInfo.obtain();
+            info.setSourceNodeId(AccessibilityNodeInfo.makeNodeId(first + i,
+                    AccessibilityNodeProvider.HOST_VIEW_ID), 0);
+            infos.add(info);
+        }
+        mSizer.onPrefetched(infos, 0);
+        for (AccessibilityNodeInfo info : infos) {
+            info.recycle();
+        }
+        return count;
+    }
+}
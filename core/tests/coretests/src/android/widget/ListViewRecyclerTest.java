@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.widget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.rule.UiThreadTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View;
+import android.view.ViewGroup;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the scrap view limits and counters of the {@link AbsListView} recycler.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ListViewRecyclerTest {
+    private static final int LIST_SIZE = 100;
+    private static final int ITEM_HEIGHT = 10;
+    private static final int ITEM_COUNT = 100;
+
+    @Rule
+    public UiThreadTestRule mUiThreadRule = new UiThreadTestRule();
+
+    private Context mContext;
+    private ListView mListView;
+    private CountingAdapter mAdapter;
+    private final List<View> mRemovedViews = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        mContext = InstrumentationRegistry.getTargetContext();
+    }
+
+    @Test
+    @UiThreadTest
+    public void testCountsCreatedAndReusedViews() {
+        layoutList(true);
+        assertEquals(mListView.getChildCount(), mListView.getCreatedViewCount());
+        assertEquals(0, mListView.getReusedViewCount());
+
+        // The views scrolled off the top are rebound to the items scrolled in.
+        mListView.scrollListBy(4 * ITEM_HEIGHT + 1);
+        assertTrue(mListView.getReusedViewCount() > 0);
+        assertEquals(mAdapter.mCreated, mListView.getCreatedViewCount());
+        assertEquals(mAdapter.mReused, mListView.getReusedViewCount());
+    }
+
+    @Test
+    @UiThreadTest
+    public void testViewsNotReusedByAdapterCountAsCreated() {
+        layoutList(false);
+        final int created = mListView.getCreatedViewCount();
+
+        mListView.scrollListBy(4 * ITEM_HEIGHT + 1);
+        assertEquals(0, mListView.getReusedViewCount());
+        assertEquals(mAdapter.mCreated, mListView.getCreatedViewCount());
+        assertTrue(mListView.getCreatedViewCount() > created);
+    }
+
+    @Test
+    @UiThreadTest
+    public void testScrapIsKeptUntilLayoutByDefault() {
+        layoutList(false);
+
+        mListView.scrollListBy(2 * ITEM_HEIGHT + 1);
+        assertEquals(2, mListView.getScrapViewCount(0));
+        assertTrue(mRemovedViews.isEmpty());
+    }
+
+    @Test
+    @UiThreadTest
+    public void testMaxScrapViewsDropsOldestFirst() {
+        layoutList(false);
+        mListView.setMaxScrapViews(0, 1);
+        final View first = mListView.getChildAt(0);
+
+        // The first two items are scrapped, the first one scrapped is dropped.
+        mListView.scrollListBy(2 * ITEM_HEIGHT + 1);
+        assertEquals(1, mListView.getScrapViewCount(0));
+        assertEquals(Arrays.asList(first), mRemovedViews);
+    }
+
+    @Test
+    @UiThreadTest
+    public void testSetMaxScrapViewsTrimsExistingScrap() {
+        layoutList(false);
+        mListView.scrollListBy(4 * ITEM_HEIGHT + 1);
+        assertEquals(4, mListView.getScrapViewCount(0));
+
+        mListView.setMaxScrapViews(0, 3);
+        assertEquals(3, mListView.getScrapViewCount(0));
+        assertEquals(1, mRemovedViews.size());
+
+        // Restoring the default doesn't bring the dropped view back.
+        mListView.setMaxScrapViews(0, -1);
+        assertEquals(3, mListView.getScrapViewCount(0));
+    }
+
+    @Test
+    @UiThreadTest
+    public void testTrimMemoryHalvesThenClearsScrap() {
+        layoutList(false);
+        final View[] scrapped = new View[4];
+        for (int i = 0; i < scrapped.length; i++) {
+            scrapped[i] = mListView.getChildAt(i);
+        }
+        mListView.scrollListBy(4 * ITEM_HEIGHT + 1);
+        assertEquals(4, mListView.getScrapViewCount(0));
+
+        mListView.trimScrapViews(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(2, mListView.getScrapViewCount(0));
+        assertEquals(Arrays.asList(scrapped[0], scrapped[1]), mRemovedViews);
+
+        mListView.trimScrapViews(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(0, mListView.getScrapViewCount(0));
+        assertEquals(Arrays.asList(scrapped), mRemovedViews);
+    }
+
+    @Test
+    @UiThreadTest
+    public void testTrimMemoryCriticalClearsScrap() {
+        layoutList(false);
+        mListView.scrollListBy(4 * ITEM_HEIGHT + 1);
+        assertEquals(4, mListView.getScrapViewCount(0));
+
+        mListView.trimScrapViews(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(0, mListView.getScrapViewCount(0));
+        assertEquals(4, mRemovedViews.size());
+    }
+
+    private void layoutList(boolean recycle) {
+        mListView = new ListView(mContext);
+        mListView.setDivider(null);
+        mAdapter = new CountingAdapter(recycle);
+        mListView.setAdapter(mAdapter);
+
+        final int measureSpec =
+                View.MeasureSpec.makeMeasureSpec(LIST_SIZE, View.MeasureSpec.EXACTLY);
+        mListView.measure(measureSpec, measureSpec);
+        mListView.layout(0, 0, LIST_SIZE, LIST_SIZE);
+        assertEquals(LIST_SIZE / ITEM_HEIGHT, mListView.getChildCount());
+
+        // Scrap views dropped by the recycler are fully detached from the list.
+        mListView.setOnHierarchyChangeListener(new ViewGroup.OnHierarchyChangeListener() {
+            @Override
+            public void onChildViewAdded(View parent, View child) {
+            }
+
+            @Override
+            public void onChildViewRemoved(View parent, View child) {
+                mRemovedViews.add(child);
+            }
+        });
+    }
+
+    private class CountingAdapter extends BaseAdapter {
+        private final boolean mRecycle;
+        int mCreated;
+        int mReused;
+
+        CountingAdapter(boolean recycle) {
+            mRecycle = recycle;
+        }
+
+        @Override
+        public int getCount() {
+            return ITEM_COUNT;
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return position;
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            if (mRecycle && convertView != null) {
+                mReused++;
+                return convertView;
+            }
+            mCreated++;
+            final View view = new View(mContext);
+            view.setLayoutParams(new AbsListView.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, ITEM_HEIGHT));
+            return view;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.widget;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.graphics.Bitmap;
+import android.os.RemoteException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.widget.RemoteViewsAdapter.FixedSizeRemoteViewsCache;
+
+import com.android.frameworks.coretests.R;
+import com.android.internal.widget.IRemoteViewsFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class RemoteViewsAdapterTest {
+    private static final int CACHE_SIZE = 40;
+    private static final int ITEM_COUNT = 1000;
+
+    private String mPackage;
+
+    @Before
+    public void setup() {
+        mPackage = InstrumentationRegistry.getContext().getPackageName();
+    }
+
+    @Test
+    public void preloadsAheadOfScrollDirection() {
+        final FixedSizeRemoteViewsCache cache = new FixedSizeRemoteViewsCache(CACHE_SIZE);
+        cache.setCountForTesting(ITEM_COUNT);
+
+        assertTrue(cache.queuePositionsToBePreloadedFromRequestedPosition(100, 1));
+        final int[] positions = new int[4];
+        assertEquals(4, cache.getNextIndicesToLoad(positions, 4));
+        assertArrayEquals(new int[] { 100, 101, 102, 103 }, positions);
+
+        // Three quarters of the window is ahead of the scroll direction.
+        final Set<Integer> loaded = drain(cache);
+        for (int i = 100; i <= 103; i++) {
+            loaded.add(i);
+        }
+        assertEquals(range(100 - CACHE_SIZE / 4, 100 + CACHE_SIZE * 3 / 4), loaded);
+    }
+
+    @Test
+    public void preloadsBackwardsWhenScrollingUp() {
+        final FixedSizeRemoteViewsCache cache = new FixedSizeRemoteViewsCache(CACHE_SIZE);
+        cache.setCountForTesting(ITEM_COUNT);
+
+        assertTrue(cache.queuePositionsToBePreloadedFromRequestedPosition(100, -1));
+        final int[] positions = new int[4];
+        assertEquals(4, cache.getNextIndicesToLoad(positions, 4));
+        assertArrayEquals(new int[] { 97, 98, 99, 100 }, positions);
+
+        final Set<Integer> loaded = drain(cache);
+        for (int i = 97; i <= 100; i++) {
+            loaded.add(i);
+        }
+        assertEquals(range(100 - CACHE_SIZE * 3 / 4, 100 + CACHE_SIZE / 4), loaded);
+    }
+
+    @Test
+    public void preloadWindowFollowsDirectionChanges() {
+        final FixedSizeRemoteViewsCache cache = new FixedSizeRemoteViewsCache(CACHE_SIZE);
+        cache.setCountForTesting(ITEM_COUNT);
+
+        assertTrue(cache.queuePositionsToBePreloadedFromRequestedPosition(100, 1));
+        // Close to the center, in the same direction: the window is kept.
+        assertFalse(cache.queuePositionsToBePreloadedFromRequestedPosition(102, 1));
+        // Reversing the direction rebuilds it.
+        assertTrue(cache.queuePositionsToBePreloadedFromRequestedPosition(102, -1));
+        assertEquals(range(102 - CACHE_SIZE * 3 / 4, 102 + CACHE_SIZE / 4), drain(cache));
+    }
+
+    @Test
+    public void requestedPositionIsLoadedAlone() {
+        final FixedSizeRemoteViewsCache cache = new FixedSizeRemoteViewsCache(CACHE_SIZE);
+        cache.setCountForTesting(ITEM_COUNT);
+        cache.queuePositionsToBePreloadedFromRequestedPosition(100, 1);
+        cache.queueRequestedPositionToLoad(500);
+
+        final int[] positions = new int[4];
+        assertEquals(1, cache.getNextIndicesToLoad(positions, 4));
+        assertEquals(500, positions[0]);
+    }
+
+    @Test
+    public void getViewsAtUsesSingleBatchedCall() throws Exception {
+        final IRemoteViewsFactory factory = mock(IRemoteViewsFactory.class);
+        final RemoteViews[] expected = new RemoteViews[3];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = new RemoteViews(mPackage, R.layout.remote_views_test);
+        }
+        doAnswer(invocation -> {
+            final RemoteViews[] views = (RemoteViews[]) invocation.getArguments()[1];
+            final long[] itemIds = (long[]) invocation.getArguments()[2];
+            for (int i = 0; i < views.length; i++) {
+                views[i] = expected[i];
+                itemIds[i] = 10 + i;
+            }
+            return null;
+        }).when(factory).getViewsAt(eq(10), any(RemoteViews[].class), any(long[].class));
+
+        final RemoteViews[] views = new RemoteViews[3];
+        final long[] itemIds = new long[3];
+        assertTrue(RemoteViewsAdapter.getViewsAt(factory, 10, views, itemIds));
+        assertArrayEquals(expected, views);
+        assertArrayEquals(new long[] { 10, 11, 12 }, itemIds);
+        verify(factory, never()).getViewAt(anyInt());
+    }
+
+    @Test
+    public void getViewsAtFallsBackToSingleFetches() throws Exception {
+        final IRemoteViewsFactory factory = mock(IRemoteViewsFactory.class);
+        doThrow(new RemoteException("transaction too large")).when(factory)
+                .getViewsAt(anyInt(), any(RemoteViews[].class), any(long[].class));
+        final RemoteViews first = new RemoteViews(mPackage, R.layout.remote_views_test);
+        final RemoteViews third = new RemoteViews(mPackage, R.layout.remote_views_test);
+        when(factory.getViewAt(10)).thenReturn(first);
+        when(factory.getViewAt(11)).thenThrow(new RuntimeException());
+        when(factory.getViewAt(12)).thenReturn(third);
+        when(factory.getItemId(anyInt())).thenAnswer(
+                invocation -> 100L + (Integer) invocation.getArguments()[0]);
+
+        final RemoteViews[] views = new RemoteViews[3];
+        final long[] itemIds = new long[3];
+        assertFalse(RemoteViewsAdapter.getViewsAt(factory, 10, views, itemIds));
+        assertSame(first, views[0]);
+        assertNull(views[1]);
+        assertSame(third, views[2]);
+        assertEquals(110, itemIds[0]);
+        assertEquals(112, itemIds[2]);
+    }
+
+    @Test
+    public void trimRetainedCachesDropsOldestFirst() {
+        final LinkedHashMap<String, FixedSizeRemoteViewsCache> caches = new LinkedHashMap<>();
+        caches.put("oldest", createCacheWithBitmap());
+        caches.put("older", createCacheWithBitmap());
+        caches.put("newest", createCacheWithBitmap());
+        final int cacheMemory = caches.get("newest").getMemoryUsage();
+        assertTrue(cacheMemory > 0);
+
+        assertTrue(RemoteViewsAdapter.trimRetainedCaches(caches, cacheMemory * 3).isEmpty());
+        assertEquals(Arrays.asList("oldest"),
+                RemoteViewsAdapter.trimRetainedCaches(caches, cacheMemory * 2));
+        assertEquals(Arrays.asList("older", "newest"), Arrays.asList(
+                caches.keySet().toArray(new String[0])));
+
+        // The newest cache is kept even if it alone is over the limit.
+        assertEquals(Arrays.asList("older"), RemoteViewsAdapter.trimRetainedCaches(caches, 0));
+        assertEquals(1, caches.size());
+        assertTrue(caches.containsKey("newest"));
+    }
+
+    private FixedSizeRemoteViewsCache createCacheWithBitmap() {
+        final RemoteViews views = new RemoteViews(mPackage, R.layout.remote_views_test);
+        views.setImageViewBitmap(R.id.image,
+                Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888));
+        final FixedSizeRemoteViewsCache cache = new FixedSizeRemoteViewsCache(CACHE_SIZE);
+        // Cloning computes the memory used by the bitmap.
+        cache.insert(0, views.clone(), 0, new int[0]);
+        return cache;
+    }
+
+    private static Set<Integer> drain(FixedSizeRemoteViewsCache cache) {
+        final Set<Integer> loaded = new HashSet<>();
+        final int[] positions = new int[4];
+        int count;
+        while ((count = cache.getNextIndicesToLoad(positions, positions.length)) > 0) {
+            for (int i = 0; i < count; i++) {
+                assertTrue(loaded.add(positions[i]));
+            }
+        }
+        return loaded;
+    }
+
+    private static Set<Integer> range(int from, int to) {
+        final Set<Integer> set = new HashSet<>();
+        for (int i = from; i <= to; i++) {
+            set.add(i);
+        }
+        return set;
+    }
+}
@@ -18,6 +18,8 @@ package android.widget;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
@@ -25,6 +27,9 @@ import android.os.Parcel;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
 import android.view.View;
 import android.view.ViewGroup;
 
@@ -102,6 +107,33 @@ public class RemoteViewsTest {
         assertEquals("", textView.getText());
     }
 
+    @Test
+    public void reapply_typedSetters() {
+        RemoteViews original = new RemoteViews(mPackage, R.layout.remote_views_test);
+        original.setTextViewText(R.id.text, "test");
+        original.setTextColor(R.id.text, Color.RED);
+        original.setViewVisibility(R.id.image, View.INVISIBLE);
+        View inflated = original.apply(mContext, mContainer);
+
+        TextView textView = (TextView) inflated.findViewById(R.id.text);
+        assertEquals("test", textView.getText());
+        assertEquals(Color.RED, textView.getCurrentTextColor());
+        assertEquals(View.INVISIBLE, inflated.findViewById(R.id.image).getVisibility());
+
+        // Same text, but with a span that must not be skipped as unchanged.
+        SpannableString spanned = new SpannableString("test");
+        spanned.setSpan(new StyleSpan(Typeface.BOLD), 0, 4, 0);
+        RemoteViews update = new RemoteViews(mPackage, R.layout.remote_views_test);
+        update.setTextViewText(R.id.text, spanned);
+        update.setTextColor(R.id.text, Color.RED);
+        update.setViewVisibility(R.id.image, View.VISIBLE);
+        update.reapply(mContext, inflated);
+
+        assertTrue(textView.getText() instanceof Spanned);
+        assertEquals(Color.RED, textView.getCurrentTextColor());
+        assertEquals(View.VISIBLE, inflated.findViewById(R.id.image).getVisibility());
+    }
+
     @Test
     public void clone_child_fails() {
         RemoteViews original = new RemoteViews(mPackage, R.layout.remote_views_test);
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.SparseArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BatteryStatsSegmentStoreTest {
+    private static final int VERSION = 1;
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getContext().getCacheDir(), "segments");
+        FileUtils.deleteContents(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDir);
+        mDir.delete();
+    }
+
+    @Test
+    public void testReadWithoutManifest() throws Exception {
+        final BatteryStatsSegmentStore store = new BatteryStatsSegmentStore(mDir);
+        assertFalse(store.exists());
+        assertNull(store.open(VERSION));
+        assertNull(store.readSegment(0));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        new BatteryStatsSegmentStore(mDir).write(VERSION, segments(0, "global", 1, "uids"));
+
+        final BatteryStatsSegmentStore store = new BatteryStatsSegmentStore(mDir);
+        assertTrue(store.exists());
+        assertArrayEquals(new int[] { 0, 1 }, store.open(VERSION));
+        assertArrayEquals("global".getBytes(), store.readSegment(0));
+        assertArrayEquals("uids".getBytes(), store.readSegment(1));
+        assertNull(store.readSegment(2));
+    }
+
+    @Test
+    public void testWriteKeepsUnchangedSegments() throws Exception {
+        final BatteryStatsSegmentStore store = new BatteryStatsSegmentStore(mDir);
+        store.write(VERSION, segments(0, "global", 1, "a", 2, "b"));
+        store.write(VERSION, segments(0, "global2", 2, "b2"));
+
+        final BatteryStatsSegmentStore read = new BatteryStatsSegmentStore(mDir);
+        assertArrayEquals(new int[] { 0, 1, 2 }, read.open(VERSION));
+        assertArrayEquals("global2".getBytes(), read.readSegment(0));
+        assertArrayEquals("a".getBytes(), read.readSegment(1));
+        assertArrayEquals("b2".getBytes(), read.readSegment(2));
+        // The manifest and one file per segment; replaced files are deleted.
+        assertEquals(4, mDir.listFiles().length);
+    }
+
+    @Test
+    public void testWriteRemovesSegments() throws Exception {
+        final BatteryStatsSegmentStore store = new BatteryStatsSegmentStore(mDir);
+        store.write(VERSION, segments(0, "global", 1, "a", 2, "b"));
+        final SparseArray<byte[]> update = segments(0, "global2");
+        update.put(1, null);
+        update.put(3, null);
+        store.write(VERSION, update);
+
+        final BatteryStatsSegmentStore read = new BatteryStatsSegmentStore(mDir);
+        assertArrayEquals(new int[] { 0, 2 }, read.open(VERSION));
+        assertNull(read.readSegment(1));
+        assertArrayEquals("b".getBytes(), read.readSegment(2));
+        assertEquals(3, mDir.listFiles().length);
+    }
+
+    @Test
+    public void testCorruptSegment() throws Exception {
+        final BatteryStatsSegmentStore store = new BatteryStatsSegmentStore(mDir);
+        store.write(VERSION, segments(0, "global", 1, "uids"));
+        for (File file : mDir.listFiles()) {
+            if (file.getName().startsWith("segment-1-")) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.write('U');
+                }
+            }
+        }
+
+        final BatteryStatsSegmentStore read = new BatteryStatsSegmentStore(mDir);
+        assertArrayEquals(new int[] { 0, 1 }, read.open(VERSION));
+        assertArrayEquals("global".getBytes(), read.readSegment(0));
+        assertNull(read.readSegment(1));
+    }
+
+    @Test
+    public void testVersionChange() throws Exception {
+        final BatteryStatsSegmentStore store = new BatteryStatsSegmentStore(mDir);
+        store.write(VERSION, segments(0, "global", 1, "uids"));
+        assertNull(new BatteryStatsSegmentStore(mDir).open(VERSION + 1));
+
+        store.write(VERSION + 1, segments(0, "global2"));
+        final BatteryStatsSegmentStore read = new BatteryStatsSegmentStore(mDir);
+        assertArrayEquals(new int[] { 0 }, read.open(VERSION + 1));
+        assertArrayEquals("global2".getBytes(), read.readSegment(0));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        final BatteryStatsSegmentStore store = new BatteryStatsSegmentStore(mDir);
+        store.write(VERSION, segments(0, "global", 1, "a", 2, "b"));
+        final BatteryStatsSegmentStore snapshot = store.snapshot();
+        assertArrayEquals("a".getBytes(), snapshot.readSegment(1));
+
+        // Segments replaced or removed after the snapshot can't be read from it any more.
+        final SparseArray<byte[]> update = segments(0, "global2", 3, "c");
+        update.put(1, null);
+        store.write(VERSION, update);
+        assertNull(snapshot.readSegment(0));
+        assertNull(snapshot.readSegment(1));
+        assertArrayEquals("b".getBytes(), snapshot.readSegment(2));
+        assertNull(snapshot.readSegment(3));
+        assertArrayEquals("global2".getBytes(), store.snapshot().readSegment(0));
+
+        try {
+            snapshot.write(VERSION, segments(0, "global3"));
+            fail("Expected the snapshot to be read-only");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static SparseArray<byte[]> segments(Object... idsAndContents) {
+        final SparseArray<byte[]> segments = new SparseArray<>();
+        for (int i = 0; i < idsAndContents.length; i += 2) {
+            segments.put((Integer) idsAndContents[i], ((String) idsAndContents[i + 1]).getBytes());
+        }
+        return segments;
+    }
+}
@@ -11,6 +11,7 @@ import org.junit.runners.Suite;
         BatteryStatsDurationTimerTest.class,
         BatteryStatsNoteTest.class,
         BatteryStatsSamplingTimerTest.class,
+        BatteryStatsSegmentStoreTest.class,
         BatteryStatsSensorTest.class,
         BatteryStatsServTest.class,
         BatteryStatsStopwatchTimerTest.class,
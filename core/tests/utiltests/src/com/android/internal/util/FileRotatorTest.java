@@ -28,12 +28,15 @@ import android.test.suitebuilder.annotation.Suppress;
 import android.util.Log;
 
 import com.android.internal.util.FileRotator.Reader;
+import com.android.internal.util.FileRotator.Validator;
 import com.android.internal.util.FileRotator.Writer;
 import com.google.android.collect.Lists;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -379,6 +382,58 @@ public class FileRotatorTest extends AndroidTestCase {
         rotate.maybeRotate(TEST_TIME);
     }
 
+    public void testAppendTruncatesTornTail() throws Exception {
+        final int[] validations = new int[1];
+        final Validator validator = file -> {
+            validations[0]++;
+            return getValidUtfLength(file);
+        };
+        final long currentTime = TEST_TIME;
+
+        FileRotator rotate = new FileRotator(mBasePath, PREFIX, DAY_IN_MILLIS, WEEK_IN_MILLIS);
+        rotate.appendActive(writer("foo"), validator, currentTime);
+        rotate.appendActive(writer("bar"), validator, currentTime);
+        // nothing to check when creating the file, nor after a successful append
+        assertEquals(0, validations[0]);
+
+        // leave a torn record behind, as an interrupted append would
+        final File[] files = mBasePath.listFiles();
+        assertEquals(1, files.length);
+        try (FileOutputStream out = new FileOutputStream(files[0], true)) {
+            out.write(new byte[] { 0, 10, 'b' });
+        }
+
+        rotate = new FileRotator(mBasePath, PREFIX, DAY_IN_MILLIS, WEEK_IN_MILLIS);
+        rotate.appendActive(writer("baz"), validator, currentTime);
+        assertEquals(1, validations[0]);
+
+        final ArrayList<String> values = Lists.newArrayList();
+        rotate.readMatching(in -> {
+            final DataInputStream din = new DataInputStream(in);
+            while (true) {
+                try {
+                    values.add(din.readUTF());
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(Arrays.asList("foo", "bar", "baz"), values);
+    }
+
+    private static long getValidUtfLength(File file) throws IOException {
+        long length = 0;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            while (true) {
+                final int size = in.readUnsignedShort();
+                in.readFully(new byte[size]);
+                length += 2 + size;
+            }
+        } catch (EOFException e) {
+            return length;
+        }
+    }
+
     private void touch(String... names) throws IOException {
         for (String name : names) {
             final OutputStream out = new FileOutputStream(new File(mBasePath, name));
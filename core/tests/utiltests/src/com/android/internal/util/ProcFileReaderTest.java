@@ -21,6 +21,7 @@ import android.test.AndroidTestCase;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 
 /**
  * Tests for {@link ProcFileReader}.
@@ -166,6 +167,43 @@ public class ProcFileReaderTest extends AndroidTestCase {
         assertEquals(-1L, reader.nextOptionalLong(-1L));
     }
 
+    public void testPooledStrings() throws Exception {
+        final ProcFileReader reader = buildReader("wlan0 1\nrmnet0 2\nwlan0 3\n");
+        final ArrayList<String> pool = new ArrayList<>();
+
+        final String first = reader.nextString(pool);
+        assertEquals("wlan0", first);
+        assertEquals(1, reader.nextInt());
+        reader.finishLine();
+
+        assertEquals("rmnet0", reader.nextString(pool));
+        assertEquals(2, reader.nextInt());
+        reader.finishLine();
+
+        assertSame(first, reader.nextString(pool));
+        assertEquals(3, reader.nextInt());
+        reader.finishLine();
+
+        assertEquals(2, pool.size());
+        assertFalse(reader.hasMoreData());
+    }
+
+    public void testHexLongs() throws Exception {
+        final ProcFileReader reader = buildReader(
+                "0x0 0xf00d 0x7fffffff00000000 ffffff0100000000 0xzz\n");
+
+        assertEquals(0L, reader.nextHexLong());
+        assertEquals(0xf00dL, reader.nextHexLong());
+        assertEquals(0x7fffffff00000000L, reader.nextHexLong());
+        assertEquals(0xffffff0100000000L, reader.nextHexLong());
+        try {
+            reader.nextHexLong();
+            fail("parsed invalid hex value");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+    }
+
     private static ProcFileReader buildReader(String string) throws IOException {
         return buildReader(string, 2048);
     }
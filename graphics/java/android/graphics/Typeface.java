@@ -35,9 +35,12 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.ParcelFileDescriptor;
 import android.os.ResultReceiver;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.provider.FontRequest;
 import android.provider.FontsContract;
 import android.text.FontConfig;
+import android.util.ArrayMap;
 import android.util.Base64;
 import android.util.Log;
 import android.util.LongSparseArray;
@@ -105,10 +108,22 @@ public class Typeface {
     private static final LruCache<String, Typeface> sDynamicTypefaceCache = new LruCache<>(16);
 
     static Typeface sDefaultTypeface;
+    // System typefaces created so far, by family name or alias.  Use getSystemFont() to look
+    // up a name, as named families are only created when first used.
+    @GuardedBy("sLock")
     static Map<String, Typeface> sSystemFontMap;
     static FontFamily[] sFallbackFonts;
     private static final Object sLock = new Object();
 
+    // Named families and aliases from the font config whose typeface has not been created yet.
+    @GuardedBy("sLock")
+    private static final Map<String, FontConfig.Family> sPendingSystemFamilies = new ArrayMap<>();
+    @GuardedBy("sLock")
+    private static final Map<String, FontConfig.Alias> sPendingSystemAliases = new ArrayMap<>();
+    // Font files mapped so far, by path, shared by all system families.
+    @GuardedBy("sLock")
+    private static final Map<String, ByteBuffer> sSystemFontBuffers = new HashMap<>();
+
     static final String FONTS_CONFIG = "fonts.xml";
 
     /**
@@ -535,7 +550,7 @@ public class Typeface {
                 return null;
             }
 
-            Typeface base =  sSystemFontMap.get(mFallbackFamilyName);
+            Typeface base = getSystemFont(mFallbackFamilyName);
             if (base == null) {
                 base = sDefaultTypeface;
             }
@@ -674,11 +689,116 @@ public class Typeface {
      */
     public static Typeface create(String familyName, int style) {
         if (sSystemFontMap != null) {
-            return create(sSystemFontMap.get(familyName), style);
+            return create(getSystemFont(familyName), style);
         }
         return null;
     }
 
+    /**
+     * Returns the system typeface with the given family name or alias, creating it if this
+     * is the first time it is used, or null if there is none.
+     */
+    static Typeface getSystemFont(String familyName) {
+        if (familyName == null) {
+            return null;
+        }
+        synchronized (sLock) {
+            if (sSystemFontMap == null) {
+                return null;
+            }
+            final Typeface typeface = sSystemFontMap.get(familyName);
+            if (typeface != null) {
+                return typeface;
+            }
+            return createPendingSystemFontLocked(familyName);
+        }
+    }
+
+    /**
+     * Returns true if the given name is a system family name or alias, whether or not its
+     * typeface has been created yet.
+     */
+    static boolean isSystemFont(String familyName) {
+        synchronized (sLock) {
+            return sSystemFontMap != null && (sSystemFontMap.containsKey(familyName)
+                    || sPendingSystemFamilies.containsKey(familyName)
+                    || sPendingSystemAliases.containsKey(familyName));
+        }
+    }
+
+    /**
+     * Creates the system typefaces that have not been used yet.  Called by the zygote, so that
+     * the families are mapped and frozen once and shared by all processes it starts, instead of
+     * each process creating the ones it uses.
+     *
+     * @hide
+     */
+    public static void preloadSystemFonts() {
+        Trace.traceBegin(Trace.TRACE_TAG_GRAPHICS, "Typeface.preloadSystemFonts");
+        try {
+            synchronized (sLock) {
+                if (sSystemFontMap == null) {
+                    return;
+                }
+                while (!sPendingSystemAliases.isEmpty()) {
+                    createPendingSystemFontLocked(
+                            sPendingSystemAliases.keySet().iterator().next());
+                }
+                while (!sPendingSystemFamilies.isEmpty()) {
+                    final String familyName = sPendingSystemFamilies.keySet().iterator().next();
+                    if (sSystemFontMap.containsKey(familyName)) {
+                        // Shadowed by an alias of the same name.
+                        sPendingSystemFamilies.remove(familyName);
+                    } else {
+                        createPendingSystemFontLocked(familyName);
+                    }
+                }
+            }
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_GRAPHICS);
+        }
+    }
+
+    private static Typeface createPendingSystemFontLocked(String familyName) {
+        // Aliases take precedence over families of the same name, as they did when all
+        // system typefaces were created up front.
+        final FontConfig.Alias alias = sPendingSystemAliases.remove(familyName);
+        if (alias != null) {
+            final Typeface base = getSystemFont(alias.getToName());
+            if (base == null) {
+                Log.e(TAG, "Alias " + familyName + " refers to unknown family "
+                        + alias.getToName());
+                return null;
+            }
+            Typeface newFace = base;
+            final int weight = alias.getWeight();
+            if (weight != 400) {
+                newFace = new Typeface(nativeCreateWeightAlias(base.native_instance, weight));
+            }
+            sSystemFontMap.put(familyName, newFace);
+            return newFace;
+        }
+
+        final FontConfig.Family family = sPendingSystemFamilies.remove(familyName);
+        if (family == null) {
+            return null;
+        }
+        Trace.traceBegin(Trace.TRACE_TAG_GRAPHICS, "Typeface.createSystemFont");
+        try {
+            final FontFamily fontFamily = makeFamilyFromParsed(family, sSystemFontBuffers);
+            if (fontFamily == null) {
+                return null;
+            }
+            final FontFamily[] families = { fontFamily };
+            final Typeface typeface = createFromFamiliesWithDefault(families,
+                    RESOLVE_BY_FONT_TABLE, RESOLVE_BY_FONT_TABLE);
+            sSystemFontMap.put(familyName, typeface);
+            return typeface;
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_GRAPHICS);
+        }
+    }
+
     /**
      * Create a typeface object that best matches the specified existing
      * typeface and the specified Style. Use this call if you want to pick a new
@@ -920,63 +1040,68 @@ public class Typeface {
      * (non-Javadoc)
      *
      * This should only be called once, from the static class initializer block.
+     *
+     * Only the fallback families, which every typeface needs, are created here.  The other
+     * named families, and the aliases to them, are created by getSystemFont() when first
+     * used, so that their font files are not mapped and parsed until then.  The zygote
+     * creates them all with preloadSystemFonts(), so that the processes it starts share them.
      */
     private static void init() {
         // Load font config and initialize Minikin state
         File systemFontConfigLocation = getSystemFontConfigLocation();
         File configFilename = new File(systemFontConfigLocation, FONTS_CONFIG);
+        Trace.traceBegin(Trace.TRACE_TAG_GRAPHICS, "Typeface.init");
+        final long startTime = SystemClock.uptimeMillis();
         try {
             FileInputStream fontsIn = new FileInputStream(configFilename);
             FontConfig fontConfig = FontListParser.parse(fontsIn);
+            final long parseTime = SystemClock.uptimeMillis();
 
-            Map<String, ByteBuffer> bufferForPath = new HashMap<String, ByteBuffer>();
-
-            List<FontFamily> familyList = new ArrayList<FontFamily>();
-            // Note that the default typeface is always present in the fallback list;
-            // this is an enhancement from pre-Minikin behavior.
-            for (int i = 0; i < fontConfig.getFamilies().length; i++) {
-                FontConfig.Family f = fontConfig.getFamilies()[i];
-                if (i == 0 || f.getName() == null) {
-                    FontFamily family = makeFamilyFromParsed(f, bufferForPath);
-                    if (family != null) {
-                        familyList.add(family);
+            synchronized (sLock) {
+                List<FontFamily> familyList = new ArrayList<FontFamily>();
+                // Note that the default typeface is always present in the fallback list;
+                // this is an enhancement from pre-Minikin behavior.
+                for (int i = 0; i < fontConfig.getFamilies().length; i++) {
+                    FontConfig.Family f = fontConfig.getFamilies()[i];
+                    if (i == 0 || f.getName() == null) {
+                        FontFamily family = makeFamilyFromParsed(f, sSystemFontBuffers);
+                        if (family != null) {
+                            familyList.add(family);
+                        }
                     }
                 }
-            }
-            sFallbackFonts = familyList.toArray(new FontFamily[familyList.size()]);
-            setDefault(Typeface.createFromFamilies(sFallbackFonts));
-
-            Map<String, Typeface> systemFonts = new HashMap<String, Typeface>();
-            for (int i = 0; i < fontConfig.getFamilies().length; i++) {
-                Typeface typeface;
-                FontConfig.Family f = fontConfig.getFamilies()[i];
-                if (f.getName() != null) {
-                    if (i == 0) {
-                        // The first entry is the default typeface; no sense in
-                        // duplicating the corresponding FontFamily.
-                        typeface = sDefaultTypeface;
-                    } else {
-                        FontFamily fontFamily = makeFamilyFromParsed(f, bufferForPath);
-                        if (fontFamily == null) {
-                            continue;
+                sFallbackFonts = familyList.toArray(new FontFamily[familyList.size()]);
+                setDefault(Typeface.createFromFamilies(sFallbackFonts));
+
+                Map<String, Typeface> systemFonts = new ArrayMap<String, Typeface>();
+                for (int i = 0; i < fontConfig.getFamilies().length; i++) {
+                    FontConfig.Family f = fontConfig.getFamilies()[i];
+                    if (f.getName() != null) {
+                        if (i == 0) {
+                            // The first entry is the default typeface; no sense in
+                            // duplicating the corresponding FontFamily.
+                            systemFonts.put(f.getName(), sDefaultTypeface);
+                        } else {
+                            sPendingSystemFamilies.put(f.getName(), f);
                         }
-                        FontFamily[] families = { fontFamily };
-                        typeface = Typeface.createFromFamiliesWithDefault(families,
-                                RESOLVE_BY_FONT_TABLE, RESOLVE_BY_FONT_TABLE);
                     }
-                    systemFonts.put(f.getName(), typeface);
                 }
-            }
-            for (FontConfig.Alias alias : fontConfig.getAliases()) {
-                Typeface base = systemFonts.get(alias.getToName());
-                Typeface newFace = base;
-                int weight = alias.getWeight();
-                if (weight != 400) {
-                    newFace = new Typeface(nativeCreateWeightAlias(base.native_instance, weight));
+                for (FontConfig.Alias alias : fontConfig.getAliases()) {
+                    sPendingSystemAliases.put(alias.getName(), alias);
+                }
+                sSystemFontMap = systemFonts;
+
+                long mappedBytes = 0;
+                for (ByteBuffer buffer : sSystemFontBuffers.values()) {
+                    mappedBytes += buffer.capacity();
                 }
-                systemFonts.put(alias.getName(), newFace);
+                Log.i(TAG, "Loaded " + sFallbackFonts.length + " fallback families from "
+                        + sSystemFontBuffers.size() + " files (" + mappedBytes / 1024 + " KB) in "
+                        + (SystemClock.uptimeMillis() - startTime) + " ms, parsing "
+                        + configFilename.getName() + " took " + (parseTime - startTime)
+                        + " ms; deferred " + sPendingSystemFamilies.size() + " families and "
+                        + sPendingSystemAliases.size() + " aliases");
             }
-            sSystemFontMap = systemFonts;
 
         } catch (RuntimeException e) {
             Log.w(TAG, "Didn't create default family (most likely, non-Minikin build)", e);
@@ -987,6 +1112,8 @@ public class Typeface {
             Log.e(TAG, "Error reading " + configFilename, e);
         } catch (XmlPullParserException e) {
             Log.e(TAG, "XML parse exception for " + configFilename, e);
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_GRAPHICS);
         }
     }
 
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import android.util.ArrayMap;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * Keeps the undelivered events of an accessibility service that later events of the same type
+ * for the same source node are merged into. An event is tracked from when its dispatch message
+ * is posted until it is handed to the service. Not thread safe, callers hold the service lock.
+ */
+class AccessibilityEventCoalescer {
+    // Undelivered events mapped to whether the service itself wants them.
+    private final ArrayMap<AccessibilityEvent, Boolean> mEvents = new ArrayMap<>();
+
+    /**
+     * Whether an event is dispatched on its own message and may have later events for the
+     * same source node merged into it while undelivered. Content changes are never
+     * throttled, and scrolls only bypass throttling without a notification timeout.
+     */
+    static boolean isCoalescable(AccessibilityEvent event, long notificationTimeout) {
+        if (event.getSourceNodeId() == AccessibilityNodeInfo.UNDEFINED_NODE_ID) {
+            return false;
+        }
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+                return true;
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                return notificationTimeout <= 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Starts tracking an event whose dispatch message was posted.
+     *
+     * @param serviceWantsEvent Whether the service itself wants the event, as opposed to just
+     *  its accessibility cache.
+     */
+    void add(AccessibilityEvent event, boolean serviceWantsEvent) {
+        mEvents.put(event, serviceWantsEvent);
+    }
+
+    /**
+     * Merges an event into an undelivered event of the same type for the same window and
+     * source node, if there is one. The pending event keeps its place in the queue: content
+     * change types are combined, and scroll positions are replaced by the latest ones.
+     *
+     * @return True if the event was merged and must not be dispatched itself.
+     */
+    boolean coalesce(AccessibilityEvent event, boolean serviceWantsEvent,
+            long notificationTimeout) {
+        if (mEvents.isEmpty() || !isCoalescable(event, notificationTimeout)) {
+            return false;
+        }
+        for (int i = mEvents.size() - 1; i >= 0; i--) {
+            final AccessibilityEvent pending = mEvents.keyAt(i);
+            if (pending.getEventType() != event.getEventType()
+                    || pending.getWindowId() != event.getWindowId()
+                    || pending.getSourceNodeId() != event.getSourceNodeId()) {
+                continue;
+            }
+            // The pending event is only handed to the service after it has been removed, so
+            // it is safe to modify it here.
+            pending.setSealed(false);
+            if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
+                pending.setContentChangeTypes(
+                        pending.getContentChangeTypes() | event.getContentChangeTypes());
+            } else {
+                pending.setScrollX(event.getScrollX());
+                pending.setScrollY(event.getScrollY());
+                pending.setMaxScrollX(event.getMaxScrollX());
+                pending.setMaxScrollY(event.getMaxScrollY());
+                pending.setFromIndex(event.getFromIndex());
+                pending.setToIndex(event.getToIndex());
+                pending.setItemCount(event.getItemCount());
+            }
+            pending.setEventTime(event.getEventTime());
+            if (serviceWantsEvent) {
+                mEvents.setValueAt(i, true);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops merging newer events into an event that is being delivered.
+     *
+     * @return Whether the service itself wants the event or any event merged into it, or null
+     *  if the event was not tracked.
+     */
+    Boolean remove(AccessibilityEvent event) {
+        return mEvents.remove(event);
+    }
+}
@@ -238,6 +238,12 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
 
     private int mCurrentUserId = UserHandle.USER_SYSTEM;
 
+    // Events sent for the current user, and how many of them were dispatched to services.
+    private long mEventsReceived;
+    private long mEventsDispatched;
+    // Dispatched events that no bound service was interested in.
+    private long mEventsUnwanted;
+
     //TODO: Remove this hack
     private boolean mInitialized;
 
@@ -508,6 +514,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                     .resolveCallingUserIdEnforcingPermissionsLocked(userId);
             // This method does nothing for a background user.
             if (resolvedUserId == mCurrentUserId) {
+                mEventsReceived++;
                 if (mSecurityPolicy.canDispatchAccessibilityEventLocked(event)) {
                     mSecurityPolicy.updateActiveAndAccessibilityFocusedWindowLocked(
                             event.getWindowId(), event.getSourceNodeId(),
@@ -533,6 +540,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 wm.computeWindowsForAccessibility();
             }
             synchronized (mLock) {
+                mEventsDispatched++;
                 notifyAccessibilityServicesDelayedLocked(event, false);
                 notifyAccessibilityServicesDelayedLocked(event, true);
             }
@@ -1320,25 +1328,28 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
      */
     private void notifyAccessibilityServicesDelayedLocked(AccessibilityEvent event,
             boolean isDefault) {
-        try {
-            UserState state = getCurrentUserStateLocked();
-            for (int i = 0, count = state.mBoundServices.size(); i < count; i++) {
-                Service service = state.mBoundServices.get(i);
-
-                if (service.mIsDefault == isDefault) {
-                    if (doesServiceWantEventLocked(service, event)) {
-                        service.notifyAccessibilityEvent(event, true);
-                    } else if (service.mUsesAccessibilityCache
-                            && (AccessibilityCache.CACHE_CRITICAL_EVENTS_MASK
-                                & event.getEventType()) != 0) {
-                        service.notifyAccessibilityEvent(event, false);
-                    }
+        UserState state = getCurrentUserStateLocked();
+        List<Service> services = state.mServicesByEventType.get(event.getEventType());
+        if (services.isEmpty()) {
+            if (isDefault) {
+                mEventsUnwanted++;
+            }
+            return;
+        }
+        String packageName = (event.getPackageName() != null)
+                ? event.getPackageName().toString() : null;
+        for (int i = 0, count = services.size(); i < count; i++) {
+            Service service = services.get(i);
+
+            if (service.mIsDefault == isDefault) {
+                if (doesServiceWantEventLocked(service, event, packageName)) {
+                    service.notifyAccessibilityEvent(event, true);
+                } else if (service.mUsesAccessibilityCache
+                        && (AccessibilityCache.CACHE_CRITICAL_EVENTS_MASK
+                            & event.getEventType()) != 0) {
+                    service.notifyAccessibilityEvent(event, false);
                 }
             }
-        } catch (IndexOutOfBoundsException oobe) {
-            // An out of bounds exception can happen if services are going away
-            // as the for loop is running. If that happens, just bail because
-            // there are no more services to notify.
         }
     }
 
@@ -1347,6 +1358,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             if (!userState.mBoundServices.contains(service)) {
                 service.onAdded();
                 userState.mBoundServices.add(service);
+                userState.mServicesByEventType.invalidate();
                 userState.mComponentNameToServiceMap.put(service.mComponentName, service);
                 scheduleNotifyClientsOfServicesStateChange(userState);
             }
@@ -1362,6 +1374,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
      */
     private void removeServiceLocked(Service service, UserState userState) {
         userState.mBoundServices.remove(service);
+        userState.mServicesByEventType.invalidate();
         service.onRemoved();
         // It may be possible to bind a service twice, which confuses the map. Rebuild the map
         // to make sure we can still reach a service
@@ -1374,6 +1387,9 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
     }
 
     private void updateRelevantEventsLocked(UserState userState) {
+        // The event types or package filters of a service may have changed.
+        userState.mServicesByEventType.invalidate();
+
         int relevantEventTypes = AccessibilityCache.CACHE_CRITICAL_EVENTS_MASK;
         for (Service service : userState.mBoundServices) {
             relevantEventTypes |= service.mEventTypes;
@@ -1409,9 +1425,11 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
      *
      * @param service The potential receiver.
      * @param event The event.
+     * @param packageName The package of the event source.
      * @return True if the listener should be notified, false otherwise.
      */
-    private boolean doesServiceWantEventLocked(Service service, AccessibilityEvent event) {
+    private boolean doesServiceWantEventLocked(Service service, AccessibilityEvent event,
+            String packageName) {
 
         if (!service.canReceiveEventsLocked()) {
             return false;
@@ -1430,9 +1448,6 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
         }
 
         Set<String> packageNames = service.mPackageNames;
-        String packageName = (event.getPackageName() != null)
-                ? event.getPackageName().toString() : null;
-
         return (packageNames.isEmpty() || packageNames.contains(packageName));
     }
 
@@ -2310,6 +2325,11 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
         synchronized (mLock) {
             pw.println("ACCESSIBILITY MANAGER (dumpsys accessibility)");
             pw.println();
+            pw.append("Events[received=" + mEventsReceived);
+            pw.append(", dispatched=" + mEventsDispatched);
+            pw.append(", unwanted=" + mEventsUnwanted);
+            pw.println("]");
+            pw.println();
             final int userCount = mUserStates.size();
             for (int i = 0; i < userCount; i++) {
                 UserState userState = mUserStates.valueAt(i);
@@ -2675,6 +2695,15 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
         final SparseArray<AccessibilityEvent> mPendingEvents =
             new SparseArray<>();
 
+        // Undelivered events that later equivalent events are merged into.
+        final AccessibilityEventCoalescer mEventCoalescer = new AccessibilityEventCoalescer();
+
+        long mEventsReceived;
+
+        long mEventsCoalesced;
+
+        long mEventsDelivered;
+
         boolean mWasConnectedAndDied;
 
         /** Whether this service relies on its {@link AccessibilityCache} being up to date */
@@ -3037,7 +3066,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             Region partialInteractiveRegion = Region.obtain();
             MagnificationSpec spec;
             synchronized (mLock) {
-                mUsesAccessibilityCache = true;
+                setUsesAccessibilityCacheLocked();
                 if (!isCalledForCurrentUserLocked()) {
                     return false;
                 }
@@ -3092,7 +3121,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             Region partialInteractiveRegion = Region.obtain();
             MagnificationSpec spec;
             synchronized (mLock) {
-                mUsesAccessibilityCache = true;
+                setUsesAccessibilityCacheLocked();
                 if (!isCalledForCurrentUserLocked()) {
                     return false;
                 }
@@ -3147,7 +3176,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             Region partialInteractiveRegion = Region.obtain();
             MagnificationSpec spec;
             synchronized (mLock) {
-                mUsesAccessibilityCache = true;
+                setUsesAccessibilityCacheLocked();
                 if (!isCalledForCurrentUserLocked()) {
                     return false;
                 }
@@ -3613,6 +3642,9 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                 pw.append(", eventTypes="
                         + AccessibilityEvent.eventTypeToString(mEventTypes));
                 pw.append(", notificationTimeout=" + mNotificationTimeout);
+                pw.append(", eventsReceived=" + mEventsReceived);
+                pw.append(", eventsCoalesced=" + mEventsCoalesced);
+                pw.append(", eventsDelivered=" + mEventsDelivered);
                 pw.append("]");
             }
         }
@@ -3704,6 +3736,11 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
         public void notifyAccessibilityEvent(AccessibilityEvent event, boolean serviceWantsEvent) {
             synchronized (mLock) {
                 final int eventType = event.getEventType();
+                mEventsReceived++;
+                if (mEventCoalescer.coalesce(event, serviceWantsEvent, mNotificationTimeout)) {
+                    mEventsCoalesced++;
+                    return;
+                }
                 // Make a copy since during dispatch it is possible the event to
                 // be modified to remove its source if the receiving service does
                 // not have permission to access the window content.
@@ -3717,11 +3754,15 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                     if (oldEvent != null) {
                         mEventDispatchHandler.removeMessages(eventType);
                         oldEvent.recycle();
+                        mEventsCoalesced++;
                     }
                     message = mEventDispatchHandler.obtainMessage(eventType);
                 } else {
                     // Send all messages, bypassing mPendingEvents
                     message = mEventDispatchHandler.obtainMessage(eventType, newEvent);
+                    if (AccessibilityEventCoalescer.isCoalescable(newEvent, mNotificationTimeout)) {
+                        mEventCoalescer.add(newEvent, serviceWantsEvent);
+                    }
                 }
                 message.arg1 = serviceWantsEvent ? 1 : 0;
 
@@ -3729,6 +3770,14 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             }
         }
 
+        private void setUsesAccessibilityCacheLocked() {
+            if (!mUsesAccessibilityCache) {
+                mUsesAccessibilityCache = true;
+                // The service now needs cache critical events it did not ask for.
+                getUserStateLocked(mUserId).mServicesByEventType.invalidate();
+            }
+        }
+
         private boolean isAccessibilityButtonAvailableLocked(UserState userState) {
             // If the service does not request the accessibility button, it isn't available
             if (!mRequestAccessibilityButton) {
@@ -3785,6 +3834,15 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
             synchronized (mLock) {
                 listener = mServiceInterface;
 
+                if (event != null) {
+                    // Stop merging newer events into this one, and pick up whether any of the
+                    // merged events was wanted by the service itself.
+                    final Boolean mergedServiceWantsEvent = mEventCoalescer.remove(event);
+                    if (mergedServiceWantsEvent != null) {
+                        serviceWantsEvent = mergedServiceWantsEvent;
+                    }
+                }
+
                 // If the service died/was disabled while the message for dispatching
                 // the accessibility event was propagating the listener may be null.
                 if (listener == null) {
@@ -3823,6 +3881,7 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
                     event.setSource((View) null);
                 }
                 event.setSealed(true);
+                mEventsDelivered++;
             }
 
             try {
@@ -4901,6 +4960,9 @@ public class AccessibilityManagerService extends IAccessibilityManager.Stub {
         public final CopyOnWriteArrayList<Service> mBoundServices =
                 new CopyOnWriteArrayList<>();
 
+        public final AccessibilityServicesByEventType mServicesByEventType =
+                new AccessibilityServicesByEventType(mBoundServices);
+
         public int mLastSentRelevantEventTypes = AccessibilityEvent.TYPES_ALL_MASK;
 
         public final Map<ComponentName, Service> mComponentNameToServiceMap =
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import android.util.SparseArray;
+import android.view.accessibility.AccessibilityCache;
+
+import com.android.server.accessibility.AccessibilityManagerService.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of the bound accessibility services of a user by the single event type they may need
+ * to be notified of: the ones they asked for, and the ones their accessibility cache depends
+ * on. It is rebuilt lazily after being invalidated, which must happen whenever services are
+ * bound or unbound, or their event types or use of the cache change. Not thread safe, callers
+ * hold the service lock.
+ */
+class AccessibilityServicesByEventType {
+    private final List<Service> mBoundServices;
+
+    // Null when it needs to be rebuilt.
+    private SparseArray<List<Service>> mServicesByEventType;
+
+    AccessibilityServicesByEventType(List<Service> boundServices) {
+        mBoundServices = boundServices;
+    }
+
+    /**
+     * Returns the bound services that may need to be notified of an event of the given type.
+     * All of them are returned when the type is not a single event type.
+     */
+    List<Service> get(int eventType) {
+        if (Integer.bitCount(eventType) != 1) {
+            return mBoundServices;
+        }
+        if (mServicesByEventType == null) {
+            mServicesByEventType = build();
+        }
+        final List<Service> services = mServicesByEventType.get(eventType);
+        return (services != null) ? services : Collections.emptyList();
+    }
+
+    void invalidate() {
+        mServicesByEventType = null;
+    }
+
+    private SparseArray<List<Service>> build() {
+        final SparseArray<List<Service>> servicesByEventType = new SparseArray<>();
+        for (int i = 0, count = mBoundServices.size(); i < count; i++) {
+            final Service service = mBoundServices.get(i);
+            int eventTypes = service.mEventTypes;
+            if (service.mUsesAccessibilityCache) {
+                eventTypes |= AccessibilityCache.CACHE_CRITICAL_EVENTS_MASK;
+            }
+            while (eventTypes != 0) {
+                final int type = Integer.lowestOneBit(eventTypes);
+                eventTypes &= ~type;
+                List<Service> services = servicesByEventType.get(type);
+                if (services == null) {
+                    services = new ArrayList<>();
+                    servicesByEventType.put(type, services);
+                }
+                services.add(service);
+            }
+        }
+        return servicesByEventType;
+    }
+}
@@ -136,6 +136,7 @@ import com.android.server.connectivity.NetworkDiagnostics;
 import com.android.server.connectivity.NetworkMonitor;
 import com.android.server.connectivity.NetworkNotificationManager;
 import com.android.server.connectivity.NetworkNotificationManager.NotificationType;
+import com.android.server.connectivity.NetworkRequestIndex;
 import com.android.server.connectivity.PacManager;
 import com.android.server.connectivity.PermissionMonitor;
 import com.android.server.connectivity.Tethering;
@@ -464,6 +465,14 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private long mMaxWakelockDurationMs = 0;
     private long mLastWakeLockAcquireTimestamp = 0;
 
+    // Rematch statistics, updated on the handler thread and only read for dumpsys.
+    private int mTotalRematches = 0;
+    private int mTotalFullRematches = 0;
+    private long mTotalRematchCandidates = 0;
+    private long mTotalRematchRequests = 0;
+    private long mTotalRematchDurationUs = 0;
+    private long mMaxRematchDurationUs = 0;
+
     // Array of <Network,ReadOnlyLocalLogs> tracking network validation and results
     private static final int MAX_VALIDATION_LOGS = 10;
     private static class ValidationLog {
@@ -700,6 +709,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         mDefaultRequest = createInternetRequestForTransport(-1, NetworkRequest.Type.REQUEST);
         NetworkRequestInfo defaultNRI = new NetworkRequestInfo(null, mDefaultRequest, new Binder());
         mNetworkRequests.put(mDefaultRequest, defaultNRI);
+        mNetworkRequestIndex.add(mDefaultRequest, defaultNRI);
         mNetworkRequestInfoLogs.log("REGISTER " + defaultNRI);
 
         mDefaultMobileDataRequest = createInternetRequestForTransport(
@@ -1926,6 +1936,9 @@ public class ConnectivityService extends IConnectivityManager.Stub
         pw.println();
         pw.decreaseIndent();
 
+        dumpRematchStats(pw);
+        pw.println();
+
         mLegacyTypeTracker.dump(pw);
 
         pw.println();
@@ -2362,6 +2375,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private void handleRegisterNetworkRequest(NetworkRequestInfo nri) {
         mNetworkRequests.put(nri.request, nri);
+        mNetworkRequestIndex.add(nri.request, nri);
         mNetworkRequestInfoLogs.log("REGISTER " + nri);
         if (nri.request.isListen()) {
             for (NetworkAgentInfo network : mNetworkAgentInfos.values()) {
@@ -2479,6 +2493,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private void handleRemoveNetworkRequest(final NetworkRequestInfo nri) {
         nri.unlinkDeathRecipient();
         mNetworkRequests.remove(nri.request);
+        mNetworkRequestIndex.remove(nri.request);
         synchronized (mUidToNetworkRequestCount) {
             int requests = mUidToNetworkRequestCount.get(nri.mUid, 0);
             if (requests < 1) {
@@ -3913,6 +3928,12 @@ public class ConnectivityService extends IConnectivityManager.Stub
             new HashMap<Messenger, NetworkFactoryInfo>();
     private final HashMap<NetworkRequest, NetworkRequestInfo> mNetworkRequests =
             new HashMap<NetworkRequest, NetworkRequestInfo>();
+    // Non-listen requests in mNetworkRequests, indexed by the transports and capabilities they
+    // need, so that rematching a network only considers the requests it could satisfy.
+    private final NetworkRequestIndex<NetworkRequestInfo> mNetworkRequestIndex =
+            new NetworkRequestIndex<>();
+    // Scratch list of rematch candidates. Only used on the handler thread.
+    private final ArrayList<NetworkRequestInfo> mRematchCandidates = new ArrayList<>();
 
     private static final int MAX_NETWORK_REQUESTS_PER_UID = 100;
     // Map from UID to number of NetworkRequests that UID has filed.
@@ -4866,13 +4887,18 @@ public class ConnectivityService extends IConnectivityManager.Stub
         ArrayList<NetworkRequestInfo> addedRequests = new ArrayList<NetworkRequestInfo>();
         NetworkCapabilities nc = newNetwork.networkCapabilities;
         if (VDBG) log(" network has: " + nc);
-        for (NetworkRequestInfo nri : mNetworkRequests.values()) {
-            // Process requests in the first pass and listens in the second pass. This allows us to
-            // change a network's capabilities depending on which requests it has. This is only
-            // correct if the change in capabilities doesn't affect whether the network satisfies
-            // requests or not, and doesn't affect the network's score.
-            if (nri.request.isListen()) continue;
-
+        // Process requests in the first pass and listens in the second pass. This allows us to
+        // change a network's capabilities depending on which requests it has. This is only
+        // correct if the change in capabilities doesn't affect whether the network satisfies
+        // requests or not, and doesn't affect the network's score.
+        //
+        // Only requests that newNetwork might satisfy, or is currently satisfying, are visited.
+        // Listens are not indexed.
+        final long startUs = SystemClock.elapsedRealtimeNanos() / 1000;
+        final int numCandidates = mNetworkRequestIndex.getCandidates(newNetwork,
+                mRematchCandidates);
+        for (int i = 0; i < numCandidates; i++) {
+            final NetworkRequestInfo nri = mRematchCandidates.get(i);
             final NetworkAgentInfo currentNetwork = mNetworkForRequestId.get(nri.request.requestId);
             final boolean satisfies = newNetwork.satisfies(nri.request);
             if (newNetwork == currentNetwork && satisfies) {
@@ -4956,6 +4982,8 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 callCallbackForRequest(nri, newNetwork, ConnectivityManager.CALLBACK_LOST, 0);
             }
         }
+        mRematchCandidates.clear();
+        noteRematch(numCandidates, SystemClock.elapsedRealtimeNanos() / 1000 - startUs);
         if (isNewDefault) {
             // Notify system services that this network is up.
             makeDefault(newNetwork);
@@ -5108,6 +5136,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         if (changed != null && oldScore < changed.getCurrentScore()) {
             rematchNetworkAndRequests(changed, ReapUnvalidatedNetworks.REAP, now);
         } else {
+            mTotalFullRematches++;
             final NetworkAgentInfo[] nais = mNetworkAgentInfos.values().toArray(
                     new NetworkAgentInfo[mNetworkAgentInfos.size()]);
             // Rematch higher scoring networks first to prevent requests first matching a lower
@@ -5126,6 +5155,29 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
     }
 
+    private void noteRematch(int numCandidates, long durationUs) {
+        mTotalRematches++;
+        mTotalRematchCandidates += numCandidates;
+        mTotalRematchRequests += mNetworkRequestIndex.size();
+        mTotalRematchDurationUs += durationUs;
+        if (durationUs > mMaxRematchDurationUs) {
+            mMaxRematchDurationUs = durationUs;
+        }
+    }
+
+    private void dumpRematchStats(IndentingPrintWriter pw) {
+        pw.println("Rematch stats:");
+        pw.increaseIndent();
+        pw.println("indexed requests: " + mNetworkRequestIndex.size());
+        pw.println("network rematches: " + mTotalRematches + " (full: " + mTotalFullRematches
+                + ")");
+        pw.println("requests considered: " + mTotalRematchCandidates + " of "
+                + mTotalRematchRequests);
+        pw.println("cumulative request matching duration: " + mTotalRematchDurationUs + "us");
+        pw.println("longest request matching duration: " + mMaxRematchDurationUs + "us");
+        pw.decreaseIndent();
+    }
+
     private void updateInetCondition(NetworkAgentInfo nai) {
         // Don't bother updating until we've graduated to validated at least once.
         if (!nai.everValidated) return;
@@ -30,19 +30,28 @@ import android.os.DropBoxManager;
 import android.os.FileUtils;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
 import android.os.StatFs;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.format.Time;
+import android.util.AtomicFile;
 import android.util.Slog;
 
 import libcore.io.IoUtils;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.IDropBoxManagerService;
 import com.android.internal.util.DumpUtils;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
@@ -51,10 +60,15 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -70,6 +84,16 @@ public final class DropBoxManagerService extends SystemService {
     private static final int DEFAULT_RESERVE_PERCENT = 10;
     private static final int QUOTA_RESCAN_MILLIS = 5000;
 
+    // Maximum number of entries waiting to be written before new ones are dropped.
+    private static final int MAX_PENDING_WRITES = 64;
+    // Maximum total size of the contents of entries waiting to be written; an entry larger
+    // than this on its own is recorded as a tombstone.
+    private static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+    // Persisted summary of the entries on disk, so init() doesn't have to stat every file.
+    private static final String INDEX_FILE_NAME = "dropbox.index";
+    private static final int INDEX_VERSION = 1;
+
     // mHandler 'what' value.
     private static final int MSG_SEND_BROADCAST = 1;
 
@@ -101,6 +125,44 @@ public final class DropBoxManagerService extends SystemService {
     // Provide a way to perform sendBroadcast asynchronously to avoid deadlocks.
     private final Handler mHandler;
 
+    /**
+     * Entries are copied (and compressed) to disk on this executor rather than on the caller's
+     * binder thread, so that crash storms don't block the processes reporting them.  The queue
+     * is bounded; once it is full, further entries are dropped and counted.
+     */
+    private final ThreadPoolExecutor mWriteExecutor = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_PENDING_WRITES));
+
+    private final Object mPendingLock = new Object();
+    // Entries accepted by add() but not yet on disk, in the order they are written.  Readers
+    // are served these from memory rather than waiting for the writer.
+    @GuardedBy("mPendingLock")
+    private final ArrayDeque<PendingEntry> mPendingEntries = new ArrayDeque<>();
+    @GuardedBy("mPendingLock")
+    private long mPendingBytes = 0;
+    // Latest timestamp given to an entry, pending or on disk.
+    @GuardedBy("mPendingLock")
+    private long mLastTimestampMillis = 0;
+    @GuardedBy("mPendingLock")
+    private long mCompletedWrites = 0;
+    @GuardedBy("mPendingLock")
+    private long mDroppedEntries = 0;
+
+    /** Contents of an entry waiting to be written; data is null for a tombstone. */
+    private static final class PendingEntry {
+        final String tag;
+        final long timestampMillis;
+        final int flags;
+        final byte[] data;
+
+        PendingEntry(String tag, long timestampMillis, int flags, byte[] data) {
+            this.tag = tag;
+            this.timestampMillis = timestampMillis;
+            this.flags = flags;
+            this.data = data;
+        }
+    }
+
     /** Receives events that might indicate a need to clean up files. */
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -216,74 +278,199 @@ public final class DropBoxManagerService extends SystemService {
     }
 
     public void add(DropBoxManager.Entry entry) {
+        try {
+            if ((entry.getFlags() & DropBoxManager.IS_EMPTY) != 0) {
+                throw new IllegalArgumentException();
+            }
+            final String tag = entry.getTag();
+            if (!isTagEnabled(tag)) {
+                return;
+            }
+
+            // Copy the contents before returning: the caller closes the entry once we do, and
+            // in-process callers hand us that very object.
+            final byte[] data;
+            try {
+                data = readEntryData(entry);
+            } catch (IOException e) {
+                Slog.e(TAG, "Can't read: " + tag, e);
+                return;
+            }
+            int flags = entry.getFlags();
+            if (data == null) {
+                Slog.w(TAG, "Dropping: " + tag + " (> " + MAX_PENDING_BYTES + " bytes)");
+                flags = DropBoxManager.IS_EMPTY;
+            }
+
+            synchronized (mPendingLock) {
+                final int size = data != null ? data.length : 0;
+                if (mPendingBytes + size > MAX_PENDING_BYTES) {
+                    Slog.w(TAG, "Dropping: " + tag + " (too many pending bytes)");
+                    mDroppedEntries++;
+                    return;
+                }
+                // Take the timestamp now so entries are ordered by when they were reported,
+                // not by when the writer got around to them.
+                mLastTimestampMillis = Math.max(System.currentTimeMillis(),
+                        mLastTimestampMillis + 1);
+                final PendingEntry pending = new PendingEntry(tag, mLastTimestampMillis, flags,
+                        data);
+                try {
+                    mWriteExecutor.execute(() -> {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        try {
+                            writeEntry(pending);
+                        } finally {
+                            onWriteFinished(pending);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Slog.w(TAG, "Dropping: " + tag + " (too many pending writes)");
+                    mDroppedEntries++;
+                    return;
+                }
+                // The writer can't finish with it before we release the lock.
+                mPendingEntries.addLast(pending);
+                mPendingBytes += size;
+            }
+        } finally {
+            entry.close();
+        }
+    }
+
+    /**
+     * Reads the uncompressed contents of an entry.
+     * @return the contents, or null if they are larger than {@link #MAX_PENDING_BYTES}
+     */
+    private static byte[] readEntryData(DropBoxManager.Entry entry) throws IOException {
+        final InputStream input = entry.getInputStream();
+        if (input == null) {
+            return new byte[0];
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                if (out.size() + n > MAX_PENDING_BYTES) {
+                    return null;
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            IoUtils.closeQuietly(input);
+        }
+    }
+
+    private void onWriteFinished(PendingEntry pending) {
+        final boolean idle;
+        synchronized (mPendingLock) {
+            mPendingEntries.remove(pending);
+            mPendingBytes -= pending.data != null ? pending.data.length : 0;
+            mCompletedWrites++;
+            idle = mPendingEntries.isEmpty();
+            mPendingLock.notifyAll();
+        }
+        if (idle) {
+            writeIndex();
+        }
+    }
+
+    /** Waits for every entry accepted by {@link #add} so far to be written. */
+    @VisibleForTesting
+    void waitForPendingWrites() throws InterruptedException {
+        synchronized (mPendingLock) {
+            while (!mPendingEntries.isEmpty()) {
+                mPendingLock.wait();
+            }
+        }
+    }
+
+    /** @return the first entry after millis that has not been written yet, or null */
+    private PendingEntry getNextPendingEntry(String tag, long millis) {
+        synchronized (mPendingLock) {
+            for (PendingEntry pending : mPendingEntries) {
+                if (pending.timestampMillis > millis && (tag == null || tag.equals(pending.tag))) {
+                    return pending;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Copies an entry to disk, compressing if worthwhile.  Runs on the writer executor. */
+    private void writeEntry(PendingEntry pending) {
         File temp = null;
         InputStream input = null;
         OutputStream output = null;
-        final String tag = entry.getTag();
+        final String tag = pending.tag;
         try {
-            int flags = entry.getFlags();
-            if ((flags & DropBoxManager.IS_EMPTY) != 0) throw new IllegalArgumentException();
+            int flags = pending.flags;
 
             init();
-            if (!isTagEnabled(tag)) return;
             long max = trimToFit();
             long lastTrim = System.currentTimeMillis();
 
-            byte[] buffer = new byte[mBlockSize];
-            input = entry.getInputStream();
+            // An entry too large to queue leaves a tombstone (temp = null).
+            if (pending.data != null) {
+                byte[] buffer = new byte[mBlockSize];
+                input = new ByteArrayInputStream(pending.data);
 
-            // First, accumulate up to one block worth of data in memory before
-            // deciding whether to compress the data or not.
+                // First, accumulate up to one block worth of data in memory before
+                // deciding whether to compress the data or not.
 
-            int read = 0;
-            while (read < buffer.length) {
-                int n = input.read(buffer, read, buffer.length - read);
-                if (n <= 0) break;
-                read += n;
-            }
-
-            // If we have at least one block, compress it -- otherwise, just write
-            // the data in uncompressed form.
+                int read = 0;
+                while (read < buffer.length) {
+                    int n = input.read(buffer, read, buffer.length - read);
+                    if (n <= 0) break;
+                    read += n;
+                }
 
-            temp = new File(mDropBoxDir, "drop" + Thread.currentThread().getId() + ".tmp");
-            int bufferSize = mBlockSize;
-            if (bufferSize > 4096) bufferSize = 4096;
-            if (bufferSize < 512) bufferSize = 512;
-            FileOutputStream foutput = new FileOutputStream(temp);
-            output = new BufferedOutputStream(foutput, bufferSize);
-            if (read == buffer.length && ((flags & DropBoxManager.IS_GZIPPED) == 0)) {
-                output = new GZIPOutputStream(output);
-                flags = flags | DropBoxManager.IS_GZIPPED;
-            }
+                // If we have at least one block, compress it -- otherwise, just write
+                // the data in uncompressed form.
+
+                temp = new File(mDropBoxDir, "drop" + Thread.currentThread().getId() + ".tmp");
+                int bufferSize = mBlockSize;
+                if (bufferSize > 4096) bufferSize = 4096;
+                if (bufferSize < 512) bufferSize = 512;
+                FileOutputStream foutput = new FileOutputStream(temp);
+                output = new BufferedOutputStream(foutput, bufferSize);
+                if (read == buffer.length && ((flags & DropBoxManager.IS_GZIPPED) == 0)) {
+                    output = new GZIPOutputStream(output);
+                    flags = flags | DropBoxManager.IS_GZIPPED;
+                }
 
-            do {
-                output.write(buffer, 0, read);
+                do {
+                    output.write(buffer, 0, read);
 
-                long now = System.currentTimeMillis();
-                if (now - lastTrim > 30 * 1000) {
-                    max = trimToFit();  // In case data dribbles in slowly
-                    lastTrim = now;
-                }
+                    long now = System.currentTimeMillis();
+                    if (now - lastTrim > 30 * 1000) {
+                        max = trimToFit();  // In case data dribbles in slowly
+                        lastTrim = now;
+                    }
 
-                read = input.read(buffer);
-                if (read <= 0) {
-                    FileUtils.sync(foutput);
-                    output.close();  // Get a final size measurement
-                    output = null;
-                } else {
-                    output.flush();  // So the size measurement is pseudo-reasonable
-                }
+                    read = input.read(buffer);
+                    if (read <= 0) {
+                        FileUtils.sync(foutput);
+                        output.close();  // Get a final size measurement
+                        output = null;
+                    } else {
+                        output.flush();  // So the size measurement is pseudo-reasonable
+                    }
 
-                long len = temp.length();
-                if (len > max) {
-                    Slog.w(TAG, "Dropping: " + tag + " (" + temp.length() + " > " + max + " bytes)");
-                    temp.delete();
-                    temp = null;  // Pass temp = null to createEntry() to leave a tombstone
-                    break;
-                }
-            } while (read > 0);
+                    long len = temp.length();
+                    if (len > max) {
+                        Slog.w(TAG, "Dropping: " + tag + " (" + temp.length() + " > " + max
+                                + " bytes)");
+                        temp.delete();
+                        temp = null;  // Pass temp = null to createEntry() to leave a tombstone
+                        break;
+                    }
+                } while (read > 0);
+            }
 
-            long time = createEntry(temp, tag, flags);
+            long time = createEntry(temp, tag, flags, pending.timestampMillis);
             temp = null;
 
             final Intent dropboxIntent = new Intent(DropBoxManager.ACTION_DROPBOX_ENTRY_ADDED);
@@ -302,7 +489,6 @@ public final class DropBoxManagerService extends SystemService {
         } finally {
             IoUtils.closeQuietly(output);
             IoUtils.closeQuietly(input);
-            entry.close();
             if (temp != null) temp.delete();
         }
     }
@@ -317,12 +503,30 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
-    public synchronized DropBoxManager.Entry getNextEntry(String tag, long millis) {
+    public DropBoxManager.Entry getNextEntry(String tag, long millis) {
         if (getContext().checkCallingOrSelfPermission(android.Manifest.permission.READ_LOGS)
                 != PackageManager.PERMISSION_GRANTED) {
             throw new SecurityException("READ_LOGS permission required");
         }
 
+        // Checked before the files, so that an entry written in between is found in one or the
+        // other.
+        final PendingEntry pending = getNextPendingEntry(tag, millis);
+        final DropBoxManager.Entry written = getNextEntryLocked(tag, millis,
+                pending != null ? pending.timestampMillis : Long.MAX_VALUE);
+        if (written != null || pending == null) {
+            return written;
+        }
+        if (pending.data == null) {
+            return new DropBoxManager.Entry(pending.tag, pending.timestampMillis);
+        }
+        return new DropBoxManager.Entry(pending.tag, pending.timestampMillis, pending.data,
+                pending.flags);
+    }
+
+    /** @return the first entry on disk after millis, or null if there is none up to maxMillis */
+    private synchronized DropBoxManager.Entry getNextEntryLocked(String tag, long millis,
+            long maxMillis) {
         try {
             init();
         } catch (IOException e) {
@@ -334,6 +538,7 @@ public final class DropBoxManagerService extends SystemService {
         if (list == null) return null;
 
         for (EntryFile entry : list.contents.tailSet(new EntryFile(millis + 1))) {
+            if (entry.timestampMillis > maxMillis) break;
             if (entry.tag == null) continue;
             if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) {
                 return new DropBoxManager.Entry(entry.tag, entry.timestampMillis);
@@ -350,9 +555,18 @@ public final class DropBoxManagerService extends SystemService {
         return null;
     }
 
-    public synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (!DumpUtils.checkDumpAndUsageStatsPermission(getContext(), TAG, pw)) return;
 
+        synchronized (mPendingLock) {
+            pw.println("Pending writes: " + mPendingEntries.size() + " (" + mPendingBytes
+                    + " bytes), completed: " + mCompletedWrites + ", dropped: "
+                    + mDroppedEntries);
+        }
+        dumpLocked(pw, args);
+    }
+
+    private synchronized void dumpLocked(PrintWriter pw, String[] args) {
         try {
             init();
         } catch (IOException e) {
@@ -579,8 +793,19 @@ public final class DropBoxManagerService extends SystemService {
          * @param blockSize to use for space accounting
          */
         public EntryFile(File file, int blockSize) {
+            this(file, blockSize, -1);
+        }
+
+        /**
+         * Extracts metadata from an existing on-disk log filename.
+         * @param file name of existing log file
+         * @param blockSize to use for space accounting
+         * @param blocks previously recorded size of the file, or -1 to measure it
+         */
+        public EntryFile(File file, int blockSize, int blocks) {
             this.file = file;
-            this.blocks = (int) ((this.file.length() + blockSize - 1) / blockSize);
+            this.blocks = blocks >= 0
+                    ? blocks : (int) ((this.file.length() + blockSize - 1) / blockSize);
 
             String name = file.getName();
             int at = name.lastIndexOf('@');
@@ -653,6 +878,10 @@ public final class DropBoxManagerService extends SystemService {
             mAllFiles = new FileList();
             mFilesByTag = new HashMap<String, FileList>();
 
+            // Sizes recorded by the last run, which spares us a stat() per file.  Files that
+            // aren't in the index (e.g. written after it was last saved) are measured instead.
+            final HashMap<String, Integer> indexedBlocks = readIndex();
+
             // Scan pre-existing files.
             for (File file : files) {
                 if (file.getName().endsWith(".tmp")) {
@@ -660,8 +889,12 @@ public final class DropBoxManagerService extends SystemService {
                     file.delete();
                     continue;
                 }
+                if (file.getName().startsWith(INDEX_FILE_NAME)) {
+                    continue;
+                }
 
-                EntryFile entry = new EntryFile(file, mBlockSize);
+                final Integer blocks = indexedBlocks.get(file.getName());
+                EntryFile entry = new EntryFile(file, mBlockSize, blocks != null ? blocks : -1);
                 if (entry.tag == null) {
                     Slog.w(TAG, "Unrecognized file: " + file);
                     continue;
@@ -676,6 +909,62 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
+    /**
+     * Reads the persisted index of entry file sizes.
+     * @return map of file name to size in blocks, empty if there is no usable index
+     */
+    private HashMap<String, Integer> readIndex() {
+        final HashMap<String, Integer> blocks = new HashMap<>();
+        final AtomicFile indexFile = new AtomicFile(new File(mDropBoxDir, INDEX_FILE_NAME));
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(indexFile.openRead()));
+            if (in.readInt() != INDEX_VERSION || in.readInt() != mBlockSize) {
+                return blocks;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String name = in.readUTF();
+                blocks.put(name, in.readInt());
+            }
+        } catch (IOException e) {
+            // Missing or corrupt index; every file will be measured instead.
+            blocks.clear();
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return blocks;
+    }
+
+    /** Persists the sizes of all tracked entry files for the next {@link #init}. */
+    private synchronized void writeIndex() {
+        if (mAllFiles == null) return;
+
+        final AtomicFile indexFile = new AtomicFile(new File(mDropBoxDir, INDEX_FILE_NAME));
+        FileOutputStream fos = null;
+        try {
+            fos = indexFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(mBlockSize);
+            int count = 0;
+            for (EntryFile entry : mAllFiles.contents) {
+                if (entry.file != null) count++;
+            }
+            out.writeInt(count);
+            for (EntryFile entry : mAllFiles.contents) {
+                if (entry.file == null) continue;
+                out.writeUTF(entry.file.getName());
+                out.writeInt(entry.blocks);
+            }
+            out.flush();
+            indexFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Can't write index", e);
+            indexFile.failWrite(fos);
+        }
+    }
+
     /** Adds a disk log file to in-memory tracking for accounting and enumeration. */
     private synchronized void enrollEntry(EntryFile entry) {
         mAllFiles.contents.add(entry);
@@ -696,8 +985,9 @@ public final class DropBoxManagerService extends SystemService {
     }
 
     /** Moves a temporary file to a final log filename and enrolls it. */
-    private synchronized long createEntry(File temp, String tag, int flags) throws IOException {
-        long t = System.currentTimeMillis();
+    private synchronized long createEntry(File temp, String tag, int flags, long timestampMillis)
+            throws IOException {
+        long t = timestampMillis;
 
         // Require each entry to have a unique timestamp; if there are entries
         // >10sec in the future (due to clock skew), drag them back to avoid
@@ -735,6 +1025,9 @@ public final class DropBoxManagerService extends SystemService {
         } else {
             enrollEntry(new EntryFile(temp, mDropBoxDir, tag, t, flags, mBlockSize));
         }
+        synchronized (mPendingLock) {
+            mLastTimestampMillis = Math.max(mLastTimestampMillis, t);
+        }
         return t;
     }
 
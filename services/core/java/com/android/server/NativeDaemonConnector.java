@@ -25,10 +25,14 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.os.SystemProperties;
+import android.util.ArrayMap;
 import android.util.LocalLog;
 import android.util.Slog;
+import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ExponentiallyBucketedHistogram;
 import com.android.internal.util.Preconditions;
 import com.android.server.power.ShutdownThread;
 import com.google.android.collect.Lists;
@@ -43,9 +47,11 @@ import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Generic connector class for interfacing with a native daemon which uses the
@@ -75,11 +81,26 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
     private AtomicInteger mSequenceNumber;
 
     private static final long DEFAULT_TIMEOUT = 1 * 60 * 1000; /* 1 minute */
+
+    /** Latency buckets are in milliseconds; the last one holds everything from 16.384s up. */
+    private static final int LATENCY_HISTOGRAM_BUCKETS = 15;
     private static final long WARN_EXECUTE_DELAY_MS = 500; /* .5 sec */
 
     /** Lock held whenever communicating with native daemon. */
     private final Object mDaemonLock = new Object();
 
+    /**
+     * Commands issued through {@link #executeAsync(Command)} that have not yet received their
+     * final response, keyed by sequence number.
+     */
+    @GuardedBy("mAsyncCmds")
+    private final SparseArray<AsyncCmd> mAsyncCmds = new SparseArray<>();
+
+    /** Latency of completed commands, keyed by command name. */
+    @GuardedBy("mLatencyHistograms")
+    private final ArrayMap<String, ExponentiallyBucketedHistogram> mLatencyHistograms =
+            new ArrayMap<>();
+
     private final int BUFFER_SIZE = 4096;
 
     NativeDaemonConnector(INativeDaemonConnectorCallbacks callbacks, String socket,
@@ -245,7 +266,7 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
                                 if (mCallbackHandler.sendMessage(msg)) {
                                     releaseWl = false;
                                 }
-                            } else {
+                            } else if (!dispatchAsyncResponse(event)) {
                                 mResponseQueue.add(event.getCmdNumber(), event);
                             }
                         } catch (IllegalArgumentException e) {
@@ -289,6 +310,7 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
                     mOutputStream = null;
                 }
             }
+            failAsyncCommands("lost connection to " + mSocket);
 
             try {
                 if (socket != null) {
@@ -502,6 +524,7 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
         } while (event.isClassContinue());
 
         final long endTime = SystemClock.elapsedRealtime();
+        noteLatency(cmd, endTime - startTime);
         if (endTime - startTime > WARN_EXECUTE_DELAY_MS) {
             loge("NDC Command {" + logCmd + "} took too long (" + (endTime - startTime) + "ms)");
         }
@@ -516,6 +539,186 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
         return events.toArray(new NativeDaemonEvent[events.size()]);
     }
 
+    /**
+     * Issue the given command to the native daemon without waiting for its response. The
+     * returned future completes with any {@link NativeDaemonEvent#isClassContinue()} responses
+     * and the final terminal response, or exceptionally with a
+     * {@link NativeDaemonConnectorException} under the same conditions that
+     * {@link #executeForList(Command)} would throw one.
+     *
+     * <p>Several commands can be outstanding at once; responses are matched to commands by
+     * sequence number. The future is completed on the thread reading from the daemon socket, so
+     * dependent stages that do any real work should use the {@code *Async} variants.
+     */
+    public CompletableFuture<NativeDaemonEvent[]> executeAsync(Command cmd) {
+        final ArrayList<Command> cmds = new ArrayList<>(1);
+        cmds.add(cmd);
+        return executeBatchAsync(DEFAULT_TIMEOUT, cmds).get(0);
+    }
+
+    /**
+     * Issue all the given commands to the native daemon in a single write, without waiting for
+     * their responses. Returns one future per command, in order; see
+     * {@link #executeAsync(Command)}.
+     */
+    public List<CompletableFuture<NativeDaemonEvent[]>> executeBatchAsync(List<Command> cmds) {
+        return executeBatchAsync(DEFAULT_TIMEOUT, cmds);
+    }
+
+    /**
+     * Like {@link #executeBatchAsync(List)}, failing commands whose final response has not been
+     * received within {@code timeoutMs}. Expired commands are failed lazily, when the connector
+     * next sends or receives a command response; callers that need a hard bound should also
+     * wait on the future with a timeout.
+     */
+    public List<CompletableFuture<NativeDaemonEvent[]>> executeBatchAsync(long timeoutMs,
+            List<Command> cmds) {
+        if (mWarnIfHeld != null && Thread.holdsLock(mWarnIfHeld)) {
+            Slog.wtf(TAG, "Calling thread " + Thread.currentThread().getName() + " is holding 0x"
+                    + Integer.toHexString(System.identityHashCode(mWarnIfHeld)), new Throwable());
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        expireAsyncCommands(now);
+
+        final int count = cmds.size();
+        final List<CompletableFuture<NativeDaemonEvent[]>> futures = new ArrayList<>(count);
+        final AsyncCmd[] pending = new AsyncCmd[count];
+        final StringBuilder rawBuilder = new StringBuilder();
+        final StringBuilder logBuilder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            final Command cmd = cmds.get(i);
+            final int sequenceNumber = mSequenceNumber.incrementAndGet();
+            logBuilder.setLength(0);
+            // Throws on malformed commands before anything in the batch is sent.
+            makeCommand(rawBuilder, logBuilder, sequenceNumber, cmd.mCmd,
+                    cmd.mArguments.toArray());
+            pending[i] = new AsyncCmd(sequenceNumber, cmd.mCmd, logBuilder.toString(), now,
+                    now + timeoutMs);
+            futures.add(pending[i].future);
+        }
+
+        // Register before writing, since the response may arrive before write() returns.
+        synchronized (mAsyncCmds) {
+            for (AsyncCmd asyncCmd : pending) {
+                mAsyncCmds.put(asyncCmd.sequenceNumber, asyncCmd);
+            }
+        }
+        for (AsyncCmd asyncCmd : pending) {
+            log("SND -> {" + asyncCmd.logCmd + "}");
+        }
+
+        NativeDaemonConnectorException failure = null;
+        synchronized (mDaemonLock) {
+            if (mOutputStream == null) {
+                failure = new NativeDaemonConnectorException("missing output stream");
+            } else {
+                try {
+                    mOutputStream.write(rawBuilder.toString().getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    failure = new NativeDaemonConnectorException("problem sending command", e);
+                }
+            }
+        }
+        if (failure != null) {
+            synchronized (mAsyncCmds) {
+                for (AsyncCmd asyncCmd : pending) {
+                    mAsyncCmds.remove(asyncCmd.sequenceNumber);
+                }
+            }
+            for (AsyncCmd asyncCmd : pending) {
+                asyncCmd.future.completeExceptionally(failure);
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Delivers a solicited response to the {@link AsyncCmd} waiting for it, if any.
+     *
+     * @return false if the response belongs to a synchronous command.
+     */
+    private boolean dispatchAsyncResponse(NativeDaemonEvent event) {
+        final AsyncCmd asyncCmd;
+        synchronized (mAsyncCmds) {
+            asyncCmd = mAsyncCmds.get(event.getCmdNumber());
+            if (asyncCmd == null) {
+                return false;
+            }
+            asyncCmd.events.add(event);
+            if (event.isClassContinue()) {
+                return true;
+            }
+            mAsyncCmds.remove(event.getCmdNumber());
+        }
+        if (VDBG) log("RMV <- {" + event + "}");
+
+        final long endTime = SystemClock.elapsedRealtime();
+        final long duration = endTime - asyncCmd.startTime;
+        noteLatency(asyncCmd.cmd, duration);
+        if (duration > WARN_EXECUTE_DELAY_MS) {
+            loge("NDC Command {" + asyncCmd.logCmd + "} took too long (" + duration + "ms)");
+        }
+
+        if (event.isClassClientError()) {
+            asyncCmd.future.completeExceptionally(
+                    new NativeDaemonArgumentException(asyncCmd.logCmd, event));
+        } else if (event.isClassServerError()) {
+            asyncCmd.future.completeExceptionally(
+                    new NativeDaemonFailureException(asyncCmd.logCmd, event));
+        } else {
+            asyncCmd.future.complete(
+                    asyncCmd.events.toArray(new NativeDaemonEvent[asyncCmd.events.size()]));
+        }
+        expireAsyncCommands(endTime);
+        return true;
+    }
+
+    private void expireAsyncCommands(long now) {
+        ArrayList<AsyncCmd> expired = null;
+        synchronized (mAsyncCmds) {
+            for (int i = mAsyncCmds.size() - 1; i >= 0; i--) {
+                final AsyncCmd asyncCmd = mAsyncCmds.valueAt(i);
+                if (asyncCmd.deadline <= now) {
+                    if (expired == null) expired = new ArrayList<>();
+                    expired.add(asyncCmd);
+                    mAsyncCmds.removeAt(i);
+                }
+            }
+        }
+        if (expired == null) return;
+        for (AsyncCmd asyncCmd : expired) {
+            loge("timed-out waiting for response to " + asyncCmd.logCmd);
+            asyncCmd.future.completeExceptionally(
+                    new NativeDaemonTimeoutException(asyncCmd.logCmd, null));
+        }
+    }
+
+    private void failAsyncCommands(String reason) {
+        final AsyncCmd[] failed;
+        synchronized (mAsyncCmds) {
+            failed = new AsyncCmd[mAsyncCmds.size()];
+            for (int i = 0; i < failed.length; i++) {
+                failed[i] = mAsyncCmds.valueAt(i);
+            }
+            mAsyncCmds.clear();
+        }
+        for (AsyncCmd asyncCmd : failed) {
+            asyncCmd.future.completeExceptionally(new NativeDaemonConnectorException(reason));
+        }
+    }
+
+    private void noteLatency(String cmd, long durationMs) {
+        synchronized (mLatencyHistograms) {
+            ExponentiallyBucketedHistogram histogram = mLatencyHistograms.get(cmd);
+            if (histogram == null) {
+                histogram = new ExponentiallyBucketedHistogram(LATENCY_HISTOGRAM_BUCKETS);
+                mLatencyHistograms.put(cmd, histogram);
+            }
+            histogram.add((int) Math.min(durationMs, Integer.MAX_VALUE));
+        }
+    }
+
     /**
      * Append the given argument to {@link StringBuilder}, escaping as needed,
      * and surrounding with quotes when it contains spaces.
@@ -583,6 +786,25 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
         }
     }
 
+    /** A command issued through {@link #executeBatchAsync}, waiting for its final response. */
+    private static class AsyncCmd {
+        final int sequenceNumber;
+        final String cmd;
+        final String logCmd;
+        final long startTime;
+        final long deadline;
+        final ArrayList<NativeDaemonEvent> events = new ArrayList<>(1);
+        final CompletableFuture<NativeDaemonEvent[]> future = new CompletableFuture<>();
+
+        AsyncCmd(int sequenceNumber, String cmd, String logCmd, long startTime, long deadline) {
+            this.sequenceNumber = sequenceNumber;
+            this.cmd = cmd;
+            this.logCmd = logCmd;
+            this.startTime = startTime;
+            this.deadline = deadline;
+        }
+    }
+
     /** {@inheritDoc} */
     public void monitor() {
         synchronized (mDaemonLock) { }
@@ -592,6 +814,21 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
         mLocalLog.dump(fd, pw, args);
         pw.println();
         mResponseQueue.dump(fd, pw, args);
+        synchronized (mAsyncCmds) {
+            for (int i = 0; i < mAsyncCmds.size(); i++) {
+                final AsyncCmd asyncCmd = mAsyncCmds.valueAt(i);
+                pw.println("  Cmd " + asyncCmd.sequenceNumber + " - " + asyncCmd.logCmd
+                        + " (async)");
+            }
+        }
+        pw.println();
+        pw.println("Command latency:");
+        synchronized (mLatencyHistograms) {
+            for (int i = 0; i < mLatencyHistograms.size(); i++) {
+                pw.println(mLatencyHistograms.valueAt(i).toString(
+                        "  " + mLatencyHistograms.keyAt(i) + ": "));
+            }
+        }
     }
 
     private void log(String logstring) {
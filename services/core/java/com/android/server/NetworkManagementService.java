@@ -127,7 +127,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @hide
@@ -158,6 +162,9 @@ public class NetworkManagementService extends INetworkManagementService.Stub
 
     private static final int MAX_UID_RANGES_PER_COMMAND = 10;
 
+    /** Maximum time to wait for netd to answer a batch of commands. */
+    private static final long BATCH_TIMEOUT_MS = 60 * 1000;
+
     /**
      * Name representing {@link #setGlobalAlert(long)} limit when delivered to
      * {@link INetworkManagementEventObserver#limitReached(String, String)}.
@@ -2001,45 +2008,70 @@ public class NetworkManagementService extends INetworkManagementService.Stub
     @Override
     public void addVpnUidRanges(int netId, UidRange[] ranges) {
         mContext.enforceCallingOrSelfPermission(CONNECTIVITY_INTERNAL, TAG);
-        Object[] argv = new Object[3 + MAX_UID_RANGES_PER_COMMAND];
-        argv[0] = "users";
-        argv[1] = "add";
-        argv[2] = netId;
-        int argc = 3;
-        // Avoid overly long commands by limiting number of UID ranges per command.
+        final Object[] args = new Object[ranges.length];
         for (int i = 0; i < ranges.length; i++) {
-            argv[argc++] = ranges[i].toString();
-            if (i == (ranges.length - 1) || argc == argv.length) {
-                try {
-                    mConnector.execute("network", Arrays.copyOf(argv, argc));
-                } catch (NativeDaemonConnectorException e) {
-                    throw e.rethrowAsParcelableException();
-                }
-                argc = 3;
-            }
+            args[i] = ranges[i].toString();
         }
+        executeNetworkCommandBatch(new Object[] { "users", "add", netId }, args);
     }
 
     @Override
     public void removeVpnUidRanges(int netId, UidRange[] ranges) {
         mContext.enforceCallingOrSelfPermission(CONNECTIVITY_INTERNAL, TAG);
-        Object[] argv = new Object[3 + MAX_UID_RANGES_PER_COMMAND];
-        argv[0] = "users";
-        argv[1] = "remove";
-        argv[2] = netId;
-        int argc = 3;
-        // Avoid overly long commands by limiting number of UID ranges per command.
+        final Object[] args = new Object[ranges.length];
         for (int i = 0; i < ranges.length; i++) {
-            argv[argc++] = ranges[i].toString();
-            if (i == (ranges.length - 1) || argc == argv.length) {
-                try {
-                    mConnector.execute("network", Arrays.copyOf(argv, argc));
-                } catch (NativeDaemonConnectorException e) {
-                    throw e.rethrowAsParcelableException();
+            args[i] = ranges[i].toString();
+        }
+        executeNetworkCommandBatch(new Object[] { "users", "remove", netId }, args);
+    }
+
+    /**
+     * Issues {@code network} commands made of {@code prefix} followed by {@code args}, splitting
+     * {@code args} across commands to avoid overly long commands. All the commands are written to
+     * netd in a single batch, and this waits until netd has answered every one of them.
+     */
+    private void executeNetworkCommandBatch(Object[] prefix, Object[] args) {
+        final ArrayList<Command> cmds = new ArrayList<>();
+        for (int start = 0; start < args.length; start += MAX_UID_RANGES_PER_COMMAND) {
+            final Command cmd = new Command("network", prefix);
+            final int end = Math.min(args.length, start + MAX_UID_RANGES_PER_COMMAND);
+            for (int i = start; i < end; i++) {
+                cmd.appendArg(args[i]);
+            }
+            cmds.add(cmd);
+        }
+        if (cmds.isEmpty()) return;
+
+        final List<CompletableFuture<NativeDaemonEvent[]>> futures =
+                mConnector.executeBatchAsync(BATCH_TIMEOUT_MS, cmds);
+        final long deadline = SystemClock.elapsedRealtime() + BATCH_TIMEOUT_MS;
+        NativeDaemonConnectorException failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                final long remaining = Math.max(0, deadline - SystemClock.elapsedRealtime());
+                futures.get(i).get(remaining, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                if (failure == null && e.getCause() instanceof NativeDaemonConnectorException) {
+                    failure = (NativeDaemonConnectorException) e.getCause();
+                }
+            } catch (InterruptedException e) {
+                // Preserve the interrupt and stop waiting for the remaining chunks.
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new NativeDaemonTimeoutException(
+                            "network " + Arrays.toString(prefix), null);
+                }
+                break;
+            } catch (TimeoutException e) {
+                if (failure == null) {
+                    failure = new NativeDaemonTimeoutException(
+                            "network " + Arrays.toString(prefix), null);
                 }
-                argc = 3;
             }
         }
+        if (failure != null) {
+            throw failure.rethrowAsParcelableException();
+        }
     }
 
     @Override
@@ -2631,47 +2663,22 @@ public class NetworkManagementService extends INetworkManagementService.Stub
     public void setPermission(String permission, int[] uids) {
         mContext.enforceCallingOrSelfPermission(CONNECTIVITY_INTERNAL, TAG);
 
-        Object[] argv = new Object[4 + MAX_UID_RANGES_PER_COMMAND];
-        argv[0] = "permission";
-        argv[1] = "user";
-        argv[2] = "set";
-        argv[3] = permission;
-        int argc = 4;
-        // Avoid overly long commands by limiting number of UIDs per command.
+        final Object[] args = new Object[uids.length];
         for (int i = 0; i < uids.length; ++i) {
-            argv[argc++] = uids[i];
-            if (i == uids.length - 1 || argc == argv.length) {
-                try {
-                    mConnector.execute("network", Arrays.copyOf(argv, argc));
-                } catch (NativeDaemonConnectorException e) {
-                    throw e.rethrowAsParcelableException();
-                }
-                argc = 4;
-            }
+            args[i] = uids[i];
         }
+        executeNetworkCommandBatch(new Object[] { "permission", "user", "set", permission }, args);
     }
 
     @Override
     public void clearPermission(int[] uids) {
         mContext.enforceCallingOrSelfPermission(CONNECTIVITY_INTERNAL, TAG);
 
-        Object[] argv = new Object[3 + MAX_UID_RANGES_PER_COMMAND];
-        argv[0] = "permission";
-        argv[1] = "user";
-        argv[2] = "clear";
-        int argc = 3;
-        // Avoid overly long commands by limiting number of UIDs per command.
+        final Object[] args = new Object[uids.length];
         for (int i = 0; i < uids.length; ++i) {
-            argv[argc++] = uids[i];
-            if (i == uids.length - 1 || argc == argv.length) {
-                try {
-                    mConnector.execute("network", Arrays.copyOf(argv, argc));
-                } catch (NativeDaemonConnectorException e) {
-                    throw e.rethrowAsParcelableException();
-                }
-                argc = 3;
-            }
+            args[i] = uids[i];
         }
+        executeNetworkCommandBatch(new Object[] { "permission", "user", "clear" }, args);
     }
 
     @Override
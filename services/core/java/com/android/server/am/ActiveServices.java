@@ -531,6 +531,7 @@ public final class ActiveServices {
         }
         r.callStart = false;
         synchronized (r.stats.getBatteryStats()) {
+            mAm.mBatteryStatsService.applyPendingEventsLocked();
             r.stats.startRunningLocked();
         }
         String error = bringUpServiceLocked(r, service.getFlags(), callerFg, false, false);
@@ -569,6 +570,7 @@ public final class ActiveServices {
             return;
         }
         synchronized (service.stats.getBatteryStats()) {
+            mAm.mBatteryStatsService.applyPendingEventsLocked();
             service.stats.stopRunningLocked();
         }
         service.startRequested = false;
@@ -710,6 +712,7 @@ public final class ActiveServices {
             }
 
             synchronized (r.stats.getBatteryStats()) {
+                mAm.mBatteryStatsService.applyPendingEventsLocked();
                 r.stats.stopRunningLocked();
             }
             r.startRequested = false;
@@ -1748,6 +1751,7 @@ public final class ActiveServices {
                     final BatteryStatsImpl.Uid.Pkg.Serv ss;
                     final BatteryStatsImpl stats = mAm.mBatteryStatsService.getActiveStatistics();
                     synchronized (stats) {
+                        mAm.mBatteryStatsService.applyPendingEventsLocked();
                         ss = stats.getServiceStatsLocked(
                                 sInfo.applicationInfo.uid, sInfo.packageName,
                                 sInfo.name);
@@ -2213,6 +2217,7 @@ public final class ActiveServices {
                         r.userId, System.identityHashCode(r), nameTerm, r.app.uid, r.app.pid);
             }
             synchronized (r.stats.getBatteryStats()) {
+                mAm.mBatteryStatsService.applyPendingEventsLocked();
                 r.stats.startLaunchedLocked();
             }
             mAm.notifyPackageUse(r.serviceInfo.packageName,
@@ -2519,6 +2524,7 @@ public final class ActiveServices {
 
         if (r.app != null) {
             synchronized (r.stats.getBatteryStats()) {
+                mAm.mBatteryStatsService.applyPendingEventsLocked();
                 r.stats.stopLaunchedLocked();
             }
             r.app.services.remove(r);
@@ -3047,6 +3053,7 @@ public final class ActiveServices {
         for (int i = app.services.size() - 1; i >= 0; i--) {
             ServiceRecord sr = app.services.valueAt(i);
             synchronized (sr.stats.getBatteryStats()) {
+                mAm.mBatteryStatsService.applyPendingEventsLocked();
                 sr.stats.stopLaunchedLocked();
             }
             if (sr.app != app && sr.app != null && !sr.app.persistent) {
@@ -2998,6 +2998,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
             final BatteryStatsImpl bstats = mBatteryStatsService.getActiveStatistics();
             synchronized(bstats) {
+                mBatteryStatsService.applyPendingEventsLocked();
                 synchronized(mPidsSelfLocked) {
                     if (haveNewCpuStats) {
                         if (bstats.startAddingCpuLocked()) {
@@ -4021,6 +4022,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                         UsageEvents.Event.MOVE_TO_FOREGROUND);
             }
             synchronized (stats) {
+                mBatteryStatsService.applyPendingEventsLocked();
                 stats.noteActivityResumedLocked(component.app.uid);
             }
         } else {
@@ -4029,6 +4031,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                         UsageEvents.Event.MOVE_TO_BACKGROUND);
             }
             synchronized (stats) {
+                mBatteryStatsService.applyPendingEventsLocked();
                 stats.noteActivityPausedLocked(component.app.uid);
             }
         }
@@ -5396,6 +5399,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         BatteryStatsImpl stats = mBatteryStatsService.getActiveStatistics();
         synchronized (stats) {
+            mBatteryStatsService.applyPendingEventsLocked();
             stats.noteProcessDiedLocked(app.info.uid, pid);
         }
 
@@ -12138,7 +12142,6 @@ public class ActivityManagerService extends IActivityManager.Stub
     final ProcessRecord newProcessRecordLocked(ApplicationInfo info, String customProcess,
             boolean isolated, int isolatedUid) {
         String proc = customProcess != null ? customProcess : info.processName;
-        BatteryStatsImpl stats = mBatteryStatsService.getActiveStatistics();
         final int userId = UserHandle.getUserId(info.uid);
         int uid = info.uid;
         if (isolated) {
@@ -12175,7 +12178,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             // owning application.
             mBatteryStatsService.addIsolatedUid(uid, info.uid);
         }
-        final ProcessRecord r = new ProcessRecord(stats, info, proc, uid);
+        final ProcessRecord r = new ProcessRecord(mBatteryStatsService, info, proc, uid);
         if (!mBooted && !mBooting
                 && userId == UserHandle.USER_SYSTEM
                 && (info.flags & PERSISTENT_MASK) == PERSISTENT_MASK) {
@@ -13622,6 +13625,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         final PendingIntentRecord rec = (PendingIntentRecord)sender;
         final BatteryStatsImpl stats = mBatteryStatsService.getActiveStatistics();
         synchronized (stats) {
+            mBatteryStatsService.applyPendingEventsLocked();
             if (mBatteryStatsService.isOnBattery()) {
                 mBatteryStatsService.enforceCallingPermission();
                 int MY_UID = Binder.getCallingUid();
@@ -13646,6 +13650,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         final PendingIntentRecord rec = (PendingIntentRecord)sender;
         final BatteryStatsImpl stats = mBatteryStatsService.getActiveStatistics();
         synchronized (stats) {
+            mBatteryStatsService.applyPendingEventsLocked();
             mBatteryStatsService.enforceCallingPermission();
             int MY_UID = Binder.getCallingUid();
             final int uid;
@@ -13665,6 +13670,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         final PendingIntentRecord rec = (PendingIntentRecord)sender;
         final BatteryStatsImpl stats = mBatteryStatsService.getActiveStatistics();
         synchronized (stats) {
+            mBatteryStatsService.applyPendingEventsLocked();
             mBatteryStatsService.enforceCallingPermission();
             int MY_UID = Binder.getCallingUid();
             final int uid;
@@ -16646,6 +16652,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                         long wtime;
                         BatteryStatsImpl stats = service.mBatteryStatsService.getActiveStatistics();
                         synchronized (stats) {
+                            service.mBatteryStatsService.applyPendingEventsLocked();
                             wtime = stats.getProcessWakeTime(r.info.uid,
                                     r.pid, curRealtime);
                         }
@@ -18381,6 +18388,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             BatteryStatsImpl.Uid.Pkg.Serv ss = null;
             BatteryStatsImpl stats = mBatteryStatsService.getActiveStatistics();
             synchronized (stats) {
+                mBatteryStatsService.applyPendingEventsLocked();
                 ss = stats.getServiceStatsLocked(app.uid, app.packageName, app.name);
             }
 
@@ -19320,6 +19328,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     }
                     BatteryStatsImpl stats = mBatteryStatsService.getActiveStatistics();
                     synchronized (stats) {
+                        mBatteryStatsService.applyPendingEventsLocked();
                         stats.noteCurrentTimeChangedLocked();
                     }
                     break;
@@ -21850,6 +21859,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             if (app.setProcState >= ActivityManager.PROCESS_STATE_HOME) {
                 long wtime;
                 synchronized (stats) {
+                    mBatteryStatsService.applyPendingEventsLocked();
                     wtime = stats.getProcessWakeTime(app.info.uid,
                             app.pid, curRealtime);
                 }
@@ -21885,6 +21895,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 if (doWakeKills && realtimeSince > 0
                         && ((wtimeUsed*100)/realtimeSince) >= 50) {
                     synchronized (stats) {
+                        mBatteryStatsService.applyPendingEventsLocked();
                         stats.reportExcessiveWakeLocked(app.info.uid, app.processName,
                                 realtimeSince, wtimeUsed);
                     }
@@ -21893,6 +21904,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 } else if (doCpuKills && uptimeSince > 0
                         && ((cputimeUsed*100)/uptimeSince) >= 25) {
                     synchronized (stats) {
+                        mBatteryStatsService.applyPendingEventsLocked();
                         stats.reportExcessiveCpuLocked(app.info.uid, app.processName,
                                 uptimeSince, cputimeUsed);
                     }
@@ -22079,6 +22091,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 // it is not behaving well.
                 BatteryStatsImpl stats = mBatteryStatsService.getActiveStatistics();
                 synchronized (stats) {
+                    mBatteryStatsService.applyPendingEventsLocked();
                     app.lastWakeTime = stats.getProcessWakeTime(app.info.uid,
                             app.pid, nowElapsed);
                 }
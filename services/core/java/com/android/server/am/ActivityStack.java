@@ -1470,6 +1470,7 @@ class ActivityStack<T extends StackWindowController> extends ConfigurationContai
                 if (diff > 0) {
                     BatteryStatsImpl bsi = mService.mBatteryStatsService.getActiveStatistics();
                     synchronized (bsi) {
+                        mService.mBatteryStatsService.applyPendingEventsLocked();
                         BatteryStatsImpl.Uid.Proc ps =
                                 bsi.getProcessStatsLocked(prev.info.applicationInfo.uid,
                                         prev.info.packageName);
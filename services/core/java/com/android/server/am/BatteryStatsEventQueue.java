@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue through which binder threads hand battery stats events to
+ * {@link BatteryStatsService} without waiting on the stats lock.
+ *
+ * Any number of threads may {@link #offer} events. Events are timestamped by the caller and
+ * applied in the order they were queued, in batches, by whichever thread holds the stats lock
+ * next: either the queue's handler, which drains it shortly after events arrive, or a caller of
+ * {@link #applyPendingLocked}, which anybody about to read or modify the stats must call first.
+ * Since producers read the clock before claiming their slot, timestamps are raised at apply
+ * time so that they never go back. A full queue makes {@link #offer} return false; the caller
+ * then applies the queue under the lock and tries again.
+ */
+final class BatteryStatsEventQueue {
+    static final int EVENT_START_WAKELOCK = 1;
+    static final int EVENT_STOP_WAKELOCK = 2;
+    static final int EVENT_SYNC_START = 3;
+    static final int EVENT_SYNC_FINISH = 4;
+    static final int EVENT_JOB_START = 5;
+    static final int EVENT_JOB_FINISH = 6;
+
+    /** Largest number of events applied by the handler each time it takes the lock. */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /** A queued event. Only the fields used by its type are set. */
+    static final class Event {
+        int type;
+        int uid;
+        int pid;
+        String name;
+        String historyName;
+        int wakeType;
+        boolean unimportantForLogging;
+        long elapsedRealtime;
+        long uptime;
+        long queuedNanos;
+    }
+
+    /** Applies events to the stats; called with the stats lock held. */
+    interface Applier {
+        void applyEventLocked(Event event);
+    }
+
+    private final Object mLock;
+    private final Applier mApplier;
+    private final Handler mHandler;
+
+    private final Event[] mEvents;
+    private final int mMask;
+
+    /**
+     * Sequence of each slot: equal to the next position that may claim it while it is free,
+     * and to that position plus one once the event stored in it is published.
+     */
+    private final AtomicLongArray mSequences;
+
+    /** Next position to be claimed by a producer. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /** Next position to be applied. */
+    @GuardedBy("mLock")
+    private long mHead;
+
+    /**
+     * Floor of the timestamps given to the stats: the latest event applied, or the time at
+     * which the stats were last handed to a caller of {@link #applyPendingLocked}.
+     */
+    @GuardedBy("mLock")
+    private long mLastElapsedRealtime;
+    @GuardedBy("mLock")
+    private long mLastUptime;
+
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared before draining, so that an event published after the drain has passed
+            // its slot schedules another one.
+            mDrainScheduled.set(false);
+            final boolean more;
+            synchronized (mLock) {
+                more = applyLocked(MAX_BATCH_SIZE);
+            }
+            if (more) {
+                scheduleDrain();
+            }
+        }
+    };
+
+    private final AtomicLong mFullCount = new AtomicLong();
+
+    @GuardedBy("mLock")
+    private long mAppliedCount;
+    @GuardedBy("mLock")
+    private long mBatchCount;
+    @GuardedBy("mLock")
+    private long mMaxDepth;
+    @GuardedBy("mLock")
+    private long mTotalLatencyNanos;
+    @GuardedBy("mLock")
+    private long mMaxLatencyNanos;
+
+    /**
+     * @param capacity number of events the queue holds, rounded up to a power of two.
+     * @param lock the lock guarding the stats, held while events are applied.
+     * @param handler the handler on which queued events are applied.
+     */
+    BatteryStatsEventQueue(int capacity, Object lock, Applier applier, Handler handler) {
+        final int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mLock = lock;
+        mApplier = applier;
+        mHandler = handler;
+        mEvents = new Event[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mEvents[i] = new Event();
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * Queues an event to be applied later. Does not block.
+     *
+     * @return false if the queue is full and nothing was queued.
+     */
+    boolean offer(int type, int uid, int pid, String name, String historyName, int wakeType,
+            boolean unimportantForLogging, long elapsedRealtime, long uptime) {
+        long position = mTail.get();
+        int index;
+        while (true) {
+            index = (int) position & mMask;
+            final long diff = mSequences.get(index) - position;
+            if (diff == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mTail.get();
+            } else if (diff < 0) {
+                // The slot still holds the event queued one lap ago.
+                mFullCount.incrementAndGet();
+                return false;
+            } else {
+                // Another producer claimed this position first.
+                position = mTail.get();
+            }
+        }
+
+        final Event event = mEvents[index];
+        event.type = type;
+        event.uid = uid;
+        event.pid = pid;
+        event.name = name;
+        event.historyName = historyName;
+        event.wakeType = wakeType;
+        event.unimportantForLogging = unimportantForLogging;
+        event.elapsedRealtime = elapsedRealtime;
+        event.uptime = uptime;
+        event.queuedNanos = System.nanoTime();
+        mSequences.set(index, position + 1);
+
+        if (!mDrainScheduled.get() && mDrainScheduled.compareAndSet(false, true)) {
+            scheduleDrain();
+        }
+        return true;
+    }
+
+    private void scheduleDrain() {
+        mDrainScheduled.set(true);
+        mHandler.post(mDrainRunnable);
+    }
+
+    /**
+     * Applies the events queued before the call, up to the first one whose producer has not
+     * published it yet; that producer schedules a drain once it has. Must be called with the
+     * stats lock held before the stats are read or modified, so that queued events are not
+     * reordered with direct calls.
+     */
+    @GuardedBy("mLock")
+    void applyPendingLocked() {
+        final long target = mTail.get();
+        while (mHead < target) {
+            final long head = mHead;
+            applyLocked((int) Math.min(target - head, MAX_BATCH_SIZE));
+            if (mHead == head) {
+                break;
+            }
+        }
+        // The caller is about to update the stats with the current time; events still in the
+        // queue must not be applied with an earlier one.
+        raiseFloorLocked(SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
+    }
+
+    @GuardedBy("mLock")
+    private void raiseFloorLocked(long elapsedRealtime, long uptime) {
+        if (elapsedRealtime > mLastElapsedRealtime) {
+            mLastElapsedRealtime = elapsedRealtime;
+        }
+        if (uptime > mLastUptime) {
+            mLastUptime = uptime;
+        }
+    }
+
+    /**
+     * Applies up to {@code maxCount} published events, in order.
+     *
+     * @return true if more events are queued.
+     */
+    @GuardedBy("mLock")
+    private boolean applyLocked(int maxCount) {
+        final long depth = mTail.get() - mHead;
+        if (depth == 0) {
+            return false;
+        }
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+        final long now = System.nanoTime();
+        int count = 0;
+        while (count < maxCount) {
+            final int index = (int) mHead & mMask;
+            if (mSequences.get(index) != mHead + 1) {
+                break;
+            }
+            final Event event = mEvents[index];
+            final long latency = now - event.queuedNanos;
+            mTotalLatencyNanos += latency;
+            if (latency > mMaxLatencyNanos) {
+                mMaxLatencyNanos = latency;
+            }
+            raiseFloorLocked(event.elapsedRealtime, event.uptime);
+            event.elapsedRealtime = mLastElapsedRealtime;
+            event.uptime = mLastUptime;
+            mApplier.applyEventLocked(event);
+            event.name = null;
+            event.historyName = null;
+            // Hand the slot to the producer that claims it on the next lap.
+            mSequences.set(index, mHead + mEvents.length);
+            mHead++;
+            count++;
+        }
+        if (count > 0) {
+            mAppliedCount += count;
+            mBatchCount++;
+        }
+        return mTail.get() != mHead;
+    }
+
+    @VisibleForTesting
+    int getCapacity() {
+        return mEvents.length;
+    }
+
+    @VisibleForTesting
+    long getFullCount() {
+        return mFullCount.get();
+    }
+
+    @GuardedBy("mLock")
+    void dumpLocked(PrintWriter pw) {
+        pw.print("Event queue: capacity="); pw.print(mEvents.length);
+        pw.print(" pending="); pw.print(mTail.get() - mHead);
+        pw.print(" maxDepth="); pw.print(mMaxDepth);
+        pw.print(" applied="); pw.print(mAppliedCount);
+        pw.print(" batches="); pw.print(mBatchCount);
+        pw.print(" full="); pw.println(mFullCount.get());
+        pw.print("  latencyUs(avg/max)=");
+        pw.print(mAppliedCount > 0 ? mTotalLatencyNanos / mAppliedCount / 1000 : 0);
+        pw.print("/"); pw.println(mMaxLatencyNanos / 1000);
+    }
+}
@@ -101,8 +101,22 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     private static IBatteryStats sService;
 
+    /**
+     * Number of wakelock, sync and job events that can be waiting to be applied before callers
+     * start blocking on the stats lock again.
+     */
+    private static final int EVENT_QUEUE_CAPACITY = 1024;
+
     final BatteryStatsImpl mStats;
     private final BatteryStatsHandler mHandler;
+    private final ServiceThread mEventThread;
+
+    /**
+     * The most frequent notes from other services, waiting to be applied to {@link #mStats}.
+     * Anything locking mStats applies them first, see {@link #applyPendingEventsLocked}.
+     */
+    private final BatteryStatsEventQueue mEventQueue;
+
     private Context mContext;
     private IWifiManager mWifiManager;
     private TelephonyManager mTelephony;
@@ -143,6 +157,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                     // from mStats in order to report of changes. We must grab the mStats
                     // lock before grabbing our own or we'll end up in a deadlock.
                     synchronized (mStats) {
+                        mEventQueue.applyPendingLocked();
                         synchronized (this) {
                             final int numUidsToRemove = mUidsToRemove.size();
                             for (int i = 0; i < numUidsToRemove; i++) {
@@ -157,6 +172,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                     updateExternalStatsSync("write", UPDATE_ALL);
                     if (DBG) Slog.d(TAG, "begin writeAsyncLocked");
                     synchronized (mStats) {
+                        mEventQueue.applyPendingLocked();
                         mStats.writeAsyncLocked();
                     }
                     if (DBG) Slog.d(TAG, "end writeAsyncLocked");
@@ -229,11 +245,18 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
         // BatteryStatsImpl expects the ActivityManagerService handler, so pass that one through.
         mStats = new BatteryStatsImpl(systemDir, handler, mHandler, this);
+
+        mEventThread = new ServiceThread("batterystats-events",
+                Process.THREAD_PRIORITY_FOREGROUND, true);
+        mEventThread.start();
+        mEventQueue = new BatteryStatsEventQueue(EVENT_QUEUE_CAPACITY, mStats,
+                this::applyEventLocked, new Handler(mEventThread.getLooper()));
     }
 
     public void publish(Context context) {
         mContext = context;
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.setRadioScanningTimeoutLocked(mContext.getResources().getInteger(
                     com.android.internal.R.integer.config_radioScanningTimeout)
                     * 1000L);
@@ -250,6 +273,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         final PowerManagerInternal powerMgr = LocalServices.getService(PowerManagerInternal.class);
         powerMgr.registerLowPowerModeObserver(this);
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.notePowerSaveModeLocked(
                     powerMgr.getLowPowerState(ServiceType.BATTERY_STATS)
                             .batterySaverEnabled);
@@ -262,11 +286,13 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
         updateExternalStatsSync("shutdown", BatteryStatsImpl.ExternalStatsSync.UPDATE_ALL);
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.shutdownLocked();
         }
 
-        // Shutdown the thread we made.
+        // Shutdown the threads we made.
         mHandler.getLooper().quit();
+        mEventThread.quit();
     }
     
     public static IBatteryStats getService() {
@@ -286,6 +312,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     @Override
     public void onLowPowerModeChanged(PowerSaveState result) {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.notePowerSaveModeLocked(result.batterySaverEnabled);
         }
     }
@@ -299,6 +326,15 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         return mStats;
     }
 
+    /**
+     * Applies the notes still queued to the statistics. Must be called first by anything that
+     * locks the object returned by {@link #getActiveStatistics}.
+     */
+    @GuardedBy("mStats")
+    void applyPendingEventsLocked() {
+        mEventQueue.applyPendingLocked();
+    }
+
     /**
      * Schedules a write to disk to occur. This will cause the BatteryStatsImpl
      * object to update with the latest info, then write to disk.
@@ -314,48 +350,56 @@ public final class BatteryStatsService extends IBatteryStats.Stub
      */
     void removeUid(int uid) {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.removeUidStatsLocked(uid);
         }
     }
 
     void addIsolatedUid(int isolatedUid, int appUid) {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.addIsolatedUidLocked(isolatedUid, appUid);
         }
     }
 
     void removeIsolatedUid(int isolatedUid, int appUid) {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.scheduleRemoveIsolatedUidLocked(isolatedUid, appUid);
         }
     }
 
     void noteProcessStart(String name, int uid) {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteProcessStartLocked(name, uid);
         }
     }
 
     void noteProcessCrash(String name, int uid) {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteProcessCrashLocked(name, uid);
         }
     }
 
     void noteProcessAnr(String name, int uid) {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteProcessAnrLocked(name, uid);
         }
     }
 
     void noteProcessFinish(String name, int uid) {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteProcessFinishLocked(name, uid);
         }
     }
 
     void noteUidProcessState(int uid, int state) {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteUidProcessStateLocked(uid, state);
         }
     }
@@ -370,6 +414,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         Parcel out = Parcel.obtain();
         updateExternalStatsSync("get-stats", BatteryStatsImpl.ExternalStatsSync.UPDATE_ALL);
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.writeToParcel(out, 0);
         }
         byte[] data = out.marshall();
@@ -385,6 +430,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         Parcel out = Parcel.obtain();
         updateExternalStatsSync("get-stats", BatteryStatsImpl.ExternalStatsSync.UPDATE_ALL);
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.writeToParcel(out, 0);
         }
         byte[] data = out.marshall();
@@ -399,12 +445,14 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     public boolean isCharging() {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             return mStats.isCharging();
         }
     }
 
     public long computeBatteryTimeRemaining() {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             long time = mStats.computeBatteryTimeRemaining(SystemClock.elapsedRealtime());
             return time >= 0 ? (time/1000) : time;
         }
@@ -412,6 +460,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     public long computeChargeTimeRemaining() {
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             long time = mStats.computeChargeTimeRemaining(SystemClock.elapsedRealtime());
             return time >= 0 ? (time/1000) : time;
         }
@@ -420,41 +469,35 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteEvent(int code, String name, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteEventLocked(code, name, uid);
         }
     }
 
     public void noteSyncStart(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteSyncStartLocked(name, uid);
-        }
+        queueEvent(BatteryStatsEventQueue.EVENT_SYNC_START, uid, 0, name, null, 0, false);
     }
 
     public void noteSyncFinish(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteSyncFinishLocked(name, uid);
-        }
+        queueEvent(BatteryStatsEventQueue.EVENT_SYNC_FINISH, uid, 0, name, null, 0, false);
     }
 
     public void noteJobStart(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteJobStartLocked(name, uid);
-        }
+        queueEvent(BatteryStatsEventQueue.EVENT_JOB_START, uid, 0, name, null, 0, false);
     }
 
     public void noteJobFinish(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteJobFinishLocked(name, uid);
-        }
+        queueEvent(BatteryStatsEventQueue.EVENT_JOB_FINISH, uid, 0, name, null, 0, false);
     }
 
     public void noteAlarmStart(String name, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteAlarmStartLocked(name, uid);
         }
     }
@@ -462,6 +505,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteAlarmFinish(String name, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteAlarmFinishLocked(name, uid);
         }
     }
@@ -469,17 +513,62 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStartWakelock(int uid, int pid, String name, String historyName, int type,
             boolean unimportantForLogging) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStartWakeLocked(uid, pid, name, historyName, type, unimportantForLogging,
-                    SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
-        }
+        queueEvent(BatteryStatsEventQueue.EVENT_START_WAKELOCK, uid, pid, name, historyName, type,
+                unimportantForLogging);
     }
 
     public void noteStopWakelock(int uid, int pid, String name, String historyName, int type) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStopWakeLocked(uid, pid, name, historyName, type,
-                    SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
+        queueEvent(BatteryStatsEventQueue.EVENT_STOP_WAKELOCK, uid, pid, name, historyName, type,
+                false);
+    }
+
+    /**
+     * Records an event with the current time, applying it once the stats lock is free. Only
+     * falls back to waiting for the lock if too many events are already queued.
+     */
+    private void queueEvent(int type, int uid, int pid, String name, String historyName,
+            int wakeType, boolean unimportantForLogging) {
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        final long uptime = SystemClock.uptimeMillis();
+        while (!mEventQueue.offer(type, uid, pid, name, historyName, wakeType,
+                unimportantForLogging, elapsedRealtime, uptime)) {
+            // Make room rather than applying the event directly, which could apply it before
+            // events this thread queued earlier.
+            synchronized (mStats) {
+                mEventQueue.applyPendingLocked();
+            }
+        }
+    }
+
+    @GuardedBy("mStats")
+    private void applyEventLocked(BatteryStatsEventQueue.Event event) {
+        switch (event.type) {
+            case BatteryStatsEventQueue.EVENT_START_WAKELOCK:
+                mStats.noteStartWakeLocked(event.uid, event.pid, event.name, event.historyName,
+                        event.wakeType, event.unimportantForLogging, event.elapsedRealtime,
+                        event.uptime);
+                break;
+            case BatteryStatsEventQueue.EVENT_STOP_WAKELOCK:
+                mStats.noteStopWakeLocked(event.uid, event.pid, event.name, event.historyName,
+                        event.wakeType, event.elapsedRealtime, event.uptime);
+                break;
+            case BatteryStatsEventQueue.EVENT_SYNC_START:
+                mStats.noteSyncStartLocked(event.name, event.uid, event.elapsedRealtime,
+                        event.uptime);
+                break;
+            case BatteryStatsEventQueue.EVENT_SYNC_FINISH:
+                mStats.noteSyncFinishLocked(event.name, event.uid, event.elapsedRealtime,
+                        event.uptime);
+                break;
+            case BatteryStatsEventQueue.EVENT_JOB_START:
+                mStats.noteJobStartLocked(event.name, event.uid, event.elapsedRealtime,
+                        event.uptime);
+                break;
+            case BatteryStatsEventQueue.EVENT_JOB_FINISH:
+                mStats.noteJobFinishLocked(event.name, event.uid, event.elapsedRealtime,
+                        event.uptime);
+                break;
         }
     }
 
@@ -487,6 +576,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             String historyName, int type, boolean unimportantForLogging) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteStartWakeFromSourceLocked(ws, pid, name, historyName,
                     type, unimportantForLogging);
         }
@@ -497,6 +587,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             String newHistoryName, int newType, boolean newUnimportantForLogging) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteChangeWakelockFromSourceLocked(ws, pid, name, historyName, type,
                     newWs, newPid, newName, newHistoryName, newType, newUnimportantForLogging);
         }
@@ -506,6 +597,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             int type) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteStopWakeFromSourceLocked(ws, pid, name, historyName, type);
         }
     }
@@ -513,6 +605,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteLongPartialWakelockStart(String name, String historyName, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteLongPartialWakelockStart(name, historyName, uid);
         }
     }
@@ -520,6 +613,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteLongPartialWakelockFinish(String name, String historyName, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteLongPartialWakelockFinish(name, historyName, uid);
         }
     }
@@ -527,6 +621,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStartSensor(int uid, int sensor) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteStartSensorLocked(uid, sensor);
         }
     }
@@ -534,6 +629,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStopSensor(int uid, int sensor) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteStopSensorLocked(uid, sensor);
         }
     }
@@ -541,6 +637,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteVibratorOn(int uid, long durationMillis) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteVibratorOnLocked(uid, durationMillis);
         }
     }
@@ -548,6 +645,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteVibratorOff(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteVibratorOffLocked(uid);
         }
     }
@@ -555,6 +653,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStartGps(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteStartGpsLocked(uid);
         }
     }
@@ -562,6 +661,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStopGps(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteStopGpsLocked(uid);
         }
     }
@@ -570,6 +670,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         if (DBG) Slog.d(TAG, "begin noteScreenState");
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteScreenStateLocked(state);
         }
         if (DBG) Slog.d(TAG, "end noteScreenState");
@@ -578,6 +679,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteScreenBrightness(int brightness) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteScreenBrightnessLocked(brightness);
         }
     }
@@ -585,6 +687,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteUserActivity(int uid, int event) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteUserActivityLocked(uid, event);
         }
     }
@@ -592,6 +695,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWakeUp(String reason, int reasonUid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWakeUpLocked(reason, reasonUid);
         }
     }
@@ -599,6 +703,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteInteractive(boolean interactive) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteInteractiveLocked(interactive);
         }
     }
@@ -606,6 +711,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteConnectivityChanged(int type, String extra) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteConnectivityChangedLocked(type, extra);
         }
     }
@@ -614,6 +720,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         boolean update;
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             update = mStats.noteMobileRadioPowerStateLocked(powerState, timestampNs, uid);
         }
 
@@ -625,6 +732,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePhoneOn() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.notePhoneOnLocked();
         }
     }
@@ -632,6 +740,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePhoneOff() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.notePhoneOffLocked();
         }
     }
@@ -639,6 +748,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePhoneSignalStrength(SignalStrength signalStrength) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.notePhoneSignalStrengthLocked(signalStrength);
         }
     }
@@ -646,6 +756,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePhoneDataConnectionState(int dataType, boolean hasData) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.notePhoneDataConnectionStateLocked(dataType, hasData);
         }
     }
@@ -654,6 +765,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         int simState = TelephonyManager.getDefault().getSimState();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.notePhoneStateLocked(state, simState);
         }
     }
@@ -661,6 +773,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiOn() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiOnLocked();
         }
     }
@@ -668,6 +781,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiOff() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiOffLocked();
         }
     }
@@ -675,6 +789,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStartAudio(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteAudioOnLocked(uid);
         }
     }
@@ -682,6 +797,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStopAudio(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteAudioOffLocked(uid);
         }
     }
@@ -689,6 +805,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStartVideo(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteVideoOnLocked(uid);
         }
     }
@@ -696,6 +813,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStopVideo(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteVideoOffLocked(uid);
         }
     }
@@ -703,6 +821,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteResetAudio() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteResetAudioLocked();
         }
     }
@@ -710,6 +829,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteResetVideo() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteResetVideoLocked();
         }
     }
@@ -717,6 +837,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFlashlightOn(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteFlashlightOnLocked(uid);
         }
     }
@@ -724,6 +845,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFlashlightOff(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteFlashlightOffLocked(uid);
         }
     }
@@ -732,6 +854,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         if (DBG) Slog.d(TAG, "begin noteStartCamera");
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteCameraOnLocked(uid);
         }
         if (DBG) Slog.d(TAG, "end noteStartCamera");
@@ -740,6 +863,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStopCamera(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteCameraOffLocked(uid);
         }
     }
@@ -747,6 +871,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteResetCamera() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteResetCameraLocked();
         }
     }
@@ -754,6 +879,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteResetFlashlight() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteResetFlashlightLocked();
         }
     }
@@ -765,6 +891,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         // There was a change in WiFi power state.
         // Collect data now for the past activity.
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             if (mStats.isOnBattery()) {
                 final String type = (powerState == DataConnectionRealTimeInfo.DC_POWER_STATE_HIGH ||
                         powerState == DataConnectionRealTimeInfo.DC_POWER_STATE_MEDIUM) ? "active"
@@ -779,6 +906,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiRunning(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiRunningLocked(ws);
         }
     }
@@ -786,6 +914,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiRunningChanged(WorkSource oldWs, WorkSource newWs) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiRunningChangedLocked(oldWs, newWs);
         }
     }
@@ -793,6 +922,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiStopped(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiStoppedLocked(ws);
         }
     }
@@ -800,6 +930,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiState(int wifiState, String accessPoint) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiStateLocked(wifiState, accessPoint);
         }
     }
@@ -807,6 +938,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiSupplicantStateChanged(int supplState, boolean failedAuth) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiSupplicantStateChangedLocked(supplState, failedAuth);
         }
     }
@@ -814,6 +946,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiRssiChanged(int newRssi) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiRssiChangedLocked(newRssi);
         }
     }
@@ -821,6 +954,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFullWifiLockAcquired(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteFullWifiLockAcquiredLocked(uid);
         }
     }
@@ -828,6 +962,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFullWifiLockReleased(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteFullWifiLockReleasedLocked(uid);
         }
     }
@@ -835,6 +970,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiScanStarted(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiScanStartedLocked(uid);
         }
     }
@@ -842,6 +978,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiScanStopped(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiScanStoppedLocked(uid);
         }
     }
@@ -849,6 +986,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiMulticastEnabled(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiMulticastEnabledLocked(uid);
         }
     }
@@ -856,6 +994,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiMulticastDisabled(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiMulticastDisabledLocked(uid);
         }
     }
@@ -863,6 +1002,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFullWifiLockAcquiredFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteFullWifiLockAcquiredFromSourceLocked(ws);
         }
     }
@@ -870,6 +1010,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFullWifiLockReleasedFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteFullWifiLockReleasedFromSourceLocked(ws);
         }
     }
@@ -877,6 +1018,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiScanStartedFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiScanStartedFromSourceLocked(ws);
         }
     }
@@ -884,6 +1026,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiScanStoppedFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiScanStoppedFromSourceLocked(ws);
         }
     }
@@ -891,6 +1034,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiBatchedScanStartedFromSource(WorkSource ws, int csph) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiBatchedScanStartedFromSourceLocked(ws, csph);
         }
     }
@@ -898,6 +1042,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiBatchedScanStoppedFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiBatchedScanStoppedFromSourceLocked(ws);
         }
     }
@@ -905,6 +1050,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiMulticastEnabledFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiMulticastEnabledFromSourceLocked(ws);
         }
     }
@@ -913,6 +1059,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiMulticastDisabledFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteWifiMulticastDisabledFromSourceLocked(ws);
         }
     }
@@ -921,6 +1068,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteNetworkInterfaceType(String iface, int networkType) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteNetworkInterfaceTypeLocked(iface, networkType);
         }
     }
@@ -935,6 +1083,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteDeviceIdleMode(int mode, String activeReason, int activeUid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteDeviceIdleModeLocked(mode, activeReason, activeUid);
         }
     }
@@ -942,6 +1091,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePackageInstalled(String pkgName, int versionCode) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.notePackageInstalledLocked(pkgName, versionCode);
         }
     }
@@ -949,6 +1099,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePackageUninstalled(String pkgName) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.notePackageUninstalledLocked(pkgName);
         }
     }
@@ -957,6 +1108,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteBleScanStarted(WorkSource ws, boolean isUnoptimized) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteBluetoothScanStartedFromSourceLocked(ws, isUnoptimized);
         }
     }
@@ -965,6 +1117,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteBleScanStopped(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteBluetoothScanStoppedFromSourceLocked(ws);
         }
     }
@@ -973,6 +1126,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteResetBleScan() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteResetBluetoothScanLocked();
         }
     }
@@ -981,6 +1135,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteBleScanResults(WorkSource ws, int numNewResults) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.noteBluetoothScanResultsFromSourceLocked(ws, numNewResults);
         }
     }
@@ -1006,6 +1161,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         }
 
         synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
             mStats.updateBluetoothStateLocked(info);
         }
     }
@@ -1038,6 +1194,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             @Override
             public void run() {
                 synchronized (mStats) {
+                    mEventQueue.applyPendingLocked();
                     final boolean onBattery = plugType == BatteryStatsImpl.BATTERY_PLUGGED_NONE;
                     if (mStats.isOnBattery() == onBattery) {
                         // The battery state has not changed, so we don't need to sync external
@@ -1052,6 +1209,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                 // immediately here, we may not collect the relevant data later.
                 updateExternalStatsSync("battery-state", BatteryStatsImpl.ExternalStatsSync.UPDATE_ALL);
                 synchronized (mStats) {
+                    mEventQueue.applyPendingLocked();
                     mStats.setBatteryStateLocked(status, health, plugType, level, temp, volt,
                             chargeUAh, chargeFullUAh);
                 }
@@ -1105,6 +1263,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                 String reason;
                 while ((reason = waitWakeup()) != null) {
                     synchronized (mStats) {
+                        mEventQueue.applyPendingLocked();
                         mStats.noteWakeupReasonLocked(reason);
                     }
                 }
@@ -1176,14 +1335,17 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         }
         if ("full-wake-history".equals(args[i]) || "full-history".equals(args[i])) {
             synchronized (mStats) {
+                mEventQueue.applyPendingLocked();
                 mStats.setRecordAllHistoryLocked(enable);
             }
         } else if ("no-auto-reset".equals(args[i])) {
             synchronized (mStats) {
+                mEventQueue.applyPendingLocked();
                 mStats.setNoAutoReset(enable);
             }
         } else if ("pretend-screen-off".equals(args[i])) {
             synchronized (mStats) {
+                mEventQueue.applyPendingLocked();
                 mStats.setPretendScreenOff(enable);
             }
         } else {
@@ -1233,6 +1395,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                     flags |= BatteryStats.DUMP_DAILY_ONLY;
                 } else if ("--reset".equals(arg)) {
                     synchronized (mStats) {
+                        mEventQueue.applyPendingLocked();
                         mStats.resetAllStatsCmdLocked();
                         pw.println("Battery stats reset.");
                         noOutput = true;
@@ -1241,18 +1404,21 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                 } else if ("--write".equals(arg)) {
                     updateExternalStatsSync("dump", BatteryStatsImpl.ExternalStatsSync.UPDATE_ALL);
                     synchronized (mStats) {
+                        mEventQueue.applyPendingLocked();
                         mStats.writeSyncLocked();
                         pw.println("Battery stats written.");
                         noOutput = true;
                     }
                 } else if ("--new-daily".equals(arg)) {
                     synchronized (mStats) {
+                        mEventQueue.applyPendingLocked();
                         mStats.recordDailyStatsLocked();
                         pw.println("New daily stats written.");
                         noOutput = true;
                     }
                 } else if ("--read-daily".equals(arg)) {
                     synchronized (mStats) {
+                        mEventQueue.applyPendingLocked();
                         mStats.readDailyStatsLocked();
                         pw.println("Last daily stats read.");
                         noOutput = true;
@@ -1349,7 +1515,12 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                 }
             }
             if (DBG) Slog.d(TAG, "begin dumpCheckinLocked from UID " + Binder.getCallingUid());
+            if ((flags & (BatteryStats.DUMP_INCLUDE_HISTORY
+                    | BatteryStats.DUMP_HISTORY_ONLY)) != 0) {
+                loadHistoryChunks();
+            }
             synchronized (mStats) {
+                mEventQueue.applyPendingLocked();
                 mStats.dumpCheckinLocked(mContext, pw, apps, flags, historyStart);
                 if (writeData) {
                     mStats.writeAsyncLocked();
@@ -1358,16 +1529,40 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             if (DBG) Slog.d(TAG, "end dumpCheckinLocked");
         } else {
             if (DBG) Slog.d(TAG, "begin dumpLocked from UID " + Binder.getCallingUid());
+            // The history is dumped unless only other sections were asked for.
+            if ((flags & BatteryStats.DUMP_HISTORY_ONLY) != 0
+                    || (flags & (BatteryStats.DUMP_CHARGED_ONLY
+                            | BatteryStats.DUMP_DAILY_ONLY)) == 0) {
+                loadHistoryChunks();
+            }
             synchronized (mStats) {
+                mEventQueue.applyPendingLocked();
                 mStats.dumpLocked(mContext, pw, flags, reqUid, historyStart);
                 if (writeData) {
                     mStats.writeAsyncLocked();
                 }
+                if ((flags & BatteryStats.DUMP_VERBOSE) != 0) {
+                    pw.println();
+                    mEventQueue.dumpLocked(pw);
+                }
             }
             if (DBG) Slog.d(TAG, "end dumpLocked");
         }
     }
 
+    /**
+     * Reads the history chunks that are only on disk without holding the stats lock, ahead of
+     * a dump that iterates over the history.
+     */
+    private void loadHistoryChunks() {
+        final BatteryStatsImpl.HistoryChunkLoader loader;
+        synchronized (mStats) {
+            mEventQueue.applyPendingLocked();
+            loader = mStats.newHistoryChunkLoaderLocked();
+        }
+        loader.load();
+    }
+
     private WifiActivityEnergyInfo extractDelta(WifiActivityEnergyInfo latest) {
         final long timePeriodMs = latest.mTimestamp - mLastInfo.mTimestamp;
         final long lastIdleMs = mLastInfo.mControllerIdleTimeMs;
@@ -1551,6 +1746,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             }
 
             synchronized (mStats) {
+                mEventQueue.applyPendingLocked();
                 mStats.addHistoryEventLocked(
                         SystemClock.elapsedRealtime(),
                         SystemClock.uptimeMillis(),
@@ -1605,6 +1801,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             updateExternalStatsSync("get-health-stats-for-uid",
                     BatteryStatsImpl.ExternalStatsSync.UPDATE_ALL);
             synchronized (mStats) {
+                mEventQueue.applyPendingLocked();
                 return getHealthStatsForUidLocked(requestUid);
             }
         } catch (Exception ex) {
@@ -1630,6 +1827,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             updateExternalStatsSync("get-health-stats-for-uids",
                     BatteryStatsImpl.ExternalStatsSync.UPDATE_ALL);
             synchronized (mStats) {
+                mEventQueue.applyPendingLocked();
                 final int N = requestUids.length;
                 final HealthStatsParceler[] results = new HealthStatsParceler[N];
                 for (i=0; i<N; i++) {
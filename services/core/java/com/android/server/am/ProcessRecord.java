@@ -55,7 +55,7 @@ import java.util.ArrayList;
 final class ProcessRecord {
     private static final String TAG = TAG_WITH_CLASS_NAME ? "ProcessRecord" : TAG_AM;
 
-    private final BatteryStatsImpl mBatteryStats; // where to collect runtime statistics
+    private final BatteryStatsService mBatteryStatsService; // where to collect runtime statistics
     final ApplicationInfo info; // all about the first app in the process
     final boolean isolated;     // true if this is a special isolated process
     final int uid;              // uid of process; may be different from 'info' if isolated
@@ -342,8 +342,10 @@ final class ProcessRecord {
         }
         if (setProcState >= ActivityManager.PROCESS_STATE_SERVICE) {
             long wtime;
-            synchronized (mBatteryStats) {
-                wtime = mBatteryStats.getProcessWakeTime(info.uid,
+            final BatteryStatsImpl stats = mBatteryStatsService.getActiveStatistics();
+            synchronized (stats) {
+                mBatteryStatsService.applyPendingEventsLocked();
+                wtime = stats.getProcessWakeTime(info.uid,
                         pid, SystemClock.elapsedRealtime());
             }
             pw.print(prefix); pw.print("lastWakeTime="); pw.print(lastWakeTime);
@@ -434,9 +436,9 @@ final class ProcessRecord {
         }
     }
 
-    ProcessRecord(BatteryStatsImpl _batteryStats, ApplicationInfo _info,
+    ProcessRecord(BatteryStatsService _batteryStatsService, ApplicationInfo _info,
             String _processName, int _uid) {
-        mBatteryStats = _batteryStats;
+        mBatteryStatsService = _batteryStatsService;
         info = _info;
         isolated = _info.uid != _uid;
         uid = _uid;
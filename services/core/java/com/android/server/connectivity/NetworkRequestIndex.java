@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.SparseArray;
+
+import com.android.internal.util.BitUtils;
+
+import java.util.ArrayList;
+
+/**
+ * Index of non-listen {@link NetworkRequest}s, keyed by the transports and capabilities they
+ * require, used to narrow down which requests need to be rematched against a network.
+ *
+ * Requests are bucketed by each transport they accept, with requests that accept any transport
+ * kept in a separate bucket. Within a bucket, a request is only returned if the network has all
+ * the capabilities the request asks for. The result is a superset of the requests the network
+ * satisfies: callers must still call {@link NetworkAgentInfo#satisfies} on each candidate, since
+ * the index does not consider specifiers, bandwidths or signal strength.
+ *
+ * This class is not thread-safe and is expected to be used on the ConnectivityService handler.
+ *
+ * @param <T> the value stored for each request, returned from {@link #getCandidates}.
+ */
+public class NetworkRequestIndex<T> {
+
+    private static class Entry<T> {
+        final NetworkRequest request;
+        final T value;
+        final long transports;
+        final long capabilities;
+        // Last query this entry was returned by, so that requests accepting several transports,
+        // or currently satisfied by the network, are only returned once.
+        int lastQuery;
+
+        Entry(NetworkRequest request, T value) {
+            this.request = request;
+            this.value = value;
+            final NetworkCapabilities nc = request.networkCapabilities;
+            transports = BitUtils.packBits(nc.getTransportTypes());
+            capabilities = BitUtils.packBits(nc.getCapabilities());
+        }
+    }
+
+    // Keyed by request ID, which is unique across all requests.
+    private final SparseArray<Entry<T>> mEntries = new SparseArray<>();
+    // Keyed by transport type.
+    private final SparseArray<ArrayList<Entry<T>>> mByTransport = new SparseArray<>();
+    private final ArrayList<Entry<T>> mAnyTransport = new ArrayList<>();
+    private int mQuery;
+
+    /**
+     * Adds a request to the index. Listens are ignored, as they are never matched by rematching.
+     */
+    public void add(NetworkRequest request, T value) {
+        if (request.isListen()) return;
+        remove(request);
+        final Entry<T> entry = new Entry<>(request, value);
+        mEntries.put(request.requestId, entry);
+        if (entry.transports == 0) {
+            mAnyTransport.add(entry);
+            return;
+        }
+        for (int transport : BitUtils.unpackBits(entry.transports)) {
+            ArrayList<Entry<T>> bucket = mByTransport.get(transport);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                mByTransport.put(transport, bucket);
+            }
+            bucket.add(entry);
+        }
+    }
+
+    public void remove(NetworkRequest request) {
+        final Entry<T> entry = mEntries.get(request.requestId);
+        if (entry == null) return;
+        mEntries.remove(request.requestId);
+        if (entry.transports == 0) {
+            mAnyTransport.remove(entry);
+            return;
+        }
+        for (int transport : BitUtils.unpackBits(entry.transports)) {
+            final ArrayList<Entry<T>> bucket = mByTransport.get(transport);
+            if (bucket != null) {
+                bucket.remove(entry);
+            }
+        }
+    }
+
+    /** Returns the number of indexed requests. */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Appends to {@code out} the values of all requests that {@code nai} may satisfy, as well as
+     * of all indexed requests {@code nai} is currently satisfying, whether or not it still does.
+     *
+     * @return the number of values appended.
+     */
+    public int getCandidates(NetworkAgentInfo nai, ArrayList<T> out) {
+        final int query = ++mQuery;
+        final int start = out.size();
+        final NetworkCapabilities nc = nai.networkCapabilities;
+        final long capabilities = BitUtils.packBits(nc.getCapabilities());
+
+        addMatching(mAnyTransport, capabilities, query, out);
+        for (int transport : nc.getTransportTypes()) {
+            final ArrayList<Entry<T>> bucket = mByTransport.get(transport);
+            if (bucket != null) {
+                addMatching(bucket, capabilities, query, out);
+            }
+        }
+
+        // Requests the network no longer satisfies must still be visited, so that they can be
+        // removed from it.
+        for (int i = 0; i < nai.numNetworkRequests(); i++) {
+            final Entry<T> entry = mEntries.get(nai.requestAt(i).requestId);
+            if (entry != null && entry.lastQuery != query) {
+                entry.lastQuery = query;
+                out.add(entry.value);
+            }
+        }
+        return out.size() - start;
+    }
+
+    private static <T> void addMatching(ArrayList<Entry<T>> bucket, long capabilities, int query,
+            ArrayList<T> out) {
+        for (int i = 0; i < bucket.size(); i++) {
+            final Entry<T> entry = bucket.get(i);
+            if (entry.lastQuery == query) continue;
+            if ((entry.capabilities & ~capabilities) != 0) continue;
+            entry.lastQuery = query;
+            out.add(entry.value);
+        }
+    }
+}
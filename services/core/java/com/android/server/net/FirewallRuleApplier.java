@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkPolicyManager.FIREWALL_CHAIN_DOZABLE;
+import static android.net.NetworkPolicyManager.FIREWALL_CHAIN_POWERSAVE;
+import static android.net.NetworkPolicyManager.FIREWALL_CHAIN_STANDBY;
+import static android.net.NetworkPolicyManager.FIREWALL_RULE_DEFAULT;
+
+import android.os.INetworkManagementService;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Pushes UID firewall rules to {@link INetworkManagementService}, remembering the rules last
+ * applied to each chain so that a full recomputation of a chain only sends the UIDs whose rule
+ * actually changed.
+ *
+ * Small diffs are sent as individual UID rules; large diffs, or chains whose state is unknown,
+ * are sent as a single replacement of the whole chain.
+ */
+class FirewallRuleApplier {
+    private static final String TAG = NetworkPolicyManagerService.TAG;
+
+    /**
+     * Largest number of changed UIDs sent as individual rules. Above this, replacing the whole
+     * chain in one call is cheaper than one netd command per UID.
+     */
+    @VisibleForTesting
+    static final int MAX_INCREMENTAL_RULES = 16;
+
+    private static final int[] CHAINS = {
+            FIREWALL_CHAIN_DOZABLE, FIREWALL_CHAIN_STANDBY, FIREWALL_CHAIN_POWERSAVE };
+
+    private final INetworkManagementService mNetworkManager;
+
+    private final Object mLock = new Object();
+
+    /** Rules last applied to each chain, or no entry if the chain state is unknown. */
+    @GuardedBy("mLock")
+    private final SparseArray<SparseIntArray> mAppliedRules = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private final SparseArray<ChainStats> mStats = new SparseArray<>();
+
+    private static class ChainStats {
+        int updates;
+        int unchangedUpdates;
+        int fullReplacements;
+        int singleRules;
+        long changedRules;
+        long totalQueueMs;
+        long maxQueueMs;
+        long totalApplyMs;
+        long maxApplyMs;
+    }
+
+    FirewallRuleApplier(INetworkManagementService networkManager) {
+        mNetworkManager = networkManager;
+    }
+
+    /**
+     * Brings {@code chain} in line with {@code uidRules}, which lists every UID that should have a
+     * non-default rule on it.
+     *
+     * @param queuedMs how long the update waited before being applied, for statistics.
+     */
+    void setRules(int chain, SparseIntArray uidRules, long queuedMs) {
+        synchronized (mLock) {
+            final long start = SystemClock.elapsedRealtime();
+            final ChainStats stats = getStatsLocked(chain);
+            stats.updates++;
+            stats.totalQueueMs += queuedMs;
+            stats.maxQueueMs = Math.max(stats.maxQueueMs, queuedMs);
+
+            final SparseIntArray applied = mAppliedRules.get(chain);
+            final SparseIntArray changes = applied != null ? diff(applied, uidRules) : null;
+            if (changes != null && changes.size() == 0) {
+                stats.unchangedUpdates++;
+            } else if (changes != null && changes.size() <= MAX_INCREMENTAL_RULES) {
+                stats.changedRules += changes.size();
+                for (int i = 0; i < changes.size(); i++) {
+                    setRuleLocked(chain, changes.keyAt(i), changes.valueAt(i));
+                }
+            } else {
+                stats.changedRules += changes != null ? changes.size() : uidRules.size();
+                replaceChainLocked(chain, uidRules);
+            }
+
+            final long applyMs = SystemClock.elapsedRealtime() - start;
+            stats.totalApplyMs += applyMs;
+            stats.maxApplyMs = Math.max(stats.maxApplyMs, applyMs);
+        }
+    }
+
+    /** Sets a single UID rule, skipping the call if the rule is already applied. */
+    void setRule(int chain, int uid, int rule) {
+        synchronized (mLock) {
+            final SparseIntArray applied = mAppliedRules.get(chain);
+            if (applied != null && applied.get(uid, FIREWALL_RULE_DEFAULT) == rule) {
+                return;
+            }
+            setRuleLocked(chain, uid, rule);
+        }
+    }
+
+    /** Resets the rules of {@code uid} on every chain. */
+    void resetRules(int uid) {
+        synchronized (mLock) {
+            for (int chain : CHAINS) {
+                setRuleLocked(chain, uid, FIREWALL_RULE_DEFAULT);
+            }
+        }
+    }
+
+    private void setRuleLocked(int chain, int uid, int rule) {
+        getStatsLocked(chain).singleRules++;
+        try {
+            mNetworkManager.setFirewallUidRule(chain, uid, rule);
+            final SparseIntArray applied = mAppliedRules.get(chain);
+            if (applied != null) {
+                if (rule == FIREWALL_RULE_DEFAULT) {
+                    applied.delete(uid);
+                } else {
+                    applied.put(uid, rule);
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.wtf(TAG, "problem setting firewall uid rules", e);
+            mAppliedRules.remove(chain);
+        } catch (RemoteException e) {
+            // ignored; service lives in system_server
+        }
+    }
+
+    private void replaceChainLocked(int chain, SparseIntArray uidRules) {
+        getStatsLocked(chain).fullReplacements++;
+        try {
+            final int size = uidRules.size();
+            final int[] uids = new int[size];
+            final int[] rules = new int[size];
+            final SparseIntArray applied = new SparseIntArray(size);
+            for (int index = size - 1; index >= 0; --index) {
+                uids[index] = uidRules.keyAt(index);
+                rules[index] = uidRules.valueAt(index);
+                if (rules[index] != FIREWALL_RULE_DEFAULT) {
+                    applied.put(uids[index], rules[index]);
+                }
+            }
+            mNetworkManager.setFirewallUidRules(chain, uids, rules);
+            mAppliedRules.put(chain, applied);
+        } catch (IllegalStateException e) {
+            Log.wtf(TAG, "problem setting firewall uid rules", e);
+            mAppliedRules.remove(chain);
+        } catch (RemoteException e) {
+            // ignored; service lives in system_server
+        }
+    }
+
+    /**
+     * Returns the rules that need to be set to go from {@code applied} to {@code target}, with
+     * UIDs missing from {@code target} reset to {@link #FIREWALL_RULE_DEFAULT}.
+     */
+    @VisibleForTesting
+    static SparseIntArray diff(SparseIntArray applied, SparseIntArray target) {
+        final SparseIntArray changes = new SparseIntArray();
+        for (int i = 0; i < target.size(); i++) {
+            final int uid = target.keyAt(i);
+            final int rule = target.valueAt(i);
+            if (applied.get(uid, FIREWALL_RULE_DEFAULT) != rule) {
+                changes.put(uid, rule);
+            }
+        }
+        for (int i = 0; i < applied.size(); i++) {
+            final int uid = applied.keyAt(i);
+            if (target.indexOfKey(uid) < 0) {
+                changes.put(uid, FIREWALL_RULE_DEFAULT);
+            }
+        }
+        return changes;
+    }
+
+    private ChainStats getStatsLocked(int chain) {
+        ChainStats stats = mStats.get(chain);
+        if (stats == null) {
+            stats = new ChainStats();
+            mStats.put(chain, stats);
+        }
+        return stats;
+    }
+
+    void dump(IndentingPrintWriter fout) {
+        synchronized (mLock) {
+            fout.println("Firewall rule updates:");
+            fout.increaseIndent();
+            for (int i = 0; i < mStats.size(); i++) {
+                final ChainStats stats = mStats.valueAt(i);
+                final SparseIntArray applied = mAppliedRules.get(mStats.keyAt(i));
+                fout.print("chain="); fout.print(mStats.keyAt(i));
+                fout.print(" applied="); fout.print(applied != null ? applied.size() : -1);
+                fout.print(" updates="); fout.print(stats.updates);
+                fout.print(" unchanged="); fout.print(stats.unchangedUpdates);
+                fout.print(" replacements="); fout.print(stats.fullReplacements);
+                fout.print(" singleRules="); fout.print(stats.singleRules);
+                fout.print(" changedRules="); fout.print(stats.changedRules);
+                fout.print(" queueMs(total/max)=");
+                fout.print(stats.totalQueueMs); fout.print("/"); fout.print(stats.maxQueueMs);
+                fout.print(" applyMs(total/max)=");
+                fout.print(stats.totalApplyMs); fout.print("/"); fout.print(stats.maxApplyMs);
+                fout.println();
+            }
+            fout.decreaseIndent();
+        }
+    }
+}
@@ -153,6 +153,7 @@ import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
 import android.os.ShellCallback;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -328,6 +329,7 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
     private final IActivityManager mActivityManager;
     private final INetworkStatsService mNetworkStats;
     private final INetworkManagementService mNetworkManager;
+    private final FirewallRuleApplier mFirewallRuleApplier;
     private UsageStatsManagerInternal mUsageStats;
     private final TrustedTime mTime;
     private final UserManager mUserManager;
@@ -477,6 +479,7 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
         mActivityManager = checkNotNull(activityManager, "missing activityManager");
         mNetworkStats = checkNotNull(networkStats, "missing networkStats");
         mNetworkManager = checkNotNull(networkManagement, "missing networkManagement");
+        mFirewallRuleApplier = new FirewallRuleApplier(mNetworkManager);
         mDeviceIdleController = IDeviceIdleController.Stub.asInterface(ServiceManager.getService(
                 Context.DEVICE_IDLE_CONTROLLER));
         mTime = checkNotNull(time, "missing TrustedTime");
@@ -2607,6 +2610,8 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
 
                 fout.print("Metered ifaces: "); fout.println(String.valueOf(mMeteredIfaces));
 
+                mFirewallRuleApplier.dump(fout);
+
                 fout.println("Policy for UIDs:");
                 fout.increaseIndent();
                 int size = mUidPolicy.size();
@@ -3666,7 +3671,8 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
                     final int toggle = msg.arg2;
                     final SparseIntArray uidRules = (SparseIntArray) msg.obj;
                     if (uidRules != null) {
-                        setUidFirewallRules(chain, uidRules);
+                        setUidFirewallRules(chain, uidRules,
+                                SystemClock.uptimeMillis() - msg.getWhen());
                     }
                     if (toggle != CHAIN_TOGGLE_NONE) {
                         enableFirewallChainUL(chain, toggle == CHAIN_TOGGLE_ENABLE);
@@ -3807,11 +3813,12 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
     }
 
     /**
-     * Calls {@link #setUidFirewallRules(int, SparseIntArray)} and
+     * Calls {@link #setUidFirewallRules(int, SparseIntArray, long)} and
      * {@link #enableFirewallChainUL(int, boolean)} asynchronously.
      *
      * @param chain firewall chain.
-     * @param uidRules new UID rules; if {@code null}, only toggles chain state.
+     * @param uidRules new UID rules, read when the message is handled so that later single UID
+     *        updates are included; if {@code null}, only toggles chain state.
      * @param toggle whether the chain should be enabled, disabled, or not changed.
      */
     private void setUidFirewallRulesAsync(int chain, @Nullable SparseIntArray uidRules,
@@ -3822,23 +3829,16 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
     /**
      * Set uid rules on a particular firewall chain. This is going to synchronize the rules given
      * here to netd.  It will clean up dead rules and make sure the target chain only contains rules
-     * specified here.
+     * specified here. Only the rules that differ from the ones last applied are sent.
+     *
+     * @param queuedMs how long the update was pending, for statistics.
      */
-    private void setUidFirewallRules(int chain, SparseIntArray uidRules) {
-        try {
-            int size = uidRules.size();
-            int[] uids = new int[size];
-            int[] rules = new int[size];
-            for(int index = size - 1; index >= 0; --index) {
-                uids[index] = uidRules.keyAt(index);
-                rules[index] = uidRules.valueAt(index);
-            }
-            mNetworkManager.setFirewallUidRules(chain, uids, rules);
-        } catch (IllegalStateException e) {
-            Log.wtf(TAG, "problem setting firewall uid rules", e);
-        } catch (RemoteException e) {
-            // ignored; service lives in system_server
+    private void setUidFirewallRules(int chain, SparseIntArray uidRules, long queuedMs) {
+        final SparseIntArray target;
+        synchronized (mUidRulesFirstLock) {
+            target = uidRules.clone();
         }
+        mFirewallRuleApplier.setRules(chain, target, queuedMs);
     }
 
     /**
@@ -3858,13 +3858,7 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
                 mUidFirewallPowerSaveRules.put(uid, rule);
             }
 
-            try {
-                mNetworkManager.setFirewallUidRule(chain, uid, rule);
-            } catch (IllegalStateException e) {
-                Log.wtf(TAG, "problem setting firewall uid rules", e);
-            } catch (RemoteException e) {
-                // ignored; service lives in system_server
-            }
+            mFirewallRuleApplier.setRule(chain, uid, rule);
         } finally {
             Trace.traceEnd(Trace.TRACE_TAG_NETWORK);
         }
@@ -3893,11 +3887,8 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
      * Resets all firewall rules associated with an UID.
      */
     private void resetUidFirewallRules(int uid) {
+        mFirewallRuleApplier.resetRules(uid);
         try {
-            mNetworkManager.setFirewallUidRule(FIREWALL_CHAIN_DOZABLE, uid, FIREWALL_RULE_DEFAULT);
-            mNetworkManager.setFirewallUidRule(FIREWALL_CHAIN_STANDBY, uid, FIREWALL_RULE_DEFAULT);
-            mNetworkManager
-                    .setFirewallUidRule(FIREWALL_CHAIN_POWERSAVE, uid, FIREWALL_RULE_DEFAULT);
             mNetworkManager.setUidMeteredNetworkWhitelist(uid, false);
             mNetworkManager.setUidMeteredNetworkBlacklist(uid, false);
         } catch (IllegalStateException e) {
@@ -34,6 +34,7 @@ import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
 import android.os.Binder;
+import android.util.Slog;
 import android.service.NetworkStatsCollectionKeyProto;
 import android.service.NetworkStatsCollectionProto;
 import android.service.NetworkStatsCollectionStatsProto;
@@ -52,24 +53,34 @@ import com.google.android.collect.Maps;
 import libcore.io.IoUtils;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Objects;
+import java.util.zip.CRC32;
 
 /**
  * Collection of {@link NetworkStatsHistory}, stored based on combined key of
  * {@link NetworkIdentitySet}, UID, set, and tag. Knows how to persist itself.
  */
 public class NetworkStatsCollection implements FileRotator.Reader {
+    private static final String TAG = "NetworkStatsCollection";
+
     /** File header magic number: "ANET" */
     private static final int FILE_MAGIC = 0x414E4554;
 
@@ -82,6 +93,26 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     private static final int VERSION_UNIFIED_INIT = 16;
 
+    /**
+     * Self-delimiting, checksummed chunk that can be appended to an existing
+     * file. Keys are stored as columns ahead of the histories, along with the
+     * time range covered by each history, so readers can skip chunks and
+     * histories outside a requested range without decoding them.
+     * <pre>
+     * chunk   := magic version payloadLength crc32 payload
+     * payload := start end identsLength idents keyCount
+     *            identIndex[] uid[] set[] tag[] histStart[] histEnd[]
+     *            histOffset[] histLength[] histories
+     * </pre>
+     */
+    private static final int VERSION_APPENDABLE = 17;
+
+    /** Size of the fixed chunk header preceding each appendable payload. */
+    private static final int APPENDABLE_HEADER_SIZE = 16;
+
+    /** Size of the smallest appendable payload: its time range. */
+    private static final int APPENDABLE_MIN_PAYLOAD_SIZE = 16;
+
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
     private final long mBucketDuration;
@@ -329,14 +360,78 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     }
 
     public void read(DataInputStream in) throws IOException {
+        readChunks(in, null);
+    }
+
+    /**
+     * Return the length of the intact chunks at the start of the given file,
+     * so that anything after them, such as a torn append, can be cut off
+     * before appending more.
+     */
+    public static long getValidLength(File file, long bucketDuration) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            final CountingInputStream counter = new CountingInputStream(
+                    new BufferedInputStream(fis));
+            return new NetworkStatsCollection(bucketDuration).readChunks(
+                    new DataInputStream(counter), counter);
+        }
+    }
+
+    /**
+     * Read chunks until the end of the stream, usually one unified chunk
+     * followed by any number of appended chunks. Reading stops at the first
+     * chunk that is torn or corrupt, such as one left by an interrupted append,
+     * since nothing after it can be located reliably.
+     *
+     * @return offset just past the last intact chunk, when {@code counter}
+     *         counts the bytes consumed from {@code in}.
+     */
+    private long readChunks(DataInputStream in, CountingInputStream counter)
+            throws IOException {
+        long validLength = 0;
+        while (true) {
+            try {
+                final int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    return validLength;
+                }
+                readChunk(in, magic);
+            } catch (EOFException | ProtocolException e) {
+                Slog.w(TAG, "ignoring torn or corrupt chunk", e);
+                return validLength;
+            }
+            if (counter != null) {
+                validLength = counter.getCount();
+            }
+        }
+    }
+
+    /**
+     * Read a single chunk whose magic has already been consumed.
+     */
+    private void readChunk(DataInputStream in, int magic) throws IOException {
         // verify file magic header intact
-        final int magic = in.readInt();
         if (magic != FILE_MAGIC) {
             throw new ProtocolException("unexpected magic: " + magic);
         }
 
         final int version = in.readInt();
         switch (version) {
+            case VERSION_APPENDABLE: {
+                final int length = in.readInt();
+                final int crc = in.readInt();
+                if (length < APPENDABLE_MIN_PAYLOAD_SIZE) {
+                    throw new ProtocolException("unexpected chunk length: " + length);
+                }
+                final byte[] payload = readPayload(in, length);
+                if (crc32(payload, 0, length) != crc) {
+                    throw new ProtocolException("chunk checksum mismatch");
+                }
+                readAppendablePayload(ByteBuffer.wrap(payload), Long.MIN_VALUE, Long.MAX_VALUE);
+                break;
+            }
             case VERSION_UNIFIED_INIT: {
                 // uid := size *(NetworkIdentitySet size *(uid set tag NetworkStatsHistory))
                 final int identSize = in.readInt();
@@ -362,6 +457,229 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
+    /**
+     * Read a payload of the given length, without trusting the length enough
+     * to allocate it all before the data turns out to be there.
+     */
+    private static byte[] readPayload(DataInputStream in, int length) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(length, 8192));
+        final byte[] buffer = new byte[8192];
+        int remaining = length;
+        while (remaining > 0) {
+            final int n = in.read(buffer, 0, Math.min(remaining, buffer.length));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Read any histories from the given file that overlap the requested time
+     * range. Appendable files are memory-mapped, and only the chunks and
+     * histories overlapping the range are decoded; other files are read in
+     * full. As with streamed reads, reading stops at the first torn or corrupt
+     * chunk.
+     */
+    public void readMapped(File file, long start, long end) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file);
+                FileChannel channel = fis.getChannel()) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() >= 8 && buffer.getInt(0) == FILE_MAGIC
+                    && buffer.getInt(4) != VERSION_APPENDABLE) {
+                // starts with a unified chunk, which can only be parsed as a stream
+                fis.getChannel().position(0);
+                read(new DataInputStream(new BufferedInputStream(fis)));
+                return;
+            }
+
+            while (buffer.hasRemaining()) {
+                if (buffer.remaining() < APPENDABLE_HEADER_SIZE) {
+                    Slog.w(TAG, "ignoring truncated chunk in " + file);
+                    return;
+                }
+                final int magic = buffer.getInt();
+                final int version = buffer.getInt();
+                final int length = buffer.getInt();
+                final int crc = buffer.getInt();
+                if (magic != FILE_MAGIC || version != VERSION_APPENDABLE) {
+                    Slog.w(TAG, "ignoring unexpected chunk " + magic + "/" + version + " in "
+                            + file);
+                    return;
+                }
+                if (length < APPENDABLE_MIN_PAYLOAD_SIZE || length > buffer.remaining()) {
+                    Slog.w(TAG, "ignoring truncated chunk in " + file);
+                    return;
+                }
+
+                final int payloadStart = buffer.position();
+                final ByteBuffer payload = buffer.slice();
+                payload.limit(length);
+                buffer.position(payloadStart + length);
+
+                // only checksum chunks we actually decode
+                if (payload.getLong(0) > end || payload.getLong(8) < start) continue;
+                final byte[] bytes = new byte[length];
+                payload.duplicate().get(bytes);
+                if (crc32(bytes, 0, length) != crc) {
+                    Slog.w(TAG, "ignoring corrupt chunk in " + file);
+                    return;
+                }
+                readAppendablePayload(payload, start, end);
+            }
+        }
+    }
+
+    private void readAppendablePayload(ByteBuffer payload, long start, long end)
+            throws IOException {
+        final long chunkStart = payload.getLong();
+        final long chunkEnd = payload.getLong();
+        if (chunkStart > end || chunkEnd < start) return;
+
+        final int identsLength = payload.getInt();
+        final byte[] identBytes = new byte[identsLength];
+        payload.get(identBytes);
+        final DataInputStream identIn = new DataInputStream(new ByteArrayInputStream(identBytes));
+        final int identCount = identIn.readInt();
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[identCount];
+        for (int i = 0; i < identCount; i++) {
+            idents[i] = new NetworkIdentitySet(identIn);
+        }
+
+        final int keyCount = payload.getInt();
+        final int identBase = payload.position();
+        final int uidBase = identBase + keyCount * 4;
+        final int setBase = uidBase + keyCount * 4;
+        final int tagBase = setBase + keyCount * 4;
+        final int histStartBase = tagBase + keyCount * 4;
+        final int histEndBase = histStartBase + keyCount * 8;
+        final int histOffsetBase = histEndBase + keyCount * 8;
+        final int histLengthBase = histOffsetBase + keyCount * 4;
+        final int historiesBase = histLengthBase + keyCount * 4;
+
+        for (int i = 0; i < keyCount; i++) {
+            if (payload.getLong(histStartBase + i * 8) > end
+                    || payload.getLong(histEndBase + i * 8) < start) {
+                continue;
+            }
+
+            final Key key = new Key(idents[payload.getInt(identBase + i * 4)],
+                    payload.getInt(uidBase + i * 4), payload.getInt(setBase + i * 4),
+                    payload.getInt(tagBase + i * 4));
+            final byte[] historyBytes = new byte[payload.getInt(histLengthBase + i * 4)];
+            payload.position(historiesBase + payload.getInt(histOffsetBase + i * 4));
+            payload.get(historyBytes);
+            recordHistory(key, new NetworkStatsHistory(
+                    new DataInputStream(new ByteArrayInputStream(historyBytes))));
+        }
+    }
+
+    /**
+     * Write this collection as a single appendable chunk, suitable for
+     * {@link FileRotator#appendActive}.
+     */
+    public void writeAppendable(DataOutputStream out) throws IOException {
+        final ArrayMap<NetworkIdentitySet, Integer> identIndex = new ArrayMap<>();
+        final ByteArrayOutputStream identBytes = new ByteArrayOutputStream();
+        final DataOutputStream identOut = new DataOutputStream(identBytes);
+        final ByteArrayOutputStream historyBytes = new ByteArrayOutputStream();
+        final DataOutputStream historyOut = new DataOutputStream(historyBytes);
+
+        final int keyCount = mStats.size();
+        final int[] histOffset = new int[keyCount];
+        final int[] histLength = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            final Key key = mStats.keyAt(i);
+            if (!identIndex.containsKey(key.ident)) {
+                identIndex.put(key.ident, identIndex.size());
+            }
+            histOffset[i] = historyOut.size();
+            mStats.valueAt(i).writeToStream(historyOut);
+            histLength[i] = historyOut.size() - histOffset[i];
+        }
+        identOut.writeInt(identIndex.size());
+        for (int i = 0; i < identIndex.size(); i++) {
+            identIndex.keyAt(i).writeToStream(identOut);
+        }
+        identOut.flush();
+        historyOut.flush();
+
+        final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        final DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeLong(mStartMillis);
+        payload.writeLong(mEndMillis);
+        payload.writeInt(identBytes.size());
+        identBytes.writeTo(payload);
+        payload.writeInt(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            payload.writeInt(identIndex.get(mStats.keyAt(i).ident));
+        }
+        for (int i = 0; i < keyCount; i++) payload.writeInt(mStats.keyAt(i).uid);
+        for (int i = 0; i < keyCount; i++) payload.writeInt(mStats.keyAt(i).set);
+        for (int i = 0; i < keyCount; i++) payload.writeInt(mStats.keyAt(i).tag);
+        for (int i = 0; i < keyCount; i++) payload.writeLong(mStats.valueAt(i).getStart());
+        for (int i = 0; i < keyCount; i++) payload.writeLong(mStats.valueAt(i).getEnd());
+        for (int i = 0; i < keyCount; i++) payload.writeInt(histOffset[i]);
+        for (int i = 0; i < keyCount; i++) payload.writeInt(histLength[i]);
+        historyBytes.writeTo(payload);
+        payload.flush();
+
+        final byte[] bytes = payloadBytes.toByteArray();
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(VERSION_APPENDABLE);
+        out.writeInt(bytes.length);
+        out.writeInt(crc32(bytes, 0, bytes.length));
+        out.write(bytes);
+        out.flush();
+    }
+
+    /** Stream that counts the bytes read through it. */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) mCount++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) mCount += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static int crc32(byte[] bytes, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
     public void write(DataOutputStream out) throws IOException {
         // cluster key lists grouped by ident
         final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
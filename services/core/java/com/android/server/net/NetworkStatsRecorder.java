@@ -81,6 +81,7 @@ public class NetworkStatsRecorder {
     private final boolean mOnlyTags;
 
     private long mPersistThresholdBytes = 2 * MB_IN_BYTES;
+    private boolean mAppendPersistence;
     private NetworkStats mLastSnapshot;
 
     private final NetworkStatsCollection mPending;
@@ -135,6 +136,15 @@ public class NetworkStatsRecorder {
                 thresholdBytes, 1 * KB_IN_BYTES, 100 * MB_IN_BYTES);
     }
 
+    /**
+     * Persist pending deltas by appending them to the active file, instead of
+     * reading and rewriting the whole file each time, and serve loads by
+     * memory-mapping files and decoding only histories in the requested range.
+     */
+    public void setAppendPersistence(boolean appendPersistence) {
+        mAppendPersistence = appendPersistence;
+    }
+
     public void resetLocked() {
         mLastSnapshot = null;
         if (mPending != null) {
@@ -186,7 +196,11 @@ public class NetworkStatsRecorder {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
         try {
-            mRotator.readMatching(res, start, end);
+            if (mAppendPersistence) {
+                mRotator.readMatchingFiles(file -> res.readMapped(file, start, end), start, end);
+            } else {
+                mRotator.readMatching(res, start, end);
+            }
             res.recordCollection(mPending);
         } catch (IOException e) {
             Log.wtf(TAG, "problem completely reading network stats", e);
@@ -294,7 +308,14 @@ public class NetworkStatsRecorder {
         if (mPending.isDirty()) {
             if (LOGD) Slog.d(TAG, "forcePersistLocked() writing for " + mCookie);
             try {
-                mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
+                if (mAppendPersistence) {
+                    mRotator.appendActive(
+                            out -> mPending.writeAppendable(new DataOutputStream(out)),
+                            file -> NetworkStatsCollection.getValidLength(file, mBucketDuration),
+                            currentTimeMillis);
+                } else {
+                    mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
+                }
                 mRotator.maybeRotate(currentTimeMillis);
                 mPending.reset();
             } catch (IOException e) {
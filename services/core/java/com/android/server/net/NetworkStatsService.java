@@ -328,6 +328,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         mUidRecorder = buildRecorder(PREFIX_UID, mSettings.getUidConfig(), false);
         mUidTagRecorder = buildRecorder(PREFIX_UID_TAG, mSettings.getUidTagConfig(), true);
 
+        // uid history is by far the largest; avoid rewriting it on every persist
+        mUidRecorder.setAppendPersistence(true);
+        mUidTagRecorder.setAppendPersistence(true);
+
         updatePersistThresholds();
 
         synchronized (mStatsLock) {
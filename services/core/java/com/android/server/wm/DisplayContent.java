@@ -52,6 +52,7 @@ import static android.view.WindowManager.LayoutParams.TYPE_STATUS_BAR;
 import static android.view.WindowManager.LayoutParams.TYPE_SYSTEM_DIALOG;
 import static android.view.WindowManager.LayoutParams.TYPE_SYSTEM_ERROR;
 import static android.view.WindowManager.LayoutParams.TYPE_TOAST;
+import static android.view.WindowManager.LayoutParams.TYPE_VOICE_INTERACTION;
 import static android.view.WindowManager.LayoutParams.TYPE_WALLPAPER;
 import static android.view.WindowManagerPolicy.FINISH_LAYOUT_REDO_ANIM;
 import static android.view.WindowManagerPolicy.FINISH_LAYOUT_REDO_CONFIG;
@@ -176,6 +177,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     private boolean mTmpRecoveringMemory;
     private boolean mUpdateImeTarget;
     private boolean mTmpInitial;
+    private int mTmpLayoutCount;
+    private boolean mTmpLayoutOrderDependent;
     private int mMaxUiWidth;
 
     // Mapping from a token IBinder to a WindowToken object on this display.
@@ -260,6 +263,25 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     // Accessed directly by all users.
     private boolean mLayoutNeeded;
+    // Whether the next layout has to visit all windows, see setLayoutNeeded(WindowState).
+    private boolean mFullLayoutNeeded = true;
+
+    // Inputs of the last full layout. A partial layout is only possible if they are unchanged.
+    private final Rect mLastLayoutContentRect = new Rect();
+    private int mLastLayoutWidth;
+    private int mLastLayoutHeight;
+    private int mLastLayoutRotation;
+    private int mLastLayoutUiMode;
+    private int mLastLayoutSeq = -1;
+    // Whether the last full layout laid out a window that moves the windows laid out after it.
+    private boolean mLastLayoutOrderDependent;
+
+    private int mFullLayouts;
+    private int mPartialLayouts;
+    private long mFullLayoutWindows;
+    private long mPartialLayoutWindows;
+    private long mFullLayoutNanos;
+    private long mPartialLayoutNanos;
     int pendingLayoutChanges;
     // TODO(multi-display): remove some of the usages.
     boolean isDefaultDisplay;
@@ -526,6 +548,10 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                 final boolean firstLayout = !w.isLaidOut();
                 mService.mPolicy.layoutWindowLw(w, null);
                 w.mLayoutSeq = mService.mLayoutSeq;
+                mTmpLayoutCount++;
+                if (!gone && isOrderDependentLayout(w)) {
+                    mTmpLayoutOrderDependent = true;
+                }
 
                 // If this is the first layout, we need to initialize the last inset values as
                 // otherwise we'd immediately cause an unnecessary resize.
@@ -567,6 +593,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                 w.prelayout();
                 mService.mPolicy.layoutWindowLw(w, w.getParentWindow());
                 w.mLayoutSeq = mService.mLayoutSeq;
+                mTmpLayoutCount++;
                 if (DEBUG_LAYOUT) Slog.v(TAG, " LAYOUT: mFrame=" + w.mFrame
                         + " mContainingFrame=" + w.mContainingFrame
                         + " mDisplayFrame=" + w.mDisplayFrame);
@@ -2116,6 +2143,12 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             pw.print("x"); pw.println(mDisplayInfo.largestNominalAppHeight);
             pw.println(subPrefix + "deferred=" + mDeferredRemoval
                     + " mLayoutNeeded=" + mLayoutNeeded);
+            pw.print(subPrefix + "layouts: full="); pw.print(mFullLayouts);
+            pw.print(" windows="); pw.print(mFullLayoutWindows);
+            pw.print(" ms="); pw.print(mFullLayoutNanos / 1000000);
+            pw.print(" partial="); pw.print(mPartialLayouts);
+            pw.print(" windows="); pw.print(mPartialLayoutWindows);
+            pw.print(" ms="); pw.println(mPartialLayoutNanos / 1000000);
 
         pw.println();
         pw.println(prefix + "Application tokens in top down Z order:");
@@ -2460,11 +2493,34 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     void setLayoutNeeded() {
         if (DEBUG_LAYOUT) Slog.w(TAG_WM, "setLayoutNeeded: callers=" + Debug.getCallers(3));
         mLayoutNeeded = true;
+        mFullLayoutNeeded = true;
+    }
+
+    /**
+     * Requests a layout for a change that only affects the layout of {@code win} and its child
+     * windows. Unless something else requests a layout of the whole display before it runs, the
+     * next {@link #performLayout} only visits the windows marked this way.
+     */
+    void setLayoutNeeded(WindowState win) {
+        if (DEBUG_LAYOUT) Slog.w(TAG_WM, "setLayoutNeeded: win=" + win
+                + " callers=" + Debug.getCallers(3));
+        win.markLayoutDirty();
+        mLayoutNeeded = true;
     }
 
     private void clearLayoutNeeded() {
         if (DEBUG_LAYOUT) Slog.w(TAG_WM, "clearLayoutNeeded: callers=" + Debug.getCallers(3));
         mLayoutNeeded = false;
+        mFullLayoutNeeded = false;
+    }
+
+    /**
+     * Returns true if laying out {@code w} changes the policy state other windows are laid out
+     * against, so that the order in which windows are laid out matters.
+     */
+    private static boolean isOrderDependentLayout(WindowState w) {
+        final int type = w.mAttrs.type;
+        return type == TYPE_INPUT_METHOD || type == TYPE_VOICE_INTERACTION || type == TYPE_DREAM;
     }
 
     boolean isLayoutNeeded() {
@@ -2779,18 +2835,20 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         if (!isLayoutNeeded()) {
             return;
         }
+        final boolean fullLayoutNeeded = mFullLayoutNeeded;
         clearLayoutNeeded();
 
+        final long startNanos = System.nanoTime();
         final int dw = mDisplayInfo.logicalWidth;
         final int dh = mDisplayInfo.logicalHeight;
+        final int uiMode = getConfiguration().uiMode;
 
         if (DEBUG_LAYOUT) {
             Slog.v(TAG, "-------------------------------------");
             Slog.v(TAG, "performLayout: needed=" + isLayoutNeeded() + " dw=" + dw + " dh=" + dh);
         }
 
-        mService.mPolicy.beginLayoutLw(isDefaultDisplay, dw, dh, mRotation,
-                getConfiguration().uiMode);
+        mService.mPolicy.beginLayoutLw(isDefaultDisplay, dw, dh, mRotation, uiMode);
         if (isDefaultDisplay) {
             // Not needed on non-default displays.
             mService.mSystemDecorLayer = mService.mPolicy.getSystemDecorLayerLw();
@@ -2799,17 +2857,35 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
         mService.mPolicy.getContentRectLw(mContentRect);
 
-        int seq = mService.mLayoutSeq + 1;
-        if (seq < 0) seq = 0;
-        mService.mLayoutSeq = seq;
+        // If only some windows asked to be laid out, and the windows they are laid out against are
+        // the same as in the last full layout, the frames of the other windows can't have changed:
+        // only lay out the dirty windows. Keeping the layout sequence of the last full layout lets
+        // the other windows still be checked for resizes as if they had been laid out again.
+        final boolean partial = !fullLayoutNeeded && !mLastLayoutOrderDependent
+                && mLastLayoutSeq == mService.mLayoutSeq
+                && mLastLayoutWidth == dw && mLastLayoutHeight == dh
+                && mLastLayoutRotation == mRotation && mLastLayoutUiMode == uiMode
+                && mLastLayoutContentRect.equals(mContentRect);
+
+        if (!partial) {
+            int seq = mService.mLayoutSeq + 1;
+            if (seq < 0) seq = 0;
+            mService.mLayoutSeq = seq;
+        }
 
         // Used to indicate that we have processed the dream window and all additional windows are
         // behind it.
         mTmpWindow = null;
         mTmpInitial = initial;
+        mTmpLayoutCount = 0;
+        mTmpLayoutOrderDependent = false;
 
         // First perform layout of any root windows (not attached to another window).
-        forAllWindows(mPerformLayout, true /* traverseTopToBottom */);
+        if (partial) {
+            forAllLayoutDirtyWindows(mPerformLayout, true /* traverseTopToBottom */);
+        } else {
+            forAllWindows(mPerformLayout, true /* traverseTopToBottom */);
+        }
 
         // Used to indicate that we have processed the dream window and all additional attached
         // windows are behind it.
@@ -2819,7 +2895,35 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // Now perform layout of attached windows, which usually depend on the position of the
         // window they are attached to. XXX does not deal with windows that are attached to windows
         // that are themselves attached.
-        forAllWindows(mPerformLayoutAttached, true /* traverseTopToBottom */);
+        if (partial) {
+            forAllLayoutDirtyWindows(mPerformLayoutAttached, true /* traverseTopToBottom */);
+        } else {
+            forAllWindows(mPerformLayoutAttached, true /* traverseTopToBottom */);
+        }
+        clearLayoutDirty();
+
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        if (partial) {
+            mPartialLayouts++;
+            mPartialLayoutWindows += mTmpLayoutCount;
+            mPartialLayoutNanos += elapsedNanos;
+            if (mTmpLayoutOrderDependent) {
+                // A window that became visible without going through a full layout affects the
+                // others: lay out everything again.
+                setLayoutNeeded();
+            }
+        } else {
+            mFullLayouts++;
+            mFullLayoutWindows += mTmpLayoutCount;
+            mFullLayoutNanos += elapsedNanos;
+            mLastLayoutOrderDependent = mTmpLayoutOrderDependent;
+            mLastLayoutSeq = mService.mLayoutSeq;
+            mLastLayoutWidth = dw;
+            mLastLayoutHeight = dh;
+            mLastLayoutRotation = mRotation;
+            mLastLayoutUiMode = uiMode;
+            mLastLayoutContentRect.set(mContentRect);
+        }
 
         // Window frames may have changed. Tell the input dispatcher about it.
         mService.mInputMonitor.layoutInputConsumers(dw, dh);
@@ -34,6 +34,7 @@ import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
 
 import android.app.ActivityManager;
 import android.graphics.Rect;
+import android.graphics.Region;
 import android.os.Debug;
 import android.os.Looper;
 import android.os.RemoteException;
@@ -47,12 +48,14 @@ import android.view.WindowManager;
 
 import android.view.WindowManagerPolicy;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.input.InputApplicationHandle;
 import com.android.server.input.InputManagerService;
 import com.android.server.input.InputWindowHandle;
 
 import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.Objects;
 import java.util.Set;
 import java.util.function.Consumer;
 
@@ -81,6 +84,22 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
     private int mInputWindowHandleCount;
     private InputWindowHandle mFocusedInputWindowHandle;
 
+    // State of each window handle as last sent to the input dispatcher, in the same order, so
+    // that updates that leave every handle unchanged need not be sent again.
+    private SentInputWindowState[] mSentInputWindowStates = new SentInputWindowState[0];
+    private int mSentInputWindowCount;
+
+    // Input window update statistics, for dumpsys.
+    private long mInputWindowUpdates;
+    private long mInputWindowUpdatesSent;
+    private long mInputWindowHandlesVisited;
+    private long mInputWindowHandlesChanged;
+    private long mInputWindowUpdateTotalNanos;
+    private long mInputWindowUpdateMaxNanos;
+    private int mLastInputWindowHandleCount;
+    private int mLastInputWindowChangedCount;
+    private long mLastInputWindowUpdateNanos;
+
     private boolean mAddInputConsumerHandle;
     private boolean mAddPipInputConsumerHandle;
     private boolean mAddWallpaperInputConsumerHandle;
@@ -286,7 +305,8 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         return 0; // abort dispatching
     }
 
-    private void addInputWindowHandle(final InputWindowHandle windowHandle) {
+    @VisibleForTesting
+    void addInputWindowHandle(final InputWindowHandle windowHandle) {
         if (mInputWindowHandles == null) {
             mInputWindowHandles = new InputWindowHandle[16];
         }
@@ -358,6 +378,7 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
             return;
         }
         mUpdateInputWindowsNeeded = false;
+        final long startNanos = System.nanoTime();
 
         if (false) Slog.d(TAG_WM, ">>>>>> ENTERED updateInputWindowsLw");
 
@@ -397,11 +418,77 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         }
 
         // Add all windows on the default display.
-        mUpdateInputForAllWindowsConsumer.updateInputWindows(inDrag);
+        mUpdateInputForAllWindowsConsumer.updateInputWindows(inDrag, force);
+
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        mLastInputWindowUpdateNanos = elapsedNanos;
+        mInputWindowUpdateTotalNanos += elapsedNanos;
+        mInputWindowUpdateMaxNanos = Math.max(mInputWindowUpdateMaxNanos, elapsedNanos);
 
         if (false) Slog.d(TAG_WM, "<<<<<<< EXITED updateInputWindowsLw");
     }
 
+    /**
+     * Sends the handles collected in {@link #mInputWindowHandles} to the input dispatcher and
+     * clears them. Nothing is sent if none of the handles changed since they were last sent,
+     * unless {@code force} is set. The native side copies every handle on each call, so this
+     * saves a full JNI walk of the window list on frames that only move surfaces.
+     *
+     * @return whether the handles were sent.
+     */
+    @VisibleForTesting
+    boolean sendInputWindowsLw(boolean force) {
+        final int changed = updateSentInputWindowsLw();
+        mInputWindowUpdates++;
+        mInputWindowHandlesVisited += mInputWindowHandleCount;
+        mInputWindowHandlesChanged += changed;
+        mLastInputWindowHandleCount = mInputWindowHandleCount;
+        mLastInputWindowChangedCount = changed;
+        final boolean send = changed > 0 || force;
+        if (send) {
+            mInputWindowUpdatesSent++;
+            mService.mInputManager.setInputWindows(mInputWindowHandles,
+                    mFocusedInputWindowHandle);
+        }
+
+        clearInputWindowHandlesLw();
+        return send;
+    }
+
+    /**
+     * Compares the handles collected in {@link #mInputWindowHandles} with the ones last sent to
+     * the input dispatcher, and records their current state as sent.
+     *
+     * @return the number of handles that were added, removed, moved or modified; zero if the
+     *         input dispatcher is already up to date.
+     */
+    private int updateSentInputWindowsLw() {
+        final int count = mInputWindowHandleCount;
+        if (mSentInputWindowStates.length < count) {
+            final int oldLength = mSentInputWindowStates.length;
+            mSentInputWindowStates = Arrays.copyOf(mSentInputWindowStates,
+                    Math.max(count, oldLength * 2));
+            for (int i = oldLength; i < mSentInputWindowStates.length; i++) {
+                mSentInputWindowStates[i] = new SentInputWindowState();
+            }
+        }
+
+        int changed = Math.abs(count - mSentInputWindowCount);
+        for (int i = 0; i < count; i++) {
+            final InputWindowHandle handle = mInputWindowHandles[i];
+            final SentInputWindowState state = mSentInputWindowStates[i];
+            if (!state.matches(handle)) {
+                state.set(handle);
+                changed++;
+            }
+        }
+        for (int i = count; i < mSentInputWindowCount; i++) {
+            mSentInputWindowStates[i].clear();
+        }
+        mSentInputWindowCount = count;
+        return changed;
+    }
+
     /* Notifies that the input device configuration has changed. */
     @Override
     public void notifyConfigurationChanged() {
@@ -589,6 +676,17 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         if (mInputFreezeReason != null) {
             pw.println(prefix + "mInputFreezeReason=" + mInputFreezeReason);
         }
+        pw.print(prefix); pw.print("Input window updates: total="); pw.print(mInputWindowUpdates);
+                pw.print(" sent="); pw.print(mInputWindowUpdatesSent);
+                pw.print(" handles="); pw.print(mInputWindowHandlesVisited);
+                pw.print(" changed="); pw.print(mInputWindowHandlesChanged);
+                pw.print(" avgUs=");
+                pw.print(mInputWindowUpdates > 0
+                        ? mInputWindowUpdateTotalNanos / mInputWindowUpdates / 1000 : 0);
+                pw.print(" maxUs="); pw.println(mInputWindowUpdateMaxNanos / 1000);
+        pw.print(prefix); pw.print("  last: handles="); pw.print(mLastInputWindowHandleCount);
+                pw.print(" changed="); pw.print(mLastInputWindowChangedCount);
+                pw.print(" us="); pw.println(mLastInputWindowUpdateNanos / 1000);
         final Set<String> inputConsumerKeys = mInputConsumers.keySet();
         if (!inputConsumerKeys.isEmpty()) {
             pw.println(prefix + "InputConsumers:");
@@ -607,7 +705,7 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         boolean inDrag;
         WallpaperController wallpaperController;
 
-        private void updateInputWindows(boolean inDrag) {
+        private void updateInputWindows(boolean inDrag, boolean force) {
 
             // TODO: multi-display
             navInputConsumer = getInputConsumer(INPUT_CONSUMER_NAVIGATION, DEFAULT_DISPLAY);
@@ -628,10 +726,7 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
                 addInputWindowHandle(wallpaperInputConsumer.mWindowHandle);
             }
 
-            // Send windows to native code.
-            mService.mInputManager.setInputWindows(mInputWindowHandles, mFocusedInputWindowHandle);
-
-            clearInputWindowHandlesLw();
+            sendInputWindowsLw(force);
         }
 
         @Override
@@ -697,4 +792,102 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
                     inputWindowHandle, w, flags, type, isVisible, hasFocus, hasWallpaper);
         }
     }
+
+    /**
+     * Copy of the input-relevant fields of an {@link InputWindowHandle} as last sent. The native
+     * side also reads the name and dispatching timeout of the {@link InputApplicationHandle} on
+     * each update, so those are compared too.
+     */
+    private static final class SentInputWindowState {
+        InputWindowHandle handle;
+        InputChannel inputChannel;
+        String applicationName;
+        long applicationDispatchingTimeoutNanos;
+        String name;
+        int layoutParamsFlags;
+        int layoutParamsType;
+        long dispatchingTimeoutNanos;
+        int frameLeft;
+        int frameTop;
+        int frameRight;
+        int frameBottom;
+        float scaleFactor;
+        final Region touchableRegion = new Region();
+        boolean visible;
+        boolean canReceiveKeys;
+        boolean hasFocus;
+        boolean hasWallpaper;
+        boolean paused;
+        int layer;
+        int ownerPid;
+        int ownerUid;
+        int inputFeatures;
+
+        boolean matches(InputWindowHandle h) {
+            return handle == h
+                    && inputChannel == h.inputChannel
+                    && layoutParamsFlags == h.layoutParamsFlags
+                    && layoutParamsType == h.layoutParamsType
+                    && dispatchingTimeoutNanos == h.dispatchingTimeoutNanos
+                    && frameLeft == h.frameLeft
+                    && frameTop == h.frameTop
+                    && frameRight == h.frameRight
+                    && frameBottom == h.frameBottom
+                    && scaleFactor == h.scaleFactor
+                    && visible == h.visible
+                    && canReceiveKeys == h.canReceiveKeys
+                    && hasFocus == h.hasFocus
+                    && hasWallpaper == h.hasWallpaper
+                    && paused == h.paused
+                    && layer == h.layer
+                    && ownerPid == h.ownerPid
+                    && ownerUid == h.ownerUid
+                    && inputFeatures == h.inputFeatures
+                    && touchableRegion.equals(h.touchableRegion)
+                    && Objects.equals(name, h.name)
+                    && applicationMatches(h.inputApplicationHandle);
+        }
+
+        private boolean applicationMatches(InputApplicationHandle app) {
+            if (app == null) {
+                return true;
+            }
+            return applicationDispatchingTimeoutNanos == app.dispatchingTimeoutNanos
+                    && Objects.equals(applicationName, app.name);
+        }
+
+        void set(InputWindowHandle h) {
+            handle = h;
+            inputChannel = h.inputChannel;
+            name = h.name;
+            layoutParamsFlags = h.layoutParamsFlags;
+            layoutParamsType = h.layoutParamsType;
+            dispatchingTimeoutNanos = h.dispatchingTimeoutNanos;
+            frameLeft = h.frameLeft;
+            frameTop = h.frameTop;
+            frameRight = h.frameRight;
+            frameBottom = h.frameBottom;
+            scaleFactor = h.scaleFactor;
+            touchableRegion.set(h.touchableRegion);
+            visible = h.visible;
+            canReceiveKeys = h.canReceiveKeys;
+            hasFocus = h.hasFocus;
+            hasWallpaper = h.hasWallpaper;
+            paused = h.paused;
+            layer = h.layer;
+            ownerPid = h.ownerPid;
+            ownerUid = h.ownerUid;
+            inputFeatures = h.inputFeatures;
+            final InputApplicationHandle app = h.inputApplicationHandle;
+            applicationName = app != null ? app.name : null;
+            applicationDispatchingTimeoutNanos = app != null ? app.dispatchingTimeoutNanos : 0;
+        }
+
+        void clear() {
+            handle = null;
+            inputChannel = null;
+            name = null;
+            applicationName = null;
+        }
+    }
 }
@@ -18,9 +18,13 @@ package com.android.server.wm;
 
 import android.annotation.Nullable;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
 import android.util.ArrayMap;
 import android.util.LruCache;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.io.PrintWriter;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -32,11 +36,36 @@ import java.util.Map.Entry;
  */
 class TaskSnapshotCache {
 
+    /** Bound on the memory used by reduced resolution snapshots restored from disk. */
+    @VisibleForTesting
+    static final int MAX_REDUCED_CACHE_BYTES = 8 * 1024 * 1024;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
 
+    /**
+     * Reduced resolution snapshots restored from disk, by task id, so that recents doesn't decode
+     * the same files again while scrolling. Thread-safe; can be read without the window manager
+     * lock.
+     */
+    private final LruCache<Integer, TaskSnapshot> mReducedCache =
+            new LruCache<Integer, TaskSnapshot>(MAX_REDUCED_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(Integer taskId, TaskSnapshot snapshot) {
+                    final GraphicBuffer buffer = snapshot.getSnapshot();
+                    return buffer != null ? buffer.getWidth() * buffer.getHeight() * 4 : 0;
+                }
+            };
+
+    /**
+     * Incremented whenever entries of {@link #mReducedCache} become stale, so that a snapshot
+     * restored from disk concurrently isn't cached after the snapshot of its task changed.
+     */
+    @GuardedBy("mService.mWindowMap")
+    private int mReducedCacheGeneration;
+
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
         mService = service;
         mLoader = loader;
@@ -50,6 +79,7 @@ class TaskSnapshotCache {
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
         mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
+        removeReducedEntry(task.mTaskId);
     }
 
     /**
@@ -58,29 +88,47 @@ class TaskSnapshotCache {
     @Nullable TaskSnapshot getSnapshot(int taskId, int userId, boolean restoreFromDisk,
             boolean reducedResolution) {
 
+        final int generation;
         synchronized (mService.mWindowMap) {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
                 return entry.snapshot;
             }
+            generation = mReducedCacheGeneration;
+        }
+
+        // Try the snapshots previously restored from disk.
+        if (reducedResolution) {
+            final TaskSnapshot snapshot = mReducedCache.get(taskId);
+            if (snapshot != null) {
+                return snapshot;
+            }
         }
 
         // Try to restore from disk if asked.
         if (!restoreFromDisk) {
             return null;
         }
-        return tryRestoreFromDisk(taskId, userId, reducedResolution);
+        return tryRestoreFromDisk(taskId, userId, reducedResolution, generation);
     }
 
     /**
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
      */
-    private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution) {
+    private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution,
+            int generation) {
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, reducedResolution);
         if (snapshot == null) {
             return null;
         }
+        if (reducedResolution) {
+            synchronized (mService.mWindowMap) {
+                if (generation == mReducedCacheGeneration) {
+                    mReducedCache.put(taskId, snapshot);
+                }
+            }
+        }
         return snapshot;
     }
 
@@ -106,6 +154,12 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        removeReducedEntry(taskId);
+    }
+
+    private void removeReducedEntry(int taskId) {
+        mReducedCacheGeneration++;
+        mReducedCache.remove(taskId);
     }
 
     private void removeRunningEntry(int taskId) {
@@ -126,6 +180,14 @@ class TaskSnapshotCache {
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
+        final int hits = mReducedCache.hitCount();
+        final int misses = mReducedCache.missCount();
+        final int requests = hits + misses;
+        pw.println(doublePrefix + "Reduced cache: entries=" + mReducedCache.snapshot().size()
+                + " bytes=" + mReducedCache.size() + "/" + mReducedCache.maxSize()
+                + " hits=" + hits + " misses=" + misses
+                + " hitRate=" + (requests > 0 ? hits * 100 / requests : 0) + "%"
+                + " evictions=" + mReducedCache.evictionCount());
     }
 
     private static final class CacheEntry {
@@ -65,18 +65,24 @@ class TaskSnapshotLoader {
      */
     TaskSnapshot loadTask(int taskId, int userId, boolean reducedResolution) {
         final File protoFile = mPersister.getProtoFile(taskId, userId);
-        final File bitmapFile = reducedResolution
+        File bitmapFile = reducedResolution
                 ? mPersister.getReducedResolutionBitmapFile(taskId, userId)
                 : mPersister.getBitmapFile(taskId, userId);
+
+        // The reduced resolution bitmap is written after the full resolution one, and may not
+        // exist yet. Scale the full resolution one down instead.
+        boolean scaleDown = false;
+        if (reducedResolution && !bitmapFile.exists()) {
+            bitmapFile = mPersister.getBitmapFile(taskId, userId);
+            scaleDown = true;
+        }
         if (!protoFile.exists() || !bitmapFile.exists()) {
             return null;
         }
         try {
             final byte[] bytes = Files.readAllBytes(protoFile.toPath());
             final TaskSnapshotProto proto = TaskSnapshotProto.parseFrom(bytes);
-            final Options options = new Options();
-            options.inPreferredConfig = Config.HARDWARE;
-            final Bitmap bitmap = BitmapFactory.decodeFile(bitmapFile.getPath(), options);
+            final Bitmap bitmap = decodeBitmap(bitmapFile, scaleDown);
             if (bitmap == null) {
                 Slog.w(TAG, "Failed to load bitmap: " + bitmapFile.getPath());
                 return null;
@@ -95,4 +101,34 @@ class TaskSnapshotLoader {
             return null;
         }
     }
+
+    /**
+     * Decodes a persisted bitmap into a hardware bitmap.
+     *
+     * @param scaleDown Whether to scale the bitmap by {@link TaskSnapshotPersister#REDUCED_SCALE}.
+     */
+    private static Bitmap decodeBitmap(File file, boolean scaleDown) throws IOException {
+        if (!isRawBitmapFile(file)) {
+            final Options options = new Options();
+            options.inPreferredConfig = Config.HARDWARE;
+            if (scaleDown) {
+                options.inSampleSize = (int) (1 / REDUCED_SCALE);
+            }
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        Bitmap swBitmap = readRawBitmap(file);
+        if (swBitmap == null) {
+            return null;
+        }
+        if (scaleDown) {
+            final Bitmap scaled = Bitmap.createScaledBitmap(swBitmap,
+                    (int) (swBitmap.getWidth() * REDUCED_SCALE),
+                    (int) (swBitmap.getHeight() * REDUCED_SCALE), true /* filter */);
+            swBitmap.recycle();
+            swBitmap = scaled;
+        }
+        final Bitmap bitmap = swBitmap.copy(Config.HARDWARE, false /* isMutable */);
+        swBitmap.recycle();
+        return bitmap;
+    }
 }
@@ -27,6 +27,7 @@ import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.ArraySet;
 import android.util.Slog;
 
@@ -35,11 +36,22 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.AtomicFile;
 import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Persists {@link TaskSnapshot}s to disk.
@@ -56,12 +68,28 @@ class TaskSnapshotPersister {
     private static final int QUALITY = 95;
     private static final String PROTO_EXTENSION = ".proto";
     private static final String BITMAP_EXTENSION = ".jpg";
+    private static final String RAW_BITMAP_EXTENSION = ".raw";
+    private static final int RAW_BITMAP_MAGIC = 0x54534e50; // "TSNP"
     private static final int MAX_STORE_QUEUE_DEPTH = 2;
 
+    /**
+     * If set, bitmaps are stored as deflated ARGB_8888 pixels, which is lossless and much cheaper
+     * to encode and decode than JPEG, at the cost of larger files.
+     */
+    private static final String RAW_FORMAT_PROPERTY = "persist.wm.raw_snapshots";
+
     @GuardedBy("mLock")
     private final ArrayDeque<WriteQueueItem> mWriteQueue = new ArrayDeque<>();
     @GuardedBy("mLock")
     private final ArrayDeque<StoreWriteQueueItem> mStoreQueueItems = new ArrayDeque<>();
+
+    /**
+     * Items only written when {@link #mWriteQueue} is empty, so that they never delay storing a
+     * more recent snapshot.
+     */
+    @GuardedBy("mLock")
+    private final ArrayDeque<ReducedWriteQueueItem> mDeferredQueue = new ArrayDeque<>();
+
     @GuardedBy("mLock")
     private boolean mQueueIdling;
     @GuardedBy("mLock")
@@ -69,6 +97,24 @@ class TaskSnapshotPersister {
     private boolean mStarted;
     private final Object mLock = new Object();
     private final DirectoryResolver mDirectoryResolver;
+    private final boolean mUseRawFormat;
+
+    @GuardedBy("mLock")
+    private int mStoreRequests;
+    @GuardedBy("mLock")
+    private int mCoalescedStores;
+    @GuardedBy("mLock")
+    private int mPurgedStores;
+    @GuardedBy("mLock")
+    private int mStores;
+    @GuardedBy("mLock")
+    private long mStoreMs;
+    @GuardedBy("mLock")
+    private int mReducedStores;
+    @GuardedBy("mLock")
+    private int mDroppedReducedStores;
+    @GuardedBy("mLock")
+    private long mReducedStoreMs;
 
     /**
      * The list of ids of the tasks that have been persisted since {@link #removeObsoleteFiles} was
@@ -78,7 +124,13 @@ class TaskSnapshotPersister {
     private final ArraySet<Integer> mPersistedTaskIdsSinceLastRemoveObsolete = new ArraySet<>();
 
     TaskSnapshotPersister(DirectoryResolver resolver) {
+        this(resolver, SystemProperties.getBoolean(RAW_FORMAT_PROPERTY, false));
+    }
+
+    @VisibleForTesting
+    TaskSnapshotPersister(DirectoryResolver resolver, boolean useRawFormat) {
         mDirectoryResolver = resolver;
+        mUseRawFormat = useRawFormat;
     }
 
     /**
@@ -101,6 +153,18 @@ class TaskSnapshotPersister {
     void persistSnapshot(int taskId, int userId, TaskSnapshot snapshot) {
         synchronized (mLock) {
             mPersistedTaskIdsSinceLastRemoveObsolete.add(taskId);
+            mStoreRequests++;
+            removeDeferredItemsLocked(taskId);
+
+            // A snapshot that hasn't been written yet is superseded by the new one. Write the new
+            // one in its place rather than encoding both.
+            for (StoreWriteQueueItem item : mStoreQueueItems) {
+                if (item.mTaskId == taskId && item.mUserId == userId) {
+                    item.mSnapshot = snapshot;
+                    mCoalescedStores++;
+                    return;
+                }
+            }
             sendToQueueLocked(new StoreWriteQueueItem(taskId, userId, snapshot));
         }
     }
@@ -114,6 +178,14 @@ class TaskSnapshotPersister {
     void onTaskRemovedFromRecents(int taskId, int userId) {
         synchronized (mLock) {
             mPersistedTaskIdsSinceLastRemoveObsolete.remove(taskId);
+            removeDeferredItemsLocked(taskId);
+            for (Iterator<StoreWriteQueueItem> it = mStoreQueueItems.iterator(); it.hasNext(); ) {
+                final StoreWriteQueueItem item = it.next();
+                if (item.mTaskId == taskId) {
+                    it.remove();
+                    mWriteQueue.remove(item);
+                }
+            }
             sendToQueueLocked(new DeleteWriteQueueItem(taskId, userId));
         }
     }
@@ -146,7 +218,7 @@ class TaskSnapshotPersister {
     void waitForQueueEmpty() {
         while (true) {
             synchronized (mLock) {
-                if (mWriteQueue.isEmpty() && mQueueIdling) {
+                if (mWriteQueue.isEmpty() && mDeferredQueue.isEmpty() && mQueueIdling) {
                     return;
                 }
             }
@@ -169,10 +241,56 @@ class TaskSnapshotPersister {
         while (mStoreQueueItems.size() > MAX_STORE_QUEUE_DEPTH) {
             final StoreWriteQueueItem item = mStoreQueueItems.poll();
             mWriteQueue.remove(item);
+            mPurgedStores++;
             Slog.i(TAG, "Queue is too deep! Purged item with taskid=" + item.mTaskId);
         }
     }
 
+    /**
+     * Queues the write of the reduced resolution bitmap of a snapshot that has just been
+     * written, unless a more recent snapshot of the same task is already waiting to be written.
+     */
+    private void sendToDeferredQueue(ReducedWriteQueueItem item) {
+        synchronized (mLock) {
+            for (StoreWriteQueueItem storeItem : mStoreQueueItems) {
+                if (storeItem.mTaskId == item.mTaskId) {
+                    mDroppedReducedStores++;
+                    item.recycle();
+                    return;
+                }
+            }
+            removeDeferredItemsLocked(item.mTaskId);
+            mDeferredQueue.offer(item);
+            while (mDeferredQueue.size() > MAX_STORE_QUEUE_DEPTH) {
+                // The loader falls back to subsampling the full resolution bitmap.
+                mDeferredQueue.poll().recycle();
+                mDroppedReducedStores++;
+            }
+            if (!mPaused) {
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void removeDeferredItemsLocked(int taskId) {
+        for (Iterator<ReducedWriteQueueItem> it = mDeferredQueue.iterator(); it.hasNext(); ) {
+            final ReducedWriteQueueItem item = it.next();
+            if (item.mTaskId == taskId) {
+                it.remove();
+                item.recycle();
+                mDroppedReducedStores++;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int getStoreQueueSize() {
+        synchronized (mLock) {
+            return mStoreQueueItems.size();
+        }
+    }
+
     private File getDirectory(int userId) {
         return new File(mDirectoryResolver.getSystemDirectoryForUser(userId), SNAPSHOTS_DIRNAME);
     }
@@ -182,11 +300,83 @@ class TaskSnapshotPersister {
     }
 
     File getBitmapFile(int taskId, int userId) {
-        return new File(getDirectory(userId), taskId + BITMAP_EXTENSION);
+        return new File(getDirectory(userId), taskId + getBitmapExtension());
     }
 
     File getReducedResolutionBitmapFile(int taskId, int userId) {
-        return new File(getDirectory(userId), taskId + REDUCED_POSTFIX + BITMAP_EXTENSION);
+        return new File(getDirectory(userId), taskId + REDUCED_POSTFIX + getBitmapExtension());
+    }
+
+    private String getBitmapExtension() {
+        return mUseRawFormat ? RAW_BITMAP_EXTENSION : BITMAP_EXTENSION;
+    }
+
+    /**
+     * Returns whether {@code file} holds a bitmap written with {@link #writeRawBitmap} rather than
+     * an encoded image.
+     */
+    static boolean isRawBitmapFile(File file) {
+        return file.getName().endsWith(RAW_BITMAP_EXTENSION);
+    }
+
+    private void writeBitmap(Bitmap bitmap, File file) throws IOException {
+        if (mUseRawFormat) {
+            writeRawBitmap(bitmap, file);
+            return;
+        }
+        final FileOutputStream fos = new FileOutputStream(file);
+        try {
+            bitmap.compress(JPEG, QUALITY, fos);
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Writes the pixels of an ARGB_8888 {@code bitmap}, deflated at the fastest level, behind a
+     * small uncompressed header. Read back with {@link #readRawBitmap}.
+     */
+    @VisibleForTesting
+    static void writeRawBitmap(Bitmap bitmap, File file) throws IOException {
+        final ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(pixels);
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(RAW_BITMAP_MAGIC);
+            out.writeInt(bitmap.getWidth());
+            out.writeInt(bitmap.getHeight());
+            final DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater);
+            deflated.write(pixels.array(), 0, pixels.position());
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Reads a software ARGB_8888 bitmap written by {@link #writeRawBitmap}.
+     *
+     * @return The bitmap, or {@code null} if {@code file} is not a raw bitmap.
+     */
+    @VisibleForTesting
+    static Bitmap readRawBitmap(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != RAW_BITMAP_MAGIC) {
+                return null;
+            }
+            final int width = in.readInt();
+            final int height = in.readInt();
+            if (width <= 0 || height <= 0) {
+                return null;
+            }
+            final Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+            final byte[] pixels = new byte[bitmap.getByteCount()];
+            new DataInputStream(new InflaterInputStream(in)).readFully(pixels);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            return bitmap;
+        }
     }
 
     private boolean createDirectory(int userId) {
@@ -203,6 +393,22 @@ class TaskSnapshotPersister {
         bitmapReducedFile.delete();
     }
 
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "SnapshotPersister format="
+                    + (mUseRawFormat ? "raw" : "jpeg"));
+            final String doublePrefix = prefix + "  ";
+            pw.println(doublePrefix + "queued=" + mWriteQueue.size()
+                    + " deferred=" + mDeferredQueue.size() + " paused=" + mPaused);
+            pw.println(doublePrefix + "storeRequests=" + mStoreRequests
+                    + " coalesced=" + mCoalescedStores + " purged=" + mPurgedStores
+                    + " stored=" + mStores + " storeMs=" + mStoreMs);
+            pw.println(doublePrefix + "reducedStored=" + mReducedStores
+                    + " reducedDropped=" + mDroppedReducedStores
+                    + " reducedStoreMs=" + mReducedStoreMs);
+        }
+    }
+
     interface DirectoryResolver {
         File getSystemDirectoryForUser(int userId);
     }
@@ -217,6 +423,9 @@ class TaskSnapshotPersister {
                         next = null;
                     } else {
                         next = mWriteQueue.poll();
+                        if (next == null) {
+                            next = mDeferredQueue.poll();
+                        }
                         if (next != null) {
                             next.onDequeuedLocked();
                         }
@@ -227,7 +436,8 @@ class TaskSnapshotPersister {
                     SystemClock.sleep(DELAY_MS);
                 }
                 synchronized (mLock) {
-                    final boolean writeQueueEmpty = mWriteQueue.isEmpty();
+                    final boolean writeQueueEmpty = mWriteQueue.isEmpty()
+                            && mDeferredQueue.isEmpty();
                     if (!writeQueueEmpty && !mPaused) {
                         continue;
                     }
@@ -261,7 +471,10 @@ class TaskSnapshotPersister {
     private class StoreWriteQueueItem extends WriteQueueItem {
         private final int mTaskId;
         private final int mUserId;
-        private final TaskSnapshot mSnapshot;
+
+        /** Replaced while queued if the task is snapshotted again, see {@link #persistSnapshot}. */
+        @GuardedBy("mLock")
+        private TaskSnapshot mSnapshot;
 
         StoreWriteQueueItem(int taskId, int userId, TaskSnapshot snapshot) {
             mTaskId = taskId;
@@ -277,34 +490,60 @@ class TaskSnapshotPersister {
         @Override
         void onDequeuedLocked() {
             mStoreQueueItems.remove(this);
+            // Any reduced resolution bitmap still waiting to be written is older than this one.
+            removeDeferredItemsLocked(mTaskId);
         }
 
         @Override
         void write() {
+            final long start = SystemClock.elapsedRealtime();
+            final TaskSnapshot snapshot;
+            synchronized (mLock) {
+                snapshot = mSnapshot;
+            }
             if (!createDirectory(mUserId)) {
                 Slog.e(TAG, "Unable to create snapshot directory for user dir="
                         + getDirectory(mUserId));
             }
             boolean failed = false;
-            if (!writeProto()) {
+            if (!writeProto(snapshot)) {
                 failed = true;
             }
-            if (!writeBuffer()) {
-                writeBuffer();
+            final Bitmap swBitmap = writeBuffer(snapshot);
+            if (swBitmap == null) {
                 failed = true;
             }
             if (failed) {
                 deleteSnapshot(mTaskId, mUserId);
             }
+
+            // Scale now so that only the small bitmap is held while the reduced resolution write
+            // is deferred, not the full resolution copy.
+            Bitmap reduced = null;
+            if (!failed) {
+                reduced = Bitmap.createScaledBitmap(swBitmap,
+                        (int) (swBitmap.getWidth() * REDUCED_SCALE),
+                        (int) (swBitmap.getHeight() * REDUCED_SCALE), true /* filter */);
+            }
+            if (swBitmap != null) {
+                swBitmap.recycle();
+            }
+            synchronized (mLock) {
+                mStores++;
+                mStoreMs += SystemClock.elapsedRealtime() - start;
+            }
+            if (reduced != null) {
+                sendToDeferredQueue(new ReducedWriteQueueItem(mTaskId, mUserId, reduced));
+            }
         }
 
-        boolean writeProto() {
+        boolean writeProto(TaskSnapshot snapshot) {
             final TaskSnapshotProto proto = new TaskSnapshotProto();
-            proto.orientation = mSnapshot.getOrientation();
-            proto.insetLeft = mSnapshot.getContentInsets().left;
-            proto.insetTop = mSnapshot.getContentInsets().top;
-            proto.insetRight = mSnapshot.getContentInsets().right;
-            proto.insetBottom = mSnapshot.getContentInsets().bottom;
+            proto.orientation = snapshot.getOrientation();
+            proto.insetLeft = snapshot.getContentInsets().left;
+            proto.insetTop = snapshot.getContentInsets().top;
+            proto.insetRight = snapshot.getContentInsets().right;
+            proto.insetBottom = snapshot.getContentInsets().bottom;
             final byte[] bytes = TaskSnapshotProto.toByteArray(proto);
             final File file = getProtoFile(mTaskId, mUserId);
             final AtomicFile atomicFile = new AtomicFile(file);
@@ -321,26 +560,63 @@ class TaskSnapshotPersister {
             return true;
         }
 
-        boolean writeBuffer() {
+        /**
+         * Writes the full resolution bitmap. The reduced resolution one is written later by a
+         * {@link ReducedWriteQueueItem}; until then, the stale one is removed so that the loader
+         * falls back to the full resolution bitmap.
+         *
+         * @return The software copy of the snapshot, or {@code null} if writing failed.
+         */
+        Bitmap writeBuffer(TaskSnapshot snapshot) {
             final File file = getBitmapFile(mTaskId, mUserId);
-            final File reducedFile = getReducedResolutionBitmapFile(mTaskId, mUserId);
-            final Bitmap bitmap = Bitmap.createHardwareBitmap(mSnapshot.getSnapshot());
+            getReducedResolutionBitmapFile(mTaskId, mUserId).delete();
+            final Bitmap bitmap = Bitmap.createHardwareBitmap(snapshot.getSnapshot());
             final Bitmap swBitmap = bitmap.copy(Config.ARGB_8888, false /* isMutable */);
-            final Bitmap reduced = Bitmap.createScaledBitmap(swBitmap,
-                    (int) (bitmap.getWidth() * REDUCED_SCALE),
-                    (int) (bitmap.getHeight() * REDUCED_SCALE), true /* filter */);
             try {
-                FileOutputStream fos = new FileOutputStream(file);
-                swBitmap.compress(JPEG, QUALITY, fos);
-                fos.close();
-                FileOutputStream reducedFos = new FileOutputStream(reducedFile);
-                reduced.compress(JPEG, QUALITY, reducedFos);
-                reducedFos.close();
+                writeBitmap(swBitmap, file);
             } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + file + " or " + reducedFile +" for persisting.", e);
-                return false;
+                Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
+                swBitmap.recycle();
+                return null;
             }
-            return true;
+            return swBitmap;
+        }
+    }
+
+    private class ReducedWriteQueueItem extends WriteQueueItem {
+        private final int mTaskId;
+        private final int mUserId;
+        private final Bitmap mReducedBitmap;
+
+        /**
+         * @param reducedBitmap The already scaled bitmap, which this item recycles once written
+         *                      or dropped.
+         */
+        ReducedWriteQueueItem(int taskId, int userId, Bitmap reducedBitmap) {
+            mTaskId = taskId;
+            mUserId = userId;
+            mReducedBitmap = reducedBitmap;
+        }
+
+        @Override
+        void write() {
+            final long start = SystemClock.elapsedRealtime();
+            final File reducedFile = getReducedResolutionBitmapFile(mTaskId, mUserId);
+            try {
+                writeBitmap(mReducedBitmap, reducedFile);
+            } catch (IOException e) {
+                Slog.e(TAG, "Unable to open " + reducedFile + " for persisting.", e);
+                reducedFile.delete();
+            }
+            recycle();
+            synchronized (mLock) {
+                mReducedStores++;
+                mReducedStoreMs += SystemClock.elapsedRealtime() - start;
+            }
+        }
+
+        void recycle() {
+            mReducedBitmap.recycle();
         }
     }
 
@@ -395,7 +671,8 @@ class TaskSnapshotPersister {
 
         @VisibleForTesting
         int getTaskId(String fileName) {
-            if (!fileName.endsWith(PROTO_EXTENSION) && !fileName.endsWith(BITMAP_EXTENSION)) {
+            if (!fileName.endsWith(PROTO_EXTENSION) && !fileName.endsWith(BITMAP_EXTENSION)
+                    && !fileName.endsWith(RAW_BITMAP_EXTENSION)) {
                 return -1;
             }
             final int end = fileName.lastIndexOf('.');
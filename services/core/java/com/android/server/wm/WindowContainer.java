@@ -79,6 +79,12 @@ class WindowContainer<E extends WindowContainer> implements Comparable<WindowCon
     // The owner/creator for this container. No controller if null.
     private WindowContainerController mController;
 
+    /**
+     * True if a window at or below this container asked for its own layout since the display was
+     * last laid out. See {@link #markLayoutDirty} and {@link DisplayContent#performLayout}.
+     */
+    boolean mLayoutDirty;
+
     final protected WindowContainer getParent() {
         return mParent;
     }
@@ -627,6 +633,49 @@ class WindowContainer<E extends WindowContainer> implements Comparable<WindowCon
         wrapper.release();
     }
 
+    /**
+     * Like {@link #forAllWindows(Consumer, boolean)}, but only descends into children marked with
+     * {@link #markLayoutDirty}. All windows of a dirty window, including itself, are visited.
+     */
+    void forAllLayoutDirtyWindows(Consumer<WindowState> callback, boolean traverseTopToBottom) {
+        if (traverseTopToBottom) {
+            for (int i = mChildren.size() - 1; i >= 0; --i) {
+                final WindowContainer child = mChildren.get(i);
+                if (child.mLayoutDirty) {
+                    child.forAllLayoutDirtyWindows(callback, traverseTopToBottom);
+                }
+            }
+        } else {
+            final int count = mChildren.size();
+            for (int i = 0; i < count; i++) {
+                final WindowContainer child = mChildren.get(i);
+                if (child.mLayoutDirty) {
+                    child.forAllLayoutDirtyWindows(callback, traverseTopToBottom);
+                }
+            }
+        }
+    }
+
+    /** Marks this container and all its parents as containing a window that needs layout. */
+    void markLayoutDirty() {
+        // Not stopping at the first dirty parent, as a dirty container may have been reparented
+        // under a clean one.
+        for (WindowContainer wc = this; wc != null; wc = wc.mParent) {
+            wc.mLayoutDirty = true;
+        }
+    }
+
+    /** Clears {@link #mLayoutDirty} on this container and all its dirty children. */
+    void clearLayoutDirty() {
+        mLayoutDirty = false;
+        for (int i = mChildren.size() - 1; i >= 0; --i) {
+            final WindowContainer child = mChildren.get(i);
+            if (child.mLayoutDirty) {
+                child.clearLayoutDirty();
+            }
+        }
+    }
+
     /**
      * For all tasks at or below this container call the callback.
      *
@@ -1940,7 +1940,7 @@ public class WindowManagerService extends IWindowManager.Stub
                 attrChanges = win.mAttrs.copyFrom(attrs);
                 if ((attrChanges & (WindowManager.LayoutParams.LAYOUT_CHANGED
                         | WindowManager.LayoutParams.SYSTEM_UI_VISIBILITY_CHANGED)) != 0) {
-                    win.mLayoutNeeded = true;
+                    win.setLayoutNeeded();
                 }
                 if (win.mAppToken != null && ((flagChanges & FLAG_SHOW_WHEN_LOCKED) != 0
                         || (flagChanges & FLAG_DISMISS_KEYGUARD) != 0)) {
@@ -2121,7 +2121,14 @@ public class WindowManagerService extends IWindowManager.Stub
                 mUnknownAppVisibilityController.notifyRelayouted(win.mAppToken);
             }
 
-            win.setDisplayLayoutNeeded();
+            if (oldVisibility == viewVisibility && flagChanges == 0 && !focusMayChange
+                    && !imMayMove && !wallpaperMayMove && win.isLaidOut()
+                    && (attrChanges & LayoutParams.SYSTEM_UI_VISIBILITY_CHANGED) == 0) {
+                // Nothing that other windows are laid out against has changed.
+                win.setWindowLayoutNeeded();
+            } else {
+                win.setDisplayLayoutNeeded();
+            }
             win.mGivenInsetsPending = (flags & WindowManagerGlobal.RELAYOUT_INSETS_PENDING) != 0;
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER,
                     "relayoutWindow: updateOrientationFromAppTokens");
@@ -2291,7 +2298,7 @@ public class WindowManagerService extends IWindowManager.Stub
                         win.getDisplayContent().pendingLayoutChanges |=
                                 WindowManagerPolicy.FINISH_LAYOUT_REDO_WALLPAPER;
                     }
-                    win.setDisplayLayoutNeeded();
+                    win.setWindowLayoutNeeded();
                     mWindowPlacerLocked.requestTraversal();
                 }
             }
@@ -145,6 +145,7 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.LinkedList;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 /** A window in the window manager. */
@@ -1608,7 +1609,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
             return;
         }
 
-        mLayoutNeeded = true;
+        setLayoutNeeded();
         setDisplayLayoutNeeded();
         if (!mService.mResizingWindows.contains(this)) {
             mService.mResizingWindows.add(this);
@@ -2121,6 +2122,23 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
         }
     }
 
+    /**
+     * Requests a layout of the display for a change that only affects the layout of this window
+     * and its children. See {@link DisplayContent#setLayoutNeeded(WindowState)}.
+     */
+    void setWindowLayoutNeeded() {
+        final DisplayContent dc = getDisplayContent();
+        if (dc != null) {
+            dc.setLayoutNeeded(this);
+        }
+    }
+
+    /** Forces the next layout to lay out this window, even if it is gone. */
+    void setLayoutNeeded() {
+        mLayoutNeeded = true;
+        markLayoutDirty();
+    }
+
     // TODO: Strange usage of word workspace here and above.
     boolean inPinnedWorkspace() {
         final Task task = getTask();
@@ -2201,7 +2219,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
 
     void setRequestedSize(int requestedWidth, int requestedHeight) {
         if ((mRequestedWidth != requestedWidth || mRequestedHeight != requestedHeight)) {
-            mLayoutNeeded = true;
+            setLayoutNeeded();
             mRequestedWidth = requestedWidth;
             mRequestedHeight = requestedHeight;
         }
@@ -2224,7 +2242,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
 
         if ((mAttrs.softInputMode & SOFT_INPUT_MASK_ADJUST)
                 == SOFT_INPUT_ADJUST_RESIZE) {
-            mLayoutNeeded = true;
+            setLayoutNeeded();
         }
 
         if (isDrawnLw() && mService.okToDisplay()) {
@@ -3870,6 +3888,12 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
         return highest;
     }
 
+    @Override
+    void forAllLayoutDirtyWindows(Consumer<WindowState> callback, boolean traverseTopToBottom) {
+        // Attached windows are laid out relative to this one, so they are always visited with it.
+        forAllWindows(callback, traverseTopToBottom);
+    }
+
     @Override
     boolean forAllWindows(ToBooleanFunction<WindowState> callback, boolean traverseTopToBottom) {
         if (mChildren.isEmpty()) {
@@ -89,6 +89,14 @@ class WindowSurfacePlacer {
     private boolean mTraversalScheduled;
     private int mDeferDepth = 0;
 
+    // Statistics for dumpsys: calls to performSurfacePlacement, passes over the hierarchy they
+    // made, and time spent in them.
+    private int mPlacements;
+    private int mPlacementPasses;
+    private int mMaxPlacementPasses;
+    private long mPlacementNanos;
+    private long mMaxPlacementNanos;
+
     private static final class LayerAndToken {
         public int layer;
         public AppWindowToken token;
@@ -135,6 +143,7 @@ class WindowSurfacePlacer {
         if (mDeferDepth > 0 && !force) {
             return;
         }
+        final long startNanos = System.nanoTime();
         int loopCount = 6;
         do {
             mTraversalScheduled = false;
@@ -143,6 +152,13 @@ class WindowSurfacePlacer {
             loopCount--;
         } while (mTraversalScheduled && loopCount > 0);
         mService.mRoot.mWallpaperActionPending = false;
+
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        mPlacements++;
+        mPlacementPasses += 6 - loopCount;
+        mMaxPlacementPasses = Math.max(mMaxPlacementPasses, 6 - loopCount);
+        mPlacementNanos += elapsedNanos;
+        mMaxPlacementNanos = Math.max(mMaxPlacementNanos, elapsedNanos);
     }
 
     private void performSurfacePlacementLoop() {
@@ -782,5 +798,10 @@ class WindowSurfacePlacer {
         pw.println(prefix + "mTraversalScheduled=" + mTraversalScheduled);
         pw.println(prefix + "mHoldScreenWindow=" + mService.mRoot.mHoldScreenWindow);
         pw.println(prefix + "mObscuringWindow=" + mService.mRoot.mObscuringWindow);
+        pw.print(prefix + "placements="); pw.print(mPlacements);
+        pw.print(" passes="); pw.print(mPlacementPasses);
+        pw.print(" maxPasses="); pw.print(mMaxPlacementPasses);
+        pw.print(" totalMs="); pw.print(mPlacementNanos / 1000000);
+        pw.print(" maxMs="); pw.println(mMaxPlacementNanos / 1000000);
     }
 }
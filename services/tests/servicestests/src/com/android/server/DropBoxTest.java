@@ -227,6 +227,7 @@ public class DropBoxTest extends AndroidTestCase {
 
         // Write something to force a collapse
         dropbox.addText("NotDropBoxTest", "FUTURE");
+        service.waitForPendingWrites();
         e0 = dropbox.getNextEntry(null, before);
         e1 = dropbox.getNextEntry(null, e0.getTimeMillis());
         e2 = dropbox.getNextEntry(null, e1.getTimeMillis());
@@ -361,6 +362,7 @@ public class DropBoxTest extends AndroidTestCase {
         addRandomEntry(dropbox, "DropBoxTest2", blockSize * 4 - overhead);
         addRandomEntry(dropbox, "DropBoxTest2", blockSize - overhead);
         addRandomEntry(dropbox, "DropBoxTest2", blockSize - overhead);
+        service.waitForPendingWrites();
 
         DropBoxManager.Entry e0 = dropbox.getNextEntry(null, before);
         DropBoxManager.Entry e1 = dropbox.getNextEntry(null, e0.getTimeMillis());
@@ -445,6 +447,7 @@ public class DropBoxTest extends AndroidTestCase {
 
         dropbox.addText("DropBoxTest", "TEST");
         addRandomEntry(dropbox, "DropBoxTest", blockSize * 20);
+        service.waitForPendingWrites();
 
         // Verify that things are as expected
         DropBoxManager.Entry e0 = dropbox.getNextEntry(null, before);
@@ -461,6 +464,7 @@ public class DropBoxTest extends AndroidTestCase {
         // Wait a second and write another entry -- old ones should be expunged
         Thread.sleep(2000);
         dropbox.addText("DropBoxTest", "TEST1");
+        service.waitForPendingWrites();
 
         e0 = dropbox.getNextEntry(null, before);
         assertTrue(null == dropbox.getNextEntry(null, e0.getTimeMillis()));
@@ -502,6 +506,7 @@ public class DropBoxTest extends AndroidTestCase {
         ContentResolver cr = getContext().getContentResolver();
         Settings.Global.putString(cr, Settings.Global.DROPBOX_MAX_FILES, "3");
         dropbox.addText("DropBoxTest", "TEST6");
+        service.waitForPendingWrites();
 
         // Verify only 3 files left
         DropBoxManager.Entry f0 = dropbox.getNextEntry(null, 0);
@@ -529,6 +534,7 @@ public class DropBoxTest extends AndroidTestCase {
 
         dropbox.addText("DropBoxTest", "should be ignored");
         dropbox.addData("DropBoxTest", "should be ignored".getBytes(), 0);
+        service.waitForPendingWrites();
         assertTrue(null == dropbox.getNextEntry("DropBoxTest", 0));
 
         dir.delete();  // Remove the file so a directory can be created
@@ -19,11 +19,27 @@ package com.android.server;
 import static com.android.server.NativeDaemonConnector.appendEscaped;
 import static com.android.server.NativeDaemonConnector.makeCommand;
 
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
 
+import com.android.server.NativeDaemonConnector.Command;
 import com.android.server.NativeDaemonConnector.SensitiveArg;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Tests for {@link NativeDaemonConnector}.
  */
@@ -94,4 +110,151 @@ public class NativeDaemonConnectorTest extends AndroidTestCase {
         assertEquals("1 foo \"foo bar\" \"baz baz\" wat\0", rawBuilder.toString());
         assertEquals("1 foo [scrubbed] \"baz baz\" [scrubbed]", logBuilder.toString());
     }
+
+    public void testAsyncBatchOutOfOrder() throws Exception {
+        final FakeDaemon daemon = new FakeDaemon(3);
+        final NativeDaemonConnector connector = daemon.connect();
+        try {
+            final List<Command> cmds = new ArrayList<>();
+            cmds.add(new Command("echo", "first"));
+            cmds.add(new Command("list", "second"));
+            cmds.add(new Command("echo", "third"));
+            final List<CompletableFuture<NativeDaemonEvent[]>> futures =
+                    connector.executeBatchAsync(cmds);
+
+            // The daemon answers in reverse order; responses must still reach the right caller.
+            final NativeDaemonEvent[] first = futures.get(0).get(5, TimeUnit.SECONDS);
+            assertEquals(1, first.length);
+            assertEquals("first", first[0].getMessage());
+
+            final NativeDaemonEvent[] second = futures.get(1).get(5, TimeUnit.SECONDS);
+            assertEquals(2, second.length);
+            assertTrue(second[0].isClassContinue());
+            assertEquals("second", second[1].getMessage());
+
+            final NativeDaemonEvent[] third = futures.get(2).get(5, TimeUnit.SECONDS);
+            assertEquals("third", third[0].getMessage());
+
+            // Synchronous commands still work alongside the async ones.
+            daemon.setBatchSize(1);
+            assertEquals("sync", connector.execute("echo", "sync").getMessage());
+        } finally {
+            daemon.close();
+        }
+    }
+
+    public void testAsyncError() throws Exception {
+        final FakeDaemon daemon = new FakeDaemon(1);
+        final NativeDaemonConnector connector = daemon.connect();
+        try {
+            final CompletableFuture<NativeDaemonEvent[]> future =
+                    connector.executeAsync(new Command("fail", "now"));
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Expected ExecutionException");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof NativeDaemonConnectorException);
+            }
+        } finally {
+            daemon.close();
+        }
+    }
+
+    /**
+     * Minimal libsysutils-style daemon. It buffers a configurable number of commands and then
+     * answers them in reverse order. {@code echo} replies with its argument, {@code list} sends
+     * a continuation before its final reply, and {@code fail} returns a server error.
+     */
+    private static class FakeDaemon implements Runnable {
+        private final String mName = "__test__ndc_" + Process.myPid();
+        private final LocalServerSocket mServer;
+        private final HandlerThread mCallbackThread = new HandlerThread("FakeDaemonCallbacks");
+        private final CountDownLatch mConnected = new CountDownLatch(1);
+        private volatile int mBatchSize;
+        private volatile LocalSocket mClient;
+
+        FakeDaemon(int batchSize) throws IOException {
+            mServer = new LocalServerSocket(mName);
+            mBatchSize = batchSize;
+        }
+
+        void setBatchSize(int batchSize) {
+            mBatchSize = batchSize;
+        }
+
+        NativeDaemonConnector connect() throws Exception {
+            new Thread(this, "FakeDaemon").start();
+            mCallbackThread.start();
+            final NativeDaemonConnector connector = new NativeDaemonConnector(
+                    new INativeDaemonConnectorCallbacks() {
+                        @Override
+                        public void onDaemonConnected() {
+                            mConnected.countDown();
+                        }
+
+                        @Override
+                        public boolean onCheckHoldWakeLock(int code) {
+                            return false;
+                        }
+
+                        @Override
+                        public boolean onEvent(int code, String raw, String[] cooked) {
+                            return true;
+                        }
+                    }, mName, 10, TAG, 50, null, mCallbackThread.getLooper());
+            final Thread thread = new Thread(connector, "FakeDaemonConnector");
+            thread.setDaemon(true);
+            thread.start();
+            assertTrue(mConnected.await(5, TimeUnit.SECONDS));
+            return connector;
+        }
+
+        void close() throws IOException {
+            if (mClient != null) {
+                mClient.close();
+            }
+            mServer.close();
+            mCallbackThread.quit();
+        }
+
+        @Override
+        public void run() {
+            try {
+                mClient = mServer.accept();
+                final InputStream in = mClient.getInputStream();
+                final OutputStream out = mClient.getOutputStream();
+                final ArrayList<String> pending = new ArrayList<>();
+                final StringBuilder current = new StringBuilder();
+                int b;
+                while ((b = in.read()) >= 0) {
+                    if (b != 0) {
+                        current.append((char) b);
+                        continue;
+                    }
+                    pending.add(current.toString());
+                    current.setLength(0);
+                    if (pending.size() < mBatchSize) continue;
+                    for (int i = pending.size() - 1; i >= 0; i--) {
+                        out.write(respond(pending.get(i)).getBytes(StandardCharsets.UTF_8));
+                    }
+                    pending.clear();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        private static String respond(String command) {
+            final String[] parts = command.split(" ");
+            final String seq = parts[0];
+            final String arg = parts.length > 2 ? parts[2] : "";
+            switch (parts[1]) {
+                case "list":
+                    return "110 " + seq + " item\0" + "200 " + seq + " " + arg + "\0";
+                case "fail":
+                    return "500 " + seq + " " + arg + "\0";
+                default:
+                    return "200 " + seq + " " + arg + "\0";
+            }
+        }
+    }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import static android.view.accessibility.AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE;
+import static android.view.accessibility.AccessibilityEvent.CONTENT_CHANGE_TYPE_TEXT;
+import static android.view.accessibility.AccessibilityEvent.TYPE_VIEW_CLICKED;
+import static android.view.accessibility.AccessibilityEvent.TYPE_VIEW_SCROLLED;
+import static android.view.accessibility.AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityNodeProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for AccessibilityEventCoalescer
+ */
+@RunWith(AndroidJUnit4.class)
+public class AccessibilityEventCoalescerTest {
+    private static final int WINDOW_ID = 1;
+    private static final int OTHER_WINDOW_ID = 2;
+    private static final int VIEW_ID = 10;
+    private static final int OTHER_VIEW_ID = 11;
+
+    private AccessibilityEventCoalescer mCoalescer;
+
+    @Before
+    public void setUp() {
+        mCoalescer = new AccessibilityEventCoalescer();
+    }
+
+    @Test
+    public void testContentChangesForSameNode_areMerged() {
+        final AccessibilityEvent pending =
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, WINDOW_ID, VIEW_ID);
+        pending.setContentChangeTypes(CONTENT_CHANGE_TYPE_TEXT);
+        mCoalescer.add(pending, true);
+
+        final AccessibilityEvent event =
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, WINDOW_ID, VIEW_ID);
+        event.setContentChangeTypes(CONTENT_CHANGE_TYPE_SUBTREE);
+        event.setEventTime(1000);
+        assertTrue(mCoalescer.coalesce(event, true, 0));
+        assertEquals(CONTENT_CHANGE_TYPE_TEXT | CONTENT_CHANGE_TYPE_SUBTREE,
+                pending.getContentChangeTypes());
+        assertEquals(1000, pending.getEventTime());
+    }
+
+    @Test
+    public void testScrollsForSameNode_areMergedWithLatestPosition() {
+        final AccessibilityEvent pending = createEvent(TYPE_VIEW_SCROLLED, WINDOW_ID, VIEW_ID);
+        pending.setScrollY(10);
+        pending.setFromIndex(1);
+        mCoalescer.add(pending, true);
+
+        final AccessibilityEvent event = createEvent(TYPE_VIEW_SCROLLED, WINDOW_ID, VIEW_ID);
+        event.setScrollY(30);
+        event.setMaxScrollY(100);
+        event.setFromIndex(3);
+        event.setToIndex(8);
+        event.setItemCount(20);
+        assertTrue(mCoalescer.coalesce(event, true, 0));
+        assertEquals(30, pending.getScrollY());
+        assertEquals(100, pending.getMaxScrollY());
+        assertEquals(3, pending.getFromIndex());
+        assertEquals(8, pending.getToIndex());
+        assertEquals(20, pending.getItemCount());
+    }
+
+    @Test
+    public void testEventsForOtherWindowOrNode_areNotMerged() {
+        final AccessibilityEvent pending =
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, WINDOW_ID, VIEW_ID);
+        pending.setContentChangeTypes(CONTENT_CHANGE_TYPE_TEXT);
+        mCoalescer.add(pending, true);
+
+        final AccessibilityEvent otherWindow =
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, OTHER_WINDOW_ID, VIEW_ID);
+        otherWindow.setContentChangeTypes(CONTENT_CHANGE_TYPE_SUBTREE);
+        assertFalse(mCoalescer.coalesce(otherWindow, true, 0));
+
+        final AccessibilityEvent otherNode =
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, WINDOW_ID, OTHER_VIEW_ID);
+        otherNode.setContentChangeTypes(CONTENT_CHANGE_TYPE_SUBTREE);
+        assertFalse(mCoalescer.coalesce(otherNode, true, 0));
+
+        assertFalse(mCoalescer.coalesce(
+                createEvent(TYPE_VIEW_SCROLLED, WINDOW_ID, VIEW_ID), true, 0));
+        assertEquals(CONTENT_CHANGE_TYPE_TEXT, pending.getContentChangeTypes());
+    }
+
+    @Test
+    public void testNonCoalescableEvents_areNotMerged() {
+        mCoalescer.add(createEvent(TYPE_VIEW_SCROLLED, WINDOW_ID, VIEW_ID), true);
+        // Throttled scrolls are not dispatched on their own message.
+        assertFalse(mCoalescer.coalesce(
+                createEvent(TYPE_VIEW_SCROLLED, WINDOW_ID, VIEW_ID), true, 100));
+
+        assertFalse(AccessibilityEventCoalescer.isCoalescable(
+                createEvent(TYPE_VIEW_CLICKED, WINDOW_ID, VIEW_ID), 0));
+        assertFalse(AccessibilityEventCoalescer.isCoalescable(
+                AccessibilityEvent.obtain(TYPE_WINDOW_CONTENT_CHANGED), 0));
+        assertTrue(AccessibilityEventCoalescer.isCoalescable(
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, WINDOW_ID, VIEW_ID), 100));
+    }
+
+    @Test
+    public void testMergedEventWantedByService_isDeliveredToService() {
+        final AccessibilityEvent pending =
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, WINDOW_ID, VIEW_ID);
+        mCoalescer.add(pending, false);
+        assertTrue(mCoalescer.coalesce(
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, WINDOW_ID, VIEW_ID), true, 0));
+        assertTrue(mCoalescer.remove(pending));
+
+        final AccessibilityEvent wanted =
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, WINDOW_ID, VIEW_ID);
+        mCoalescer.add(wanted, true);
+        assertTrue(mCoalescer.coalesce(
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, WINDOW_ID, VIEW_ID), false, 0));
+        assertTrue(mCoalescer.remove(wanted));
+    }
+
+    @Test
+    public void testRemovedEvent_isNoLongerMergedInto() {
+        final AccessibilityEvent pending =
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, WINDOW_ID, VIEW_ID);
+        mCoalescer.add(pending, false);
+        assertFalse(mCoalescer.remove(pending));
+
+        assertFalse(mCoalescer.coalesce(
+                createEvent(TYPE_WINDOW_CONTENT_CHANGED, WINDOW_ID, VIEW_ID), true, 0));
+        assertNull(mCoalescer.remove(pending));
+    }
+
+    private static AccessibilityEvent createEvent(int eventType, int windowId, int viewId) {
+        final AccessibilityNodeInfo source = AccessibilityNodeInfo.obtain();
+        source.setSourceNodeId(AccessibilityNodeInfo.makeNodeId(viewId,
+                AccessibilityNodeProvider.HOST_VIEW_ID), windowId);
+        final AccessibilityEvent event = AccessibilityEvent.obtain(eventType);
+        event.setSource(source);
+        source.recycle();
+        return event;
+    }
+}
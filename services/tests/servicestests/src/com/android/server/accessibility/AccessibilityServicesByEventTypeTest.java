@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.accessibility;
+
+import static android.view.accessibility.AccessibilityEvent.TYPE_ANNOUNCEMENT;
+import static android.view.accessibility.AccessibilityEvent.TYPE_VIEW_CLICKED;
+import static android.view.accessibility.AccessibilityEvent.TYPE_VIEW_FOCUSED;
+import static android.view.accessibility.AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.accessibility.AccessibilityManagerService.Service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for AccessibilityServicesByEventType
+ */
+@RunWith(AndroidJUnit4.class)
+public class AccessibilityServicesByEventTypeTest {
+    private final List<Service> mBoundServices = new ArrayList<>();
+    private AccessibilityServicesByEventType mServicesByEventType;
+    private Service mClickService;
+    private Service mFocusAndClickService;
+
+    @Before
+    public void setUp() {
+        mClickService = createService(TYPE_VIEW_CLICKED);
+        mFocusAndClickService = createService(TYPE_VIEW_FOCUSED | TYPE_VIEW_CLICKED);
+        mBoundServices.add(mClickService);
+        mBoundServices.add(mFocusAndClickService);
+        mServicesByEventType = new AccessibilityServicesByEventType(mBoundServices);
+    }
+
+    @Test
+    public void testGet_returnsServicesThatAskedForType() {
+        assertEquals(Arrays.asList(mClickService, mFocusAndClickService),
+                mServicesByEventType.get(TYPE_VIEW_CLICKED));
+        assertEquals(Arrays.asList(mFocusAndClickService),
+                mServicesByEventType.get(TYPE_VIEW_FOCUSED));
+        assertTrue(mServicesByEventType.get(TYPE_ANNOUNCEMENT).isEmpty());
+    }
+
+    @Test
+    public void testGetWithSeveralTypes_returnsAllBoundServices() {
+        assertSame(mBoundServices,
+                mServicesByEventType.get(TYPE_VIEW_CLICKED | TYPE_VIEW_FOCUSED));
+    }
+
+    @Test
+    public void testChangedEventTypes_areIndexedAfterInvalidation() {
+        mServicesByEventType.get(TYPE_VIEW_CLICKED);
+        mClickService.mEventTypes = TYPE_ANNOUNCEMENT;
+        // The index is only rebuilt once invalidated.
+        assertTrue(mServicesByEventType.get(TYPE_ANNOUNCEMENT).isEmpty());
+
+        mServicesByEventType.invalidate();
+        assertEquals(Arrays.asList(mClickService),
+                mServicesByEventType.get(TYPE_ANNOUNCEMENT));
+        assertEquals(Arrays.asList(mFocusAndClickService),
+                mServicesByEventType.get(TYPE_VIEW_CLICKED));
+    }
+
+    @Test
+    public void testBoundServices_areIndexedAfterInvalidation() {
+        mServicesByEventType.get(TYPE_ANNOUNCEMENT);
+        final Service announcementService = createService(TYPE_ANNOUNCEMENT);
+        mBoundServices.add(announcementService);
+        mServicesByEventType.invalidate();
+        assertEquals(Arrays.asList(announcementService),
+                mServicesByEventType.get(TYPE_ANNOUNCEMENT));
+
+        mBoundServices.remove(mClickService);
+        mServicesByEventType.invalidate();
+        assertEquals(Arrays.asList(mFocusAndClickService),
+                mServicesByEventType.get(TYPE_VIEW_CLICKED));
+    }
+
+    @Test
+    public void testServiceUsingCache_isIndexedForCacheCriticalEvents() {
+        assertTrue(mServicesByEventType.get(TYPE_WINDOW_CONTENT_CHANGED).isEmpty());
+
+        mClickService.mUsesAccessibilityCache = true;
+        mServicesByEventType.invalidate();
+        assertEquals(Arrays.asList(mClickService),
+                mServicesByEventType.get(TYPE_WINDOW_CONTENT_CHANGED));
+        assertEquals(Arrays.asList(mClickService, mFocusAndClickService),
+                mServicesByEventType.get(TYPE_VIEW_FOCUSED));
+    }
+
+    private static Service createService(int eventTypes) {
+        final Service service = mock(Service.class);
+        service.mEventTypes = eventTypes;
+        return service;
+    }
+}
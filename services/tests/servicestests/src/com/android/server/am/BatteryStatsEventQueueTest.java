@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for {@link BatteryStatsEventQueue}.
+ *
+ * Run: adb shell am instrument -e class com.android.server.am.BatteryStatsEventQueueTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@RunWith(AndroidJUnit4.class)
+public class BatteryStatsEventQueueTest {
+    private static final String TAG = "BatteryStatsEventQueueTest";
+
+    private static final int PRODUCERS = 8;
+    private static final int EVENTS_PER_PRODUCER = 50000;
+
+    private final Object mLock = new Object();
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    // Last event sequence number applied for each producer, guarded by mLock.
+    private final int[] mLastApplied = new int[PRODUCERS];
+    private int mAppliedCount;
+    private boolean mOutOfOrder;
+
+    private final BatteryStatsEventQueue.Applier mApplier = event -> {
+        if (event.pid != mLastApplied[event.uid] + 1) {
+            mOutOfOrder = true;
+        }
+        mLastApplied[event.uid] = event.pid;
+        mAppliedCount++;
+    };
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    @SmallTest
+    @Test
+    public void testCapacityRoundedUp() {
+        assertEquals(16, new BatteryStatsEventQueue(10, mLock, mApplier, mHandler).getCapacity());
+        assertEquals(16, new BatteryStatsEventQueue(16, mLock, mApplier, mHandler).getCapacity());
+    }
+
+    @SmallTest
+    @Test
+    public void testFullQueueRejectsEvents() {
+        final BatteryStatsEventQueue queue = new BatteryStatsEventQueue(4, mLock, mApplier,
+                mHandler);
+        synchronized (mLock) {
+            // The handler can't drain the queue while we hold the lock.
+            for (int i = 1; i <= 4; i++) {
+                assertTrue(offer(queue, 0, i));
+            }
+            assertFalse(offer(queue, 0, 5));
+            assertEquals(1, queue.getFullCount());
+
+            queue.applyPendingLocked();
+            assertEquals(4, mAppliedCount);
+            assertTrue(offer(queue, 0, 5));
+            queue.applyPendingLocked();
+            assertEquals(5, mAppliedCount);
+            assertFalse(mOutOfOrder);
+        }
+    }
+
+    @SmallTest
+    @Test
+    public void testTimestampsNeverGoBack() {
+        final List<long[]> applied = new ArrayList<>();
+        final BatteryStatsEventQueue queue = new BatteryStatsEventQueue(16, mLock,
+                event -> applied.add(new long[] { event.elapsedRealtime, event.uptime }),
+                mHandler);
+        synchronized (mLock) {
+            // Both clocks are clamped separately.
+            offerAt(queue, 100, 50);
+            offerAt(queue, 90, 60);
+            queue.applyPendingLocked();
+            assertEquals(2, applied.size());
+            assertArrayEquals(new long[] { 100, 50 }, applied.get(0));
+            assertArrayEquals(new long[] { 100, 60 }, applied.get(1));
+
+            // Events applied after the stats were handed to a caller are not older than that.
+            final long elapsedRealtime = SystemClock.elapsedRealtime();
+            final long uptime = SystemClock.uptimeMillis();
+            queue.applyPendingLocked();
+            offerAt(queue, 0, 0);
+            queue.applyPendingLocked();
+            assertEquals(3, applied.size());
+            assertTrue(applied.get(2)[0] >= elapsedRealtime);
+            assertTrue(applied.get(2)[1] >= uptime);
+        }
+    }
+
+    /**
+     * Runs producers against both the queue and a plain monitor, checking that every queued
+     * event is applied exactly once and in the order each producer queued them.
+     */
+    @LargeTest
+    @Test
+    public void testStress() throws Exception {
+        final BatteryStatsEventQueue queue = new BatteryStatsEventQueue(1024, mLock, mApplier,
+                mHandler);
+        final long queuedNanos = runProducers((uid, seq) -> {
+            while (!offer(queue, uid, seq)) {
+                // Same fallback as BatteryStatsService.
+                synchronized (mLock) {
+                    queue.applyPendingLocked();
+                }
+            }
+        });
+        synchronized (mLock) {
+            queue.applyPendingLocked();
+            assertEquals(PRODUCERS * EVENTS_PER_PRODUCER, mAppliedCount);
+            assertFalse(mOutOfOrder);
+            for (int i = 0; i < PRODUCERS; i++) {
+                assertEquals(EVENTS_PER_PRODUCER, mLastApplied[i]);
+                mLastApplied[i] = 0;
+            }
+            mAppliedCount = 0;
+        }
+
+        final long lockedNanos = runProducers((uid, seq) -> {
+            final BatteryStatsEventQueue.Event event = new BatteryStatsEventQueue.Event();
+            event.uid = uid;
+            event.pid = seq;
+            synchronized (mLock) {
+                mApplier.applyEventLocked(event);
+            }
+        });
+        synchronized (mLock) {
+            assertEquals(PRODUCERS * EVENTS_PER_PRODUCER, mAppliedCount);
+        }
+
+        Log.i(TAG, "Producer time for " + PRODUCERS * EVENTS_PER_PRODUCER + " events: queue="
+                + queuedNanos / 1000000 + "ms monitor=" + lockedNanos / 1000000 + "ms full="
+                + queue.getFullCount());
+    }
+
+    private interface Producer {
+        void produce(int uid, int seq);
+    }
+
+    /** Returns the time taken for all producer threads to finish. */
+    private static long runProducers(Producer producer) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            final int uid = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int seq = 1; seq <= EVENTS_PER_PRODUCER; seq++) {
+                    producer.produce(uid, seq);
+                }
+            });
+            threads[i].start();
+        }
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    private static boolean offer(BatteryStatsEventQueue queue, int uid, int seq) {
+        return queue.offer(BatteryStatsEventQueue.EVENT_START_WAKELOCK, uid, seq, "wakelock",
+                null, 0, false, 0, 0);
+    }
+
+    private static boolean offerAt(BatteryStatsEventQueue queue, long elapsedRealtime,
+            long uptime) {
+        return queue.offer(BatteryStatsEventQueue.EVENT_START_WAKELOCK, 0, 0, "wakelock", null,
+                0, false, elapsedRealtime, uptime);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkPolicyManager.FIREWALL_CHAIN_DOZABLE;
+import static android.net.NetworkPolicyManager.FIREWALL_CHAIN_STANDBY;
+import static android.net.NetworkPolicyManager.FIREWALL_RULE_ALLOW;
+import static android.net.NetworkPolicyManager.FIREWALL_RULE_DEFAULT;
+import static android.net.NetworkPolicyManager.FIREWALL_RULE_DENY;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import android.os.INetworkManagementService;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.SparseIntArray;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class FirewallRuleApplierTest {
+
+    @Mock private INetworkManagementService mNetworkManager;
+    private FirewallRuleApplier mApplier;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mApplier = new FirewallRuleApplier(mNetworkManager);
+    }
+
+    @Test
+    public void testFirstUpdateReplacesChain() throws Exception {
+        mApplier.setRules(FIREWALL_CHAIN_DOZABLE, rules(10001, 10002), 0);
+        verify(mNetworkManager).setFirewallUidRules(eq(FIREWALL_CHAIN_DOZABLE), any(), any());
+        verifyNoMoreInteractions(mNetworkManager);
+    }
+
+    @Test
+    public void testUnchangedUpdateIsSkipped() throws Exception {
+        mApplier.setRules(FIREWALL_CHAIN_DOZABLE, rules(10001, 10002), 0);
+        reset(mNetworkManager);
+
+        mApplier.setRules(FIREWALL_CHAIN_DOZABLE, rules(10002, 10001), 0);
+        verifyNoMoreInteractions(mNetworkManager);
+    }
+
+    @Test
+    public void testSmallDiffSendsSingleRules() throws Exception {
+        mApplier.setRules(FIREWALL_CHAIN_DOZABLE, rules(10001, 10002), 0);
+        reset(mNetworkManager);
+
+        mApplier.setRules(FIREWALL_CHAIN_DOZABLE, rules(10002, 10003), 0);
+        verify(mNetworkManager).setFirewallUidRule(FIREWALL_CHAIN_DOZABLE, 10001,
+                FIREWALL_RULE_DEFAULT);
+        verify(mNetworkManager).setFirewallUidRule(FIREWALL_CHAIN_DOZABLE, 10003,
+                FIREWALL_RULE_ALLOW);
+        verify(mNetworkManager, never()).setFirewallUidRules(anyInt(), any(), any());
+        verifyNoMoreInteractions(mNetworkManager);
+    }
+
+    @Test
+    public void testLargeDiffReplacesChain() throws Exception {
+        mApplier.setRules(FIREWALL_CHAIN_DOZABLE, rules(10001), 0);
+        reset(mNetworkManager);
+
+        final int[] uids = new int[FirewallRuleApplier.MAX_INCREMENTAL_RULES + 1];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = 20000 + i;
+        }
+        mApplier.setRules(FIREWALL_CHAIN_DOZABLE, rules(uids), 0);
+        verify(mNetworkManager).setFirewallUidRules(eq(FIREWALL_CHAIN_DOZABLE), any(), any());
+        verify(mNetworkManager, never()).setFirewallUidRule(anyInt(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void testSingleRulesTracked() throws Exception {
+        mApplier.setRules(FIREWALL_CHAIN_STANDBY, new SparseIntArray(), 0);
+        mApplier.setRule(FIREWALL_CHAIN_STANDBY, 10001, FIREWALL_RULE_DENY);
+        mApplier.setRule(FIREWALL_CHAIN_STANDBY, 10001, FIREWALL_RULE_DENY);
+        verify(mNetworkManager, times(1)).setFirewallUidRule(FIREWALL_CHAIN_STANDBY, 10001,
+                FIREWALL_RULE_DENY);
+        reset(mNetworkManager);
+
+        // The standby chain now matches the target, so nothing needs to be sent.
+        final SparseIntArray target = new SparseIntArray();
+        target.put(10001, FIREWALL_RULE_DENY);
+        mApplier.setRules(FIREWALL_CHAIN_STANDBY, target, 0);
+        verifyNoMoreInteractions(mNetworkManager);
+    }
+
+    @Test
+    public void testDiff() {
+        final SparseIntArray applied = new SparseIntArray();
+        applied.put(1, FIREWALL_RULE_ALLOW);
+        applied.put(2, FIREWALL_RULE_DENY);
+        final SparseIntArray target = new SparseIntArray();
+        target.put(2, FIREWALL_RULE_ALLOW);
+        target.put(3, FIREWALL_RULE_DENY);
+
+        final SparseIntArray changes = FirewallRuleApplier.diff(applied, target);
+        assertEquals(3, changes.size());
+        assertEquals(FIREWALL_RULE_DEFAULT, changes.get(1, -1));
+        assertEquals(FIREWALL_RULE_ALLOW, changes.get(2, -1));
+        assertEquals(FIREWALL_RULE_DENY, changes.get(3, -1));
+    }
+
+    private static SparseIntArray rules(int... uids) {
+        final SparseIntArray rules = new SparseIntArray();
+        for (int uid : uids) {
+            rules.put(uid, FIREWALL_RULE_ALLOW);
+        }
+        return rules;
+    }
+}
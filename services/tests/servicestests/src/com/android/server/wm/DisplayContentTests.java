@@ -24,6 +24,7 @@ import static android.view.WindowManager.LayoutParams.TYPE_BASE_APPLICATION;
 import static android.view.WindowManager.LayoutParams.TYPE_VOICE_INTERACTION;
 import static com.android.server.wm.WindowContainer.POSITION_TOP;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Ignore;
@@ -31,11 +32,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import android.content.res.Configuration;
+import android.graphics.Rect;
 import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.SparseIntArray;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -329,6 +332,86 @@ public class DisplayContentTests extends WindowTestsBase {
         assertEquals(-1, orderedDisplayIds.indexOfValue(dc.getDisplayId()));
     }
 
+    @Test
+    public void testPartialLayoutMatchesFullLayout() throws Exception {
+        final WindowState app = createWindow(null, TYPE_BASE_APPLICATION, mDisplayContent, "app");
+        final WindowState other = createWindow(null, TYPE_BASE_APPLICATION, mDisplayContent,
+                "other");
+        app.mRelayoutCalled = true;
+        other.mRelayoutCalled = true;
+        // Explicit sizes, so that the frames follow the requested sizes.
+        setRequestedSize(app, 300, 300);
+        setRequestedSize(other, 200, 200);
+
+        final TestWindowManagerPolicy policy = (TestWindowManagerPolicy) sWm.mPolicy;
+        policy.layoutFrame = new Rect(0, 0, 1000, 1000);
+        try {
+            synchronized (sWm.mWindowMap) {
+                mDisplayContent.setLayoutNeeded();
+                mDisplayContent.performLayout(true /* initial */, false /* updateInputWindows */);
+                final int seq = sWm.mLayoutSeq;
+                final List<WindowState> laidOut = getWindowsLaidOut();
+                assertTrue(laidOut.contains(app));
+                assertTrue(laidOut.contains(other));
+                assertEquals(300, app.getFrameLw().width());
+
+                // Only app asked for a layout, after changing its size. Other is flagged without
+                // being marked dirty, to check that the partial layout did not visit it.
+                app.mRequestedWidth = 400;
+                app.mRequestedHeight = 500;
+                app.setLayoutNeeded();
+                mDisplayContent.setLayoutNeeded(app);
+                other.mLayoutNeeded = true;
+                mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+                assertFalse(app.mLayoutNeeded);
+                assertTrue(other.mLayoutNeeded);
+                assertFalse(mDisplayContent.mLayoutDirty);
+                assertEquals(seq, sWm.mLayoutSeq);
+                assertEquals(laidOut, getWindowsLaidOut());
+                assertEquals(400, app.getFrameLw().width());
+                assertEquals(500, app.getFrameLw().height());
+                final List<Rect> partialFrames = getWindowFrames();
+
+                // A full layout visits every window and computes the same frames.
+                mDisplayContent.setLayoutNeeded();
+                mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+                assertFalse(other.mLayoutNeeded);
+                assertEquals(laidOut, getWindowsLaidOut());
+                assertEquals(partialFrames, getWindowFrames());
+            }
+        } finally {
+            policy.layoutFrame = null;
+        }
+    }
+
+    private static void setRequestedSize(WindowState w, int width, int height) {
+        w.mAttrs.width = width;
+        w.mAttrs.height = height;
+        w.mRequestedWidth = width;
+        w.mRequestedHeight = height;
+    }
+
+    /** Returns the frame, content frame and visible frame of every window on the display. */
+    private List<Rect> getWindowFrames() {
+        final List<Rect> frames = new ArrayList<>();
+        mDisplayContent.forAllWindows(w -> {
+            frames.add(new Rect(w.getFrameLw()));
+            frames.add(new Rect(w.getContentFrameLw()));
+            frames.add(new Rect(w.getVisibleFrameLw()));
+        }, true /* traverseTopToBottom */);
+        return frames;
+    }
+
+    private List<WindowState> getWindowsLaidOut() {
+        final List<WindowState> windows = new ArrayList<>();
+        mDisplayContent.forAllWindows(w -> {
+            if (w.mLayoutSeq == sWm.mLayoutSeq) {
+                windows.add(w);
+            }
+        }, true /* traverseTopToBottom */);
+        return windows;
+    }
+
     private static void verifySizes(DisplayContent displayContent, int expectedBaseWidth,
                              int expectedBaseHeight, int expectedBaseDensity) {
         assertEquals(displayContent.mBaseDisplayWidth, expectedBaseWidth);
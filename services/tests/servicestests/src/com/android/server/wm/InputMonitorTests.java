@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static android.view.Display.DEFAULT_DISPLAY;
+import static android.view.WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE;
+import static android.view.WindowManager.LayoutParams.TYPE_BASE_APPLICATION;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.platform.test.annotations.Presubmit;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.input.InputApplicationHandle;
+import com.android.server.input.InputWindowHandle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for the {@link InputMonitor} class.
+ *
+ * runtest frameworks-services -c com.android.server.wm.InputMonitorTests
+ */
+@SmallTest
+@Presubmit
+@RunWith(AndroidJUnit4.class)
+public class InputMonitorTests extends WindowTestsBase {
+
+    private InputMonitor mInputMonitor;
+    private InputApplicationHandle mApplicationHandle;
+    private InputWindowHandle mWindowHandle;
+    private InputWindowHandle mOtherWindowHandle;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mInputMonitor = new InputMonitor(sWm);
+        mApplicationHandle = new InputApplicationHandle(null);
+        mApplicationHandle.name = "app";
+        mApplicationHandle.dispatchingTimeoutNanos = 5000000000L;
+        mWindowHandle = createWindowHandle("window");
+        mOtherWindowHandle = createWindowHandle("other");
+    }
+
+    @Test
+    public void testUnchangedUpdateIsSkipped() throws Exception {
+        assertTrue(send(false));
+        assertFalse(send(false));
+        assertFalse(send(false));
+    }
+
+    @Test
+    public void testForcedUpdateIsSent() throws Exception {
+        assertTrue(send(false));
+        assertTrue(send(true));
+        assertFalse(send(false));
+    }
+
+    @Test
+    public void testFrameChangeIsSent() throws Exception {
+        assertTrue(send(false));
+        mWindowHandle.frameRight++;
+        assertTrue(send(false));
+        assertFalse(send(false));
+    }
+
+    @Test
+    public void testFlagsChangeIsSent() throws Exception {
+        assertTrue(send(false));
+        mWindowHandle.layoutParamsFlags |= FLAG_NOT_TOUCHABLE;
+        assertTrue(send(false));
+        assertFalse(send(false));
+    }
+
+    @Test
+    public void testTouchableRegionChangeIsSent() throws Exception {
+        assertTrue(send(false));
+        mWindowHandle.touchableRegion.set(0, 0, 50, 50);
+        assertTrue(send(false));
+        assertFalse(send(false));
+    }
+
+    @Test
+    public void testApplicationTimeoutChangeIsSent() throws Exception {
+        assertTrue(send(false));
+        mApplicationHandle.dispatchingTimeoutNanos *= 2;
+        assertTrue(send(false));
+        assertFalse(send(false));
+    }
+
+    @Test
+    public void testWindowListChangesAreSent() throws Exception {
+        assertTrue(send(false));
+
+        // Reordered windows.
+        mInputMonitor.addInputWindowHandle(mOtherWindowHandle);
+        mInputMonitor.addInputWindowHandle(mWindowHandle);
+        assertTrue(mInputMonitor.sendInputWindowsLw(false));
+
+        // Removed window.
+        mInputMonitor.addInputWindowHandle(mOtherWindowHandle);
+        assertTrue(mInputMonitor.sendInputWindowsLw(false));
+        mInputMonitor.addInputWindowHandle(mOtherWindowHandle);
+        assertFalse(mInputMonitor.sendInputWindowsLw(false));
+    }
+
+    private boolean send(boolean force) {
+        mInputMonitor.addInputWindowHandle(mWindowHandle);
+        mInputMonitor.addInputWindowHandle(mOtherWindowHandle);
+        return mInputMonitor.sendInputWindowsLw(force);
+    }
+
+    private InputWindowHandle createWindowHandle(String name) {
+        final InputWindowHandle handle =
+                new InputWindowHandle(mApplicationHandle, null, null, DEFAULT_DISPLAY);
+        handle.name = name;
+        handle.layoutParamsType = TYPE_BASE_APPLICATION;
+        handle.frameRight = 100;
+        handle.frameBottom = 100;
+        handle.touchableRegion.set(0, 0, 100, 100);
+        handle.scaleFactor = 1.0f;
+        handle.visible = true;
+        return handle;
+    }
+}
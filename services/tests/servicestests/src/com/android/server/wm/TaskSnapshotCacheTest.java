@@ -19,6 +19,9 @@ package com.android.server.wm;
 import static android.view.WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+import android.app.ActivityManager.TaskSnapshot;
 
 import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
@@ -96,6 +99,26 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
                 false /* restoreFromDisk */, false /* reducedResolution */));
     }
 
+    @Test
+    public void testReduced_cachedAfterRestore() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        final int taskId = window.getTask().mTaskId;
+        mPersister.persistSnapshot(taskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+
+        final TaskSnapshot reduced = mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */);
+        assertNotNull(reduced);
+        assertSame(reduced, mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+
+        // A new snapshot of the task makes the restored one stale.
+        mCache.putSnapshot(window.getTask(), createSnapshot());
+        mCache.onAppRemoved(window.mAppToken);
+        assertNull(mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+    }
+
     @Test
     public void testRestoreFromDisk() throws Exception {
         final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
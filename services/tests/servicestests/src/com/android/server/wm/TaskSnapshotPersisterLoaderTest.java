@@ -24,6 +24,9 @@ import static org.junit.Assert.fail;
 
 import android.app.ActivityManager.TaskSnapshot;
 import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Color;
 import android.graphics.Rect;
 import android.os.SystemClock;
 import android.platform.test.annotations.Presubmit;
@@ -126,6 +129,80 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertTrueForFiles(nonExistsFiles, file -> !file.exists(), " must not exist");
     }
 
+    @Test
+    public void testCoalescing() {
+        mPersister.setPaused(true);
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.persistSnapshot(2, mTestUserId, createSnapshot());
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        assertEquals(2, mPersister.getStoreQueueSize());
+        mPersister.setPaused(false);
+        mPersister.waitForQueueEmpty();
+        assertTrue(new File(sFilesDir.getPath() + "/snapshots/1.proto").exists());
+        assertTrue(new File(sFilesDir.getPath() + "/snapshots/2.proto").exists());
+    }
+
+    @Test
+    public void testCoalescing_taskRemoved() {
+        mPersister.setPaused(true);
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.onTaskRemovedFromRecents(1, mTestUserId);
+        assertEquals(0, mPersister.getStoreQueueSize());
+        mPersister.setPaused(false);
+        mPersister.waitForQueueEmpty();
+        assertFalse(new File(sFilesDir.getPath() + "/snapshots/1.proto").exists());
+        assertFalse(new File(sFilesDir.getPath() + "/snapshots/1.jpg").exists());
+    }
+
+    @Test
+    public void testLoadReducedBeforeItIsWritten() {
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        assertTrue(new File(sFilesDir.getPath() + "/snapshots/1_reduced.jpg").delete());
+        final TaskSnapshot snapshot = mLoader.loadTask(1, mTestUserId, true /* reduced */);
+        assertNotNull(snapshot);
+        assertTrue(snapshot.isReducedResolution());
+        assertEquals(50, snapshot.getSnapshot().getWidth());
+    }
+
+    @Test
+    public void testPersistAndLoadRawSnapshot() {
+        final TaskSnapshotPersister persister = new TaskSnapshotPersister(userId -> sFilesDir,
+                true /* useRawFormat */);
+        final TaskSnapshotLoader loader = new TaskSnapshotLoader(persister);
+        persister.start();
+        persister.persistSnapshot(1, mTestUserId, createSnapshot());
+        persister.waitForQueueEmpty();
+        final File[] files = new File[] { new File(sFilesDir.getPath() + "/snapshots/1.proto"),
+                new File(sFilesDir.getPath() + "/snapshots/1.raw"),
+                new File(sFilesDir.getPath() + "/snapshots/1_reduced.raw")};
+        assertTrueForFiles(files, File::exists, " must exist");
+        final TaskSnapshot snapshot = loader.loadTask(1, mTestUserId, false /* reduced */);
+        assertNotNull(snapshot);
+        assertEquals(TEST_INSETS, snapshot.getContentInsets());
+        assertEquals(100, snapshot.getSnapshot().getWidth());
+        final TaskSnapshot reduced = loader.loadTask(1, mTestUserId, true /* reduced */);
+        assertNotNull(reduced);
+        assertEquals(50, reduced.getSnapshot().getWidth());
+    }
+
+    @Test
+    public void testRawBitmapRoundTrip() throws Exception {
+        final Bitmap bitmap = Bitmap.createBitmap(7, 3, Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLUE);
+        bitmap.setPixel(2, 1, Color.GREEN);
+        final File file = new File(sFilesDir, "roundtrip.raw");
+        try {
+            TaskSnapshotPersister.writeRawBitmap(bitmap, file);
+            final Bitmap read = TaskSnapshotPersister.readRawBitmap(file);
+            assertNotNull(read);
+            assertTrue(bitmap.sameAs(read));
+        } finally {
+            file.delete();
+        }
+    }
+
     @Test
     public void testGetTaskId() {
         RemoveObsoleteFilesQueueItem removeObsoleteFilesQueueItem =
@@ -137,6 +214,8 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertEquals(12, removeObsoleteFilesQueueItem.getTaskId("12.proto"));
         assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1.jpg"));
         assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1_reduced.jpg"));
+        assertEquals(3, removeObsoleteFilesQueueItem.getTaskId("3.raw"));
+        assertEquals(3, removeObsoleteFilesQueueItem.getTaskId("3_reduced.raw"));
     }
 
     @Test
@@ -58,6 +58,9 @@ class TestWindowManagerPolicy implements WindowManagerPolicy {
 
     int rotationToReport = 0;
 
+    // Frame every window is laid out in by layoutWindowLw(), or null to leave frames untouched.
+    Rect layoutFrame;
+
     private Runnable mRunnableWhenAddingSplashScreen;
 
     static synchronized WindowManagerService getWindowManagerService(Context context) {
@@ -294,7 +297,10 @@ class TestWindowManagerPolicy implements WindowManagerPolicy {
     @Override
     public void layoutWindowLw(WindowState win,
             WindowState attached) {
-
+        final Rect f = layoutFrame;
+        if (f != null) {
+            win.computeFrameLw(f, f, f, f, f, f, f, f);
+        }
     }
 
     @Override
@@ -116,6 +116,67 @@ public class NetworkStatsTest extends TestCase {
         }
     }
 
+    public void testFindIndexLarge() throws Exception {
+        // Enough rows to use the hash index rather than a linear scan
+        final NetworkStats stats = new NetworkStats(TEST_START, 4);
+        for (int uid = 100; uid < 200; uid++) {
+            stats.addValues(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                    1024L, 8L, 0L, 0L, 0);
+            stats.addValues(TEST_IFACE2, uid, SET_FOREGROUND, 0xF00D, METERED_YES, ROAMING_NO,
+                    1024L, 8L, 0L, 0L, 0);
+        }
+        // Duplicate key should still resolve to the first matching row
+        stats.addValues(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                1L, 1L, 1L, 1L, 1);
+
+        for (int uid = 100; uid < 200; uid++) {
+            final int i = (uid - 100) * 2;
+            assertEquals(i, stats.findIndex(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO,
+                    ROAMING_NO));
+            assertEquals(i + 1, stats.findIndexHinted(TEST_IFACE2, uid, SET_FOREGROUND, 0xF00D,
+                    METERED_YES, ROAMING_NO, i));
+        }
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 100, SET_FOREGROUND, TAG_NONE, METERED_NO,
+                ROAMING_NO));
+        assertEquals(-1, stats.findIndex(IFACE_ALL, 100, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO));
+        assertEquals(-1, stats.findIndex("unknown0", 100, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO));
+
+        // Rows appended after a lookup are found too
+        stats.addValues(IFACE_ALL, 300, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                1024L, 8L, 0L, 0L, 0);
+        assertEquals(201, stats.findIndex(IFACE_ALL, 300, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO));
+    }
+
+    public void testSubtractLargeRecycled() throws Exception {
+        final NetworkStats before = new NetworkStats(TEST_START, 4);
+        final NetworkStats after = new NetworkStats(TEST_START, 4);
+        for (int uid = 100; uid < 150; uid++) {
+            before.addValues(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, 1024L, 8L, 0L, 0L, 0);
+        }
+        // Same rows in reverse order, with more traffic
+        for (int uid = 149; uid >= 100; uid--) {
+            after.addValues(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, 2048L, 16L, 0L, 0L, 0);
+        }
+
+        final NetworkStats result = NetworkStats.subtract(after, before, null, null, null);
+        for (int uid = 100; uid < 150; uid++) {
+            assertContains(result, TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO,
+                    ROAMING_NO, 1024L, 8L, 0L, 0L, 0L);
+        }
+
+        // Reusing the result must not return stale rows from its previous contents
+        final NetworkStats recycled = NetworkStats.subtract(before, before, null, null, result);
+        assertSame(result, recycled);
+        assertEquals(50, recycled.size());
+        assertEquals(0, recycled.findIndex(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO));
+        assertValues(recycled, 0, TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                0L, 0L, 0L, 0L, 0L);
+    }
+
     public void testAddEntryGrow() throws Exception {
         final NetworkStats stats = new NetworkStats(TEST_START, 4);
 
@@ -21,6 +21,7 @@ import static android.net.NetworkStats.ROAMING_NO;
 import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_ALL;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static com.android.server.NetworkManagementSocketTagger.kernelToTag;
@@ -84,6 +85,53 @@ public class NetworkStatsFactoryTest extends AndroidTestCase {
         assertStatsEntry(stats, "rmnet2", 10001, SET_DEFAULT, 0x0, 1125899906842624L, 984L);
     }
 
+    public void testNetworkStatsDetailRecycled() throws Exception {
+        stageFile(R.raw.xt_qtaguid_typical, file("net/xt_qtaguid/stats"));
+        final File path = file("net/xt_qtaguid/stats");
+
+        final NetworkStats expected = NetworkStatsFactory.javaReadNetworkStatsDetail(path,
+                UID_ALL, null, TAG_ALL);
+        final NetworkStats recycle = new NetworkStats(0, 4)
+                .addValues("stale0", 1, SET_DEFAULT, TAG_NONE, 1L, 1L, 1L, 1L, 0L);
+        final NetworkStats stats = NetworkStatsFactory.javaReadNetworkStatsDetail(path,
+                UID_ALL, null, TAG_ALL, recycle);
+
+        assertSame(recycle, stats);
+        mFactory.assertEquals(expected, stats);
+        assertEquals(-1, stats.findIndex("stale0", 1, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO));
+
+        // Rows on the same interface share a single String instance
+        NetworkStats.Entry entry = null;
+        String wlan0 = null;
+        for (int i = 0; i < stats.size(); i++) {
+            entry = stats.getValues(i, entry);
+            if (!"wlan0".equals(entry.iface)) continue;
+            if (wlan0 == null) {
+                wlan0 = entry.iface;
+            } else {
+                assertSame(wlan0, entry.iface);
+            }
+        }
+    }
+
+    public void testNetworkStatsDetailFiltered() throws Exception {
+        stageFile(R.raw.xt_qtaguid_typical, file("net/xt_qtaguid/stats"));
+        final File path = file("net/xt_qtaguid/stats");
+
+        final NetworkStats stats = NetworkStatsFactory.javaReadNetworkStatsDetail(path,
+                10021, new String[] { "rmnet1" }, 0x30100000);
+        assertTrue(stats.size() > 0);
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < stats.size(); i++) {
+            entry = stats.getValues(i, entry);
+            assertEquals("rmnet1", entry.iface);
+            assertEquals(10021, entry.uid);
+            assertEquals(0x30100000, entry.tag);
+        }
+        assertStatsEntry(stats, "rmnet1", 10021, SET_DEFAULT, 0x30100000, 219110L, 227423L);
+    }
+
     public void testKernelTags() throws Exception {
         assertEquals(0, kernelToTag("0x0000000000000000"));
         assertEquals(0x32, kernelToTag("0x0000003200000000"));
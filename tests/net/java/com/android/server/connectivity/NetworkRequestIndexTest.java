@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_MMS;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_METERED;
+import static android.net.NetworkCapabilities.TRANSPORT_CELLULAR;
+import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkMisc;
+import android.net.NetworkRequest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.ConnectivityService;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+
+public class NetworkRequestIndexTest extends TestCase {
+
+    @Mock ConnectivityService mConnService;
+    @Mock Context mCtx;
+    @Mock NetworkMisc mMisc;
+
+    private NetworkRequestIndex<NetworkRequest> mIndex;
+    private int mNextRequestId = 1;
+
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mConnService.createNetworkMonitor(any(), any(), any(), any())).thenReturn(null);
+        mIndex = new NetworkRequestIndex<>();
+    }
+
+    @SmallTest
+    public void testCandidatesMatchTransportsAndCapabilities() {
+        NetworkRequest any = add(request(NetworkRequest.Type.REQUEST, -1, NET_CAPABILITY_INTERNET));
+        NetworkRequest wifi = add(request(NetworkRequest.Type.REQUEST, TRANSPORT_WIFI,
+                NET_CAPABILITY_INTERNET));
+        NetworkRequest cell = add(request(NetworkRequest.Type.REQUEST, TRANSPORT_CELLULAR,
+                NET_CAPABILITY_INTERNET));
+        NetworkRequest unmetered = add(request(NetworkRequest.Type.REQUEST, -1,
+                NET_CAPABILITY_NOT_METERED));
+        NetworkRequest mms = add(request(NetworkRequest.Type.REQUEST, TRANSPORT_CELLULAR,
+                NET_CAPABILITY_MMS));
+        add(request(NetworkRequest.Type.LISTEN, TRANSPORT_WIFI, NET_CAPABILITY_INTERNET));
+        assertEquals(5, mIndex.size());
+
+        ArrayList<NetworkRequest> candidates = candidates(
+                nai(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET, NET_CAPABILITY_NOT_METERED));
+        assertEquals(3, candidates.size());
+        assertTrue(candidates.contains(any));
+        assertTrue(candidates.contains(wifi));
+        assertTrue(candidates.contains(unmetered));
+
+        candidates = candidates(nai(TRANSPORT_CELLULAR, NET_CAPABILITY_INTERNET));
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.contains(any));
+        assertTrue(candidates.contains(cell));
+
+        mIndex.remove(any);
+        mIndex.remove(mms);
+        assertEquals(3, mIndex.size());
+        candidates = candidates(nai(TRANSPORT_CELLULAR, NET_CAPABILITY_INTERNET,
+                NET_CAPABILITY_MMS));
+        assertEquals(1, candidates.size());
+        assertTrue(candidates.contains(cell));
+    }
+
+    @SmallTest
+    public void testMultipleTransportsReturnedOnce() {
+        NetworkCapabilities caps = new NetworkCapabilities();
+        caps.addTransportType(TRANSPORT_WIFI);
+        caps.addTransportType(TRANSPORT_CELLULAR);
+        NetworkRequest both = add(new NetworkRequest(caps, ConnectivityManager.TYPE_NONE,
+                mNextRequestId++, NetworkRequest.Type.REQUEST));
+
+        NetworkCapabilities networkCaps = new NetworkCapabilities();
+        networkCaps.addTransportType(TRANSPORT_WIFI);
+        networkCaps.addTransportType(TRANSPORT_CELLULAR);
+        ArrayList<NetworkRequest> candidates = candidates(nai(networkCaps));
+        assertEquals(1, candidates.size());
+        assertTrue(candidates.contains(both));
+    }
+
+    @SmallTest
+    public void testSatisfiedRequestsAlwaysReturned() {
+        NetworkRequest unmetered = add(request(NetworkRequest.Type.REQUEST, TRANSPORT_WIFI,
+                NET_CAPABILITY_NOT_METERED));
+        NetworkAgentInfo nai = nai(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET);
+        assertEquals(0, candidates(nai).size());
+
+        // The network lost NOT_METERED but still lists the request: it must be visited so that
+        // rematching can remove it.
+        nai.addRequest(unmetered);
+        ArrayList<NetworkRequest> candidates = candidates(nai);
+        assertEquals(1, candidates.size());
+        assertTrue(candidates.contains(unmetered));
+    }
+
+    private NetworkRequest add(NetworkRequest request) {
+        mIndex.add(request, request);
+        return request;
+    }
+
+    private ArrayList<NetworkRequest> candidates(NetworkAgentInfo nai) {
+        ArrayList<NetworkRequest> out = new ArrayList<>();
+        assertEquals(mIndex.getCandidates(nai, out), out.size());
+        return out;
+    }
+
+    private NetworkRequest request(NetworkRequest.Type type, int transport, int capability) {
+        NetworkCapabilities caps = new NetworkCapabilities();
+        caps.clearAll();
+        if (transport >= 0) {
+            caps.addTransportType(transport);
+        }
+        caps.addCapability(capability);
+        return new NetworkRequest(caps, ConnectivityManager.TYPE_NONE, mNextRequestId++, type);
+    }
+
+    private NetworkAgentInfo nai(int transport, int... capabilities) {
+        NetworkCapabilities caps = new NetworkCapabilities();
+        caps.clearAll();
+        caps.addTransportType(transport);
+        for (int capability : capabilities) {
+            caps.addCapability(capability);
+        }
+        return nai(caps);
+    }
+
+    private NetworkAgentInfo nai(NetworkCapabilities caps) {
+        NetworkInfo info = new NetworkInfo(ConnectivityManager.TYPE_WIFI, 0, "WIFI", "");
+        return new NetworkAgentInfo(null, null, new Network(100), info, null, caps, 50, mCtx,
+                null, mMisc, null, mConnService);
+    }
+}
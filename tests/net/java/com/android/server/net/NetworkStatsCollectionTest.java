@@ -41,9 +41,11 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 
 import libcore.io.IoUtils;
 import libcore.io.Streams;
@@ -217,6 +219,143 @@ public class NetworkStatsCollectionTest extends AndroidTestCase {
                 0, NetworkStatsAccess.Level.DEVICE);
     }
 
+    public void testAppendableChunks() throws Exception {
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true));
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final File testFile = new File(getContext().getFilesDir(), TEST_FILE);
+        testFile.delete();
+
+        // Start with a unified chunk, as written before appending was enabled
+        final NetworkStatsCollection unified = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        entry.rxBytes = 32;
+        unified.recordData(identSet, 1000, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        try (FileOutputStream out = new FileOutputStream(testFile)) {
+            unified.write(new DataOutputStream(out));
+        }
+
+        // Then append two chunks covering later hours
+        final NetworkStatsCollection pending = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        entry.rxBytes = 64;
+        pending.recordData(identSet, 1000, SET_DEFAULT, TAG_NONE, HOUR_IN_MILLIS,
+                2 * HOUR_IN_MILLIS, entry);
+        appendTo(testFile, pending);
+        pending.reset();
+        entry.rxBytes = 128;
+        pending.recordData(identSet, 1001, SET_DEFAULT, TAG_NONE, 5 * HOUR_IN_MILLIS,
+                6 * HOUR_IN_MILLIS, entry);
+        appendTo(testFile, pending);
+
+        // Streaming read combines every chunk
+        final NetworkStatsCollection streamed = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        try (InputStream in = new FileInputStream(testFile)) {
+            streamed.read(in);
+        }
+        assertSummaryTotal(streamed, buildTemplateMobileAll(TEST_IMSI), 32 + 64 + 128, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // Mapped read of a file that starts with a unified chunk reads it all
+        final NetworkStatsCollection mapped = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        mapped.readMapped(testFile, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertSummaryTotal(mapped, buildTemplateMobileAll(TEST_IMSI), 32 + 64 + 128, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // Mapped read of a purely appended file only decodes the requested range
+        testFile.delete();
+        appendTo(testFile, pending);
+        pending.reset();
+        entry.rxBytes = 64;
+        pending.recordData(identSet, 1000, SET_DEFAULT, TAG_NONE, HOUR_IN_MILLIS,
+                2 * HOUR_IN_MILLIS, entry);
+        appendTo(testFile, pending);
+        final NetworkStatsCollection ranged = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        ranged.readMapped(testFile, 0, 3 * HOUR_IN_MILLIS);
+        assertSummaryTotal(ranged, buildTemplateMobileAll(TEST_IMSI), 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // A torn trailing append is ignored
+        final long length = testFile.length();
+        try (FileOutputStream out = new FileOutputStream(testFile, true)) {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            pending.writeAppendable(new DataOutputStream(bos));
+            out.write(bos.toByteArray(), 0, bos.size() / 2);
+        }
+        assertTrue(testFile.length() > length);
+        final NetworkStatsCollection torn = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        torn.readMapped(testFile, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertSummaryTotal(torn, buildTemplateMobileAll(TEST_IMSI), 128 + 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+    }
+
+    public void testTornChunksStopReading() throws Exception {
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true));
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final File testFile = new File(getContext().getFilesDir(), TEST_FILE);
+        testFile.delete();
+
+        final NetworkStatsCollection pending = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        entry.rxBytes = 32;
+        pending.recordData(identSet, 1000, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        appendTo(testFile, pending);
+        final long validLength = testFile.length();
+
+        // A crash can leave a zero-filled tail instead of a partial chunk
+        try (FileOutputStream out = new FileOutputStream(testFile, true)) {
+            out.write(new byte[64]);
+        }
+        assertEquals(validLength, NetworkStatsCollection.getValidLength(testFile, HOUR_IN_MILLIS));
+        assertReadTotal(testFile, 32);
+
+        // Data appended after a corrupt chunk can't be found reliably, so it's ignored
+        truncate(testFile, validLength);
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        pending.writeAppendable(new DataOutputStream(bos));
+        final byte[] corrupt = bos.toByteArray();
+        corrupt[corrupt.length - 1]++;
+        try (FileOutputStream out = new FileOutputStream(testFile, true)) {
+            out.write(corrupt);
+        }
+        appendTo(testFile, pending);
+        assertEquals(validLength, NetworkStatsCollection.getValidLength(testFile, HOUR_IN_MILLIS));
+        assertReadTotal(testFile, 32);
+
+        // Once cut back to the valid length, appends are readable again
+        truncate(testFile, validLength);
+        appendTo(testFile, pending);
+        assertEquals(testFile.length(),
+                NetworkStatsCollection.getValidLength(testFile, HOUR_IN_MILLIS));
+        assertReadTotal(testFile, 64);
+    }
+
+    private void assertReadTotal(File file, long rxBytes) throws Exception {
+        final NetworkStatsCollection mapped = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        mapped.readMapped(file, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertSummaryTotal(mapped, buildTemplateMobileAll(TEST_IMSI), rxBytes, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        final NetworkStatsCollection streamed = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        try (InputStream in = new FileInputStream(file)) {
+            streamed.read(in);
+        }
+        assertSummaryTotal(streamed, buildTemplateMobileAll(TEST_IMSI), rxBytes, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+    }
+
+    private static void truncate(File file, long length) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    private static void appendTo(File file, NetworkStatsCollection collection) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            collection.writeAppendable(new DataOutputStream(out));
+        }
+    }
+
     /**
      * Copy a {@link Resources#openRawResource(int)} into {@link File} for
      * testing purposes.
@@ -23,6 +23,6 @@ import android.annotation.NonNull;
  */
 public class Typeface_Accessor {
     public static boolean isSystemFont(@NonNull String fontName) {
-        return Typeface.sSystemFontMap.containsKey(fontName);
+        return Typeface.isSystemFont(fontName);
     }
 }